@@ -1,10 +1,12 @@
 package edu.hm.skb.api.client;
 
+import com.google.common.io.ByteStreams;
 import edu.hm.skb.api.fed.FedService;
 import edu.hm.skb.api.security.SkbCheckSignature;
 import edu.hm.skb.config.Config;
 import edu.hm.skb.config.ConfigInjector;
 import edu.hm.skb.data.Data;
+import edu.hm.skb.util.BlockStatisticsBean;
 import edu.hm.skb.util.WordListBean;
 import edu.hm.skb.util.hash.HashMethod;
 import edu.hm.skb.util.model.ClientInfoResponse;
@@ -13,21 +15,20 @@ import edu.hm.skb.util.model.FedInfoResponse;
 import edu.hm.skb.util.model.BaseServerInfo;
 import edu.hm.skb.util.model.Field;
 import edu.hm.skb.worker.BackupWorker;
+import edu.hm.skb.worker.RestoreWorker;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.jboss.logging.Logger;
 import org.jboss.resteasy.reactive.common.util.DateUtil;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.file.FileAlreadyExistsException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.function.BiPredicate;
 
 /**
  * API Paths for the Client REST API
@@ -70,24 +71,27 @@ public class ClientResource {
      */
     @Inject
     /* default */ WordListBean wordListBean;
+    /**
+     * Block counts for the statistics
+     */
+    @Inject
+    /* default */ BlockStatisticsBean blockStatistics;
+    /**
+     * Worker restoring the files from the remote servers
+     */
+    @Inject
+    /* default */ RestoreWorker restoreWorker;
 
     /**
-     * Helper method to get the size of all blocks that are secured on at least the given amount of
-     * servers
+     * Helper method to get the size of all blocks that are secured on the given amount of servers
      *
-     * @param serverCount the amount to check
-     * @param comparison  The comparison function. The serverCount field will be set as the second
-     *                    parameter
-     * @return the size of blocks that match the predicate in bytes
+     * @param serverCount the amount to check, {@link BlockStatisticsBean#MAX_REPLICAS} includes
+     *                    all blocks on at least that many servers
+     * @return the size of the blocks in bytes
      */
-    private long getFilteredBlockSize(int serverCount, BiPredicate<Integer, Integer> comparison) {
-        return config.getConfig()
-                .getBlocks()
-                .stream()
-                .filter(block -> comparison.test(block.serverToId().size(), serverCount))
-                // TODO: don't use block size but extract actual data size in block
-                .mapToLong(block -> config.getConfig().getBlockSize())
-                .sum();
+    private long getBlockSize(int serverCount) {
+        // TODO: don't use block size but extract actual data size in block
+        return blockStatistics.getBlockCount(serverCount) * config.getConfig().getBlockSize();
     }
 
     /**
@@ -127,11 +131,7 @@ public class ClientResource {
      */
     @NotNull
     private Optional<Config.File> getFileById(@NotNull String fileId) {
-        return config.getConfig()
-                .getFiles()
-                .stream()
-                .filter(file -> file.id().equals(fileId))
-                .findFirst();
+        return Optional.ofNullable(config.getConfig().getFile(fileId));
     }
 
     /**
@@ -156,9 +156,10 @@ public class ClientResource {
             servers.add(apply);
         }
 
-        return new ClientInfoResponse(data.getTotalSize(), data.getUsedSize(), getFilteredBlockSize(
-                0, Integer::equals), getFilteredBlockSize(1, Integer::equals), getFilteredBlockSize(
-                        2, (a, b) -> a >= b), servers, toFileInfo(config.getConfig().getFiles()));
+        return new ClientInfoResponse(data.getTotalSize(), data.getUsedSize(), data
+                .getDeduplicatedSize(), getBlockSize(0), getBlockSize(1), getBlockSize(
+                        BlockStatisticsBean.MAX_REPLICAS), servers, toFileInfo(config.getConfig()
+                                .getFiles()));
     }
 
     /**
@@ -226,15 +227,15 @@ public class ClientResource {
             throw new WebApplicationException("Error uploading file", e,
                     Response.Status.INTERNAL_SERVER_ERROR);
         }
-        if (changedBlocks.isEmpty()) {
-            throw new WebApplicationException("File couldn't be created",
-                    Response.Status.INTERNAL_SERVER_ERROR);
-        }
     }
 
     /**
      * API Path to download a file
      *
+     * <p/>
+     * If the local copy of the file is missing, its blocks are fetched from the remote servers
+     * and streamed while they arrive. The fetched blocks are written back to the local copy.
+     *
      * @param id the id of the file
      * @return octet stream of a file. Can also return 404.
      */
@@ -248,7 +249,17 @@ public class ClientResource {
         }
         InputStream stream = null;
         try {
-            stream = data.getFile(file.get());
+            try {
+                stream = data.getFile(file.get());
+            } catch (FileNotFoundException e) {
+                LOG.warnf("Local copy of file %s is missing, reading it from the remote servers",
+                        id);
+                return Response.ok(streamFromReplicas(file.get()),
+                                MediaType.APPLICATION_OCTET_STREAM)
+                        .header("content-disposition", "attachment; filename = " + file.get()
+                                .path())
+                        .build();
+            }
             return Response.ok(stream, MediaType.APPLICATION_OCTET_STREAM)
                     .header("content-disposition", "attachment; filename = " + file.get().path())
                     .build();
@@ -264,6 +275,38 @@ public class ClientResource {
         }
     }
 
+    /**
+     * @param file the file whose local copy is missing
+     * @return output writing the part of the file in each block in order, while the next blocks
+     * are already restored. The blocks are restored into a separate file, which replaces the
+     * missing local copy only once all of them are restored.
+     */
+    @NotNull
+    private StreamingOutput streamFromReplicas(@NotNull Config.File file) {
+        return output -> {
+            String contentId = Objects.requireNonNullElse(file.contentId(), file.id());
+            Config.File content = Objects.requireNonNullElse(config.getConfig().getFile(contentId),
+                    file);
+            data.startRestore(content);
+            try (InputStream stream = data.getRestoringFile(content)) {
+                restoreWorker.fetchBlocks(config.getConfig().getBlocks(contentId), block -> {
+                    long length = block.fileToByteRange()
+                            .stream()
+                            .filter(range -> range.fileId().equals(contentId))
+                            .mapToLong(range -> range.stop() - range.start())
+                            .sum();
+                    if (ByteStreams.copy(ByteStreams.limit(stream, length), output) != length) {
+                        throw new IOException("Restored block is shorter than the file range");
+                    }
+                });
+            }
+            data.finishRestore(content);
+            if (file.contentId() != null) {
+                data.restoreEmptyFile(file);
+            }
+        };
+    }
+
     /**
      * API Path to upload an updated file
      * <p/>
@@ -323,6 +366,34 @@ public class ClientResource {
         }
     }
 
+    /**
+     * API Path to restore the local files from the blocks on the remote servers, after the local
+     * data was lost. Files already restored are skipped, so an interrupted restore can be started
+     * again.
+     * <p/>
+     * Returns 204 if the restore was started. Can also return 409.
+     */
+    @POST
+    @Path("/restore")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void clientRestore() {
+        if (!restoreWorker.requestRestore()) {
+            throw new WebApplicationException("Restore already running", Response.Status.CONFLICT);
+        }
+    }
+
+    /**
+     * API Path to get the progress of the restore
+     *
+     * @return the progress of the current or last restore
+     */
+    @GET
+    @Path("/restore")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Field.RestoreStatus clientRestoreStatus() {
+        return restoreWorker.getStatus();
+    }
+
     /**
      * API Path to add a new remote server.
      *
@@ -462,19 +533,20 @@ public class ClientResource {
             }
         }
         boolean success = config.getConfig().deleteServer(hostname);
-        config.getConfig().getExternalBlocks(hostname).stream().peek(externalBlock -> {
+        List<Config.ExternalBlock> externalBlocks = config.getConfig().getExternalBlocks(hostname);
+        externalBlocks.forEach(externalBlock -> {
             try {
                 if (!data.deleteExternalBlock(externalBlock)) {
                     LOG.warnf("Couldn't delete external block {0}", externalBlock.id());
                 }
             } catch (FileNotFoundException ignored) {
             }
-        }).forEach(externalBlock -> config.getConfig().deleteExternalBlock(externalBlock.id()));
+        });
         config.getConfig()
-                .getBlocks()
-                .stream()
-                .filter(block -> block.serverToId().containsKey(hostname))
-                .forEach(block -> config.getConfig().removeBlockServer(block.id(), hostname));
+                .deleteExternalBlocks(externalBlocks.stream()
+                        .map(Config.ExternalBlock::id)
+                        .toList());
+        config.getConfig().removeServerFromBlocks(hostname);
         if (!success) {
             throw new WebApplicationException("Server not found", Response.Status.NOT_FOUND);
         }
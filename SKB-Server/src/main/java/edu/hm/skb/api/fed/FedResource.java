@@ -133,19 +133,18 @@ public class FedResource {
     @Path("/server/restore")
     @Consumes(MediaType.APPLICATION_JSON)
     public void serverRestore(@HeaderParam("domain") String host, Field.BackupCode backupCode) {
-        final List<Config.Server> remoteServer = config.getConfig()
-                .getServers()
-                .stream()
-                .filter(server -> server.backupCode().equals(backupCode.backup_code()) || host
-                        .equals(server.futureHostname()))
-                .toList();
-        if (remoteServer.isEmpty()) {
+        final Config.Server byBackupCode = config.getConfig()
+                .getServerByBackupCode(backupCode.backup_code());
+        final Config.Server byFutureHostname = config.getConfig().getServerByFutureHostname(host);
+        if (byBackupCode == null && byFutureHostname == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
-        } else if (remoteServer.size() > 1) {
+        } else if (byBackupCode != null && byFutureHostname != null && !byBackupCode.hostname()
+                .equals(byFutureHostname.hostname())) {
             throw new IllegalStateException();
         }
+        final Config.Server remoteServer = byBackupCode != null ? byBackupCode : byFutureHostname;
 
-        if (!config.getConfig().updateServerHostname(remoteServer.get(0).hostname(), host)) {
+        if (!config.getConfig().updateServerHostname(remoteServer.hostname(), host)) {
             throw new IllegalStateException();
         }
     }
@@ -217,25 +216,26 @@ public class FedResource {
         if (remoteServer == null) {
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        config.getConfig().getExternalBlocks(host).stream().peek(externalBlock -> {
-            try {
-                if (!data.deleteExternalBlock(externalBlock)) {
-                    throw new WebApplicationException("Couldn't delete all Blocks",
-                            Response.Status.INTERNAL_SERVER_ERROR);
-                }
-            } catch (FileNotFoundException ignored) {
-            }
-        }).forEach(externalBlock -> config.getConfig().deleteExternalBlock(externalBlock.id()));
-        config.getConfig()
-                .getBlocks()
-                .stream()
-                .filter(block -> block.serverToId().containsKey(host))
-                .forEach(block -> {
-                    if (!config.getConfig().removeBlockServer(block.id(), host)) {
-                        throw new IllegalStateException();
+        List<String> deletedBlocks = new ArrayList<>();
+        try {
+            config.getConfig().getExternalBlocks(host).forEach(externalBlock -> {
+                try {
+                    if (!data.deleteExternalBlock(externalBlock)) {
+                        throw new WebApplicationException("Couldn't delete all Blocks",
+                                Response.Status.INTERNAL_SERVER_ERROR);
                     }
-                    BackupWorker.BLOCKS_TO_CHECK.add(block);
-                });
+                } catch (FileNotFoundException ignored) {
+                }
+                deletedBlocks.add(externalBlock.id());
+            });
+        } finally {
+            config.getConfig().deleteExternalBlocks(deletedBlocks);
+        }
+        List<Config.Block> blocks = config.getConfig().getBlocksOfServer(host);
+        if (!config.getConfig().removeServerFromBlocks(host)) {
+            throw new IllegalStateException();
+        }
+        BackupWorker.BLOCKS_TO_CHECK.addAll(blocks);
 
         config.getConfig().deleteServer(host);
     }
@@ -262,15 +262,18 @@ public class FedResource {
         }
         List<Field.BlockInfo> blockInfos = new ArrayList<>();
         externalBlocks.forEach(externalBlock -> {
-            long lastModified = 0;
-            try {
-                lastModified = data.getLastModified(externalBlock).getEpochSecond();
-            } catch (FileNotFoundException ignored) {
-            } catch (IOException e) {
-                throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+            Config.ExternalBlock recorded = externalBlock;
+            if (externalBlock.lastModified() == 0) {
+                // saved before the content was recorded in the config, only read once
+                try {
+                    recorded = data.recordContent(externalBlock);
+                } catch (IOException e) {
+                    throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+                }
             }
-            long finalLastModified = lastModified;
-            blockInfos.add(new Field.BlockInfo(externalBlock.id(), finalLastModified));
+            // blocks without content are reported as free
+            blockInfos.add(new Field.BlockInfo(recorded.id(), recorded.size() == 0 ? 0 : recorded
+                    .lastModified()));
         });
         return new Field.BlockList(blockInfos);
     }
@@ -306,16 +309,20 @@ public class FedResource {
                 .amount()) * config.getConfig().getBlockSize()) {
             throw new WebApplicationException(Response.Status.NOT_ACCEPTABLE);
         }
-        for (int i = 0; i < amount.amount(); i++) {
-            int counter = 0;
-            do {
-                counter++;
-            } while (counter < 1000 && !config.getConfig()
-                    .addNewExternalBlock(new Config.ExternalBlock(UUID.randomUUID().toString(),
-                            host)));
-            if (counter == 1000) {
-                throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        boolean saved = config.getConfig().transaction(tx -> {
+            for (int i = 0; i < amount.amount(); i++) {
+                int counter = 0;
+                do {
+                    counter++;
+                } while (counter < 1000 && !tx.addNewExternalBlock(Config.ExternalBlock.reserve(
+                        UUID.randomUUID().toString(), host)));
+                if (counter == 1000) {
+                    throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+                }
             }
+        });
+        if (!saved) {
+            throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
         }
     }
 
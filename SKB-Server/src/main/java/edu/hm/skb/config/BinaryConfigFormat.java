@@ -0,0 +1,449 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact binary encoding of the config data, holding the same content as the JSON config file.
+ * <p/>
+ * The file starts with a magic number and the format version. It is followed by a dictionary of
+ * all hostnames, which are then only referenced by their index, and the files, blocks, external
+ * blocks and servers. Ids in the canonical UUID form are stored as 16 bytes, all other strings
+ * are stored length-prefixed as UTF-8.
+ */
+/* default */ final class BinaryConfigFormat {
+
+    /**
+     * Marks a binary config file, "SKBC"
+     */
+    private static final int MAGIC = 0x534B_4243;
+    /**
+     * The version of the format written
+     */
+    private static final short VERSION = 4;
+    /**
+     * The first version, without the digests of the blocks
+     */
+    private static final short VERSION_WITHOUT_DIGEST = 1;
+    /**
+     * The second version, without the digest and content id of the files
+     */
+    private static final short VERSION_WITHOUT_FILE_CONTENT = 2;
+    /**
+     * The third version, without the last modified date and size of the external blocks
+     */
+    private static final short VERSION_WITHOUT_EXTERNAL_SIZE = 3;
+    /**
+     * Marks an id stored as string
+     */
+    private static final byte ID_STRING = 0;
+    /**
+     * Marks an id stored as 16 byte UUID
+     */
+    private static final byte ID_UUID = 1;
+    /**
+     * Server flag, the server is verified
+     */
+    private static final byte FLAG_VERIFIED = 1;
+    /**
+     * Server flag, the server is healthy
+     */
+    private static final byte FLAG_HEALTHY = 1 << 1;
+    /**
+     * Server flag, a maintenance window follows
+     */
+    private static final byte FLAG_MAINTENANCE = 1 << 2;
+    /**
+     * Server flag, a future hostname follows
+     */
+    private static final byte FLAG_FUTURE_HOSTNAME = 1 << 3;
+
+    /**
+     * Initial size of the buffer the data is encoded to
+     */
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Only static methods
+     */
+    private BinaryConfigFormat () {
+    }
+
+    /**
+     * @param schema the content to encode
+     * @return the encoded content, ready to be read
+     */
+    @NotNull
+    /* default */ static ByteBuffer encode(@NotNull SnapshotConfigStorage.JsonSchema schema) {
+        List<Config.File> files = schema.files();
+        List<Config.Block> blocks = schema.blocks();
+        List<Config.ExternalBlock> externalBlocks = schema.externalBlocks();
+        List<Config.Server> servers = schema.servers();
+
+        List<String> hostnames = new ArrayList<>();
+        Map<String, Integer> dictionary = new ConcurrentHashMap<>();
+        for (Config.Server server : servers) {
+            index(dictionary, hostnames, server.hostname());
+            server.oldHostnames().forEach(hostname -> index(dictionary, hostnames, hostname));
+            if (server.futureHostname() != null) {
+                index(dictionary, hostnames, server.futureHostname());
+            }
+        }
+        blocks.forEach(block -> block.serverToId()
+                .keySet()
+                .forEach(hostname -> index(dictionary, hostnames, hostname)));
+        externalBlocks.forEach(block -> index(dictionary, hostnames, block.serverHostname()));
+
+        Output data = new Output();
+        data.putInt(MAGIC);
+        data.putShort(VERSION);
+        data.putInt(hostnames.size());
+        for (String hostname : hostnames) {
+            writeString(data, hostname);
+        }
+        data.putInt(files.size());
+        for (Config.File file : files) {
+            writeId(data, file.id());
+            writeString(data, file.path());
+            writeString(data, Objects.requireNonNullElse(file.digest(), ""));
+            writeString(data, Objects.requireNonNullElse(file.contentId(), ""));
+        }
+        data.putInt(blocks.size());
+        for (Config.Block block : blocks) {
+            writeId(data, block.id());
+            data.putInt(block.serverToId().size());
+            for (Map.Entry<String, String> entry : block.serverToId().entrySet()) {
+                data.putInt(dictionary.get(entry.getKey()));
+                writeId(data, entry.getValue());
+            }
+            data.putInt(block.fileToByteRange().size());
+            for (Config.FileRange range : block.fileToByteRange()) {
+                writeId(data, range.fileId());
+                data.putLong(range.start());
+                data.putLong(range.stop());
+            }
+            writeString(data, Objects.requireNonNullElse(block.digest(), ""));
+        }
+        data.putInt(externalBlocks.size());
+        for (Config.ExternalBlock block : externalBlocks) {
+            writeId(data, block.id());
+            data.putInt(dictionary.get(block.serverHostname()));
+            data.putLong(block.lastModified());
+            data.putLong(block.size());
+        }
+        data.putInt(servers.size());
+        for (Config.Server server : servers) {
+            writeServer(data, dictionary, server);
+        }
+        return data.buffer.flip();
+    }
+
+    /**
+     * @param data the encoded content
+     * @return the decoded content
+     * @throws IOException if the data isn't valid binary config data
+     */
+    @NotNull
+    /* default */ static SnapshotConfigStorage.JsonSchema decode(@NotNull ByteBuffer data)
+            throws IOException {
+        try {
+            return decodeContent(data);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException |
+                NegativeArraySizeException e) {
+            throw new IOException("Binary config file is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * @param data the encoded content
+     * @return the decoded content
+     * @throws IOException if the data isn't valid binary config data
+     */
+    @NotNull
+    private static SnapshotConfigStorage.JsonSchema decodeContent(@NotNull ByteBuffer data)
+            throws IOException {
+        if (data.getInt() != MAGIC) {
+            throw new IOException("Not a binary config file");
+        }
+        short version = data.getShort();
+        if (version < VERSION_WITHOUT_DIGEST || version > VERSION) {
+            throw new IOException("Unsupported binary config version " + version);
+        }
+        String[] hostnames = new String[data.getInt()];
+        for (int i = 0; i < hostnames.length; i++) {
+            hostnames[i] = readString(data);
+        }
+        int amount = data.getInt();
+        List<Config.File> files = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            String id = readId(data);
+            String path = readString(data);
+            if (version <= VERSION_WITHOUT_FILE_CONTENT) {
+                files.add(new Config.File(id, path));
+            } else {
+                files.add(new Config.File(id, path, emptyToNull(readString(data)), emptyToNull(
+                        readString(data))));
+            }
+        }
+        amount = data.getInt();
+        List<Config.Block> blocks = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            String id = readId(data);
+            @SuppressWarnings("unchecked")
+            Map.Entry<String, String>[] serverToId = new Map.Entry[data.getInt()];
+            for (int j = 0; j < serverToId.length; j++) {
+                String hostname = hostnames[data.getInt()];
+                serverToId[j] = Map.entry(hostname, readId(data));
+            }
+            Config.FileRange[] fileToByteRange = new Config.FileRange[data.getInt()];
+            for (int j = 0; j < fileToByteRange.length; j++) {
+                fileToByteRange[j] = new Config.FileRange(readId(data), data.getLong(), data
+                        .getLong());
+            }
+            String digest = version == VERSION_WITHOUT_DIGEST ? "" : readString(data);
+            // immutable collections, so that the store doesn't need to copy them again
+            blocks.add(new Config.Block(id, Map.ofEntries(serverToId), List.of(fileToByteRange),
+                    emptyToNull(digest)));
+        }
+        amount = data.getInt();
+        List<Config.ExternalBlock> externalBlocks = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            String id = readId(data);
+            String hostname = hostnames[data.getInt()];
+            if (version <= VERSION_WITHOUT_EXTERNAL_SIZE) {
+                externalBlocks.add(new Config.ExternalBlock(id, hostname));
+            } else {
+                externalBlocks.add(new Config.ExternalBlock(id, hostname, data.getLong(), data
+                        .getLong()));
+            }
+        }
+        amount = data.getInt();
+        List<Config.Server> servers = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            servers.add(readServer(hostnames, data));
+        }
+        return new SnapshotConfigStorage.JsonSchema(externalBlocks, servers, files, blocks);
+    }
+
+    /**
+     * @param value a string that is written as empty string if it is null
+     * @return the value, null if it is empty
+     */
+    @Nullable
+    private static String emptyToNull(@NotNull String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Adds a hostname to the dictionary if it isn't in there yet
+     *
+     * @param dictionary the index of every hostname
+     * @param hostnames  the hostnames in order of their index
+     * @param hostname   the hostname
+     */
+    private static void index(@NotNull Map<String, Integer> dictionary,
+            @NotNull List<String> hostnames, @NotNull String hostname) {
+        dictionary.computeIfAbsent(hostname, key -> {
+            hostnames.add(key);
+            return hostnames.size() - 1;
+        });
+    }
+
+    /**
+     * @param data       the buffer to write to
+     * @param dictionary the index of every hostname
+     * @param server     the server to write
+     */
+    private static void writeServer(@NotNull Output data,
+            @NotNull Map<String, Integer> dictionary, @NotNull Config.Server server) {
+        data.putInt(dictionary.get(server.hostname()));
+        data.putInt(server.oldHostnames().size());
+        for (String hostname : server.oldHostnames()) {
+            data.putInt(dictionary.get(hostname));
+        }
+        int flags = 0;
+        if (server.isVerified()) {
+            flags |= FLAG_VERIFIED;
+        }
+        if (server.healthy()) {
+            flags |= FLAG_HEALTHY;
+        }
+        if (server.maintenance() != null) {
+            flags |= FLAG_MAINTENANCE;
+        }
+        if (server.futureHostname() != null) {
+            flags |= FLAG_FUTURE_HOSTNAME;
+        }
+        data.put((byte) flags);
+        if (server.maintenance() != null) {
+            data.putLong(server.maintenance().start().getTime());
+            data.putLong(server.maintenance().end().getTime());
+        }
+        if (server.futureHostname() != null) {
+            data.putInt(dictionary.get(server.futureHostname()));
+        }
+        writeString(data, server.backupCode());
+    }
+
+    /**
+     * @param hostnames the dictionary of hostnames
+     * @param data      the encoded content
+     * @return the read server
+     * @throws IOException if the data isn't valid binary config data
+     */
+    @NotNull
+    private static Config.Server readServer(@NotNull String[] hostnames,
+            @NotNull ByteBuffer data) throws IOException {
+        String hostname = hostnames[data.getInt()];
+        int amount = data.getInt();
+        List<String> oldHostnames = new ArrayList<>(amount);
+        for (int i = 0; i < amount; i++) {
+            oldHostnames.add(hostnames[data.getInt()]);
+        }
+        byte flags = data.get();
+        Config.Maintenance maintenance = null;
+        if ((flags & FLAG_MAINTENANCE) != 0) {
+            maintenance = new Config.Maintenance(new Date(data.getLong()), new Date(data
+                    .getLong()));
+        }
+        String futureHostname = null;
+        if ((flags & FLAG_FUTURE_HOSTNAME) != 0) {
+            futureHostname = hostnames[data.getInt()];
+        }
+        return new Config.Server(hostname, oldHostnames, (flags & FLAG_VERIFIED) != 0,
+                (flags & FLAG_HEALTHY) != 0, maintenance, futureHostname, readString(data));
+    }
+
+    /**
+     * Writes an id, as 16 bytes if it is a UUID in canonical form
+     *
+     * @param data the buffer to write to
+     * @param id   the id
+     */
+    private static void writeId(@NotNull Output data, @NotNull String id) {
+        UUID uuid = PackedBlock.parseUuid(id);
+        if (uuid == null) {
+            data.put(ID_STRING);
+            writeString(data, id);
+        } else {
+            data.put(ID_UUID);
+            data.putLong(uuid.getMostSignificantBits());
+            data.putLong(uuid.getLeastSignificantBits());
+        }
+    }
+
+    /**
+     * @param data the encoded content
+     * @return the read id
+     * @throws IOException if the id type is unknown
+     */
+    @NotNull
+    private static String readId(@NotNull ByteBuffer data) throws IOException {
+        byte type = data.get();
+        return switch (type) {
+            case ID_STRING -> readString(data);
+            case ID_UUID -> new UUID(data.getLong(), data.getLong()).toString();
+            default -> throw new IOException("Unknown id type " + type);
+        };
+    }
+
+    /**
+     * @param data   the buffer to write to
+     * @param string the string to write length-prefixed
+     */
+    private static void writeString(@NotNull Output data, @NotNull String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        data.putInt(bytes.length);
+        data.put(bytes);
+    }
+
+    /**
+     * @param data the encoded content
+     * @return the read string
+     */
+    @NotNull
+    private static String readString(@NotNull ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Growing buffer the data is encoded to
+     */
+    private static final class Output {
+
+        /**
+         * The buffer, replaced by a larger one when full
+         */
+        @NotNull
+        private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        /**
+         * Makes sure the buffer has room for the given amount of bytes
+         *
+         * @param bytes the amount of bytes to be written
+         */
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer
+                        .position() + bytes));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        /**
+         * @param value the value to write
+         */
+        private void put(byte value) {
+            ensure(Byte.BYTES);
+            buffer.put(value);
+        }
+
+        /**
+         * @param value the value to write
+         */
+        private void putShort(short value) {
+            ensure(Short.BYTES);
+            buffer.putShort(value);
+        }
+
+        /**
+         * @param value the value to write
+         */
+        private void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        /**
+         * @param value the value to write
+         */
+        private void putLong(long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        /**
+         * @param value the bytes to write
+         */
+        private void put(byte @NotNull [] value) {
+            ensure(value.length);
+            buffer.put(value);
+        }
+    }
+}
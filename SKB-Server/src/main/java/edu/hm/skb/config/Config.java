@@ -8,13 +8,17 @@ import org.jetbrains.annotations.Range;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Following properties are checked to be present on initialisation:
@@ -29,6 +33,7 @@ import java.util.Map;
  * <p>
  * These properties are env and thus can't be deleted/changed after start up
  */
+@SuppressWarnings("PMD.ExcessivePublicCount")
 public interface Config {
 
     // ##### Quarkus Config value #####
@@ -105,6 +110,54 @@ public interface Config {
     @Range(from = 1, to = 100)
     byte getHealthCheckPercent();
 
+    /**
+     * Blocks are shared by several files until their free space is below this portion of the
+     * block size, then they are sealed and no more files are added to them.
+     *
+     * @return The portion of the block size in percent below which a block is sealed
+     */
+    @Range(from = 0, to = 99)
+    byte getBlockSealPercent();
+
+    /**
+     * Files are split into blocks at fixed offsets by default. With content defined chunking the
+     * blocks end at positions found in the content, so that inserting data into a file only moves
+     * the block ends around the change. The block header then only holds the length of each
+     * range, so that the blocks behind the change keep their content.
+     *
+     * @return true if files are split at content defined positions
+     */
+    boolean isContentDefinedChunking();
+
+    /**
+     * Blocks are read from the files with positional reads by default. With a budget the files are
+     * memory mapped instead, so that hashing the same files again reads them from the page cache.
+     *
+     * @return The address space in bytes the mapped parts of the files may take, 0 if disabled
+     */
+    @Range(from = 0, to = Long.MAX_VALUE)
+    long getMappedReadBudget();
+
+    /**
+     * Recently assembled blocks are kept in memory, so that a block is only read once for uploading
+     * it and verifying its hash right after.
+     *
+     * @return The amount of bytes of assembled blocks kept in memory, 0 if disabled
+     */
+    @Range(from = 0, to = Long.MAX_VALUE)
+    long getBlockCacheSize();
+
+    /**
+     * @return true if the assembled blocks are kept in direct memory outside the heap
+     */
+    boolean isBlockCacheOffHeap();
+
+    /**
+     * @return The file next to the config where the storage usage of the files is persisted
+     */
+    @NotNull
+    Path getUsagePath();
+
     /**
      * The Env will specify the interval in the following way:
      * <br/>
@@ -125,6 +178,13 @@ public interface Config {
     @NotNull
     List<File> getFiles();
 
+    /**
+     * @param id The file id
+     * @return The file if it exists
+     */
+    @Nullable
+    File getFile(@NotNull String id);
+
     /**
      * @param id The file id
      * @return The Path to the file
@@ -132,6 +192,31 @@ public interface Config {
     @Nullable
     String getFilePath(@NotNull String id);
 
+    /**
+     * @param digest The digest of the content of a file, see {@link File#digest()}
+     * @return A file holding its own copy of this content, if there is one
+     */
+    @Nullable
+    File getFileByDigest(@NotNull String digest);
+
+    /**
+     * @param id The id of a file holding its own copy of its content
+     * @return The files sharing the content of the file, see {@link File#contentId()}
+     */
+    @NotNull
+    List<File> getFileReferences(@NotNull String id);
+
+    /**
+     * Sets the digest of the content of a file and which file holds the content
+     *
+     * @param id        The id of the file
+     * @param digest    The digest of the content, null if unknown
+     * @param contentId The id of the file holding the content, null if the file holds it itself
+     * @return false if the file didn't exist
+     */
+    boolean updateFileContent(@NotNull String id, @Nullable String digest,
+            @Nullable String contentId);
+
     /**
      * Saved the info to a new file in the database
      *
@@ -161,6 +246,13 @@ public interface Config {
     @Nullable
     Block getBlock(@NotNull String id);
 
+    /**
+     * @param fileId The id of the file
+     * @return The blocks containing parts of the file, ordered by their position in the file
+     */
+    @NotNull
+    List<Block> getBlocks(@NotNull String fileId);
+
     /**
      * Add a new block to the database
      *
@@ -177,6 +269,25 @@ public interface Config {
      */
     boolean deleteBlock(@NotNull String id);
 
+    /**
+     * Replaces the file ranges of a block, the servers of the block stay the same and the digest
+     * is reset
+     *
+     * @param id     The internal block id
+     * @param ranges The new file ranges of the block
+     * @return false if the block didn't exist
+     */
+    boolean updateBlockRanges(@NotNull String id, @NotNull List<FileRange> ranges);
+
+    /**
+     * Sets the digest of the content of a block, see {@link Block#digest()}
+     *
+     * @param id     The internal block id
+     * @param digest The digest of the content of the block
+     * @return false if the block didn't exist
+     */
+    boolean updateBlockDigest(@NotNull String id, @NotNull String digest);
+
     /**
      * Adds a new server to the list of servers for this block
      *
@@ -197,12 +308,42 @@ public interface Config {
      */
     boolean removeBlockServer(@NotNull String id, @NotNull String hostname);
 
+    /**
+     * @param hostname The server for which to get the blocks
+     * @return The list of Blocks with a replica on the specified server
+     */
+    @NotNull
+    List<Block> getBlocksOfServer(@NotNull String hostname);
+
+    /**
+     * Removes a server from the list of servers of all blocks, in one operation
+     *
+     * @param hostname The server to be removed
+     * @return false if the change couldn't be saved
+     */
+    boolean removeServerFromBlocks(@NotNull String hostname);
+
     /**
      * @return List of external blocks
      */
     @NotNull
     List<ExternalBlock> getExternalBlocks();
 
+    /**
+     * @return The amount of external blocks, without listing them
+     */
+    int getExternalBlockCount();
+
+    /**
+     * Records when the content of an external block was written and its size
+     *
+     * @param id           The id of the block
+     * @param lastModified When the content was written in seconds since the epoch
+     * @param size         The size of the content in bytes
+     * @return false if the block didn't exist
+     */
+    boolean updateExternalBlockContent(@NotNull String id, long lastModified, long size);
+
     /**
      * @param id The id of the block
      * @return The Block if it exists
@@ -233,6 +374,14 @@ public interface Config {
      */
     boolean deleteExternalBlock(@NotNull String id);
 
+    /**
+     * Delete multiple external blocks from the database, in one operation
+     *
+     * @param ids The ids of the blocks, ids that don't exist are ignored
+     * @return false if the change couldn't be saved
+     */
+    boolean deleteExternalBlocks(@NotNull Collection<String> ids);
+
     /**
      * @return List of known servers
      */
@@ -249,6 +398,20 @@ public interface Config {
     @Nullable
     Server getServer(@NotNull String hostname);
 
+    /**
+     * @param backupCode The backup code given to a server
+     * @return The Server with this backup code if any
+     */
+    @Nullable
+    Server getServerByBackupCode(@NotNull String backupCode);
+
+    /**
+     * @param futureHostname The hostname a server announced to migrate to
+     * @return The Server that will migrate to this hostname if any
+     */
+    @Nullable
+    Server getServerByFutureHostname(@NotNull String futureHostname);
+
     /**
      * Add new known server
      *
@@ -274,7 +437,8 @@ public interface Config {
     boolean updateServer(@NotNull Server server);
 
     /**
-     * Update the hostname of a server. The old hostname will be added to the olfHostnames List
+     * Update the hostname of a server. The old hostname will be added to the olfHostnames List.
+     * Blocks and external blocks of the server are moved to the new hostname.
      *
      * @param oldHostname the old hostname
      * @param newHostname the new hostname
@@ -305,16 +469,205 @@ public interface Config {
      */
     void deleteJwtKey(@NotNull String blockId);
 
+    /**
+     * JWT Keys are dropped once their token expired or when too many are stored
+     *
+     * @return the current usage of the JWT Key store
+     */
+    @NotNull
+    JwtKeyStatistics getJwtKeyStatistics();
+
+    /**
+     * Make multiple changes as one operation. The changes are saved together, either all or none.
+     * If the changes throw an exception, all of them are reverted and the exception is rethrown.
+     * <p/>
+     * The other methods of this interface changing data must not be called inside a transaction.
+     *
+     * @param changes The changes to make on the transaction
+     * @return false if the changes couldn't be saved, none of them were applied then
+     */
+    boolean transaction(@NotNull Consumer<Transaction> changes);
+
+    /**
+     * Changes made in a transaction. The methods behave like the ones with the same name on
+     * {@link Config} and see the earlier changes of the transaction, the getters of {@link Config}
+     * only see them once the transaction is saved.
+     */
+    interface Transaction {
+
+        /**
+         * @param file File data
+         * @return false if a file with this id already exists
+         */
+        boolean addNewFile(@NotNull File file);
+
+        /**
+         * @param id The id of the file
+         * @return false if the file didn't exist
+         */
+        boolean deleteFile(@NotNull String id);
+
+        /**
+         * @param id        The id of the file
+         * @param digest    The digest of the content, null if unknown
+         * @param contentId The id of the file holding the content, null if the file holds it
+         *                  itself
+         * @return false if the file didn't exist
+         */
+        boolean updateFileContent(@NotNull String id, @Nullable String digest,
+                @Nullable String contentId);
+
+        /**
+         * @param block Block data
+         * @return false if a block with this id already exists
+         */
+        boolean addNewBlock(@NotNull Block block);
+
+        /**
+         * @param id The id of the block
+         * @return false if the block didn't exist
+         */
+        boolean deleteBlock(@NotNull String id);
+
+        /**
+         * @param id     The internal block id
+         * @param ranges The new file ranges of the block
+         * @return false if the block didn't exist
+         */
+        boolean updateBlockRanges(@NotNull String id, @NotNull List<FileRange> ranges);
+
+        /**
+         * @param id     The internal block id
+         * @param digest The digest of the content of the block
+         * @return false if the block didn't exist
+         */
+        boolean updateBlockDigest(@NotNull String id, @NotNull String digest);
+
+        /**
+         * @param id         The internal block id
+         * @param hostname   The new server where the block is saved
+         * @param externalId The external id of this block
+         * @return false if the block didn't exist
+         */
+        boolean addBlockServer(@NotNull String id, @NotNull String hostname,
+                @NotNull String externalId);
+
+        /**
+         * @param id       The internal block id
+         * @param hostname The server to be removed
+         * @return false if the block didn't exist
+         */
+        boolean removeBlockServer(@NotNull String id, @NotNull String hostname);
+
+        /**
+         * @param block Block data
+         * @return false if a block with this id already exists
+         */
+        boolean addNewExternalBlock(@NotNull ExternalBlock block);
+
+        /**
+         * @param id The id of the block
+         * @return false if the block didn't exist
+         */
+        boolean deleteExternalBlock(@NotNull String id);
+    }
+
+    // ##### Change events #####
+
+    /**
+     * Registers a listener for changes of the config data. Before this method returns, the listener
+     * gets a {@link BlockAdded} event for every existing block and a {@link ServerChanged} event
+     * for every existing server, so that it starts from the current state.
+     * <p/>
+     * Events are delivered in the order of the changes, after the changes were written and while
+     * further changes wait. Listeners must therefore be quick and must not change the config.
+     *
+     * @param listener The listener
+     */
+    void subscribe(@NotNull Consumer<Event> listener);
+
+    /**
+     * @param listener The listener to remove
+     */
+    void unsubscribe(@NotNull Consumer<Event> listener);
+
+    /**
+     * A change of the config data
+     */
+    sealed interface Event {
+    }
+
+    /**
+     * A block was created
+     *
+     * @param block The new block
+     */
+    record BlockAdded(@NotNull Block block) implements Event {
+    }
+
+    /**
+     * A block was deleted
+     *
+     * @param block The deleted block
+     */
+    record BlockRemoved(@NotNull Block block) implements Event {
+    }
+
+    /**
+     * A server was added to the servers of a block
+     *
+     * @param block    The changed block
+     * @param hostname The added server
+     * @param replicas The amount of servers of the block after this change
+     */
+    record ReplicaAdded(@NotNull Block block, @NotNull String hostname, int replicas)
+            implements Event {
+    }
+
+    /**
+     * A server was removed from the servers of a block
+     *
+     * @param block    The changed block
+     * @param hostname The removed server
+     * @param replicas The amount of servers of the block after this change
+     */
+    record ReplicaRemoved(@NotNull Block block, @NotNull String hostname, int replicas)
+            implements Event {
+    }
+
+    /**
+     * A server was added, changed or deleted
+     *
+     * @param previous The server before the change, null if it was added
+     * @param current  The server after the change, null if it was deleted
+     */
+    record ServerChanged(@Nullable Server previous, @Nullable Server current) implements Event {
+    }
+
     // ##### Datatypes #####
 
     /**
      * Representation of a file on the filesystem
      *
-     * @param id   The internal UUID64 id of the file
-     * @param path The path to the file
+     * @param id        The internal UUID64 id of the file
+     * @param path      The path to the file
+     * @param digest    Hex SHA256 of the content of the file, null if unknown
+     * @param contentId The id of the file whose copy of the same content and blocks are shared,
+     *                  null if the file holds its own copy
      */
     @RegisterForReflection
-    record File(@NotNull String id, @NotNull String path) {
+    record File(@NotNull String id, @NotNull String path, @Nullable String digest,
+                @Nullable String contentId) {
+
+        /**
+         * File holding its own copy of an unknown content
+         *
+         * @param id   The internal UUID64 id of the file
+         * @param path The path to the file
+         */
+        public File (@NotNull String id, @NotNull String path) {
+            this(id, path, null, null);
+        }
     }
 
 
@@ -325,10 +678,23 @@ public interface Config {
      * @param serverToId      Map from Server hostnames to external Block ids
      * @param fileToByteRange Map from file id to Bytes Range Array (start and stop, start inclusive
      *                        and stop exclusive)
+     * @param digest          Hex SHA256 of the content last handed out for upload, null if unknown
      */
     @RegisterForReflection
     record Block(@NotNull String id, @NotNull Map<String, String> serverToId,
-                 @NotNull List<FileRange> fileToByteRange) {
+                 @NotNull List<FileRange> fileToByteRange, @Nullable String digest) {
+
+        /**
+         * Block with an unknown digest
+         *
+         * @param id              Internal ID of the Block
+         * @param serverToId      Map from Server hostnames to external Block ids
+         * @param fileToByteRange Map from file id to Bytes Range Array
+         */
+        public Block (@NotNull String id, @NotNull Map<String, String> serverToId,
+                @NotNull List<FileRange> fileToByteRange) {
+            this(id, serverToId, fileToByteRange, null);
+        }
     }
 
 
@@ -349,9 +715,34 @@ public interface Config {
      *
      * @param id             Internal ID of the Block
      * @param serverHostname The hostname of the external server that send this block
+     * @param lastModified   When the content was last written in seconds since the epoch, when
+     *                       the block was reserved if it has no content, 0 if not recorded yet
+     * @param size           The size of the content in bytes, 0 if the block has no content
      */
     @RegisterForReflection
-    record ExternalBlock(@NotNull String id, @NotNull String serverHostname) {
+    record ExternalBlock(@NotNull String id, @NotNull String serverHostname, long lastModified,
+                         long size) {
+
+        /**
+         * Block whose content isn't recorded yet, saved before the content was recorded in the
+         * config
+         *
+         * @param id             Internal ID of the Block
+         * @param serverHostname The hostname of the external server that send this block
+         */
+        public ExternalBlock (@NotNull String id, @NotNull String serverHostname) {
+            this(id, serverHostname, 0, 0);
+        }
+
+        /**
+         * @param id             Internal ID of the Block
+         * @param serverHostname The hostname of the external server the block is reserved for
+         * @return a block without content, reserved now
+         */
+        @NotNull
+        public static ExternalBlock reserve(@NotNull String id, @NotNull String serverHostname) {
+            return new ExternalBlock(id, serverHostname, Instant.now().getEpochSecond(), 0);
+        }
     }
 
 
@@ -374,6 +765,18 @@ public interface Config {
     }
 
 
+    /**
+     * Usage of the JWT Key store
+     *
+     * @param size      The amount of stored JWT Keys
+     * @param hits      The amount of lookups that found a JWT Key
+     * @param misses    The amount of lookups that found no JWT Key
+     * @param evictions The amount of JWT Keys dropped because they expired or there were too many
+     */
+    record JwtKeyStatistics(long size, long hits, long misses, long evictions) {
+    }
+
+
     /**
      * Maintenance window representation
      *
@@ -0,0 +1,223 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Collects the changes of one commit. Every change is directly applied to a private working
+ * version of the store data, so that later changes of the same commit see the earlier ones, while
+ * readers keep seeing the published state until the commit is saved.
+ * <p/>
+ * Only used while the commit lock is held.
+ */
+/* default */ final class ConfigBatch implements Config.Transaction {
+
+    /**
+     * The store the changes are published to
+     */
+    @NotNull
+    private final ConfigStore store;
+    /**
+     * The applied changes, in order
+     */
+    @NotNull
+    private final List<ConfigMutation> mutations = new ArrayList<>();
+    /**
+     * The events of the applied changes, in order
+     */
+    @NotNull
+    private final List<Config.Event> events = new ArrayList<>();
+
+    /**
+     * The working version with all applied changes
+     */
+    @NotNull
+    private ConfigSnapshot working;
+
+    /**
+     * @param store the store the changes are published to
+     */
+    /* default */ ConfigBatch (@NotNull ConfigStore store) {
+        this.store = store;
+        this.working = store.snapshot();
+    }
+
+    /**
+     * Applies a change to the working version
+     *
+     * @param change the change
+     * @return false if the change is not possible, nothing was changed in this case
+     */
+    /* default */ boolean apply(@NotNull ConfigChange change) {
+        List<ConfigMutation> changeMutations = new ArrayList<>();
+        if (!change.collect(working, changeMutations)) {
+            return false;
+        }
+        List<Object> previous = new ArrayList<>(changeMutations.size());
+        working = working.apply(changeMutations, previous::add);
+        for (int i = 0; i < changeMutations.size(); i++) {
+            collectEvents(changeMutations.get(i), previous.get(i));
+        }
+        mutations.addAll(changeMutations);
+        return true;
+    }
+
+    /**
+     * Derives the events of an applied change
+     *
+     * @param mutation the applied change
+     * @param previous the entry replaced or deleted by the change, if there was one
+     */
+    private void collectEvents(@NotNull ConfigMutation mutation, @Nullable Object previous) {
+        switch (mutation.type()) {
+            case PUT_BLOCK -> {
+                Config.Block block = Objects.requireNonNullElse(working.getBlock(mutation.key()),
+                        Objects.requireNonNull(mutation.block()));
+                if (previous instanceof Config.Block previousBlock) {
+                    collectReplicaEvents(previousBlock, block);
+                } else {
+                    events.add(new Config.BlockAdded(block));
+                }
+            }
+            case DELETE_BLOCK -> {
+                if (previous instanceof Config.Block previousBlock) {
+                    events.add(new Config.BlockRemoved(previousBlock));
+                }
+            }
+            case PUT_SERVER -> events.add(new Config.ServerChanged((Config.Server) previous,
+                    mutation.server()));
+            case DELETE_SERVER -> {
+                if (previous instanceof Config.Server previousServer) {
+                    events.add(new Config.ServerChanged(previousServer, null));
+                }
+            }
+            default -> {
+                // there are no events for files and external blocks
+            }
+        }
+    }
+
+    /**
+     * Derives the events of the servers that were added to or removed from a block
+     *
+     * @param previous the block before the change
+     * @param current  the block after the change
+     */
+    private void collectReplicaEvents(@NotNull Config.Block previous,
+            @NotNull Config.Block current) {
+        int replicas = previous.serverToId().size();
+        for (String hostname : previous.serverToId().keySet()) {
+            if (!current.serverToId().containsKey(hostname)) {
+                replicas--;
+                events.add(new Config.ReplicaRemoved(current, hostname, replicas));
+            }
+        }
+        for (String hostname : current.serverToId().keySet()) {
+            if (!previous.serverToId().containsKey(hostname)) {
+                replicas++;
+                events.add(new Config.ReplicaAdded(current, hostname, replicas));
+            }
+        }
+    }
+
+    /**
+     * Publishes the working version once the changes are saved
+     */
+    /* default */ void commit() {
+        store.publish(working);
+    }
+
+    /**
+     * Drops all applied changes, the store was never changed
+     */
+    /* default */ void rollback() {
+        working = store.snapshot();
+        mutations.clear();
+        events.clear();
+    }
+
+    /**
+     * @return the working version with all applied changes
+     */
+    @NotNull
+    /* default */ ConfigSnapshot getWorking() {
+        return working;
+    }
+
+    /**
+     * @return the applied changes, in order
+     */
+    @NotNull
+    /* default */ List<ConfigMutation> getMutations() {
+        return mutations;
+    }
+
+    /**
+     * @return the events of the applied changes, in order
+     */
+    @NotNull
+    /* default */ List<Config.Event> getEvents() {
+        return events;
+    }
+
+    @Override
+    public boolean addNewFile(@NotNull Config.File file) {
+        return apply(ConfigChange.addNewFile(file));
+    }
+
+    @Override
+    public boolean deleteFile(@NotNull String id) {
+        return apply(ConfigChange.deleteFile(id));
+    }
+
+    @Override
+    public boolean updateFileContent(@NotNull String id, @Nullable String digest,
+            @Nullable String contentId) {
+        return apply(ConfigChange.updateFileContent(id, digest, contentId));
+    }
+
+    @Override
+    public boolean addNewBlock(@NotNull Config.Block block) {
+        return apply(ConfigChange.addNewBlock(block));
+    }
+
+    @Override
+    public boolean deleteBlock(@NotNull String id) {
+        return apply(ConfigChange.deleteBlock(id));
+    }
+
+    @Override
+    public boolean updateBlockRanges(@NotNull String id, @NotNull List<Config.FileRange> ranges) {
+        return apply(ConfigChange.updateBlockRanges(id, ranges));
+    }
+
+    @Override
+    public boolean updateBlockDigest(@NotNull String id, @NotNull String digest) {
+        return apply(ConfigChange.updateBlockDigest(id, digest));
+    }
+
+    @Override
+    public boolean addBlockServer(@NotNull String id, @NotNull String hostname,
+            @NotNull String externalId) {
+        return apply(ConfigChange.addBlockServer(id, hostname, externalId));
+    }
+
+    @Override
+    public boolean removeBlockServer(@NotNull String id, @NotNull String hostname) {
+        return apply(ConfigChange.removeBlockServer(id, hostname));
+    }
+
+    @Override
+    public boolean addNewExternalBlock(@NotNull Config.ExternalBlock block) {
+        return apply(ConfigChange.addNewExternalBlock(block));
+    }
+
+    @Override
+    public boolean deleteExternalBlock(@NotNull String id) {
+        return apply(ConfigChange.deleteExternalBlock(id));
+    }
+}
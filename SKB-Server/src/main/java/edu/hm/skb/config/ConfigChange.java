@@ -0,0 +1,192 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A change to the config data, translated into {@link ConfigMutation}s while the commit lock is
+ * held.
+ * <p/>
+ * The factory methods contain the changes that can be made both directly on {@link Config} and
+ * inside a {@link Config.Transaction}.
+ */
+@FunctionalInterface
+/* default */ interface ConfigChange {
+
+    /**
+     * Collects the changes to make, the commit lock is held while this is called
+     *
+     * @param store     the current state including the earlier changes of the same commit
+     * @param mutations the list to add the changes to
+     * @return false if the change is not possible
+     */
+    boolean collect(@NotNull ConfigSnapshot store, @NotNull List<ConfigMutation> mutations);
+
+    /**
+     * @param file the file to add
+     * @return the change, not possible if a file with this id exists
+     */
+    @NotNull
+    static ConfigChange addNewFile(@NotNull Config.File file) {
+        return (store, mutations) -> store.getFile(file.id()) == null && mutations.add(
+                ConfigMutation.put(file));
+    }
+
+    /**
+     * @param id the id of the file
+     * @return the change, not possible if the file doesn't exist
+     */
+    @NotNull
+    static ConfigChange deleteFile(@NotNull String id) {
+        return (store, mutations) -> store.getFile(id) != null && mutations.add(ConfigMutation
+                .delete(ConfigMutation.Type.DELETE_FILE, id));
+    }
+
+    /**
+     * @param id        the id of the file
+     * @param digest    the digest of the content of the file
+     * @param contentId the id of the file holding the content, null if the file holds it itself
+     * @return the change, not possible if the file doesn't exist
+     */
+    @NotNull
+    static ConfigChange updateFileContent(@NotNull String id, @Nullable String digest,
+            @Nullable String contentId) {
+        return (store, mutations) -> {
+            Config.File file = store.getFile(id);
+            return file != null && mutations.add(ConfigMutation.put(new Config.File(id, file
+                    .path(), digest, contentId)));
+        };
+    }
+
+    /**
+     * @param block the block to add
+     * @return the change, not possible if a block with this id exists
+     */
+    @NotNull
+    static ConfigChange addNewBlock(@NotNull Config.Block block) {
+        return (store, mutations) -> store.getBlock(block.id()) == null && mutations.add(
+                ConfigMutation.put(block));
+    }
+
+    /**
+     * @param id the id of the block
+     * @return the change, not possible if the block doesn't exist
+     */
+    @NotNull
+    static ConfigChange deleteBlock(@NotNull String id) {
+        return (store, mutations) -> store.getBlock(id) != null && mutations.add(ConfigMutation
+                .delete(ConfigMutation.Type.DELETE_BLOCK, id));
+    }
+
+    /**
+     * @param id     the id of the block
+     * @param ranges the new file ranges of the block, the digest of the block is reset
+     * @return the change, not possible if the block doesn't exist
+     */
+    @NotNull
+    static ConfigChange updateBlockRanges(@NotNull String id,
+            @NotNull List<Config.FileRange> ranges) {
+        return (store, mutations) -> {
+            Config.Block block = store.getBlock(id);
+            return block != null && mutations.add(ConfigMutation.put(new Config.Block(id, block
+                    .serverToId(), List.copyOf(ranges))));
+        };
+    }
+
+    /**
+     * @param id     the id of the block
+     * @param digest the digest of the content of the block
+     * @return the change, not possible if the block doesn't exist
+     */
+    @NotNull
+    static ConfigChange updateBlockDigest(@NotNull String id, @NotNull String digest) {
+        return (store, mutations) -> {
+            Config.Block block = store.getBlock(id);
+            return block != null && mutations.add(ConfigMutation.put(new Config.Block(id, block
+                    .serverToId(), block.fileToByteRange(), digest)));
+        };
+    }
+
+    /**
+     * @param id         the id of the block
+     * @param hostname   the server where the block is saved
+     * @param externalId the id of the block on the server
+     * @return the change, not possible if the block doesn't exist
+     */
+    @NotNull
+    static ConfigChange addBlockServer(@NotNull String id, @NotNull String hostname,
+            @NotNull String externalId) {
+        return (store, mutations) -> {
+            Config.Block block = store.getBlock(id);
+            if (block == null) {
+                return false;
+            }
+            Map<String, String> serverToId = new ConcurrentHashMap<>(block.serverToId());
+            serverToId.put(hostname, externalId);
+            return mutations.add(ConfigMutation.put(new Config.Block(id, serverToId, block
+                    .fileToByteRange(), block.digest())));
+        };
+    }
+
+    /**
+     * @param id       the id of the block
+     * @param hostname the server to remove
+     * @return the change, not possible if the block doesn't exist
+     */
+    @NotNull
+    static ConfigChange removeBlockServer(@NotNull String id, @NotNull String hostname) {
+        return (store, mutations) -> {
+            Config.Block block = store.getBlock(id);
+            if (block == null) {
+                return false;
+            }
+            if (!block.serverToId().containsKey(hostname)) {
+                return true;
+            }
+            Map<String, String> serverToId = new ConcurrentHashMap<>(block.serverToId());
+            serverToId.remove(hostname);
+            return mutations.add(ConfigMutation.put(new Config.Block(id, serverToId, block
+                    .fileToByteRange(), block.digest())));
+        };
+    }
+
+    /**
+     * @param block the external block to add
+     * @return the change, not possible if an external block with this id exists
+     */
+    @NotNull
+    static ConfigChange addNewExternalBlock(@NotNull Config.ExternalBlock block) {
+        return (store, mutations) -> store.getExternalBlock(block.id()) == null && mutations.add(
+                ConfigMutation.put(block));
+    }
+
+    /**
+     * @param id           the id of the external block
+     * @param lastModified when the content was written in seconds since the epoch
+     * @param size         the size of the content in bytes
+     * @return the change, not possible if the external block doesn't exist
+     */
+    @NotNull
+    static ConfigChange updateExternalBlockContent(@NotNull String id, long lastModified,
+            long size) {
+        return (store, mutations) -> {
+            Config.ExternalBlock block = store.getExternalBlock(id);
+            return block != null && mutations.add(ConfigMutation.put(new Config.ExternalBlock(id,
+                    block.serverHostname(), lastModified, size)));
+        };
+    }
+
+    /**
+     * @param id the id of the external block
+     * @return the change, not possible if the external block doesn't exist
+     */
+    @NotNull
+    static ConfigChange deleteExternalBlock(@NotNull String id) {
+        return (store, mutations) -> store.getExternalBlock(id) != null && mutations.add(
+                ConfigMutation.delete(ConfigMutation.Type.DELETE_EXTERNAL_BLOCK, id));
+    }
+}
@@ -1,9 +1,13 @@
 package edu.hm.skb.config;
 
 import io.quarkus.runtime.Startup;
+import io.quarkus.scheduler.Scheduled;
 import jakarta.enterprise.context.ApplicationScoped;
+import org.jboss.logging.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Config Injector to be able to inject the Config interface.
  * <p/>
@@ -13,6 +17,19 @@ import org.jetbrains.annotations.NotNull;
 @ApplicationScoped
 public class ConfigInjector {
 
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(ConfigInjector.class);
+
+    /**
+     * Usage of the JWT Key store at the last report
+     */
+    @NotNull
+    private final AtomicReference<Config.JwtKeyStatistics> reportedJwtKeys = new AtomicReference<>(
+            new Config.JwtKeyStatistics(0, 0, 0, 0));
+
     /**
      * @return the word list, not shuffled
      */
@@ -20,4 +37,26 @@ public class ConfigInjector {
     public Config getConfig() {
         return ConfigInstance.CONFIG;
     }
+
+    /**
+     * Compacts the config storage if needed
+     */
+    @Scheduled(every = "1m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void compactConfig() {
+        ConfigInstance.compactIfNeeded();
+    }
+
+    /**
+     * Logs the usage of the JWT Key store if it changed since the last report
+     */
+    @Scheduled(every = "10m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void reportJwtKeys() {
+        Config.JwtKeyStatistics current = getConfig().getJwtKeyStatistics();
+        Config.JwtKeyStatistics previous = reportedJwtKeys.getAndSet(current);
+        if (!current.equals(previous)) {
+            LOG.infof("JWT Keys: %d stored, %d hits, %d misses, %d evicted in the last 10m",
+                    current.size(), current.hits() - previous.hits(), current.misses() - previous
+                            .misses(), current.evictions() - previous.evictions());
+        }
+    }
 }
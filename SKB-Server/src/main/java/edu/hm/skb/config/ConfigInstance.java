@@ -1,23 +1,29 @@
 package edu.hm.skb.config;
 
-import com.fasterxml.jackson.databind.DatabindException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.quarkus.runtime.annotations.RegisterForReflection;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.jboss.logging.Logger;
 
 /**
  * Implementation of the Config Interface
  */
+@SuppressWarnings("PMD.ExcessivePublicCount")
 /* default */ class ConfigInstance implements Config {
 
     /**
@@ -53,6 +59,43 @@ import org.jboss.logging.Logger;
      * The health check interval from the env variable
      */
     private static final int HEALTH_CHECK_INTERVAL;
+    /**
+     * The block seal percent value from the env variable
+     */
+    private static final byte BLOCK_SEAL_PERCENT;
+    /**
+     * If files are split into blocks at content defined positions, from the env variable
+     */
+    private static final boolean CONTENT_DEFINED_CHUNKING;
+    /**
+     * The address space in bytes for memory mapped reads from the env variable, 0 if disabled
+     */
+    private static final long MAPPED_READ_BUDGET;
+    /**
+     * The amount of bytes of assembled blocks kept in memory from the env variable
+     */
+    private static final long BLOCK_CACHE_SIZE;
+    /**
+     * If the assembled blocks are kept outside the heap, from the env variable
+     */
+    private static final boolean BLOCK_CACHE_OFF_HEAP;
+    /**
+     * Default value for the block cache size if none is given, 64 MiB
+     */
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 67_108_864;
+    /**
+     * Default value for the block seal percent if none is given
+     */
+    private static final byte DEFAULT_BLOCK_SEAL_PERCENT = 10;
+    /**
+     * Minutes a JWT Key is kept, the same as the lifetime of the tokens handed out for blocks
+     */
+    private static final long JWT_KEY_LIFETIME_MINUTES = 5;
+    /**
+     * Maximum amount of JWT Keys kept, the oldest ones are dropped first. A key takes below 1 KiB,
+     * so the keys never take more than about 50 MiB.
+     */
+    private static final long MAX_JWT_KEYS = 50_000;
     /**
      * The log instance
      */
@@ -73,6 +116,47 @@ import org.jboss.logging.Logger;
      */
     @NotNull
     private static final String CLIENT_PUBLIC_KEY;
+    /**
+     * Default value for the config backend if none is given
+     */
+    @NotNull
+    private static final String DEFAULT_CONFIG_BACKEND = "json";
+    /**
+     * The mapper used to read and write the config data
+     */
+    @NotNull
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /**
+     * Lock serializing all changes, so that the storage has the same order as the store
+     */
+    @NotNull
+    private static final Object COMMIT_LOCK = new Object();
+    /**
+     * Lock making sure only one compaction runs at the same time
+     */
+    @NotNull
+    private static final Object COMPACTION_LOCK = new Object();
+    /**
+     * Listeners for changes of the config data
+     */
+    @NotNull
+    private static final List<Consumer<Event>> LISTENERS = new CopyOnWriteArrayList<>();
+    /**
+     * The backend persisting the config data
+     */
+    @NotNull
+    private static final ConfigStorage STORAGE;
+    /**
+     * The in-memory copy of the config file
+     */
+    @NotNull
+    private static final ConfigStore STORE;
+    /**
+     * Set once syncing the storage failed. The data on disk can't be trusted to match the store
+     * from then on, so no further changes are accepted until the server is restarted.
+     */
+    @NotNull
+    private static final AtomicBoolean STORAGE_FAILED = new AtomicBoolean();
 
     static {
         // CLIENT_PUBLIC_KEY
@@ -168,120 +252,303 @@ import org.jboss.logging.Logger;
                     "HEALTH_CHECK_INTERVAL environment variable can't be parsed to int");
         }
 
+        // BLOCK_SEAL_PERCENT
+        String tmpBlockSealPercent = System.getenv("BLOCK_SEAL_PERCENT");
+        if (tmpBlockSealPercent == null || tmpBlockSealPercent.isEmpty()) {
+            BLOCK_SEAL_PERCENT = DEFAULT_BLOCK_SEAL_PERCENT;
+        } else {
+            try {
+                BLOCK_SEAL_PERCENT = Byte.parseByte(tmpBlockSealPercent);
+            } catch (NumberFormatException ignored) {
+                throw new IllegalArgumentException(
+                        "BLOCK_SEAL_PERCENT environment variable can't be parsed to Byte");
+            }
+        }
+        if (BLOCK_SEAL_PERCENT < 0 || BLOCK_SEAL_PERCENT > 99) {
+            throw new IllegalArgumentException(
+                    "BLOCK_SEAL_PERCENT environment variable needs to between 0 and 99");
+        }
+
+        // BLOCK_LAYOUT
+        String blockLayout = System.getenv("BLOCK_LAYOUT") != null ?
+                System.getenv("BLOCK_LAYOUT") :
+                "fixed";
+        CONTENT_DEFINED_CHUNKING = switch (blockLayout) {
+            case "fixed" -> false;
+            case "cdc" -> true;
+            default -> throw new IllegalArgumentException(
+                    "BLOCK_LAYOUT environment variable needs to be one of: fixed, cdc");
+        };
+
+        // MAPPED_READ_BUDGET
+        String tmpMappedReadBudget = System.getenv("MAPPED_READ_BUDGET");
+        if (tmpMappedReadBudget == null || tmpMappedReadBudget.isEmpty()) {
+            MAPPED_READ_BUDGET = 0;
+        } else {
+            try {
+                MAPPED_READ_BUDGET = Long.parseLong(tmpMappedReadBudget);
+            } catch (NumberFormatException ignored) {
+                throw new IllegalArgumentException(
+                        "MAPPED_READ_BUDGET environment variable can't be parsed to Long");
+            }
+        }
+        if (MAPPED_READ_BUDGET < 0) {
+            throw new IllegalArgumentException(
+                    "MAPPED_READ_BUDGET environment variable can't be negative");
+        }
+
+        // BLOCK_CACHE_SIZE
+        String tmpBlockCacheSize = System.getenv("BLOCK_CACHE_SIZE");
+        if (tmpBlockCacheSize == null || tmpBlockCacheSize.isEmpty()) {
+            BLOCK_CACHE_SIZE = DEFAULT_BLOCK_CACHE_SIZE;
+        } else {
+            try {
+                BLOCK_CACHE_SIZE = Long.parseLong(tmpBlockCacheSize);
+            } catch (NumberFormatException ignored) {
+                throw new IllegalArgumentException(
+                        "BLOCK_CACHE_SIZE environment variable can't be parsed to Long");
+            }
+        }
+        if (BLOCK_CACHE_SIZE < 0) {
+            throw new IllegalArgumentException(
+                    "BLOCK_CACHE_SIZE environment variable can't be negative");
+        }
+
+        // BLOCK_CACHE_MEMORY
+        String blockCacheMemory = System.getenv("BLOCK_CACHE_MEMORY") != null ?
+                System.getenv("BLOCK_CACHE_MEMORY") :
+                "heap";
+        BLOCK_CACHE_OFF_HEAP = switch (blockCacheMemory) {
+            case "heap" -> false;
+            case "direct" -> true;
+            default -> throw new IllegalArgumentException(
+                    "BLOCK_CACHE_MEMORY environment variable needs to be one of: heap, direct");
+        };
+
         // CONFIG_PATH
-        CONFIG_FILE_PATH = System.getenv("CONFIG_PATH") != null ?
+        String configFilePath = System.getenv("CONFIG_PATH") != null ?
                 System.getenv("CONFIG_PATH") :
                 DEFAULT_CONFIG_FILE_PATH;
-        ObjectMapper mapper = new ObjectMapper();
-        java.io.File configFile = new java.io.File(CONFIG_FILE_PATH);
-        if (configFile.exists() && configFile.canRead()) {
-            try {
-                mapper.readValue(configFile, JsonSchema.class);
-            } catch (IOException e) {
-                throw new IllegalArgumentException("Config file is not valid", e);
+        java.io.File configFile = new java.io.File(configFilePath);
+        if ((!configFile.exists() || !configFile.canRead()) && !canCreate(configFile)) {
+            if (DEFAULT_CONFIG_FILE_PATH.equals(configFilePath)) {
+                throw new IllegalArgumentException(
+                        "CONFIG_FILE_PATH environment variable not given and default path doesn't exist or isn't readable.");
             }
-        } else {
-            LOG.infof("%s", configFile.getAbsolutePath());
-            if (configFile.getParentFile().exists() && configFile.getParentFile().canWrite()) {
-                try {
-                    if (configFile.createNewFile()) {
-                        mapper.writeValue(configFile, new JsonSchema(Collections.emptyList(),
-                                Collections.emptyList(), Collections.emptyList(), Collections
-                                        .emptyList()));
-                    } else {
-                        throw new IllegalStateException("Couldn't create config file");
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e); // NOPMD
-                }
-            } else {
-                if (CONFIG_FILE_PATH.equals(DEFAULT_CONFIG_FILE_PATH)) {
-                    throw new IllegalArgumentException(
-                            "CONFIG_FILE_PATH environment variable not given and default path doesn't exist or isn't readable.");
-                } else {
-                    LOG.errorf("Config file does not exist or is not readable at {0}",
-                            CONFIG_FILE_PATH);
-                    LOG.warnf("Falling back to default config file path: {0}",
-                            DEFAULT_CONFIG_FILE_PATH);
-                    configFile = new java.io.File(DEFAULT_CONFIG_FILE_PATH);
-                    if (configFile.exists() && configFile.canRead()) {
-                        try {
-                            mapper.readValue(configFile, JsonSchema.class);
-                        } catch (IOException e) {
-                            throw new IllegalArgumentException("Config file is not valid", e);
-                        }
-                    } else {
-                        if (configFile.getParentFile().exists() && configFile.getParentFile()
-                                .canWrite()) {
-                            try {
-                                if (configFile.createNewFile()) {
-                                    mapper.writeValue(configFile, new JsonSchema(Collections
-                                            .emptyList(), Collections.emptyList(), Collections
-                                                    .emptyList(), Collections.emptyList()));
-                                } else {
-                                    throw new IllegalStateException("Couldn't create config file");
-                                }
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);  // NOPMD
-                            }
-                        } else {
-                            throw new IllegalArgumentException(
-                                    CONFIG_FILE_PATH + " and " + DEFAULT_CONFIG_FILE_PATH + " don't exist or aren't readable.");
-                        }
-                    }
-                }
+            LOG.errorf("Config file does not exist or is not readable at %s", configFilePath);
+            LOG.warnf("Falling back to default config file path: %s", DEFAULT_CONFIG_FILE_PATH);
+            configFile = new java.io.File(DEFAULT_CONFIG_FILE_PATH);
+            if ((!configFile.exists() || !configFile.canRead()) && !canCreate(configFile)) {
+                throw new IllegalArgumentException(
+                        configFilePath + " and " + DEFAULT_CONFIG_FILE_PATH + " don't exist or aren't readable.");
             }
+            configFilePath = DEFAULT_CONFIG_FILE_PATH;
         }
-        LOG.infof("Using %s", CONFIG_FILE_PATH);
+        CONFIG_FILE_PATH = configFilePath;
+
+        // CONFIG_BACKEND
+        String configBackend = System.getenv("CONFIG_BACKEND") != null ?
+                System.getenv("CONFIG_BACKEND") :
+                DEFAULT_CONFIG_BACKEND;
+        ConfigStorage jsonStorage = new SnapshotConfigStorage(MAPPER, Path.of(CONFIG_FILE_PATH),
+                SnapshotConfigStorage.Format.JSON);
+        ConfigStorage binaryStorage = new SnapshotConfigStorage(MAPPER, siblingPath(".bin"),
+                SnapshotConfigStorage.Format.BINARY);
+        ConfigStorage journalStorage = new JournalConfigStorage(MAPPER, siblingPath(".journal"));
+        ConfigStorage btreeStorage = new PagedConfigStorage(MAPPER, siblingPath(".btree"));
+        STORAGE = switch (configBackend) {
+            case "json" -> jsonStorage;
+            case "binary" -> binaryStorage;
+            case "journal" -> journalStorage;
+            case "btree" -> btreeStorage;
+            default -> throw new IllegalArgumentException(
+                    "CONFIG_BACKEND environment variable needs to be one of: json, binary, "
+                            + "journal, btree");
+        };
+        try {
+            if (!STORAGE.exists()) {
+                importConfig(List.of(jsonStorage, binaryStorage, journalStorage, btreeStorage));
+            }
+            STORE = STORAGE.load();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Config is not valid", e);
+        }
+        LOG.infof("Using %s with the %s backend", CONFIG_FILE_PATH, configBackend);
     }
 
     /**
-     * JWT Keys registered
+     * JWT Keys registered, dropped once the token expired
      */
     @NotNull
-    private final Map<String, String> blockIdToJwtKey = new ConcurrentHashMap<>();
+    private final Cache<String, String> blockIdToJwtKey = CacheBuilder.newBuilder()
+            .expireAfterWrite(JWT_KEY_LIFETIME_MINUTES, TimeUnit.MINUTES)
+            .maximumSize(MAX_JWT_KEYS)
+            .recordStats()
+            .build();
 
+    /**
+     * @param extension the extension of the file
+     * @return the path of the config file with the given extension instead of ".json"
+     */
     @NotNull
-    private static <T> List<T> readConfig(@NotNull Function<JsonSchema, List<T>> dataExtractor) {
-        ObjectMapper mapper = new ObjectMapper();
-        java.io.File configFile = new java.io.File(CONFIG_FILE_PATH);
-        if (!configFile.exists() || !configFile.canRead()) {
-            LOG.error("Config file does not exist or is not readable at " + CONFIG_FILE_PATH, // NOPMD
-                    new RuntimeException());
-            return Collections.emptyList();
+    private static Path siblingPath(@NotNull String extension) {
+        return Path.of(CONFIG_FILE_PATH.endsWith(".json") ?
+                CONFIG_FILE_PATH.substring(0, CONFIG_FILE_PATH.length() - 5) + extension :
+                CONFIG_FILE_PATH + extension);
+    }
+
+    /**
+     * Imports the data of the first other backend that has persisted data into the chosen backend
+     *
+     * @param backends all backends
+     * @throws IOException if the data couldn't be imported
+     */
+    private static void importConfig(@NotNull List<ConfigStorage> backends)
+            throws IOException {
+        for (ConfigStorage backend : backends) {
+            if (backend != STORAGE && backend.exists()) {
+                LOG.infof("Importing config from the %s backend", backend.getClass()
+                        .getSimpleName());
+                try (backend) {
+                    STORAGE.create(backend.load());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks if a config file could be created at the given location
+     *
+     * @param configFile the config file
+     * @return true if the parent folder exists and is writable
+     */
+    private static boolean canCreate(@NotNull java.io.File configFile) {
+        java.io.File parent = configFile.getAbsoluteFile().getParentFile();
+        return parent != null && parent.exists() && parent.canWrite();
+    }
+
+    /**
+     * Compacts the config storage if enough outdated data accumulated
+     */
+    /* default */ static void compactIfNeeded() {
+        synchronized (COMPACTION_LOCK) {
+            if (!STORAGE.needsCompaction()) {
+                return;
+            }
+            try {
+                STORAGE.compact(STORE, COMMIT_LOCK);
+            } catch (IOException e) {
+                LOG.error("Couldn't compact config storage", e);
+            }
+        }
+    }
+
+    /**
+     * Applies a single change to the in-memory store and persists it
+     *
+     * @param change the change
+     * @return false if the change was rejected or couldn't be written, see
+     * {@link #commitBatch(Predicate)}
+     */
+    private static boolean commit(@NotNull ConfigChange change) {
+        return commitBatch(batch -> batch.apply(change));
+    }
+
+    /**
+     * Applies changes to a working version of the in-memory store and persists them together. The
+     * working version is only published to readers once the changes are written.
+     * <p/>
+     * The storage is synced to disk after the commit lock is released, so that concurrent commits
+     * share a single fsync. The changes are already applied at that point, so a failed sync
+     * doesn't revert them but fails the storage, and every later change is rejected.
+     *
+     * @param changes applies the changes to the batch, returns false to revert them
+     * @return false if the changes were reverted, couldn't be written or the storage failed
+     * before, in all of these cases nothing was applied
+     */
+    private static boolean commitBatch(@NotNull Predicate<ConfigBatch> changes) {
+        long sequence;
+        synchronized (COMMIT_LOCK) {
+            if (STORAGE_FAILED.get()) {
+                LOG.error("Rejecting config change, the config storage failed before");
+                return false;
+            }
+            ConfigBatch batch = new ConfigBatch(STORE);
+            boolean keep;
+            try {
+                keep = changes.test(batch);
+            } catch (RuntimeException e) {
+                batch.rollback();
+                throw e;
+            }
+            if (!keep) {
+                batch.rollback();
+                return false;
+            }
+            if (batch.getMutations().isEmpty()) {
+                return true;
+            }
+            try {
+                sequence = STORAGE.write(batch.getWorking(), batch.getMutations());
+            } catch (IOException e) {
+                batch.rollback();
+                LOG.error("Couldn't write config change", e);
+                return false;
+            }
+            batch.commit();
+            LISTENERS.forEach(listener -> publish(listener, batch.getEvents()));
         }
         try {
-            return dataExtractor.apply(mapper.readValue(configFile, JsonSchema.class));
-        } catch (DatabindException e) {
-            LOG.error("Config file not valid", e);
-            return Collections.emptyList();
+            STORAGE.sync(sequence);
         } catch (IOException e) {
-            LOG.error(e);
-            return Collections.emptyList();
+            STORAGE_FAILED.set(true);
+            LOG.error("Couldn't sync config change, rejecting all further changes until restart",
+                    e);
         }
+        return true;
     }
 
-    private static boolean writeConfig(@NotNull Function<JsonSchema, JsonSchema> dataInserter) {
-        ObjectMapper mapper = new ObjectMapper();
-        java.io.File configFile = new java.io.File(CONFIG_FILE_PATH);
-        if (!configFile.exists() || !configFile.canRead()) {
-            LOG.error("Config file does not exist or is not readable at " + CONFIG_FILE_PATH, // NOPMD
-                    new RuntimeException());
-            return false;
-        }
+    /**
+     * Delivers events to a listener, a failing listener doesn't stop the change
+     *
+     * @param listener the listener
+     * @param events   the events
+     */
+    private static void publish(@NotNull Consumer<Event> listener,
+            @NotNull List<? extends Event> events) {
         try {
-            // Read the entire config JSON object
-            JsonSchema configData = mapper.readValue(configFile, JsonSchema.class);
+            events.forEach(listener);
+        } catch (RuntimeException e) {
+            LOG.error("Config change listener failed", e);
+        }
+    }
 
-            // Save and write the entire config JSON object to file
-            mapper.writeValue(configFile, dataInserter.apply(configData));
-            return true;
-        } catch (IOException e) {
-            LOG.error(e);
-            return false;
+    @Override
+    public void subscribe(@NotNull Consumer<Event> listener) {
+        synchronized (COMMIT_LOCK) {
+            publish(listener, STORE.getBlocks().stream().map(BlockAdded::new).toList());
+            publish(listener, STORE.getServers()
+                    .stream()
+                    .map(server -> new ServerChanged(null, server))
+                    .toList());
+            LISTENERS.add(listener);
         }
     }
 
+    @Override
+    public void unsubscribe(@NotNull Consumer<Event> listener) {
+        LISTENERS.remove(listener);
+    }
+
+    @Override
+    public boolean transaction(@NotNull Consumer<Transaction> changes) {
+        return commitBatch(batch -> {
+            changes.accept(batch);
+            return true;
+        });
+    }
+
     @Override
     @NotNull
     public String getClientPublicKey() {
@@ -316,6 +583,37 @@ import org.jboss.logging.Logger;
         return HEALTH_CHECK_PERCENT;
     }
 
+    @Override
+    public byte getBlockSealPercent() {
+        return BLOCK_SEAL_PERCENT;
+    }
+
+    @Override
+    public boolean isContentDefinedChunking() {
+        return CONTENT_DEFINED_CHUNKING;
+    }
+
+    @Override
+    public long getMappedReadBudget() {
+        return MAPPED_READ_BUDGET;
+    }
+
+    @Override
+    public long getBlockCacheSize() {
+        return BLOCK_CACHE_SIZE;
+    }
+
+    @Override
+    public boolean isBlockCacheOffHeap() {
+        return BLOCK_CACHE_OFF_HEAP;
+    }
+
+    @Override
+    @NotNull
+    public Path getUsagePath() {
+        return siblingPath(".usage");
+    }
+
     @Override
     public int getHealthCheckInterval() {
         return HEALTH_CHECK_INTERVAL;
@@ -324,242 +622,300 @@ import org.jboss.logging.Logger;
     @Override
     @NotNull
     public List<File> getFiles() {
-        return readConfig(JsonSchema::files);
+        return STORE.getFiles();
+    }
+
+    @Override
+    @Nullable
+    public File getFile(@NotNull String id) {
+        return STORE.getFile(id);
     }
 
     @Override
     @Nullable
     public String getFilePath(@NotNull String id) {
-        List<File> files = getFiles();
-        return files.stream()
-                .filter(file -> file.id().equals(id))
-                .findAny()
-                .map(File::path)
-                .orElse(null);
+        File file = STORE.getFile(id);
+        return file == null ? null : file.path();
+    }
+
+    @Override
+    @Nullable
+    public File getFileByDigest(@NotNull String digest) {
+        return STORE.getFileByDigest(digest);
+    }
+
+    @Override
+    @NotNull
+    public List<File> getFileReferences(@NotNull String id) {
+        return STORE.getFileReferences(id);
     }
 
     @Override
     public boolean addNewFile(@NotNull File file) {
-        return writeConfig(jsonSchema -> {
-            jsonSchema.files().add(file);
-            return jsonSchema;
-        });
+        return commit(ConfigChange.addNewFile(file));
     }
 
     @Override
     public boolean deleteFile(@NotNull String id) {
-        return writeConfig(jsonSchema -> {
-            jsonSchema.files().removeIf(file -> file.id().equals(id));
-            return jsonSchema;
-        });
+        return commit(ConfigChange.deleteFile(id));
+    }
+
+    @Override
+    public boolean updateFileContent(@NotNull String id, @Nullable String digest,
+            @Nullable String contentId) {
+        return commit(ConfigChange.updateFileContent(id, digest, contentId));
     }
 
     @Override
     @NotNull
     public List<Block> getBlocks() {
-        return readConfig(JsonSchema::blocks);
+        return STORE.getBlocks();
     }
 
     @Override
     @Nullable
     public Block getBlock(@NotNull String id) {
-        List<Block> blocks = getBlocks();
-        for (Block block : blocks) {
-            if (block.id().equals(id)) {
-                return block;
-            }
-        }
-        return null;
+        return STORE.getBlock(id);
+    }
+
+    @Override
+    @NotNull
+    public List<Block> getBlocks(@NotNull String fileId) {
+        return STORE.getBlocksOfFile(fileId);
     }
 
     @Override
     public boolean addNewBlock(@NotNull Block block) {
-        return getBlock(block.id()) == null && writeConfig(jsonSchema -> {
-            jsonSchema.blocks().add(block);
-            return jsonSchema;
-        });
+        return commit(ConfigChange.addNewBlock(block));
     }
 
     @Override
     public boolean deleteBlock(@NotNull String id) {
-        Block blockToRemove = getBlock(id);
-        return blockToRemove != null && writeConfig(jsonSchema -> {
-            jsonSchema.blocks().remove(blockToRemove);
-            return jsonSchema;
-        });
+        return commit(ConfigChange.deleteBlock(id));
+    }
 
+    @Override
+    public boolean updateBlockRanges(@NotNull String id, @NotNull List<FileRange> ranges) {
+        return commit(ConfigChange.updateBlockRanges(id, ranges));
+    }
+
+    @Override
+    public boolean updateBlockDigest(@NotNull String id, @NotNull String digest) {
+        return commit(ConfigChange.updateBlockDigest(id, digest));
     }
 
     @Override
     public boolean addBlockServer(@NotNull String id, @NotNull String hostname,
             @NotNull String externalId) {
-        return getBlocks().stream().anyMatch(block -> block.id().equals(id)) && writeConfig(
-                jsonSchema -> {
-                    jsonSchema.blocks()
-                            .stream()
-                            .filter(block -> block.id().equals(id))
-                            .findAny()
-                            .ifPresent(block -> block.serverToId().put(hostname, externalId));
-                    return jsonSchema;
-                });
+        return commit(ConfigChange.addBlockServer(id, hostname, externalId));
     }
 
     @Override
     public boolean removeBlockServer(@NotNull String id, @NotNull String hostname) {
-        return getBlocks().stream().anyMatch(block -> block.id().equals(id)) && writeConfig(
-                jsonSchema -> {
-                    jsonSchema.blocks()
-                            .stream()
-                            .filter(block -> block.id().equals(id))
-                            .findAny()
-                            .ifPresent(block -> block.serverToId().remove(hostname));
-                    return jsonSchema;
-                });
+        return commit(ConfigChange.removeBlockServer(id, hostname));
+    }
+
+    @Override
+    @NotNull
+    public List<Block> getBlocksOfServer(@NotNull String hostname) {
+        return STORE.getBlocksOfServer(hostname);
+    }
+
+    @Override
+    public boolean removeServerFromBlocks(@NotNull String hostname) {
+        return commit((store, mutations) -> {
+            store.getBlocksOfServer(hostname).forEach(block -> {
+                Map<String, String> serverToId = new ConcurrentHashMap<>(block.serverToId());
+                serverToId.remove(hostname);
+                mutations.add(ConfigMutation.put(new Block(block.id(), serverToId, block
+                        .fileToByteRange(), block.digest())));
+            });
+            return true;
+        });
     }
 
     @Override
     @NotNull
     public List<ExternalBlock> getExternalBlocks() {
-        return readConfig(JsonSchema::externalBlocks);
+        return STORE.getExternalBlocks();
+    }
+
+    @Override
+    public int getExternalBlockCount() {
+        return STORE.getExternalBlockCount();
+    }
+
+    @Override
+    public boolean updateExternalBlockContent(@NotNull String id, long lastModified, long size) {
+        return commit(ConfigChange.updateExternalBlockContent(id, lastModified, size));
     }
 
     @Override
     @Nullable
     public ExternalBlock getExternalBlock(@NotNull String id) {
-        return getExternalBlocks().stream()
-                .filter(block -> block.id().equals(id))
-                .findAny()
-                .orElse(null);
+        return STORE.getExternalBlock(id);
     }
 
     @Override
     @NotNull
     public List<ExternalBlock> getExternalBlocks(@NotNull String hostname) {
-        return getExternalBlocks().stream()
-                .filter(block -> block.serverHostname().equals(hostname))
-                .collect(Collectors.toList());
+        return STORE.getExternalBlocksOfServer(hostname);
     }
 
     @Override
     public boolean addNewExternalBlock(@NotNull ExternalBlock block) {
-        return getExternalBlock(block.id()) == null && writeConfig(jsonSchema -> {
-            jsonSchema.externalBlocks().add(block);
-            return jsonSchema;
-        });
+        return commit(ConfigChange.addNewExternalBlock(block));
     }
 
     @Override
     public boolean deleteExternalBlock(@NotNull String id) {
-        ExternalBlock blockToRemove = getExternalBlock(id);
-        return blockToRemove != null && writeConfig(jsonSchema -> {
-            jsonSchema.externalBlocks().remove(blockToRemove);
-            return jsonSchema;
-        });
+        return commit(ConfigChange.deleteExternalBlock(id));
+    }
 
+    @Override
+    public boolean deleteExternalBlocks(@NotNull Collection<String> ids) {
+        return commit((store, mutations) -> {
+            ids.stream()
+                    .filter(id -> store.getExternalBlock(id) != null)
+                    .forEach(id -> mutations.add(ConfigMutation.delete(
+                            ConfigMutation.Type.DELETE_EXTERNAL_BLOCK, id)));
+            return true;
+        });
     }
 
     @Override
     @NotNull
     public List<Server> getServers() {
-        return readConfig(JsonSchema::servers);
+        return STORE.getServers();
     }
 
     @Override
     @Nullable
     public Server getServer(@NotNull String hostname) {
-        List<Server> servers = getServers();
-        Optional<Server> migratedServer = servers.stream()
-                .filter(server -> hostname.equals(server.futureHostname()))
-                .findAny();
-        migratedServer.ifPresent(server -> {
-            server.oldHostnames().add(server.hostname());
-            assert server.futureHostname() != null;
-            updateServer(new Server(server.hostname(), server.oldHostnames(), server.isVerified(),
-                    server.healthy(), server.maintenance(), null, server.backupCode()));
-            updateServerHostname(server.hostname(), server.futureHostname());
-        });
-        if (migratedServer.isPresent()) {
-            servers = getServers();
+        if (STORE.getServerByFutureHostname(hostname) != null) {
+            migrateServer(hostname);
         }
-        return servers.stream()
-                .filter(server -> server.hostname().equals(hostname))
-                .findAny()
-                .orElse(null);
+        return STORE.getServer(hostname);
     }
 
     @Override
-    public boolean addNewServer(@NotNull Server server) {
-        return getServer(server.hostname()) == null && writeConfig(jsonSchema -> {
-            jsonSchema.servers().add(server);
-            return jsonSchema;
-        });
+    @Nullable
+    public Server getServerByBackupCode(@NotNull String backupCode) {
+        return STORE.getServerByBackupCode(backupCode);
     }
 
     @Override
-    public boolean deleteServer(@NotNull String hostname) {
-        Server serverToRemove = getServer(hostname);
-        return serverToRemove != null && writeConfig(jsonSchema -> {
-            jsonSchema.servers().remove(serverToRemove);
-            return jsonSchema;
-        });
+    @Nullable
+    public Server getServerByFutureHostname(@NotNull String futureHostname) {
+        return STORE.getServerByFutureHostname(futureHostname);
+    }
 
+    /**
+     * Moves a server to its future hostname. The current hostname is added to the old hostnames.
+     *
+     * @param futureHostname the future hostname of the server
+     */
+    private static void migrateServer(@NotNull String futureHostname) {
+        commit((store, mutations) -> {
+            Server server = store.getServerByFutureHostname(futureHostname);
+            if (server == null) {
+                // was already migrated by another thread
+                return true;
+            }
+            List<String> oldHostnames = new ArrayList<>(server.oldHostnames());
+            oldHostnames.add(server.hostname());
+            mutations.add(ConfigMutation.delete(ConfigMutation.Type.DELETE_SERVER, server
+                    .hostname()));
+            mutations.add(ConfigMutation.put(new Server(futureHostname, oldHostnames, server
+                    .isVerified(), server.healthy(), server.maintenance(), null, server
+                    .backupCode())));
+            moveServerData(store, server.hostname(), futureHostname, mutations);
+            return true;
+        });
     }
 
     @Override
-    public boolean updateServer(@NotNull Server server) {
-        Server serverToUpdate = getServer(server.hostname());
-        return serverToUpdate != null && writeConfig(jsonSchema -> {
-            jsonSchema.servers().remove(serverToUpdate);
-            jsonSchema.servers().add(server);
+    public boolean addNewServer(@NotNull Server server) {
+        return getServer(server.hostname()) == null && commit((store,
+                mutations) -> store.getServer(server.hostname()) == null && mutations.add(
+                        ConfigMutation.put(server)));
+    }
 
-            return jsonSchema;
-        });
+    @Override
+    public boolean deleteServer(@NotNull String hostname) {
+        return getServer(hostname) != null && commit((store, mutations) -> store.getServer(
+                hostname) != null && mutations.add(ConfigMutation.delete(
+                        ConfigMutation.Type.DELETE_SERVER, hostname)));
+    }
 
+    @Override
+    public boolean updateServer(@NotNull Server server) {
+        return getServer(server.hostname()) != null && commit((store, mutations) -> store
+                .getServer(server.hostname()) != null && mutations.add(ConfigMutation.put(
+                        server)));
     }
 
     @Override
-    public boolean updateServerHostname(@NotNull String oldHostname, @NotNull String newHostname) {
-        Server serverToUpdate = getServer(oldHostname);
-        return serverToUpdate != null && writeConfig(jsonSchema -> {
-            jsonSchema.servers().remove(serverToUpdate);
+    public boolean updateServerHostname(@NotNull String oldHostname,
+            @NotNull String newHostname) {
+        return commit((store, mutations) -> {
+            Server serverToUpdate = store.getServer(oldHostname);
+            if (serverToUpdate == null) {
+                return false;
+            }
             List<String> oldHostnames = new ArrayList<>(serverToUpdate.oldHostnames());
             oldHostnames.add(oldHostname);
-            jsonSchema.servers()
-                    .add(new Server(newHostname, oldHostnames, serverToUpdate.isVerified(),
-                            serverToUpdate.healthy(), serverToUpdate.maintenance(), serverToUpdate
-                                    .futureHostname(), serverToUpdate.backupCode()));
-
-            return jsonSchema;
+            mutations.add(ConfigMutation.delete(ConfigMutation.Type.DELETE_SERVER, oldHostname));
+            mutations.add(ConfigMutation.put(new Server(newHostname, oldHostnames, serverToUpdate
+                    .isVerified(), serverToUpdate.healthy(), serverToUpdate.maintenance(),
+                    serverToUpdate.futureHostname(), serverToUpdate.backupCode())));
+            moveServerData(store, oldHostname, newHostname, mutations);
+            return true;
         });
+    }
 
+    /**
+     * Moves the blocks and external blocks of a server to its new hostname
+     *
+     * @param store       the current state
+     * @param oldHostname the old hostname of the server
+     * @param newHostname the new hostname of the server
+     * @param mutations   the list to add the changes to
+     */
+    private static void moveServerData(@NotNull ConfigSnapshot store, @NotNull String oldHostname,
+            @NotNull String newHostname, @NotNull List<ConfigMutation> mutations) {
+        store.getBlocksOfServer(oldHostname).forEach(block -> {
+            Map<String, String> serverToId = new ConcurrentHashMap<>(block.serverToId());
+            serverToId.put(newHostname, serverToId.remove(oldHostname));
+            mutations.add(ConfigMutation.put(new Block(block.id(), serverToId, block
+                    .fileToByteRange(), block.digest())));
+        });
+        store.getExternalBlocksOfServer(oldHostname)
+                .forEach(block -> mutations.add(ConfigMutation.put(new ExternalBlock(block.id(),
+                        newHostname, block.lastModified(), block.size()))));
     }
 
     @Override
     @Nullable
     public String getJwtKey(@NotNull String blockId) {
-        return blockIdToJwtKey.get(blockId);
+        return blockIdToJwtKey.getIfPresent(blockId);
     }
 
     @Override
     public boolean putJwtKey(@NotNull String key, @NotNull String blockId) {
-        return blockIdToJwtKey.put(blockId, key) != null;
+        return blockIdToJwtKey.asMap().put(blockId, key) != null;
     }
 
     @Override
     public void deleteJwtKey(@NotNull String blockId) {
-        blockIdToJwtKey.remove(blockId);
+        blockIdToJwtKey.invalidate(blockId);
     }
 
-    /**
-     * Internal Class for the JSON Schema
-     *
-     * @param externalBlocks List containing the external Blocks
-     * @param servers        List containing the servers
-     * @param files          List containing the files
-     * @param blocks         List containing the blocks
-     */
-    @RegisterForReflection
-    private record JsonSchema(@NotNull List<ExternalBlock> externalBlocks,
-                              @NotNull List<Server> servers, @NotNull List<File> files,
-                              @NotNull List<Block> blocks) {}
+    @Override
+    @NotNull
+    public JwtKeyStatistics getJwtKeyStatistics() {
+        CacheStats stats = blockIdToJwtKey.stats();
+        return new JwtKeyStatistics(blockIdToJwtKey.size(), stats.hitCount(), stats.missCount(),
+                stats.evictionCount());
+    }
 }
@@ -0,0 +1,330 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of config changes.
+ * <p/>
+ * Every commit is written as one frame: {@code <length><crc32><payload>}, where the payload is the
+ * JSON array of the changes of that commit. A frame that was only partially written because of a
+ * crash is detected by its length or checksum and dropped on replay, so a commit is either
+ * replayed completely or not at all.
+ * <p/>
+ * Writing and syncing are split so that the expensive fsync can be shared: every commit that was
+ * written while another thread was syncing is made durable by the next single fsync (group
+ * commit).
+ */
+/* default */ final class ConfigJournal implements AutoCloseable {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(ConfigJournal.class);
+    /**
+     * Size of the frame header, length and checksum
+     */
+    /* default */ static final int HEADER_SIZE = 2 * Integer.BYTES;
+    /**
+     * If folders can't be synced
+     */
+    private static final boolean IS_WINDOWS = System.getProperty("os.name", "")
+            .startsWith("Windows");
+    /**
+     * Type of a frame payload
+     */
+    @NotNull
+    private static final TypeReference<List<ConfigMutation>> FRAME_TYPE = new TypeReference<>() {
+    };
+
+    /**
+     * The mapper to encode the changes
+     */
+    @NotNull
+    private final ObjectMapper mapper;
+    /**
+     * Path of the journal file
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * Channel used to append to the journal
+     */
+    @NotNull
+    private final FileChannel channel;
+    /**
+     * Lock for appending frames
+     */
+    @NotNull
+    private final Object writeLock = new Object();
+    /**
+     * Lock for syncing the journal to disk
+     */
+    @NotNull
+    private final Object syncLock = new Object();
+    /**
+     * Sequence number of the last written frame
+     */
+    @NotNull
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * Sequence number of the last frame that is known to be on disk
+     */
+    @NotNull
+    private final AtomicLong synced = new AtomicLong();
+    /**
+     * Amount of changes in this journal
+     */
+    @NotNull
+    private final AtomicLong records = new AtomicLong();
+
+    /**
+     * Opens the journal for appending. The journal should be replayed before.
+     *
+     * @param mapper the mapper to encode the changes
+     * @param path   the journal file
+     * @throws IOException if the journal couldn't be opened
+     */
+    /* default */ ConfigJournal (@NotNull ObjectMapper mapper, @NotNull Path path)
+            throws IOException {
+        this.mapper = mapper;
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads all complete frames of a journal file. A partially written frame at the end of the
+     * file is cut off.
+     *
+     * @param mapper   the mapper to decode the changes
+     * @param path     the journal file
+     * @param consumer gets the changes of every frame in order
+     * @return the amount of changes read
+     * @throws IOException if the journal couldn't be read
+     */
+    /* default */ static long replay(@NotNull ObjectMapper mapper, @NotNull Path path,
+            @NotNull Consumer<List<ConfigMutation>> consumer) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long count = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long position = 0;
+            long size = in.size();
+            while (true) {
+                Optional<byte[]> payload = readFrame(in, position, size);
+                if (payload.isEmpty() || payload.get().length == 0) {
+                    break;
+                }
+                List<ConfigMutation> mutations = decode(mapper, payload.get());
+                consumer.accept(mutations);
+                count += mutations.size();
+                position += HEADER_SIZE + payload.get().length;
+            }
+            if (position < size) {
+                LOG.warnf("Dropping %d bytes of incomplete journal entries in %s", size - position,
+                        path);
+                in.truncate(position);
+                in.force(true);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the changes of one commit as a frame
+     *
+     * @param mapper    the mapper to encode the changes
+     * @param mutations the changes
+     * @return the frame, ready to be written
+     * @throws IOException if the changes couldn't be encoded
+     */
+    @NotNull
+    /* default */ static ByteBuffer encode(@NotNull ObjectMapper mapper,
+            @NotNull List<ConfigMutation> mutations) throws IOException {
+        return frame(mapper.writeValueAsBytes(mutations));
+    }
+
+    /**
+     * @param payload the encoded changes
+     * @return the frame containing the payload, ready to be written
+     */
+    @NotNull
+    /* default */ static ByteBuffer frame(byte @NotNull [] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return frame;
+    }
+
+    /**
+     * @param mapper  the mapper to decode the changes
+     * @param payload the payload of a frame
+     * @return the changes in the frame
+     * @throws IOException if the payload couldn't be decoded
+     */
+    @NotNull
+    /* default */ static List<ConfigMutation> decode(@NotNull ObjectMapper mapper,
+            byte @NotNull [] payload) throws IOException {
+        return mapper.readValue(payload, FRAME_TYPE);
+    }
+
+    /**
+     * Reads the payload of the frame at the given position
+     *
+     * @param in       the channel
+     * @param position the start of the frame
+     * @param size     the end of the readable data
+     * @return the payload, empty if there is no complete frame with a valid checksum. A frame
+     *         with a length of 0 returns an empty payload.
+     * @throws IOException if the channel couldn't be read
+     */
+    @NotNull
+    /* default */ static Optional<byte[]> readFrame(@NotNull FileChannel in, long position,
+            long size) throws IOException {
+        if (position + HEADER_SIZE > size) {
+            return Optional.empty();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(in, header, position);
+        int length = header.getInt(0);
+        int checksum = header.getInt(Integer.BYTES);
+        if (length < 0 || position + HEADER_SIZE + length > size) {
+            return Optional.empty();
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(in, payload, position + HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        if ((int) crc.getValue() != checksum) {
+            return Optional.empty();
+        }
+        return Optional.of(payload.array());
+    }
+
+    /**
+     * Reads from the channel until the buffer is full
+     *
+     * @param in       the channel
+     * @param buffer   the buffer to fill
+     * @param position the position in the channel
+     * @throws IOException if the channel couldn't be read or ended too early
+     */
+    /* default */ static void readFully(@NotNull FileChannel in, @NotNull ByteBuffer buffer,
+            long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, current);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+            current += read;
+        }
+    }
+
+    /**
+     * Appends the changes of one commit to the journal. The changes are not yet guaranteed to be
+     * on disk, see {@link #sync(long)}.
+     *
+     * @param mutations the changes
+     * @return the sequence number of the written frame
+     * @throws IOException if the frame couldn't be written
+     */
+    /* default */ long write(@NotNull List<ConfigMutation> mutations) throws IOException {
+        ByteBuffer frame = encode(mapper, mutations);
+        synchronized (writeLock) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            records.addAndGet(mutations.size());
+            return written.incrementAndGet();
+        }
+    }
+
+    /**
+     * Makes sure the frame with the given sequence number is on disk. If another thread already
+     * synced the frame, no additional fsync is made.
+     *
+     * @param sequence the sequence number of the frame
+     * @throws IOException if the journal couldn't be synced
+     */
+    /* default */ void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced.get() >= sequence) {
+                return;
+            }
+            long target = written.get();
+            channel.force(false);
+            synced.set(target);
+        }
+    }
+
+    /**
+     * Makes sure every frame written so far is on disk
+     *
+     * @throws IOException if the journal couldn't be synced
+     */
+    /* default */ void syncAll() throws IOException {
+        sync(written.get());
+    }
+
+    /**
+     * Makes the creations, renames and deletions of files in a folder durable, a rename is only
+     * guaranteed to survive a crash once the folder itself was synced. Folders can't be synced on
+     * Windows, there the renames are durable anyway.
+     *
+     * @param folder the folder
+     * @throws IOException if the folder couldn't be synced
+     */
+    /* default */ static void syncFolder(@NotNull Path folder) throws IOException {
+        if (IS_WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return the amount of changes in this journal
+     */
+    /* default */ long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * @return the path of the journal file
+     */
+    @NotNull
+    /* default */ Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            long target = written.get();
+            channel.force(false);
+            synced.set(target);
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A single change to the config data. Every change either puts a whole entry or deletes an entry
+ * by its key, so replaying the same changes in order always leads to the same state.
+ *
+ * @param type          The kind of change
+ * @param key           The id (or hostname for servers) of the changed entry
+ * @param file          The new file for {@link Type#PUT_FILE}
+ * @param block         The new block for {@link Type#PUT_BLOCK}
+ * @param externalBlock The new external block for {@link Type#PUT_EXTERNAL_BLOCK}
+ * @param server        The new server for {@link Type#PUT_SERVER}
+ */
+@RegisterForReflection
+@JsonInclude(JsonInclude.Include.NON_NULL)
+/* default */ record ConfigMutation(@NotNull Type type, @NotNull String key,
+                                    @Nullable Config.File file, @Nullable Config.Block block,
+                                    @Nullable Config.ExternalBlock externalBlock,
+                                    @Nullable Config.Server server) {
+
+    /**
+     * @param file the file to add or replace
+     * @return the change
+     */
+    @NotNull
+    /* default */ static ConfigMutation put(@NotNull Config.File file) {
+        return new ConfigMutation(Type.PUT_FILE, file.id(), file, null, null, null);
+    }
+
+    /**
+     * @param block the block to add or replace
+     * @return the change
+     */
+    @NotNull
+    /* default */ static ConfigMutation put(@NotNull Config.Block block) {
+        return new ConfigMutation(Type.PUT_BLOCK, block.id(), null, block, null, null);
+    }
+
+    /**
+     * @param externalBlock the external block to add or replace
+     * @return the change
+     */
+    @NotNull
+    /* default */ static ConfigMutation put(@NotNull Config.ExternalBlock externalBlock) {
+        return new ConfigMutation(Type.PUT_EXTERNAL_BLOCK, externalBlock.id(), null, null,
+                externalBlock, null);
+    }
+
+    /**
+     * @param server the server to add or replace
+     * @return the change
+     */
+    @NotNull
+    /* default */ static ConfigMutation put(@NotNull Config.Server server) {
+        return new ConfigMutation(Type.PUT_SERVER, server.hostname(), null, null, null, server);
+    }
+
+    /**
+     * @param type the delete type
+     * @param key  the id or hostname of the entry to delete
+     * @return the change
+     */
+    @NotNull
+    /* default */ static ConfigMutation delete(@NotNull Type type, @NotNull String key) {
+        return new ConfigMutation(type, key, null, null, null, null);
+    }
+
+    /**
+     * The kind of change
+     */
+    /* default */ enum Type {
+        /**
+         * Add or replace a file
+         */
+        PUT_FILE,
+        /**
+         * Delete a file
+         */
+        DELETE_FILE,
+        /**
+         * Add or replace a block
+         */
+        PUT_BLOCK,
+        /**
+         * Delete a block
+         */
+        DELETE_BLOCK,
+        /**
+         * Add or replace an external block
+         */
+        PUT_EXTERNAL_BLOCK,
+        /**
+         * Delete an external block
+         */
+        DELETE_EXTERNAL_BLOCK,
+        /**
+         * Add or replace a server
+         */
+        PUT_SERVER,
+        /**
+         * Delete a server
+         */
+        DELETE_SERVER
+    }
+}
@@ -0,0 +1,156 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Immutable state of the config data at one point in time, with lookups by id and by the indexed
+ * fields.
+ * <p/>
+ * Applying changes creates a new snapshot and leaves this one unchanged, so a snapshot can be
+ * read without locks while newer snapshots are created. The snapshot is either held completely
+ * in memory (see {@link MemoryConfigSnapshot}) or read from the pages of a file on demand (see
+ * {@link PagedConfigSnapshot}).
+ */
+/* default */ interface ConfigSnapshot {
+
+    /**
+     * Applies changes in the given order
+     *
+     * @param mutations the changes to apply
+     * @return the snapshot with the changes, this snapshot stays unchanged
+     */
+    @NotNull
+    default ConfigSnapshot apply(@NotNull List<ConfigMutation> mutations) {
+        return apply(mutations, previous -> {
+        });
+    }
+
+    /**
+     * Applies changes in the given order
+     *
+     * @param mutations the changes to apply
+     * @param previous  receives the block or server replaced or deleted by each change, null if
+     *                  there was none, in the order of the changes. Other kinds of entries may be
+     *                  passed as well.
+     * @return the snapshot with the changes, this snapshot stays unchanged
+     */
+    @NotNull
+    ConfigSnapshot apply(@NotNull List<ConfigMutation> mutations,
+            @NotNull Consumer<Object> previous);
+
+    /**
+     * @return all entries as changes that recreate this state
+     */
+    @NotNull
+    List<ConfigMutation> toMutations();
+
+    /**
+     * @return all files
+     */
+    @NotNull
+    List<Config.File> getFiles();
+
+    /**
+     * @param id the file id
+     * @return the file if it exists
+     */
+    @Nullable
+    Config.File getFile(@NotNull String id);
+
+    /**
+     * @param digest the digest of the content of a file
+     * @return a file holding its own copy of this content if any
+     */
+    @Nullable
+    Config.File getFileByDigest(@NotNull String digest);
+
+    /**
+     * @param id the id of a file holding its own copy of its content
+     * @return the files sharing the content of the file
+     */
+    @NotNull
+    List<Config.File> getFileReferences(@NotNull String id);
+
+    /**
+     * @return all blocks
+     */
+    @NotNull
+    List<Config.Block> getBlocks();
+
+    /**
+     * @param id the block id
+     * @return the block if it exists
+     */
+    @Nullable
+    Config.Block getBlock(@NotNull String id);
+
+    /**
+     * @param fileId the file id
+     * @return the blocks containing parts of the file, ordered by their position in the file
+     */
+    @NotNull
+    List<Config.Block> getBlocksOfFile(@NotNull String fileId);
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the blocks with a replica on the server
+     */
+    @NotNull
+    List<Config.Block> getBlocksOfServer(@NotNull String hostname);
+
+    /**
+     * @return all external blocks
+     */
+    @NotNull
+    List<Config.ExternalBlock> getExternalBlocks();
+
+    /**
+     * @return the amount of external blocks
+     */
+    int getExternalBlockCount();
+
+    /**
+     * @param id the external block id
+     * @return the external block if it exists
+     */
+    @Nullable
+    Config.ExternalBlock getExternalBlock(@NotNull String id);
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the external blocks of the server
+     */
+    @NotNull
+    List<Config.ExternalBlock> getExternalBlocksOfServer(@NotNull String hostname);
+
+    /**
+     * @return all servers
+     */
+    @NotNull
+    List<Config.Server> getServers();
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the server if it exists
+     */
+    @Nullable
+    Config.Server getServer(@NotNull String hostname);
+
+    /**
+     * @param futureHostname the future hostname of a server
+     * @return the server that will migrate to this hostname if any
+     */
+    @Nullable
+    Config.Server getServerByFutureHostname(@NotNull String futureHostname);
+
+    /**
+     * @param backupCode the backup code given to a server
+     * @return the server with this backup code if any
+     */
+    @Nullable
+    Config.Server getServerByBackupCode(@NotNull String backupCode);
+}
@@ -0,0 +1,79 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Backend persisting the config data.
+ * <p/>
+ * All reads are answered by the {@link ConfigStore}. A backend either loads the data into memory
+ * once on startup and only persists the changes made afterwards, or hands out snapshots that read
+ * the data from its file on demand. The backend is chosen with the {@code CONFIG_BACKEND}
+ * environment variable.
+ */
+/* default */ interface ConfigStorage extends AutoCloseable {
+
+    /**
+     * @return true if persisted data exists
+     */
+    boolean exists();
+
+    /**
+     * Persists the given data as the initial content, replacing existing data. Used to import the
+     * data of another backend.
+     *
+     * @param store the data to persist
+     * @throws IOException if the data couldn't be written
+     */
+    void create(@NotNull ConfigStore store) throws IOException;
+
+    /**
+     * Loads the persisted data. Creates an empty storage if none exists yet.
+     *
+     * @return the store filled with the persisted data
+     * @throws IOException if the data couldn't be loaded
+     */
+    @NotNull
+    ConfigStore load() throws IOException;
+
+    /**
+     * Persists the changes of one commit before the working snapshot is published. The changes
+     * are not yet guaranteed to be on disk, see {@link #sync(long)}. Writes are only made by one
+     * thread at a time.
+     *
+     * @param working   the snapshot of the store with the changes applied
+     * @param mutations the changes
+     * @return the sequence number of the write
+     * @throws IOException if the changes couldn't be written
+     */
+    long write(@NotNull ConfigSnapshot working, @NotNull List<ConfigMutation> mutations)
+            throws IOException;
+
+    /**
+     * Makes sure the write with the given sequence number is on disk
+     *
+     * @param sequence the sequence number of the write
+     * @throws IOException if the storage couldn't be synced
+     */
+    void sync(long sequence) throws IOException;
+
+    /**
+     * @return true if enough outdated data accumulated to compact the storage
+     */
+    boolean needsCompaction();
+
+    /**
+     * Rewrites the storage so that it only contains the current data. Parts that need a consistent
+     * view of the store are done while holding the commit lock.
+     *
+     * @param store      the current state
+     * @param commitLock the lock held while changes are made
+     * @throws IOException if the storage couldn't be compacted
+     */
+    void compact(@NotNull ConfigStore store, @NotNull Object commitLock) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,195 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indexed access to the persisted config data.
+ * <p/>
+ * The data is held as an immutable {@link ConfigSnapshot}, readers use whatever snapshot is
+ * published at the time of the read without taking a lock. Depending on the backend, the
+ * snapshot is loaded into memory once on startup or read from the pages of the backend file on
+ * demand. Changes are applied on a new snapshot by the single writer holding the commit lock and
+ * only published once they are saved.
+ */
+/* default */ final class ConfigStore {
+
+    /**
+     * The published state
+     */
+    @NotNull
+    private final AtomicReference<ConfigSnapshot> current;
+
+    /**
+     * @param snapshot the initial state
+     */
+    /* default */ ConfigStore (@NotNull ConfigSnapshot snapshot) {
+        current = new AtomicReference<>(snapshot);
+    }
+
+    /**
+     * @return the published state, stays unchanged even if newer states are published
+     */
+    @NotNull
+    /* default */ ConfigSnapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Publishes a new state, only called while loading or by the writer holding the commit lock
+     *
+     * @param snapshot the new state
+     */
+    /* default */ void publish(@NotNull ConfigSnapshot snapshot) {
+        current.set(snapshot);
+    }
+
+    /**
+     * @return all entries as changes that recreate the current state
+     */
+    @NotNull
+    /* default */ List<ConfigMutation> toMutations() {
+        return snapshot().toMutations();
+    }
+
+    /**
+     * @return all files
+     */
+    @NotNull
+    /* default */ List<Config.File> getFiles() {
+        return snapshot().getFiles();
+    }
+
+    /**
+     * @param id the file id
+     * @return the file if it exists
+     */
+    @Nullable
+    /* default */ Config.File getFile(@NotNull String id) {
+        return snapshot().getFile(id);
+    }
+
+    /**
+     * @param digest the digest of the content of a file
+     * @return a file holding its own copy of this content if any
+     */
+    @Nullable
+    /* default */ Config.File getFileByDigest(@NotNull String digest) {
+        return snapshot().getFileByDigest(digest);
+    }
+
+    /**
+     * @param id the id of a file holding its own copy of its content
+     * @return the files sharing the content of the file
+     */
+    @NotNull
+    /* default */ List<Config.File> getFileReferences(@NotNull String id) {
+        return snapshot().getFileReferences(id);
+    }
+
+    /**
+     * @return all blocks
+     */
+    @NotNull
+    /* default */ List<Config.Block> getBlocks() {
+        return snapshot().getBlocks();
+    }
+
+    /**
+     * @param id the block id
+     * @return the block if it exists
+     */
+    @Nullable
+    /* default */ Config.Block getBlock(@NotNull String id) {
+        return snapshot().getBlock(id);
+    }
+
+    /**
+     * @param fileId the file id
+     * @return the blocks containing parts of the file, ordered by their position in the file
+     */
+    @NotNull
+    /* default */ List<Config.Block> getBlocksOfFile(@NotNull String fileId) {
+        return snapshot().getBlocksOfFile(fileId);
+    }
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the blocks with a replica on the server
+     */
+    @NotNull
+    /* default */ List<Config.Block> getBlocksOfServer(@NotNull String hostname) {
+        return snapshot().getBlocksOfServer(hostname);
+    }
+
+    /**
+     * @return all external blocks
+     */
+    @NotNull
+    /* default */ List<Config.ExternalBlock> getExternalBlocks() {
+        return snapshot().getExternalBlocks();
+    }
+
+    /**
+     * @return the amount of external blocks
+     */
+    /* default */ int getExternalBlockCount() {
+        return snapshot().getExternalBlockCount();
+    }
+
+    /**
+     * @param id the external block id
+     * @return the external block if it exists
+     */
+    @Nullable
+    /* default */ Config.ExternalBlock getExternalBlock(@NotNull String id) {
+        return snapshot().getExternalBlock(id);
+    }
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the external blocks of the server
+     */
+    @NotNull
+    /* default */ List<Config.ExternalBlock> getExternalBlocksOfServer(@NotNull String hostname) {
+        return snapshot().getExternalBlocksOfServer(hostname);
+    }
+
+    /**
+     * @return all servers
+     */
+    @NotNull
+    /* default */ List<Config.Server> getServers() {
+        return snapshot().getServers();
+    }
+
+    /**
+     * @param hostname the hostname of the server
+     * @return the server if it exists
+     */
+    @Nullable
+    /* default */ Config.Server getServer(@NotNull String hostname) {
+        return snapshot().getServer(hostname);
+    }
+
+    /**
+     * @param futureHostname the future hostname of a server
+     * @return the server that will migrate to this hostname if any
+     */
+    @Nullable
+    /* default */ Config.Server getServerByFutureHostname(@NotNull String futureHostname) {
+        return snapshot().getServerByFutureHostname(futureHostname);
+    }
+
+    /**
+     * @param backupCode the backup code given to a server
+     * @return the server with this backup code if any
+     */
+    @Nullable
+    /* default */ Config.Server getServerByBackupCode(@NotNull String backupCode) {
+        return snapshot().getServerByBackupCode(backupCode);
+    }
+}
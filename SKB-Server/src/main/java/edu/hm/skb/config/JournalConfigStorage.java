@@ -0,0 +1,393 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Stores the config data as a journal of changes only, without a separate snapshot file.
+ * <p/>
+ * The file is split into pages. The first page holds the file header, the following pages hold
+ * the changes as journal frames (see {@link ConfigJournal}). A frame never crosses a page
+ * boundary unless it is larger than a page, in which case it starts at a page boundary. The
+ * unused rest of a page stays zero, which reads as a frame of length 0. Changes are only ever
+ * appended, so a crash can only damage the last frame, which is dropped on load.
+ * <p/>
+ * Outdated entries are removed by compaction, which writes the current entries to a new file and
+ * replaces the old file with it. Changes made during the compaction are copied over at the end.
+ * <p/>
+ * The whole journal is replayed into the {@link ConfigStore} on load, so like with the other
+ * backends all entries need to fit into memory. There is no lookup of single entries on disk.
+ */
+/* default */ final class JournalConfigStorage implements ConfigStorage {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(JournalConfigStorage.class);
+    /**
+     * Size of a page
+     */
+    private static final int PAGE_SIZE = 4096;
+    /**
+     * Marks a journal file, "SKBPAGE" followed by the format version
+     */
+    private static final long MAGIC = 0x534B_4250_4147_4501L;
+    /**
+     * Minimum amount of appended bytes before a compaction is done
+     */
+    private static final long MIN_COMPACTION_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * The mapper to encode the changes
+     */
+    @NotNull
+    private final ObjectMapper mapper;
+    /**
+     * The journal file
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * Lock for appending frames
+     */
+    @NotNull
+    private final Object writeLock = new Object();
+    /**
+     * Lock for syncing the file to disk
+     */
+    @NotNull
+    private final Object syncLock = new Object();
+    /**
+     * Sequence number of the last written frame
+     */
+    @NotNull
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * Sequence number of the last frame that is known to be on disk
+     */
+    @NotNull
+    private final AtomicLong synced = new AtomicLong();
+    /**
+     * Size of the file after the last compaction
+     */
+    @NotNull
+    private final AtomicLong compactedSize = new AtomicLong();
+    /**
+     * Channel of the journal file, guarded by the write and sync lock
+     */
+    private FileChannel channel;
+    /**
+     * End of the written frames, guarded by the write lock
+     */
+    private long position;
+
+    /**
+     * @param mapper the mapper to encode the changes
+     * @param path   the journal file
+     */
+    /* default */ JournalConfigStorage (@NotNull ObjectMapper mapper, @NotNull Path path) {
+        this.mapper = mapper;
+        this.path = path;
+    }
+
+    /**
+     * @param mapper  the mapper to decode the changes
+     * @param payload the payload of a frame
+     * @return the changes in the frame
+     */
+    @NotNull
+    private static List<ConfigMutation> decode(@NotNull ObjectMapper mapper,
+            byte @NotNull [] payload) {
+        try {
+            return ConfigJournal.decode(mapper, payload);
+        } catch (IOException e) {
+            throw new IllegalStateException("Journal file contains an invalid frame", e);
+        }
+    }
+
+    /**
+     * Checks that the channel contains a journal file
+     *
+     * @param in the channel
+     * @throws IOException if the file isn't a journal file
+     */
+    private static void checkHeader(@NotNull FileChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        ConfigJournal.readFully(in, header, 0);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException("Not a config journal file");
+        }
+    }
+
+    /**
+     * Creates a new journal file containing only the header
+     *
+     * @param file the file to create
+     * @return the channel of the new file
+     * @throws IOException if the file couldn't be created
+     */
+    @NotNull
+    private static FileChannel create(@NotNull Path file) throws IOException {
+        FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putLong(0, MAGIC);
+        writeFully(out, header, 0);
+        return out;
+    }
+
+    /**
+     * Reads all frames in the given range
+     *
+     * @param in       the channel
+     * @param from     the start of the first frame
+     * @param to       the end of the range
+     * @param consumer gets the payload of every frame in order
+     * @return the end of the last complete frame
+     * @throws IOException if the channel couldn't be read
+     */
+    private static long scan(@NotNull FileChannel in, long from, long to,
+            @NotNull Consumer<byte[]> consumer) throws IOException {
+        long current = from;
+        long end = from;
+        while (current < to) {
+            long pageRest = PAGE_SIZE - current % PAGE_SIZE;
+            Optional<byte[]> payload = pageRest < ConfigJournal.HEADER_SIZE ?
+                    Optional.of(new byte[0]) :
+                    ConfigJournal.readFrame(in, current, to);
+            if (payload.isEmpty()) {
+                break;
+            }
+            if (payload.get().length == 0) {
+                current += pageRest;
+            } else {
+                consumer.accept(payload.get());
+                current += ConfigJournal.HEADER_SIZE + payload.get().length;
+                end = current;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Appends a frame after the given position, moving it to the next page if it doesn't fit
+     * into the current page
+     *
+     * @param out      the channel
+     * @param frame    the frame
+     * @param position the end of the previous frame
+     * @return the end of the written frame
+     * @throws IOException if the frame couldn't be written
+     */
+    private static long append(@NotNull FileChannel out, @NotNull ByteBuffer frame,
+            long position) throws IOException {
+        long start = position;
+        long pageRest = PAGE_SIZE - start % PAGE_SIZE;
+        if (frame.remaining() > pageRest && pageRest < PAGE_SIZE) {
+            start += pageRest;
+        }
+        long end = start + frame.remaining();
+        writeFully(out, frame, start);
+        return end;
+    }
+
+    /**
+     * Writes the whole buffer at the given position
+     *
+     * @param out      the channel
+     * @param buffer   the buffer
+     * @param position the position in the channel
+     * @throws IOException if the channel couldn't be written
+     */
+    private static void writeFully(@NotNull FileChannel out, @NotNull ByteBuffer buffer,
+            long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += out.write(buffer, current);
+        }
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Writes a new journal file containing the entries of the store
+     */
+    @Override
+    public void create(@NotNull ConfigStore store) throws IOException {
+        Path tmpPath = Path.of(path + ".tmp");
+        try (FileChannel out = create(tmpPath)) {
+            long end = PAGE_SIZE;
+            for (ConfigMutation mutation : store.toMutations()) {
+                end = append(out, ConfigJournal.encode(mapper, List.of(mutation)), end);
+            }
+            out.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        ConfigJournal.syncFolder(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Replays the journal file once, an incomplete last frame is dropped
+     */
+    @Override
+    @NotNull
+    public ConfigStore load() throws IOException {
+        if (!exists()) {
+            create(new ConfigStore(MemoryConfigSnapshot.EMPTY));
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkHeader(channel);
+        long size = channel.size();
+        MemoryConfigSnapshot.Editor editor = MemoryConfigSnapshot.EMPTY.edit();
+        position = scan(channel, PAGE_SIZE, size, payload -> editor.apply(decode(mapper,
+                payload)));
+        ConfigStore store = new ConfigStore(editor.build());
+        if (position < size) {
+            LOG.warnf("Dropping %d bytes of incomplete entries in %s", size - position, path);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        compactedSize.set(position);
+        return store;
+    }
+
+    @Override
+    public long write(@NotNull ConfigSnapshot working, @NotNull List<ConfigMutation> mutations)
+            throws IOException {
+        ByteBuffer frame = ConfigJournal.encode(mapper, mutations);
+        synchronized (writeLock) {
+            position = append(channel, frame, position);
+            return written.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced.get() >= sequence) {
+                return;
+            }
+            long target = written.get();
+            channel.force(false);
+            synced.set(target);
+        }
+    }
+
+    @Override
+    public boolean needsCompaction() {
+        synchronized (writeLock) {
+            long size = compactedSize.get();
+            return position - size > Math.max(size, MIN_COMPACTION_BYTES);
+        }
+    }
+
+    /**
+     * Writes the current entries to a new journal file, appends the changes made in the meantime
+     * and replaces the journal file with it
+     */
+    @Override
+    @SuppressWarnings("PMD.CloseResource")
+    public void compact(@NotNull ConfigStore store, @NotNull Object commitLock)
+            throws IOException {
+        ConfigSnapshot snapshot;
+        long captured;
+        synchronized (commitLock) {
+            snapshot = store.snapshot();
+            synchronized (writeLock) {
+                captured = position;
+            }
+        }
+        List<ConfigMutation> entries = snapshot.toMutations();
+        Path tmpPath = Path.of(path + ".compact");
+        FileChannel out = create(tmpPath);
+        try {
+            long end = PAGE_SIZE;
+            for (ConfigMutation entry : entries) {
+                end = append(out, ConfigJournal.encode(mapper, List.of(entry)), end);
+            }
+            out.force(true);
+            synchronized (commitLock) {
+                synchronized (writeLock) {
+                    long[] tail = {end};
+                    scan(channel, captured, position, payload -> tail[0] = appendPayload(out,
+                            payload, tail[0]));
+                    out.force(true);
+                    sync(written.get());
+                    Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    ConfigJournal.syncFolder(path.toAbsolutePath().getParent());
+                    swapChannel(out);
+                    position = tail[0];
+                    compactedSize.set(position);
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            out.close();
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        LOG.infof("Compacted %s to %d bytes", path, compactedSize.get());
+    }
+
+    /**
+     * Replaces the channel after a compaction, all written frames must already be synced
+     *
+     * @param replacement the channel of the compacted file
+     */
+    @SuppressWarnings("PMD.CloseResource")
+    private void swapChannel(@NotNull FileChannel replacement) {
+        synchronized (syncLock) {
+            FileChannel previous = channel;
+            channel = replacement;
+            try {
+                previous.close();
+            } catch (IOException e) {
+                LOG.warn("Couldn't close replaced journal file", e);
+            }
+        }
+    }
+
+    /**
+     * Appends an already encoded payload as frame
+     *
+     * @param out      the channel
+     * @param payload  the payload
+     * @param position the end of the previous frame
+     * @return the end of the written frame
+     */
+    private static long appendPayload(@NotNull FileChannel out, byte @NotNull [] payload,
+            long position) {
+        try {
+            return append(out, ConfigJournal.frame(payload), position);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't copy frame", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+}
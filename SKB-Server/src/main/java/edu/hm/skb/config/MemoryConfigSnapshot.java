@@ -0,0 +1,699 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Hash-indexed snapshot of the config data held completely in memory.
+ * <p/>
+ * Applying changes creates a new snapshot sharing the unchanged parts with this one (see
+ * {@link PersistentMap}). Files and servers are stored in an immutable form so that they can be
+ * handed out without copying. Blocks and external blocks are by far the most entries, they are
+ * stored in a compact form keyed by their id as UUID (see {@link PackedBlock}) and only turned
+ * into records when they are read. Changes always replace the whole entry.
+ */
+/* default */ final class MemoryConfigSnapshot implements ConfigSnapshot {
+
+    /**
+     * The snapshot without any entries
+     */
+    @NotNull
+    /* default */ static final MemoryConfigSnapshot EMPTY = new MemoryConfigSnapshot(PersistentMap
+            .empty(), PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(),
+            PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(), PersistentMap
+                    .empty(), PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty());
+
+    /**
+     * Files by id
+     */
+    @NotNull
+    private final PersistentMap<String, Config.File> files;
+    /**
+     * Blocks by id key
+     */
+    @NotNull
+    private final PersistentMap<Object, PackedBlock> blocks;
+    /**
+     * Hostname number and content of the external blocks by id key
+     */
+    @NotNull
+    private final PersistentMap<Object, ExternalBlockEntry> externalBlocks;
+    /**
+     * Servers by hostname
+     */
+    @NotNull
+    private final PersistentMap<String, Config.Server> servers;
+    /**
+     * Block id keys by the start of the file range in the block, by file id key
+     */
+    @NotNull
+    private final PersistentMap<Object, PersistentMap<Long, Object>> fileToBlocks;
+    /**
+     * Id keys of the blocks with a replica on a server, by hostname
+     */
+    @NotNull
+    private final PersistentMap<Object, PersistentMap<Object, Object>> serverToBlocks;
+    /**
+     * Id keys of the external blocks of a server, by hostname
+     */
+    @NotNull
+    private final PersistentMap<Object, PersistentMap<Object, Object>> serverToExternalBlocks;
+    /**
+     * Hostnames of the servers by the backup code given to them
+     */
+    @NotNull
+    private final PersistentMap<String, String> backupCodes;
+    /**
+     * Hostnames of the servers by the hostname they will migrate to
+     */
+    @NotNull
+    private final PersistentMap<String, String> futureHostnames;
+    /**
+     * Ids of the files holding their own copy of a content, by the digest of the content
+     */
+    @NotNull
+    private final PersistentMap<String, String> fileDigests;
+    /**
+     * Ids of the files sharing the content of a file, by the id of the file holding the content
+     */
+    @NotNull
+    private final PersistentMap<Object, PersistentMap<Object, Object>> fileReferences;
+
+    /**
+     * @param files                  files by id
+     * @param blocks                 blocks by id key
+     * @param externalBlocks         hostname number and content of the external blocks by id key
+     * @param servers                servers by hostname
+     * @param fileToBlocks           block id keys by file id key
+     * @param serverToBlocks         block id keys by hostname
+     * @param serverToExternalBlocks external block id keys by hostname
+     * @param backupCodes            hostnames by backup code
+     * @param futureHostnames        hostnames by future hostname
+     * @param fileDigests            ids of the files holding a content by its digest
+     * @param fileReferences         ids of the files sharing a content by the holding file id
+     */
+    private MemoryConfigSnapshot (@NotNull PersistentMap<String, Config.File> files,
+            @NotNull PersistentMap<Object, PackedBlock> blocks,
+            @NotNull PersistentMap<Object, ExternalBlockEntry> externalBlocks,
+            @NotNull PersistentMap<String, Config.Server> servers,
+            @NotNull PersistentMap<Object, PersistentMap<Long, Object>> fileToBlocks,
+            @NotNull PersistentMap<Object, PersistentMap<Object, Object>> serverToBlocks,
+            @NotNull PersistentMap<Object, PersistentMap<Object, Object>> serverToExternalBlocks,
+            @NotNull PersistentMap<String, String> backupCodes,
+            @NotNull PersistentMap<String, String> futureHostnames,
+            @NotNull PersistentMap<String, String> fileDigests,
+            @NotNull PersistentMap<Object, PersistentMap<Object, Object>> fileReferences) {
+        this.files = files;
+        this.blocks = blocks;
+        this.externalBlocks = externalBlocks;
+        this.servers = servers;
+        this.fileToBlocks = fileToBlocks;
+        this.serverToBlocks = serverToBlocks;
+        this.serverToExternalBlocks = serverToExternalBlocks;
+        this.backupCodes = backupCodes;
+        this.futureHostnames = futureHostnames;
+        this.fileDigests = fileDigests;
+        this.fileReferences = fileReferences;
+    }
+
+    /**
+     * Creates a snapshot filled with the given data
+     *
+     * @param files          the files
+     * @param blocks         the blocks
+     * @param externalBlocks the external blocks
+     * @param servers        the servers
+     * @return the snapshot
+     */
+    @NotNull
+    /* default */ static MemoryConfigSnapshot from(@NotNull List<Config.File> files,
+            @NotNull List<Config.Block> blocks, @NotNull List<Config.ExternalBlock> externalBlocks,
+            @NotNull List<Config.Server> servers) {
+        Editor editor = EMPTY.edit();
+        servers.forEach(server -> editor.applyMutation(ConfigMutation.put(server)));
+        files.forEach(file -> editor.applyMutation(ConfigMutation.put(file)));
+        blocks.forEach(block -> editor.applyMutation(ConfigMutation.put(block)));
+        externalBlocks.forEach(block -> editor.applyMutation(ConfigMutation.put(block)));
+        return editor.build();
+    }
+
+    @Override
+    @NotNull
+    public ConfigSnapshot apply(@NotNull List<ConfigMutation> mutations,
+            @NotNull Consumer<Object> previous) {
+        if (mutations.isEmpty()) {
+            return this;
+        }
+        Editor editor = edit();
+        mutations.forEach(mutation -> {
+            Object entry = editor.applyMutation(mutation);
+            previous.accept(entry instanceof PackedBlock block ? block.toBlock() : entry);
+        });
+        return editor.build();
+    }
+
+    /**
+     * @return an editor to apply many changes at once, e.g. when replaying a journal
+     */
+    @NotNull
+    /* default */ Editor edit() {
+        return new Editor(this);
+    }
+
+    @Override
+    @NotNull
+    public List<ConfigMutation> toMutations() {
+        List<ConfigMutation> mutations = new ArrayList<>(files.size() + blocks
+                .size() + externalBlocks.size() + servers.size());
+        servers.forEach((hostname, server) -> mutations.add(ConfigMutation.put(server)));
+        files.forEach((id, file) -> mutations.add(ConfigMutation.put(file)));
+        blocks.forEach((key, block) -> mutations.add(ConfigMutation.put(block.toBlock())));
+        externalBlocks.forEach((key, entry) -> mutations.add(ConfigMutation.put(externalBlock(key,
+                entry))));
+        return mutations;
+    }
+
+    @Override
+    @NotNull
+    public List<Config.File> getFiles() {
+        return files.values();
+    }
+
+    @Override
+    @Nullable
+    public Config.File getFile(@NotNull String id) {
+        return files.get(id);
+    }
+
+    @Override
+    @Nullable
+    public Config.File getFileByDigest(@NotNull String digest) {
+        String id = fileDigests.get(digest);
+        return id == null ? null : files.get(id);
+    }
+
+    @Override
+    @NotNull
+    public List<Config.File> getFileReferences(@NotNull String id) {
+        PersistentMap<Object, Object> ids = fileReferences.get(id);
+        return ids == null ?
+                List.of() :
+                ids.keys().stream().map(key -> files.get((String) key)).toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocks() {
+        List<Config.Block> result = new ArrayList<>(blocks.size());
+        blocks.forEach((key, block) -> result.add(block.toBlock()));
+        return result;
+    }
+
+    @Override
+    @Nullable
+    public Config.Block getBlock(@NotNull String id) {
+        PackedBlock block = blocks.get(PackedBlock.key(id));
+        return block == null ? null : block.toBlock();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocksOfFile(@NotNull String fileId) {
+        PersistentMap<Long, Object> ranges = fileToBlocks.get(PackedBlock.key(fileId));
+        if (ranges == null) {
+            return List.of();
+        }
+        List<Map.Entry<Long, Object>> sorted = new ArrayList<>(ranges.size());
+        ranges.forEach((start, key) -> sorted.add(Map.entry(start, key)));
+        sorted.sort(Map.Entry.comparingByKey());
+        return sorted.stream()
+                .map(Map.Entry::getValue)
+                .distinct()
+                .map(key -> blocks.get(key).toBlock())
+                .toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocksOfServer(@NotNull String hostname) {
+        PersistentMap<Object, Object> keys = serverToBlocks.get(hostname);
+        return keys == null ?
+                List.of() :
+                keys.keys().stream().map(key -> blocks.get(key).toBlock()).toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.ExternalBlock> getExternalBlocks() {
+        List<Config.ExternalBlock> result = new ArrayList<>(externalBlocks.size());
+        externalBlocks.forEach((key, entry) -> result.add(externalBlock(key, entry)));
+        return result;
+    }
+
+    @Override
+    public int getExternalBlockCount() {
+        return externalBlocks.size();
+    }
+
+    @Override
+    @Nullable
+    public Config.ExternalBlock getExternalBlock(@NotNull String id) {
+        Object key = PackedBlock.key(id);
+        ExternalBlockEntry entry = externalBlocks.get(key);
+        return entry == null ? null : externalBlock(key, entry);
+    }
+
+    @Override
+    @NotNull
+    public List<Config.ExternalBlock> getExternalBlocksOfServer(@NotNull String hostname) {
+        PersistentMap<Object, Object> keys = serverToExternalBlocks.get(hostname);
+        return keys == null ?
+                List.of() :
+                keys.keys()
+                        .stream()
+                        .map(key -> externalBlock(key, externalBlocks.get(key)))
+                        .toList();
+    }
+
+    /**
+     * @param key   the id key of the external block
+     * @param entry the hostname number and content of the external block
+     * @return the external block as record
+     */
+    @NotNull
+    private static Config.ExternalBlock externalBlock(@NotNull Object key,
+            @NotNull ExternalBlockEntry entry) {
+        return new Config.ExternalBlock(PackedBlock.toId(key), PackedBlock.hostname(entry
+                .hostname()), entry.lastModified(), entry.size());
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Server> getServers() {
+        return servers.values();
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServer(@NotNull String hostname) {
+        return servers.get(hostname);
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServerByFutureHostname(@NotNull String futureHostname) {
+        String hostname = futureHostnames.get(futureHostname);
+        return hostname == null ? null : servers.get(hostname);
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServerByBackupCode(@NotNull String backupCode) {
+        String hostname = backupCodes.get(backupCode);
+        return hostname == null ? null : servers.get(hostname);
+    }
+
+    /**
+     * Creates the next snapshot, all maps are edited in place until {@link #build()}. Must only be
+     * used by one thread.
+     */
+    /* default */ static final class Editor {
+
+        /**
+         * Files by id
+         */
+        @NotNull
+        private final PersistentMap.Editor<String, Config.File> files;
+        /**
+         * Blocks by id key
+         */
+        @NotNull
+        private final PersistentMap.Editor<Object, PackedBlock> blocks;
+        /**
+         * Hostname number of the external blocks by id key
+         */
+        @NotNull
+        private final PersistentMap.Editor<Object, ExternalBlockEntry> externalBlocks;
+        /**
+         * Servers by hostname
+         */
+        @NotNull
+        private final PersistentMap.Editor<String, Config.Server> servers;
+        /**
+         * Block id keys by file id key
+         */
+        @NotNull
+        private final IndexEditor<Long> fileToBlocks;
+        /**
+         * Block id keys by hostname
+         */
+        @NotNull
+        private final IndexEditor<Object> serverToBlocks;
+        /**
+         * External block id keys by hostname
+         */
+        @NotNull
+        private final IndexEditor<Object> serverToExternalBlocks;
+        /**
+         * Hostnames by backup code
+         */
+        @NotNull
+        private final PersistentMap.Editor<String, String> backupCodes;
+        /**
+         * Hostnames by future hostname
+         */
+        @NotNull
+        private final PersistentMap.Editor<String, String> futureHostnames;
+        /**
+         * File ids by the digest of their content
+         */
+        @NotNull
+        private final PersistentMap.Editor<String, String> fileDigests;
+        /**
+         * Ids of the files sharing a content by the id of the file holding it
+         */
+        @NotNull
+        private final IndexEditor<Object> fileReferences;
+
+        /**
+         * @param base the snapshot to start with
+         */
+        private Editor (@NotNull MemoryConfigSnapshot base) {
+            files = base.files.edit();
+            blocks = base.blocks.edit();
+            externalBlocks = base.externalBlocks.edit();
+            servers = base.servers.edit();
+            fileToBlocks = new IndexEditor<>(base.fileToBlocks);
+            serverToBlocks = new IndexEditor<>(base.serverToBlocks);
+            serverToExternalBlocks = new IndexEditor<>(base.serverToExternalBlocks);
+            backupCodes = base.backupCodes.edit();
+            futureHostnames = base.futureHostnames.edit();
+            fileDigests = base.fileDigests.edit();
+            fileReferences = new IndexEditor<>(base.fileReferences);
+        }
+
+        /**
+         * Applies changes in the given order
+         *
+         * @param mutations the changes to apply
+         */
+        /* default */ void apply(@NotNull List<ConfigMutation> mutations) {
+            mutations.forEach(this::applyMutation);
+        }
+
+        /**
+         * @return the snapshot with all applied changes, the editor can't be used anymore
+         *         afterwards
+         */
+        @NotNull
+        /* default */ MemoryConfigSnapshot build() {
+            return new MemoryConfigSnapshot(files.build(), blocks.build(), externalBlocks.build(),
+                    servers.build(), fileToBlocks.build(), serverToBlocks.build(),
+                    serverToExternalBlocks.build(), backupCodes.build(), futureHostnames.build(),
+                    fileDigests.build(), fileReferences.build());
+        }
+
+        /**
+         * Applies a single change
+         *
+         * @param mutation the change
+         * @return the block or server that was replaced or deleted by the change, if any
+         */
+        @Nullable
+        private Object applyMutation(@NotNull ConfigMutation mutation) {
+            final String key = mutation.key();
+            return switch (mutation.type()) {
+                case PUT_FILE -> putFile(key, Objects.requireNonNull(mutation.file()));
+                case DELETE_FILE -> putFile(key, null);
+                case PUT_BLOCK -> putBlock(PackedBlock.pack(Objects.requireNonNull(mutation
+                        .block())));
+                case DELETE_BLOCK -> deleteBlock(key);
+                case PUT_EXTERNAL_BLOCK -> putExternalBlock(Objects.requireNonNull(mutation
+                        .externalBlock()));
+                case DELETE_EXTERNAL_BLOCK -> deleteExternalBlock(key);
+                case PUT_SERVER -> putServer(key, freeze(Objects.requireNonNull(mutation
+                        .server())));
+                case DELETE_SERVER -> putServer(key, null);
+            };
+        }
+
+        /**
+         * @param map   the map to change
+         * @param key   the key
+         * @param value the new value, null to delete the entry
+         * @param <K>   the key type
+         * @param <V>   the value type
+         * @return the previous value
+         */
+        @Nullable
+        private static <K, V> V put(@NotNull PersistentMap.Editor<K, V> map, @NotNull K key,
+                @Nullable V value) {
+            V previous = map.get(key);
+            if (value == null) {
+                map.remove(key);
+            } else {
+                map.put(key, value);
+            }
+            return previous;
+        }
+
+        /**
+         * Adds, replaces or deletes a file and updates the digest and reference index
+         *
+         * @param id   the id of the file
+         * @param file the file, null to delete the file
+         * @return the replaced or deleted file
+         */
+        @Nullable
+        private Config.File putFile(@NotNull String id, @Nullable Config.File file) {
+            Config.File previous = put(files, id, file);
+            if (previous != null) {
+                if (previous.contentId() != null) {
+                    fileReferences.edit(previous.contentId()).remove(id);
+                } else if (previous.digest() != null) {
+                    unindex(fileDigests, previous.digest(), id);
+                }
+            }
+            if (file != null) {
+                if (file.contentId() != null) {
+                    fileReferences.edit(file.contentId()).put(id, id);
+                } else if (file.digest() != null) {
+                    fileDigests.put(file.digest(), id);
+                }
+            }
+            return previous;
+        }
+
+        /**
+         * Creates an immutable copy of a server so that it can't be changed from outside
+         *
+         * @param server the server
+         * @return the immutable server
+         */
+        @NotNull
+        private static Config.Server freeze(@NotNull Config.Server server) {
+            return new Config.Server(server.hostname(), List.copyOf(server.oldHostnames()), server
+                    .isVerified(), server.healthy(), server.maintenance(), server.futureHostname(),
+                    server.backupCode());
+        }
+
+        /**
+         * Adds, replaces or deletes a server and updates the backup code and future hostname index
+         *
+         * @param hostname the hostname of the server
+         * @param server   the frozen server, null to delete the server
+         * @return the replaced or deleted server
+         */
+        @Nullable
+        private Config.Server putServer(@NotNull String hostname,
+                @Nullable Config.Server server) {
+            Config.Server previous = put(servers, hostname, server);
+            if (previous != null) {
+                unindex(backupCodes, previous.backupCode(), hostname);
+                if (previous.futureHostname() != null) {
+                    unindex(futureHostnames, previous.futureHostname(), hostname);
+                }
+            }
+            if (server != null) {
+                backupCodes.put(server.backupCode(), hostname);
+                if (server.futureHostname() != null) {
+                    futureHostnames.put(server.futureHostname(), hostname);
+                }
+            }
+            return previous;
+        }
+
+        /**
+         * @param index the index
+         * @param key   the key in the index
+         * @param value the value to remove if it is still the one stored for the key
+         */
+        private static void unindex(@NotNull PersistentMap.Editor<String, String> index,
+                @NotNull String key, @NotNull String value) {
+            if (value.equals(index.get(key))) {
+                index.remove(key);
+            }
+        }
+
+        /**
+         * Adds or replaces a block and updates the file and server index
+         *
+         * @param block the packed block
+         * @return the replaced block
+         */
+        @Nullable
+        private PackedBlock putBlock(@NotNull PackedBlock block) {
+            PackedBlock previous = put(blocks, block.key(), block);
+            unindex(previous);
+            for (int range = 0; range < block.ranges(); range++) {
+                fileToBlocks.edit(block.fileKey(range)).put(block.start(range), block.key());
+            }
+            for (int replica = 0; replica < block.replicas(); replica++) {
+                serverToBlocks.edit(block.replicaHostname(replica)).put(block.key(), block.key());
+            }
+            return previous;
+        }
+
+        /**
+         * Deletes a block and updates the file and server index
+         *
+         * @param id the block id
+         * @return the deleted block
+         */
+        @Nullable
+        private PackedBlock deleteBlock(@NotNull String id) {
+            PackedBlock previous = put(blocks, PackedBlock.key(id), null);
+            unindex(previous);
+            return previous;
+        }
+
+        /**
+         * Removes a block from the file and server index
+         *
+         * @param block the block to remove, nothing is done if null
+         */
+        private void unindex(@Nullable PackedBlock block) {
+            if (block == null) {
+                return;
+            }
+            for (int replica = 0; replica < block.replicas(); replica++) {
+                serverToBlocks.edit(block.replicaHostname(replica)).remove(block.key());
+            }
+            for (int range = 0; range < block.ranges(); range++) {
+                PersistentMap.Editor<Long, Object> ranges = fileToBlocks.edit(block.fileKey(range));
+                if (block.key().equals(ranges.get(block.start(range)))) {
+                    ranges.remove(block.start(range));
+                }
+            }
+        }
+
+        /**
+         * Adds or replaces an external block and updates the server index
+         *
+         * @param block the external block
+         * @return always null, the replaced external block isn't needed
+         */
+        @Nullable
+        private Object putExternalBlock(@NotNull Config.ExternalBlock block) {
+            Object key = PackedBlock.key(block.id());
+            removeExternalBlock(key);
+            externalBlocks.put(key, new ExternalBlockEntry(PackedBlock.hostnameNumber(block
+                    .serverHostname()), block.lastModified(), block.size()));
+            serverToExternalBlocks.edit(block.serverHostname()).put(key, key);
+            return null;
+        }
+
+        /**
+         * Deletes an external block and updates the server index
+         *
+         * @param id the external block id
+         * @return always null, the deleted external block isn't needed
+         */
+        @Nullable
+        private Object deleteExternalBlock(@NotNull String id) {
+            removeExternalBlock(PackedBlock.key(id));
+            return null;
+        }
+
+        /**
+         * @param key the id key of the external block to remove from the map and the server index
+         */
+        private void removeExternalBlock(@NotNull Object key) {
+            ExternalBlockEntry entry = put(externalBlocks, key, null);
+            if (entry != null) {
+                serverToExternalBlocks.edit(PackedBlock.hostname(entry.hostname())).remove(key);
+            }
+        }
+    }
+
+    /**
+     * An external block as kept in the snapshot, the id is the key of the entry
+     *
+     * @param hostname     the hostname number of the server the block belongs to
+     * @param lastModified when the content was written in seconds since the epoch, 0 if reserved
+     * @param size         the size of the content in bytes, 0 if reserved
+     */
+    private record ExternalBlockEntry(int hostname, long lastModified, long size) {
+    }
+
+    /**
+     * Edits an index of id keys by a key, the id keys of every key are edited in place until
+     * {@link #build()}
+     *
+     * @param <K> the key type of the id keys of a key
+     */
+    private static final class IndexEditor<K> {
+
+        /**
+         * The index
+         */
+        @NotNull
+        private final PersistentMap.Editor<Object, PersistentMap<K, Object>> index;
+        /**
+         * The id keys of the keys edited so far
+         */
+        @NotNull
+        private final Map<Object, PersistentMap.Editor<K, Object>> edited =
+                new ConcurrentHashMap<>();
+
+        /**
+         * @param index the index to start with
+         */
+        private IndexEditor (@NotNull PersistentMap<Object, PersistentMap<K, Object>> index) {
+            this.index = index.edit();
+        }
+
+        /**
+         * @param key the key, e.g. a hostname
+         * @return the id keys of the key, keys without ids are removed from the index on build
+         */
+        @NotNull
+        private PersistentMap.Editor<K, Object> edit(@NotNull Object key) {
+            return edited.computeIfAbsent(key, k -> Objects.requireNonNullElse(index.get(k),
+                    PersistentMap.<K, Object>empty()).edit());
+        }
+
+        /**
+         * @return the index with all changes
+         */
+        @NotNull
+        private PersistentMap<Object, PersistentMap<K, Object>> build() {
+            edited.forEach((key, editor) -> {
+                PersistentMap<K, Object> ids = editor.build();
+                if (ids.isEmpty()) {
+                    index.remove(key);
+                } else {
+                    index.put(key, ids);
+                }
+            });
+            return index.build();
+        }
+    }
+}
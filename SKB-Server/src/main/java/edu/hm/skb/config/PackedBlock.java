@@ -0,0 +1,315 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Compact, immutable form of a {@link Config.Block} as kept in the {@link MemoryConfigSnapshot}.
+ * <p/>
+ * Ids in the canonical UUID form are stored as two longs, hostnames as small numbers and the
+ * digest as raw bytes, so a block only needs a few small arrays instead of a map, a list and a
+ * string for every id. The
+ * {@link Config.Block} is only created as a view when the block is read.
+ */
+/* default */ final class PackedBlock {
+
+    /**
+     * Length of an id in the canonical UUID form
+     */
+    private static final int UUID_LENGTH = 36;
+    /**
+     * Longs used for the external id of a replica
+     */
+    private static final int REPLICA_WORDS = 2;
+    /**
+     * Longs used for the file id, start and stop of a range
+     */
+    private static final int RANGE_WORDS = 4;
+    /**
+     * Number of every known hostname
+     */
+    @NotNull
+    private static final Map<String, Integer> HOSTNAME_NUMBERS = new ConcurrentHashMap<>();
+    /**
+     * Every known hostname, by its number
+     */
+    @NotNull
+    private static final List<String> HOSTNAMES = new CopyOnWriteArrayList<>();
+    /**
+     * Lock for adding hostnames, so that the numbers match the position in {@link #HOSTNAMES}
+     */
+    @NotNull
+    private static final Object HOSTNAME_LOCK = new Object();
+
+    /**
+     * The block id as key, see {@link #key(String)}
+     */
+    @NotNull
+    private final Object key;
+    /**
+     * The hostname number of every replica
+     */
+    @NotNull
+    private final int[] hostnames;
+    /**
+     * The external id of every replica, followed by the file id, start and stop of every range
+     */
+    @NotNull
+    private final long[] words;
+    /**
+     * Ids not in the UUID form at the position of the id (replicas first, then ranges), null if
+     * all ids are UUIDs
+     */
+    @Nullable
+    private final String[] strings;
+    /**
+     * The digest of the block, null if unknown
+     */
+    @Nullable
+    private final byte[] digest;
+
+    /**
+     * @param key       the block id as key
+     * @param hostnames the hostname number of every replica
+     * @param words     the external ids and ranges
+     * @param strings   the ids not in the UUID form, null if there are none
+     * @param digest    the digest of the block, null if unknown
+     */
+    private PackedBlock (@NotNull Object key, @NotNull int[] hostnames, @NotNull long[] words,
+            @Nullable String[] strings, @Nullable byte[] digest) {
+        this.key = key;
+        this.hostnames = hostnames;
+        this.words = words;
+        this.strings = strings;
+        this.digest = digest;
+    }
+
+    /**
+     * @param block the block
+     * @return the compact form of the block
+     */
+    @NotNull
+    /* default */ static PackedBlock pack(@NotNull Config.Block block) {
+        int replicas = block.serverToId().size();
+        List<Config.FileRange> ranges = block.fileToByteRange();
+        int[] hostnames = new int[replicas];
+        long[] words = new long[REPLICA_WORDS * replicas + RANGE_WORDS * ranges.size()];
+        String[] strings = null;
+        int slot = 0;
+        for (Map.Entry<String, String> replica : block.serverToId().entrySet()) {
+            hostnames[slot] = hostnameNumber(replica.getKey());
+            strings = putId(words, REPLICA_WORDS * slot, strings, slot, replica.getValue(),
+                    replicas + ranges.size());
+            slot++;
+        }
+        for (int range = 0; range < ranges.size(); range++) {
+            int offset = REPLICA_WORDS * replicas + RANGE_WORDS * range;
+            Config.FileRange fileRange = ranges.get(range);
+            strings = putId(words, offset, strings, slot++, fileRange.fileId(), replicas + ranges
+                    .size());
+            words[offset + 2] = fileRange.start();
+            words[offset + 3] = fileRange.stop();
+        }
+        return new PackedBlock(key(block.id()), hostnames, words, strings, parseDigest(block
+                .digest()));
+    }
+
+    /**
+     * @param digest the digest in hex form
+     * @return the digest as bytes, null if unknown or not in hex form
+     */
+    @Nullable
+    // blocks without digest don't hold an array
+    @SuppressWarnings("PMD.ReturnEmptyCollectionRatherThanNull")
+    private static byte[] parseDigest(@Nullable String digest) {
+        if (digest == null) {
+            return null;
+        }
+        try {
+            return HexFormat.of().parseHex(digest);
+        } catch (IllegalArgumentException ignored) {
+            // an unreadable digest only means the block is uploaded again
+            return null;
+        }
+    }
+
+    /**
+     * Stores an id as two longs, or in the strings if it isn't a UUID
+     *
+     * @param words   the longs
+     * @param offset  the position of the id in the longs
+     * @param strings the ids not in the UUID form so far, null if there are none
+     * @param slot    the position of the id in the strings
+     * @param id      the id
+     * @param slots   the amount of ids of the block
+     * @return the ids not in the UUID form, null if there are none
+     */
+    @Nullable
+    private static String[] putId(long @NotNull [] words, int offset,
+            String @Nullable [] strings, int slot, @NotNull String id, int slots) {
+        UUID uuid = parseUuid(id);
+        if (uuid != null) {
+            words[offset] = uuid.getMostSignificantBits();
+            words[offset + 1] = uuid.getLeastSignificantBits();
+            return strings;
+        }
+        String[] result = strings == null ? new String[slots] : strings;
+        result[slot] = id;
+        return result;
+    }
+
+    /**
+     * @param id an id
+     * @return the UUID if the id is a UUID that is written back exactly the same, null otherwise
+     */
+    @Nullable
+    /* default */ static UUID parseUuid(@NotNull String id) {
+        if (id.length() != UUID_LENGTH) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts an id to the form used as key in the config data, a UUID takes less than half the
+     * memory of its string form
+     *
+     * @param id the id
+     * @return the id as UUID if it is one, the id itself otherwise
+     */
+    @NotNull
+    /* default */ static Object key(@NotNull String id) {
+        UUID uuid = parseUuid(id);
+        return uuid == null ? id : uuid;
+    }
+
+    /**
+     * @param key the key of an id, see {@link #key(String)}
+     * @return the id
+     */
+    @NotNull
+    /* default */ static String toId(@NotNull Object key) {
+        return key.toString();
+    }
+
+    /**
+     * @param hostname a hostname
+     * @return the number of the hostname, the same for the whole runtime
+     */
+    /* default */ static int hostnameNumber(@NotNull String hostname) {
+        Integer number = HOSTNAME_NUMBERS.get(hostname);
+        if (number != null) {
+            return number;
+        }
+        synchronized (HOSTNAME_LOCK) {
+            return HOSTNAME_NUMBERS.computeIfAbsent(hostname, key -> {
+                HOSTNAMES.add(key);
+                return HOSTNAMES.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * @param number the number of a hostname
+     * @return the hostname
+     */
+    @NotNull
+    /* default */ static String hostname(int number) {
+        return HOSTNAMES.get(number);
+    }
+
+    /**
+     * @return the block id as key, see {@link #key(String)}
+     */
+    @NotNull
+    /* default */ Object key() {
+        return key;
+    }
+
+    /**
+     * @return the amount of replicas
+     */
+    /* default */ int replicas() {
+        return hostnames.length;
+    }
+
+    /**
+     * @param replica the position of the replica
+     * @return the hostname of the replica
+     */
+    @NotNull
+    /* default */ String replicaHostname(int replica) {
+        return hostname(hostnames[replica]);
+    }
+
+    /**
+     * @return the amount of file ranges
+     */
+    /* default */ int ranges() {
+        return (words.length - REPLICA_WORDS * hostnames.length) / RANGE_WORDS;
+    }
+
+    /**
+     * @param range the position of the range
+     * @return the file id of the range as key, see {@link #key(String)}
+     */
+    @NotNull
+    /* default */ Object fileKey(int range) {
+        return idKey(hostnames.length + range, REPLICA_WORDS * hostnames.length + RANGE_WORDS
+                * range);
+    }
+
+    /**
+     * @param range the position of the range
+     * @return the start of the range in the file
+     */
+    /* default */ long start(int range) {
+        return words[REPLICA_WORDS * hostnames.length + RANGE_WORDS * range + 2];
+    }
+
+    /**
+     * @param slot   the position of the id in the strings
+     * @param offset the position of the id in the longs
+     * @return the id as key, see {@link #key(String)}
+     */
+    @NotNull
+    private Object idKey(int slot, int offset) {
+        if (strings != null && strings[slot] != null) {
+            return strings[slot];
+        }
+        return new UUID(words[offset], words[offset + 1]);
+    }
+
+    /**
+     * @return the block as record, created on every call
+     */
+    @NotNull
+    /* default */ Config.Block toBlock() {
+        @SuppressWarnings("unchecked")
+        Map.Entry<String, String>[] replicas = new Map.Entry[hostnames.length];
+        for (int replica = 0; replica < hostnames.length; replica++) {
+            replicas[replica] = Map.entry(replicaHostname(replica), toId(idKey(replica,
+                    REPLICA_WORDS * replica)));
+        }
+        Config.FileRange[] ranges = new Config.FileRange[ranges()];
+        for (int range = 0; range < ranges.length; range++) {
+            int offset = REPLICA_WORDS * hostnames.length + RANGE_WORDS * range;
+            ranges[range] = new Config.FileRange(toId(fileKey(range)), words[offset + 2],
+                    words[offset + 3]);
+        }
+        return new Config.Block(toId(key), Map.ofEntries(replicas), List.of(ranges),
+                digest == null ? null : HexFormat.of().formatHex(digest));
+    }
+}
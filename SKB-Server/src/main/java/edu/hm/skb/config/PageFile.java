@@ -0,0 +1,415 @@
+package edu.hm.skb.config;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * File holding the nodes of {@link PageTree}s in pages of a fixed size, with a cache of the
+ * decoded nodes.
+ * <p/>
+ * The first page holds the file header. Nodes are only ever appended. A trailer page marks a
+ * consistent state: it holds the page offset of the root and the amount of external blocks, the
+ * offset of the previous trailer, and a checksum of the pages written since the previous sync
+ * (see {@link #force()}). On open the file is searched backwards for the last trailer whose
+ * checksums match, everything after it was never synced and is cut off.
+ * <p/>
+ * Nodes are read with positional reads, so reads don't need a lock. Appending pages and writing
+ * trailers must only be done by one thread at a time.
+ */
+/* default */ final class PageFile implements AutoCloseable {
+
+    /**
+     * Size of a page
+     */
+    /* default */ static final int PAGE_SIZE = 4096;
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(PageFile.class);
+    /**
+     * Marks a page file, "SKBTREE" followed by the format version
+     */
+    private static final long MAGIC = 0x534B_4254_5245_4501L;
+    /**
+     * Marks a trailer page, "SKBTRAIL"
+     */
+    private static final long TRAILER_MAGIC = 0x534B_4254_5241_494CL;
+    /**
+     * Bytes of a trailer before its checksum: magic, root, count, previous trailer, start and
+     * checksum of the unsynced range
+     */
+    private static final int TRAILER_SIZE = Long.BYTES * 5 + Integer.BYTES;
+    /**
+     * Bytes read at once when computing the checksum of a range
+     */
+    private static final int CHECKSUM_CHUNK = 256 * PAGE_SIZE;
+
+    /**
+     * The file
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * Channel of the file
+     */
+    @NotNull
+    private final FileChannel channel;
+    /**
+     * Decoded nodes by page offset
+     */
+    @NotNull
+    private final Cache<Long, PageTree.Node> nodes;
+    /**
+     * End of the written pages
+     */
+    @NotNull
+    private final AtomicLong end;
+    /**
+     * End of the pages known to be on disk
+     */
+    @NotNull
+    private final AtomicLong durable;
+    /**
+     * The last written or recovered trailer, guarded by the writer
+     */
+    @NotNull
+    private Trailer last;
+
+    /**
+     * @param path      the file
+     * @param channel   the channel of the file
+     * @param cacheSize bytes of encoded nodes to keep in the cache
+     * @param last      the last trailer
+     * @param end       the end of the written pages, all on disk
+     */
+    private PageFile (@NotNull Path path, @NotNull FileChannel channel, long cacheSize,
+            @NotNull Trailer last, long end) {
+        this.path = path;
+        this.channel = channel;
+        this.nodes = CacheBuilder.newBuilder()
+                .maximumWeight(cacheSize)
+                .weigher((Long offset, PageTree.Node node) -> node.size)
+                .build();
+        this.last = last;
+        this.end = new AtomicLong(end);
+        this.durable = new AtomicLong(end);
+    }
+
+    /**
+     * Creates a new file containing only the header, replacing an existing file
+     *
+     * @param path      the file
+     * @param cacheSize bytes of encoded nodes to keep in the cache
+     * @return the file
+     * @throws IOException if the file couldn't be created
+     */
+    @NotNull
+    @SuppressWarnings("PMD.CloseResource")
+    /* default */ static PageFile create(@NotNull Path path, long cacheSize) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+            header.putLong(0, MAGIC);
+            writeFully(channel, header, 0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new PageFile(path, channel, cacheSize, new Trailer(0, 0, 0, 0, 0, 0), PAGE_SIZE);
+    }
+
+    /**
+     * Opens an existing file at its last intact trailer, the pages after it are cut off
+     *
+     * @param path      the file
+     * @param cacheSize bytes of encoded nodes to keep in the cache
+     * @return the file
+     * @throws IOException if the file couldn't be read or has no intact trailer
+     */
+    @NotNull
+    @SuppressWarnings("PMD.CloseResource")
+    /* default */ static PageFile open(@NotNull Path path, long cacheSize) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            checkHeader(channel);
+            Trailer trailer = recover(channel);
+            long end = trailer.offset() + PAGE_SIZE;
+            long size = channel.size();
+            if (size > end) {
+                LOG.warnf("Dropping %d bytes of unsynced config pages in %s", size - end, path);
+                channel.truncate(end);
+                channel.force(true);
+            }
+            return new PageFile(path, channel, cacheSize, trailer, end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that the channel contains a page file
+     *
+     * @param channel the channel
+     * @throws IOException if the file isn't a page file
+     */
+    private static void checkHeader(@NotNull FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        ConfigJournal.readFully(channel, header, 0);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException("Not a config page file");
+        }
+    }
+
+    /**
+     * @param length a length in bytes
+     * @return the length rounded up to whole pages
+     */
+    /* default */ static int pageAligned(int length) {
+        return (length + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Searches the last trailer and falls back to the previous ones while the pages covered by
+     * the trailer are damaged
+     *
+     * @param channel the channel
+     * @return the last intact trailer
+     * @throws IOException if there is no intact trailer
+     */
+    @NotNull
+    private static Trailer recover(@NotNull FileChannel channel) throws IOException {
+        Optional<Trailer> found = Optional.empty();
+        for (long offset = (channel.size() / PAGE_SIZE - 1) * PAGE_SIZE; offset >= PAGE_SIZE
+                && found.isEmpty(); offset -= PAGE_SIZE) {
+            found = readTrailer(channel, offset);
+        }
+        while (found.isPresent()) {
+            Trailer trailer = found.get();
+            if (checksum(channel, trailer.rangeStart(), trailer.offset()) == trailer
+                    .rangeChecksum()) {
+                return trailer;
+            }
+            found = trailer.previous() == 0 ?
+                    Optional.empty() :
+                    readTrailer(channel, trailer.previous());
+        }
+        throw new IOException("Config page file has no intact trailer");
+    }
+
+    /**
+     * @param channel the channel
+     * @param offset  the page offset
+     * @return the trailer at the offset if the page holds one with a matching checksum
+     * @throws IOException if the page couldn't be read
+     */
+    @NotNull
+    private static Optional<Trailer> readTrailer(@NotNull FileChannel channel, long offset)
+            throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(TRAILER_SIZE + Integer.BYTES);
+        ConfigJournal.readFully(channel, page, offset);
+        CRC32C crc = new CRC32C();
+        crc.update(page.array(), 0, TRAILER_SIZE);
+        if (page.getLong(0) != TRAILER_MAGIC || page.getInt(TRAILER_SIZE) != (int) crc
+                .getValue()) {
+            return Optional.empty();
+        }
+        page.position(Long.BYTES);
+        return Optional.of(new Trailer(offset, page.getLong(), page.getLong(), page.getLong(), page
+                .getLong(), page.getInt()));
+    }
+
+    /**
+     * @param channel the channel
+     * @param from    the start of the range
+     * @param to      the end of the range
+     * @return the CRC32C of the range
+     * @throws IOException if the range couldn't be read
+     */
+    private static int checksum(@NotNull FileChannel channel, long from, long to)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer chunk = ByteBuffer.allocate(CHECKSUM_CHUNK);
+        for (long position = from; position < to; position += chunk.capacity()) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), to - position));
+            ConfigJournal.readFully(channel, chunk, position);
+            chunk.flip();
+            crc.update(chunk);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the whole buffer at the given position
+     *
+     * @param channel  the channel
+     * @param buffer   the buffer
+     * @param position the position in the channel
+     * @throws IOException if the channel couldn't be written
+     */
+    private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer,
+            long position) throws IOException {
+        long current = position;
+        while (buffer.hasRemaining()) {
+            current += channel.write(buffer, current);
+        }
+    }
+
+    /**
+     * @return the page offset of the root in the last trailer, 0 for the empty tree
+     */
+    /* default */ long root() {
+        return last.root();
+    }
+
+    /**
+     * @return the amount of external blocks in the last trailer
+     */
+    /* default */ long count() {
+        return last.count();
+    }
+
+    /**
+     * @return the end of the written pages
+     */
+    /* default */ long end() {
+        return end.get();
+    }
+
+    /**
+     * Reads a node, from the cache if possible
+     *
+     * @param offset the page offset of the node
+     * @return the node
+     * @throws IllegalStateException if the node couldn't be read
+     */
+    @NotNull
+    /* default */ PageTree.Node read(long offset) {
+        try {
+            return nodes.get(offset, () -> load(offset));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Couldn't read config page of " + path, e);
+        }
+    }
+
+    /**
+     * @param offset the page offset of the node
+     * @return the node read from the file
+     * @throws IOException if the node couldn't be read or is damaged
+     */
+    @NotNull
+    private PageTree.Node load(long offset) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        ConfigJournal.readFully(channel, page, offset);
+        int size = page.getInt(0);
+        if (size > PAGE_SIZE) {
+            if (offset + size > end.get()) {
+                throw new IOException("Damaged config tree node at " + offset);
+            }
+            page = ByteBuffer.allocate(pageAligned(size));
+            ConfigJournal.readFully(channel, page, offset);
+        }
+        return PageTree.decode(page, offset);
+    }
+
+    /**
+     * @param offset the page offset of the node
+     * @param node   a written node to keep in the cache
+     */
+    /* default */ void cache(long offset, @NotNull PageTree.Node node) {
+        nodes.put(offset, node);
+    }
+
+    /**
+     * Appends whole pages
+     *
+     * @param buffer the pages
+     * @return the page offset of the first page
+     * @throws IOException if the pages couldn't be written
+     */
+    /* default */ long append(@NotNull ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() % PAGE_SIZE != 0) {
+            throw new IllegalArgumentException("Only whole pages can be appended");
+        }
+        long offset = end.get();
+        long length = buffer.remaining();
+        writeFully(channel, buffer, offset);
+        end.set(offset + length);
+        return offset;
+    }
+
+    /**
+     * Appends a trailer marking the given tree as the current state, covering the pages written
+     * since the last {@link #force()}
+     *
+     * @param root  the page offset of the root, 0 for the empty tree
+     * @param count the amount of external blocks
+     * @throws IOException if the trailer couldn't be written
+     */
+    /* default */ void writeTrailer(long root, long count) throws IOException {
+        long offset = end.get();
+        long rangeStart = durable.get();
+        Trailer trailer = new Trailer(offset, root, count, last.offset(), rangeStart, checksum(
+                channel, rangeStart, offset));
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        page.putLong(TRAILER_MAGIC)
+                .putLong(root)
+                .putLong(count)
+                .putLong(trailer.previous())
+                .putLong(rangeStart)
+                .putInt(trailer.rangeChecksum());
+        CRC32C crc = new CRC32C();
+        crc.update(page.array(), 0, TRAILER_SIZE);
+        page.putInt((int) crc.getValue());
+        page.clear();
+        append(page);
+        last = trailer;
+    }
+
+    /**
+     * Makes sure all pages written so far are on disk
+     *
+     * @throws IOException if the file couldn't be synced
+     */
+    /* default */ void force() throws IOException {
+        long target = end.get();
+        channel.force(false);
+        durable.accumulateAndGet(target, Math::max);
+    }
+
+    @Override
+    public void close() throws IOException {
+        nodes.invalidateAll();
+        channel.close();
+    }
+
+    /**
+     * A trailer page
+     *
+     * @param offset        the page offset of the trailer, 0 if none was written yet
+     * @param root          the page offset of the root, 0 for the empty tree
+     * @param count         the amount of external blocks
+     * @param previous      the page offset of the previous trailer, 0 if there is none
+     * @param rangeStart    the start of the pages written since the previous sync
+     * @param rangeChecksum the CRC32C of the pages from the range start up to the trailer
+     */
+    private record Trailer(long offset, long root, long count, long previous, long rangeStart,
+                           int rangeChecksum) {
+    }
+}
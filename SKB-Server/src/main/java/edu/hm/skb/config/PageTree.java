@@ -0,0 +1,965 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32C;
+
+/**
+ * Persistent B+-tree mapping byte string keys to byte string values, stored in the pages of a
+ * {@link PageFile}.
+ * <p/>
+ * Written nodes are never changed: changing an entry copies the nodes on the path from the root
+ * to the entry, so a tree stays readable while newer trees are created from it. The copied nodes
+ * are kept in memory until {@link #flush()} appends them to the file, only nodes that are read are
+ * loaded from the file. Keys are compared as unsigned bytes, so entries with a common prefix are
+ * stored next to each other and can be scanned in order.
+ * <p/>
+ * A node is split once it doesn't fit into a page anymore, only a node with a single large entry
+ * may span several pages. Nodes that become empty are removed, partly filled nodes are not merged,
+ * the file is rewritten densely on compaction instead (see {@link Builder}).
+ * <p/>
+ * A node is stored as its length, the CRC32C of the rest of the node, the node type and the amount
+ * of entries, followed by the entries. A leaf entry is the key length (2 bytes), the key, the
+ * value length (4 bytes) and the value. A branch stores the page offsets of its children followed
+ * by the separator keys, each with its length. All numbers are big-endian. A node starts at a page
+ * boundary, the rest of its last page stays zero.
+ */
+/* default */ final class PageTree {
+
+    /**
+     * Node type of a leaf
+     */
+    private static final byte LEAF = 1;
+    /**
+     * Node type of a branch
+     */
+    private static final byte BRANCH = 2;
+    /**
+     * Bytes before the entries of a node: length, checksum, type and amount of entries
+     */
+    private static final int NODE_HEADER = Integer.BYTES * 3 + 1;
+    /**
+     * Bytes of a leaf entry besides the key and value
+     */
+    private static final int LEAF_ENTRY = Short.BYTES + Integer.BYTES;
+    /**
+     * Largest key length
+     */
+    /* default */ static final int MAX_KEY_LENGTH = 0xFFFF;
+    /**
+     * Bytes collected by the {@link Builder} before they are appended
+     */
+    private static final int BUILDER_BUFFER = 256 * PageFile.PAGE_SIZE;
+    /**
+     * Order of the keys
+     */
+    @NotNull
+    private static final Comparator<byte[]> ORDER = Arrays::compareUnsigned;
+    /**
+     * Root of the empty tree
+     */
+    @NotNull
+    private static final Leaf EMPTY = new Leaf(new byte[0][], new byte[0][]);
+
+    /**
+     * The file the nodes are read from and written to
+     */
+    @NotNull
+    private final PageFile pages;
+    /**
+     * The root, either a {@link Node} not written yet or the page offset of the root as Long.
+     * Replaced by the offset once written.
+     */
+    @NotNull
+    private Object root;
+
+    /**
+     * @param pages the file of the nodes
+     * @param root  the root node or its page offset
+     */
+    private PageTree (@NotNull PageFile pages, @NotNull Object root) {
+        this.pages = pages;
+        this.root = root;
+    }
+
+    /**
+     * @param pages      the file of the nodes
+     * @param rootOffset the page offset of the root, 0 for the empty tree
+     * @return the tree
+     */
+    @NotNull
+    /* default */ static PageTree open(@NotNull PageFile pages, long rootOffset) {
+        return rootOffset == 0 ? new PageTree(pages, EMPTY) : new PageTree(pages, rootOffset);
+    }
+
+    /**
+     * @return the file of the nodes
+     */
+    @NotNull
+    /* default */ PageFile pages() {
+        return pages;
+    }
+
+    /**
+     * @return the page offset of the root, 0 for the empty tree
+     * @throws IllegalStateException if the tree wasn't written yet
+     */
+    /* default */ long rootOffset() {
+        if (root instanceof Long offset) {
+            return offset;
+        }
+        if (isEmpty((Node) root)) {
+            return 0;
+        }
+        throw new IllegalStateException("Config tree wasn't written yet");
+    }
+
+    /**
+     * @param key the key
+     * @return the value of the key, null if the key doesn't exist
+     */
+    @Nullable
+    // missing keys don't have a value, an empty array is a valid value
+    @SuppressWarnings("PMD.ReturnEmptyCollectionRatherThanNull")
+    /* default */ byte[] get(byte @NotNull [] key) {
+        Node node = resolve(root);
+        while (node instanceof Branch branch) {
+            node = resolve(branch.children[childIndex(branch.keys, key)]);
+        }
+        int index = Arrays.binarySearch(node.keys, key, ORDER);
+        return index >= 0 ? ((Leaf) node).values[index] : null;
+    }
+
+    /**
+     * Visits the entries whose key starts with the prefix in key order
+     *
+     * @param prefix  the prefix
+     * @param visitor gets the key and value of every entry, returns false to stop
+     */
+    /* default */ void scan(byte @NotNull [] prefix, @NotNull BiPredicate<byte[], byte[]> visitor) {
+        scan(resolve(root), prefix, visitor);
+    }
+
+    /**
+     * @param key   the key
+     * @param value the new value of the key
+     * @return the tree with the entry added or replaced, this tree stays unchanged
+     */
+    @NotNull
+    /* default */ PageTree put(byte @NotNull [] key, byte @NotNull [] value) {
+        if (key.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Config tree key too long");
+        }
+        Node current = resolve(root);
+        Node changed = insert(current, key, value);
+        if (changed == current) {
+            return this;
+        }
+        Node result = changed;
+        Split split = split(result);
+        while (split.parts.length > 1) {
+            result = new Branch(split.separators, Arrays.copyOf(split.parts, split.parts.length,
+                    Object[].class));
+            split = split(result);
+        }
+        return new PageTree(pages, result);
+    }
+
+    /**
+     * @param key the key
+     * @return the tree without the entry, this tree stays unchanged
+     */
+    @NotNull
+    /* default */ PageTree remove(byte @NotNull [] key) {
+        Node current = resolve(root);
+        Node result = delete(current, key);
+        if (result == current) {
+            return this;
+        }
+        while (result instanceof Branch branch && branch.children.length == 1) {
+            result = resolve(branch.children[0]);
+        }
+        return new PageTree(pages, result);
+    }
+
+    /**
+     * Appends the nodes not written yet to the file, afterwards the tree only references pages.
+     * Must not be called concurrently for trees sharing unwritten nodes.
+     *
+     * @throws IOException if the nodes couldn't be written
+     */
+    /* default */ void flush() throws IOException {
+        if (!(root instanceof Node node) || isEmpty(node)) {
+            return;
+        }
+        List<Node> unwritten = new ArrayList<>();
+        collectUnwritten(node, unwritten);
+        int length = 0;
+        for (Node current : unwritten) {
+            length += PageFile.pageAligned(current.size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long start = pages.end();
+        for (Node current : unwritten) {
+            current.offset = start + buffer.position();
+            encode(current, buffer);
+        }
+        buffer.flip();
+        pages.append(buffer);
+        for (Node current : unwritten) {
+            if (current instanceof Branch branch) {
+                branch.referenceWrittenChildren();
+            }
+            pages.cache(current.offset, current);
+        }
+        root = node.offset;
+    }
+
+    /**
+     * Adds all entries of this tree to a builder in key order
+     *
+     * @param builder the builder
+     * @throws IOException if the builder couldn't write a node
+     */
+    /* default */ void copyTo(@NotNull Builder builder) throws IOException {
+        copy(resolve(root), builder);
+    }
+
+    /**
+     * @param node    the node
+     * @param builder gets all entries below the node
+     * @throws IOException if the builder couldn't write a node
+     */
+    private void copy(@NotNull Node node, @NotNull Builder builder) throws IOException {
+        if (node instanceof Leaf leaf) {
+            for (int entry = 0; entry < leaf.keys.length; entry++) {
+                builder.add(leaf.keys[entry], leaf.values[entry]);
+            }
+            return;
+        }
+        for (Object child : ((Branch) node).children) {
+            copy(resolve(child), builder);
+        }
+    }
+
+    /**
+     * @param reference a node or its page offset
+     * @return the node
+     */
+    @NotNull
+    private Node resolve(@NotNull Object reference) {
+        return reference instanceof Node node ? node : pages.read((Long) reference);
+    }
+
+    /**
+     * @param node    the node
+     * @param prefix  the prefix of the keys to visit
+     * @param visitor gets the key and value of every entry, returns false to stop
+     * @return false if the scan is complete
+     */
+    private boolean scan(@NotNull Node node, byte @NotNull [] prefix,
+            @NotNull BiPredicate<byte[], byte[]> visitor) {
+        if (node instanceof Leaf leaf) {
+            for (int entry = lowerBound(leaf.keys, prefix); entry < leaf.keys.length; entry++) {
+                if (!startsWith(leaf.keys[entry], prefix) || !visitor.test(leaf.keys[entry],
+                        leaf.values[entry])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        Branch branch = (Branch) node;
+        int first = childIndex(branch.keys, prefix);
+        for (int child = first; child < branch.children.length; child++) {
+            if (child > first && !startsWith(branch.keys[child - 1], prefix)) {
+                return false;
+            }
+            if (!scan(resolve(branch.children[child]), prefix, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param node  the node
+     * @param key   the key
+     * @param value the value
+     * @return the node with the entry added or replaced, may not fit into a page anymore. The node
+     *         itself if the entry already has the value.
+     */
+    @NotNull
+    private Node insert(@NotNull Node node, byte @NotNull [] key, byte @NotNull [] value) {
+        if (node instanceof Leaf leaf) {
+            int index = Arrays.binarySearch(leaf.keys, key, ORDER);
+            if (index >= 0 && Arrays.equals(leaf.values[index], value)) {
+                return leaf;
+            }
+            if (index >= 0) {
+                byte[][] values = leaf.values.clone();
+                values[index] = value;
+                return new Leaf(leaf.keys, values);
+            }
+            int position = -(index + 1);
+            return new Leaf(inserted(leaf.keys, position, key), inserted(leaf.values, position,
+                    value));
+        }
+        Branch branch = (Branch) node;
+        int index = childIndex(branch.keys, key);
+        Node child = resolve(branch.children[index]);
+        Node changed = insert(child, key, value);
+        if (changed == child) {
+            return branch;
+        }
+        Split split = split(changed);
+        Object[] children = new Object[branch.children.length + split.parts.length - 1];
+        System.arraycopy(branch.children, 0, children, 0, index);
+        System.arraycopy(split.parts, 0, children, index, split.parts.length);
+        System.arraycopy(branch.children, index + 1, children, index + split.parts.length,
+                branch.children.length - index - 1);
+        byte[][] keys = new byte[branch.keys.length + split.separators.length][];
+        System.arraycopy(branch.keys, 0, keys, 0, index);
+        System.arraycopy(split.separators, 0, keys, index, split.separators.length);
+        System.arraycopy(branch.keys, index, keys, index + split.separators.length,
+                branch.keys.length - index);
+        return new Branch(keys, children);
+    }
+
+    /**
+     * @param node the node
+     * @param key  the key
+     * @return the node without the entry, the empty leaf if no entries are left. The node itself
+     *         if the key doesn't exist.
+     */
+    @NotNull
+    private Node delete(@NotNull Node node, byte @NotNull [] key) {
+        if (node instanceof Leaf leaf) {
+            int index = Arrays.binarySearch(leaf.keys, key, ORDER);
+            if (index < 0) {
+                return leaf;
+            }
+            return leaf.keys.length == 1 ?
+                    EMPTY :
+                    new Leaf(removed(leaf.keys, index), removed(leaf.values, index));
+        }
+        Branch branch = (Branch) node;
+        int index = childIndex(branch.keys, key);
+        Node child = resolve(branch.children[index]);
+        Node changed = delete(child, key);
+        if (changed == child) {
+            return branch;
+        }
+        if (!isEmpty(changed)) {
+            Object[] children = branch.children.clone();
+            children[index] = changed;
+            return new Branch(branch.keys, children);
+        }
+        if (branch.children.length == 1) {
+            return EMPTY;
+        }
+        return new Branch(removed(branch.keys, Math.max(index - 1, 0)), removed(branch.children,
+                index));
+    }
+
+    /**
+     * Splits a node that doesn't fit into a page into halves, until every part fits or only has
+     * a single entry
+     *
+     * @param node the node
+     * @return the parts and the separator keys between them
+     */
+    @NotNull
+    private static Split split(@NotNull Node node) {
+        List<byte[]> separators = new ArrayList<>();
+        List<Node> parts = new ArrayList<>();
+        split(node, separators, parts);
+        return new Split(separators.toArray(new byte[0][]), parts.toArray(new Node[0]));
+    }
+
+    /**
+     * @param node       the node to split
+     * @param separators gets the separator keys between the parts
+     * @param parts      gets the parts
+     */
+    private static void split(@NotNull Node node, @NotNull List<byte[]> separators,
+            @NotNull List<Node> parts) {
+        if (node.size <= PageFile.PAGE_SIZE || node.entries() < 2) {
+            parts.add(node);
+            return;
+        }
+        int half = node.size / 2;
+        int used = NODE_HEADER;
+        int middle = 1;
+        while (middle < node.entries() - 1 && used + node.entrySize(middle - 1) < half) {
+            used += node.entrySize(middle - 1);
+            middle++;
+        }
+        if (node instanceof Leaf leaf) {
+            int length = leaf.keys.length;
+            split(new Leaf(Arrays.copyOfRange(leaf.keys, 0, middle), Arrays.copyOfRange(
+                    leaf.values, 0, middle)), separators, parts);
+            separators.add(leaf.keys[middle]);
+            split(new Leaf(Arrays.copyOfRange(leaf.keys, middle, length), Arrays.copyOfRange(
+                    leaf.values, middle, length)), separators, parts);
+            return;
+        }
+        Branch branch = (Branch) node;
+        split(new Branch(Arrays.copyOfRange(branch.keys, 0, middle - 1), Arrays.copyOfRange(
+                branch.children, 0, middle)), separators, parts);
+        separators.add(branch.keys[middle - 1]);
+        split(new Branch(Arrays.copyOfRange(branch.keys, middle, branch.keys.length), Arrays
+                .copyOfRange(branch.children, middle, branch.children.length)), separators,
+                parts);
+    }
+
+    /**
+     * Collects the nodes that aren't written yet, children before their parent
+     *
+     * @param node   an unwritten node
+     * @param result gets the unwritten nodes
+     */
+    private static void collectUnwritten(@NotNull Node node, @NotNull List<Node> result) {
+        if (node instanceof Branch branch) {
+            for (Object child : branch.children) {
+                if (child instanceof Node unwritten) {
+                    collectUnwritten(unwritten, result);
+                }
+            }
+        }
+        result.add(node);
+    }
+
+    /**
+     * @param node a node
+     * @return true if the node is the empty leaf
+     */
+    private static boolean isEmpty(@NotNull Node node) {
+        return node instanceof Leaf && node.keys.length == 0;
+    }
+
+    /**
+     * @param separators the separator keys of a branch
+     * @param key        a key
+     * @return the position of the child that contains the key
+     */
+    private static int childIndex(byte @NotNull [] @NotNull [] separators,
+            byte @NotNull [] key) {
+        int index = Arrays.binarySearch(separators, key, ORDER);
+        return index >= 0 ? index + 1 : -(index + 1);
+    }
+
+    /**
+     * @param keys sorted keys
+     * @param key  a key
+     * @return the position of the first key not less than the key
+     */
+    private static int lowerBound(byte @NotNull [] @NotNull [] keys, byte @NotNull [] key) {
+        int index = Arrays.binarySearch(keys, key, ORDER);
+        return index >= 0 ? index : -(index + 1);
+    }
+
+    /**
+     * @param key    a key
+     * @param prefix a prefix
+     * @return true if the key starts with the prefix
+     */
+    private static boolean startsWith(byte @NotNull [] key, byte @NotNull [] prefix) {
+        return key.length >= prefix.length && Arrays.equals(key, 0, prefix.length, prefix, 0,
+                prefix.length);
+    }
+
+    /**
+     * @param array    an array
+     * @param position the position of the new element
+     * @param element  the new element
+     * @param <T>      the element type
+     * @return a copy of the array with the element inserted
+     */
+    @NotNull
+    private static <T> T[] inserted(T @NotNull [] array, int position, @NotNull T element) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, position, result, position + 1, array.length - position);
+        result[position] = element;
+        return result;
+    }
+
+    /**
+     * @param array    an array
+     * @param position the position of the element to remove
+     * @param <T>      the element type
+     * @return a copy of the array without the element
+     */
+    @NotNull
+    private static <T> T[] removed(T @NotNull [] array, int position) {
+        T[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, position + 1, result, position, array.length - position - 1);
+        return result;
+    }
+
+    /**
+     * Encodes a node at the position of the buffer and moves the position to the next page
+     *
+     * @param node   the node, all children must be written
+     * @param buffer the buffer, zero after the position
+     */
+    private static void encode(@NotNull Node node, @NotNull ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.putInt(node.size).putInt(0);
+        if (node instanceof Leaf leaf) {
+            buffer.put(LEAF).putInt(leaf.keys.length);
+            for (int entry = 0; entry < leaf.keys.length; entry++) {
+                buffer.putShort((short) leaf.keys[entry].length).put(leaf.keys[entry]);
+                buffer.putInt(leaf.values[entry].length).put(leaf.values[entry]);
+            }
+        } else {
+            Branch branch = (Branch) node;
+            buffer.put(BRANCH).putInt(branch.children.length);
+            for (Object child : branch.children) {
+                buffer.putLong(child instanceof Node written ? written.offset : (Long) child);
+            }
+            for (byte[] key : branch.keys) {
+                buffer.putShort((short) key.length).put(key);
+            }
+        }
+        buffer.putInt(start + Integer.BYTES, checksum(buffer, start, node.size));
+        buffer.position(start + PageFile.pageAligned(node.size));
+    }
+
+    /**
+     * Decodes a node
+     *
+     * @param buffer the node starting at position 0
+     * @param offset the page offset of the node
+     * @return the node
+     * @throws IOException if the node is damaged
+     */
+    @NotNull
+    /* default */ static Node decode(@NotNull ByteBuffer buffer, long offset) throws IOException {
+        int size = buffer.getInt(0);
+        if (size < NODE_HEADER || size > buffer.limit() || buffer.getInt(Integer.BYTES)
+                != checksum(buffer, 0, size)) {
+            throw new IOException("Damaged config tree node at " + offset);
+        }
+        try {
+            ByteBuffer in = buffer.duplicate().position(Integer.BYTES * 2).limit(size);
+            byte type = in.get();
+            int count = in.getInt();
+            Node node;
+            if (type == LEAF) {
+                byte[][] keys = new byte[count][];
+                byte[][] values = new byte[count][];
+                for (int entry = 0; entry < count; entry++) {
+                    keys[entry] = read(in, Short.toUnsignedInt(in.getShort()));
+                    values[entry] = read(in, in.getInt());
+                }
+                node = new Leaf(keys, values);
+            } else if (type == BRANCH && count > 0) {
+                Object[] children = new Object[count];
+                for (int child = 0; child < count; child++) {
+                    children[child] = in.getLong();
+                }
+                byte[][] keys = new byte[count - 1][];
+                for (int key = 0; key < keys.length; key++) {
+                    keys[key] = read(in, Short.toUnsignedInt(in.getShort()));
+                }
+                node = new Branch(keys, children);
+            } else {
+                throw new IOException("Unknown config tree node type at " + offset);
+            }
+            node.offset = offset;
+            return node;
+        } catch (RuntimeException e) {
+            throw new IOException("Damaged config tree node at " + offset, e);
+        }
+    }
+
+    /**
+     * @param in     the buffer
+     * @param length the amount of bytes
+     * @return the next bytes of the buffer
+     */
+    private static byte @NotNull [] read(@NotNull ByteBuffer in, int length) {
+        byte[] result = new byte[length];
+        in.get(result);
+        return result;
+    }
+
+    /**
+     * @param buffer the buffer holding a node
+     * @param start  the start of the node
+     * @param size   the size of the node
+     * @return the checksum of the node after the checksum field
+     */
+    private static int checksum(@NotNull ByteBuffer buffer, int start, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(start + Integer.BYTES * 2).limit(start + size));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Node of the tree. Only the page offset and the children of unwritten branches change when
+     * the node is written.
+     */
+    /* default */ abstract static class Node {
+
+        /**
+         * The keys of a leaf, the separator keys of a branch
+         */
+        /* default */ final byte @NotNull [] @NotNull [] keys;
+        /**
+         * Size of the encoded node
+         */
+        /* default */ final int size;
+        /**
+         * Page offset of the node, 0 if not written yet
+         */
+        /* default */ long offset;
+
+        /**
+         * @param keys the keys
+         * @param size the size of the encoded node
+         */
+        private Node (byte @NotNull [] @NotNull [] keys, int size) {
+            super();
+            this.keys = keys;
+            this.size = size;
+        }
+
+        /**
+         * @return the amount of entries of a leaf or children of a branch
+         */
+        /* default */ abstract int entries();
+
+        /**
+         * @param entry the position of an entry of a leaf or child of a branch
+         * @return the encoded size of the entry or child with its separator key
+         */
+        /* default */ abstract int entrySize(int entry);
+    }
+
+    /**
+     * Node holding entries
+     */
+    /* default */ static final class Leaf extends Node {
+
+        /**
+         * The values, at the position of their key
+         */
+        /* default */ final byte @NotNull [] @NotNull [] values;
+
+        /**
+         * @param keys   the sorted keys
+         * @param values the values
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private Leaf (byte @NotNull [] @NotNull [] keys, byte @NotNull [] @NotNull [] values) {
+            super(keys, size(keys, values));
+            this.values = values;
+        }
+
+        /**
+         * @param keys   the keys
+         * @param values the values
+         * @return the size of the encoded leaf
+         */
+        private static int size(byte @NotNull [] @NotNull [] keys,
+                byte @NotNull [] @NotNull [] values) {
+            int size = NODE_HEADER + LEAF_ENTRY * keys.length;
+            for (int entry = 0; entry < keys.length; entry++) {
+                size += keys[entry].length + values[entry].length;
+            }
+            return size;
+        }
+
+        @Override
+        /* default */ int entries() {
+            return keys.length;
+        }
+
+        @Override
+        /* default */ int entrySize(int entry) {
+            return LEAF_ENTRY + keys[entry].length + values[entry].length;
+        }
+    }
+
+    /**
+     * Node referencing other nodes
+     */
+    /* default */ static final class Branch extends Node {
+
+        /**
+         * The children, either a {@link Node} not written yet or the page offset as Long. Child i
+         * holds the keys from separator i - 1 up to separator i.
+         */
+        /* default */ final Object @NotNull [] children;
+
+        /**
+         * @param keys     the separator keys, one less than the children
+         * @param children the children
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private Branch (byte @NotNull [] @NotNull [] keys, Object @NotNull [] children) {
+            super(keys, size(keys, children));
+            this.children = children;
+        }
+
+        /**
+         * @param keys     the separator keys
+         * @param children the children
+         * @return the size of the encoded branch
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private static int size(byte @NotNull [] @NotNull [] keys,
+                Object @NotNull [] children) {
+            int size = NODE_HEADER + Long.BYTES * children.length + Short.BYTES * keys.length;
+            for (byte[] key : keys) {
+                size += key.length;
+            }
+            return size;
+        }
+
+        /**
+         * Replaces the children that were just written by their page offset
+         */
+        private void referenceWrittenChildren() {
+            for (int child = 0; child < children.length; child++) {
+                if (children[child] instanceof Node written) {
+                    children[child] = written.offset;
+                }
+            }
+        }
+
+        @Override
+        /* default */ int entries() {
+            return children.length;
+        }
+
+        @Override
+        /* default */ int entrySize(int entry) {
+            return Long.BYTES + (entry == 0 ? 0 : Short.BYTES + keys[entry - 1].length);
+        }
+    }
+
+    /**
+     * A node split into parts
+     *
+     * @param separators the separator keys between the parts
+     * @param parts      the parts
+     */
+    private record Split(byte @NotNull [] @NotNull [] separators, Node @NotNull [] parts) {
+    }
+
+    /**
+     * Writes a tree from entries given in key order, filling every node as far as possible. Used
+     * to create and compact a file.
+     */
+    /* default */ static final class Builder {
+
+        /**
+         * The file the nodes are appended to
+         */
+        @NotNull
+        private final PageFile pages;
+        /**
+         * Encoded nodes not appended yet
+         */
+        @NotNull
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUILDER_BUFFER);
+        /**
+         * Keys of the leaf being filled
+         */
+        @NotNull
+        private final List<byte[]> keys = new ArrayList<>();
+        /**
+         * Values of the leaf being filled
+         */
+        @NotNull
+        private final List<byte[]> values = new ArrayList<>();
+        /**
+         * Branches being filled, from the lowest level upwards
+         */
+        @NotNull
+        private final List<Level> levels = new ArrayList<>();
+        /**
+         * Size of the leaf being filled
+         */
+        private int size = NODE_HEADER;
+        /**
+         * The last added key
+         */
+        private byte @Nullable [] last;
+
+        /**
+         * @param pages the file the nodes are appended to
+         */
+        /* default */ Builder (@NotNull PageFile pages) {
+            this.pages = pages;
+        }
+
+        /**
+         * @param key   the key, greater than the previous key
+         * @param value the value
+         * @throws IOException if a node couldn't be written
+         */
+        // keys are never changed once they are added
+        @SuppressWarnings("PMD.ArrayIsStoredDirectly")
+        /* default */ void add(byte @NotNull [] key, byte @NotNull [] value) throws IOException {
+            if (last != null && ORDER.compare(last, key) >= 0) {
+                throw new IllegalArgumentException("Config tree keys must be added in order");
+            }
+            int entry = LEAF_ENTRY + key.length + value.length;
+            if (!keys.isEmpty() && size + entry > PageFile.PAGE_SIZE) {
+                finishLeaf();
+            }
+            keys.add(key);
+            values.add(value);
+            size += entry;
+            last = key;
+        }
+
+        /**
+         * Writes the remaining nodes
+         *
+         * @return the written tree
+         * @throws IOException if a node couldn't be written
+         */
+        @NotNull
+        /* default */ PageTree build() throws IOException {
+            if (keys.isEmpty() && levels.isEmpty()) {
+                return open(pages, 0);
+            }
+            if (!keys.isEmpty()) {
+                finishLeaf();
+            }
+            long root = 0;
+            for (int level = 0; level < levels.size(); level++) {
+                Level current = levels.get(level);
+                if (level == levels.size() - 1 && current.offsets.size() == 1) {
+                    root = current.offsets.get(0);
+                } else {
+                    finishBranch(level);
+                }
+            }
+            drain();
+            return open(pages, root);
+        }
+
+        /**
+         * Writes the leaf being filled and starts a new one
+         *
+         * @throws IOException if the leaf couldn't be written
+         */
+        private void finishLeaf() throws IOException {
+            byte[] first = keys.get(0);
+            long offset = write(new Leaf(keys.toArray(new byte[0][]), values.toArray(
+                    new byte[0][])));
+            keys.clear();
+            values.clear();
+            size = NODE_HEADER;
+            addChild(0, first, offset);
+        }
+
+        /**
+         * Writes the branch being filled on a level and starts a new one
+         *
+         * @param level the level
+         * @throws IOException if the branch couldn't be written
+         */
+        private void finishBranch(int level) throws IOException {
+            Level current = levels.get(level);
+            byte[] first = current.firstKeys.get(0);
+            long offset = write(new Branch(current.firstKeys.subList(1, current.firstKeys.size())
+                    .toArray(new byte[0][]), current.offsets.toArray()));
+            current.firstKeys.clear();
+            current.offsets.clear();
+            current.size = NODE_HEADER;
+            addChild(level + 1, first, offset);
+        }
+
+        /**
+         * @param level    the level of the branch
+         * @param firstKey the first key below the child
+         * @param offset   the page offset of the child
+         * @throws IOException if a full branch couldn't be written
+         */
+        private void addChild(int level, byte @NotNull [] firstKey, long offset)
+                throws IOException {
+            if (level == levels.size()) {
+                levels.add(new Level());
+            }
+            Level current = levels.get(level);
+            int entry = current.offsets.isEmpty() ?
+                    Long.BYTES :
+                    Long.BYTES + Short.BYTES + firstKey.length;
+            if (!current.offsets.isEmpty() && current.size + entry > PageFile.PAGE_SIZE) {
+                finishBranch(level);
+                entry = Long.BYTES;
+            }
+            current.firstKeys.add(firstKey);
+            current.offsets.add(offset);
+            current.size += entry;
+        }
+
+        /**
+         * @param node the node
+         * @return the page offset of the node
+         * @throws IOException if the node couldn't be written
+         */
+        private long write(@NotNull Node node) throws IOException {
+            int length = PageFile.pageAligned(node.size);
+            if (length > buffer.remaining()) {
+                drain();
+            }
+            if (length > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.allocate(length);
+                encode(node, large);
+                large.flip();
+                return pages.append(large);
+            }
+            long offset = pages.end() + buffer.position();
+            encode(node, buffer);
+            return offset;
+        }
+
+        /**
+         * Appends the collected nodes
+         *
+         * @throws IOException if the nodes couldn't be written
+         */
+        private void drain() throws IOException {
+            buffer.flip();
+            pages.append(buffer);
+            Arrays.fill(buffer.array(), (byte) 0);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * A branch being filled by the {@link Builder}
+     */
+    private static final class Level {
+
+        /**
+         * The first key below every child
+         */
+        @NotNull
+        private final List<byte[]> firstKeys = new ArrayList<>();
+        /**
+         * The page offsets of the children
+         */
+        @NotNull
+        private final List<Long> offsets = new ArrayList<>();
+        /**
+         * Size of the encoded branch
+         */
+        private int size = NODE_HEADER;
+    }
+}
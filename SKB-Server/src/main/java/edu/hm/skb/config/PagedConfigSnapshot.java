@@ -0,0 +1,472 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Snapshot of the config data read from the pages of a {@link PagedConfigStorage} on demand.
+ * <p/>
+ * Every entry is stored in a {@link PageTree}, keyed by a type byte followed by the id (or
+ * hostname for servers), with the record encoded as JSON as value. The lookups by indexed fields
+ * are entries of their own, derived from the records: the key is a type byte followed by the
+ * indexed field and, for fields shared by several entries, the id of the entry. Each part of a key
+ * is stored with its length, so a scan over a key prefix only finds the entries of exactly this
+ * field value. Only the nodes on the path to the read entries are loaded, so the config data
+ * doesn't need to fit into memory.
+ */
+/* default */ final class PagedConfigSnapshot implements ConfigSnapshot {
+
+    /**
+     * Key type of a file, followed by the id
+     */
+    private static final byte FILE = 'F';
+    /**
+     * Key type of a block, followed by the id
+     */
+    private static final byte BLOCK = 'B';
+    /**
+     * Key type of an external block, followed by the id
+     */
+    private static final byte EXTERNAL_BLOCK = 'E';
+    /**
+     * Key type of a server, followed by the hostname
+     */
+    private static final byte SERVER = 'S';
+    /**
+     * Key type of a content digest, the value is the id of the file holding the content
+     */
+    private static final byte FILE_DIGEST = 'd';
+    /**
+     * Key type of a file sharing the content of another file, followed by the id of the file
+     * holding the content and the id of the file
+     */
+    private static final byte FILE_REFERENCE = 'r';
+    /**
+     * Key type of a file range in a block, followed by the file id and the start of the range,
+     * the value is the block id
+     */
+    private static final byte FILE_BLOCK = 'f';
+    /**
+     * Key type of a replica on a server, followed by the hostname and the block id
+     */
+    private static final byte SERVER_BLOCK = 'b';
+    /**
+     * Key type of an external block of a server, followed by the hostname and the id
+     */
+    private static final byte SERVER_EXTERNAL_BLOCK = 'e';
+    /**
+     * Key type of a backup code, the value is the hostname of the server
+     */
+    private static final byte BACKUP_CODE = 'c';
+    /**
+     * Key type of a future hostname, the value is the hostname of the server
+     */
+    private static final byte FUTURE_HOSTNAME = 'h';
+    /**
+     * Value of index entries that only consist of their key
+     */
+    private static final byte @NotNull [] NO_VALUE = new byte[0];
+
+    /**
+     * The mapper to encode the records
+     */
+    @NotNull
+    private final ObjectMapper mapper;
+    /**
+     * The entries
+     */
+    @NotNull
+    private final PageTree tree;
+    /**
+     * The amount of external blocks
+     */
+    private final long externalBlockCount;
+
+    /**
+     * @param mapper             the mapper to encode the records
+     * @param tree               the entries
+     * @param externalBlockCount the amount of external blocks
+     */
+    /* default */ PagedConfigSnapshot (@NotNull ObjectMapper mapper, @NotNull PageTree tree,
+            long externalBlockCount) {
+        this.mapper = mapper;
+        this.tree = tree;
+        this.externalBlockCount = externalBlockCount;
+    }
+
+    /**
+     * Creates the entries of the tree for the given state
+     *
+     * @param mapper  the mapper to encode the records
+     * @param entries the state as changes that only put entries
+     * @return the keys and values of the tree in key order
+     */
+    @NotNull
+    /* default */ static List<Map.Entry<byte[], byte[]>> entries(@NotNull ObjectMapper mapper,
+            @NotNull List<ConfigMutation> entries) {
+        List<Map.Entry<byte[], byte[]>> result = new ArrayList<>();
+        for (ConfigMutation mutation : entries) {
+            Object entry = record(mutation);
+            if (entry != null) {
+                result.add(Map.entry(key(type(mutation.type()), mutation.key()), encode(mapper,
+                        entry)));
+                result.addAll(index(entry));
+            }
+        }
+        result.sort((first, second) -> Arrays.compareUnsigned(first.getKey(), second.getKey()));
+        List<Map.Entry<byte[], byte[]>> unique = new ArrayList<>(result.size());
+        for (int entry = 0; entry < result.size(); entry++) {
+            // the last of several files with the same digest wins, like in memory
+            if (entry + 1 == result.size() || !Arrays.equals(result.get(entry).getKey(), result
+                    .get(entry + 1).getKey())) {
+                unique.add(result.get(entry));
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * @return the entries
+     */
+    @NotNull
+    /* default */ PageTree tree() {
+        return tree;
+    }
+
+    @Override
+    @NotNull
+    public PagedConfigSnapshot apply(@NotNull List<ConfigMutation> mutations,
+            @NotNull Consumer<Object> previous) {
+        PageTree result = tree;
+        long count = externalBlockCount;
+        for (ConfigMutation mutation : mutations) {
+            byte type = type(mutation.type());
+            byte[] key = key(type, mutation.key());
+            byte[] stored = result.get(key);
+            Object before = stored == null ? null : decode(type, stored);
+            Object after = record(mutation);
+            List<Map.Entry<byte[], byte[]>> added = after == null ? List.of() : index(after);
+            for (Map.Entry<byte[], byte[]> removed : before == null ?
+                    List.<Map.Entry<byte[], byte[]>>of() :
+                    index(before)) {
+                if (!containsKey(added, removed.getKey()) && Arrays.equals(removed.getValue(),
+                        result.get(removed.getKey()))) {
+                    result = result.remove(removed.getKey());
+                }
+            }
+            for (Map.Entry<byte[], byte[]> entry : added) {
+                result = result.put(entry.getKey(), entry.getValue());
+            }
+            if (after == null) {
+                result = result.remove(key);
+            } else {
+                result = result.put(key, encode(mapper, after));
+            }
+            if (type == EXTERNAL_BLOCK) {
+                count += (after == null ? 0 : 1) - (before == null ? 0 : 1);
+            }
+            previous.accept(before);
+        }
+        return new PagedConfigSnapshot(mapper, result, count);
+    }
+
+    @Override
+    @NotNull
+    public List<ConfigMutation> toMutations() {
+        List<ConfigMutation> mutations = new ArrayList<>();
+        getServers().forEach(server -> mutations.add(ConfigMutation.put(server)));
+        getFiles().forEach(file -> mutations.add(ConfigMutation.put(file)));
+        getBlocks().forEach(block -> mutations.add(ConfigMutation.put(block)));
+        getExternalBlocks().forEach(block -> mutations.add(ConfigMutation.put(block)));
+        return mutations;
+    }
+
+    @Override
+    @NotNull
+    public List<Config.File> getFiles() {
+        return records(FILE, Config.File.class);
+    }
+
+    @Override
+    @Nullable
+    public Config.File getFile(@NotNull String id) {
+        return record(FILE, id, Config.File.class);
+    }
+
+    @Override
+    @Nullable
+    public Config.File getFileByDigest(@NotNull String digest) {
+        byte[] id = tree.get(key(FILE_DIGEST, digest));
+        return id == null ? null : getFile(new String(id, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    @NotNull
+    public List<Config.File> getFileReferences(@NotNull String id) {
+        return ids(key(FILE_REFERENCE, id)).stream().map(this::getFile).toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocks() {
+        return records(BLOCK, Config.Block.class);
+    }
+
+    @Override
+    @Nullable
+    public Config.Block getBlock(@NotNull String id) {
+        return record(BLOCK, id, Config.Block.class);
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocksOfFile(@NotNull String fileId) {
+        List<String> ids = new ArrayList<>();
+        tree.scan(key(FILE_BLOCK, fileId), (key, value) -> ids.add(new String(value,
+                StandardCharsets.UTF_8)));
+        return ids.stream().distinct().map(this::getBlock).toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Block> getBlocksOfServer(@NotNull String hostname) {
+        return ids(key(SERVER_BLOCK, hostname)).stream().map(this::getBlock).toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.ExternalBlock> getExternalBlocks() {
+        return records(EXTERNAL_BLOCK, Config.ExternalBlock.class);
+    }
+
+    @Override
+    public int getExternalBlockCount() {
+        return (int) externalBlockCount;
+    }
+
+    @Override
+    @Nullable
+    public Config.ExternalBlock getExternalBlock(@NotNull String id) {
+        return record(EXTERNAL_BLOCK, id, Config.ExternalBlock.class);
+    }
+
+    @Override
+    @NotNull
+    public List<Config.ExternalBlock> getExternalBlocksOfServer(@NotNull String hostname) {
+        return ids(key(SERVER_EXTERNAL_BLOCK, hostname)).stream()
+                .map(this::getExternalBlock)
+                .toList();
+    }
+
+    @Override
+    @NotNull
+    public List<Config.Server> getServers() {
+        return records(SERVER, Config.Server.class);
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServer(@NotNull String hostname) {
+        return record(SERVER, hostname, Config.Server.class);
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServerByFutureHostname(@NotNull String futureHostname) {
+        byte[] hostname = tree.get(key(FUTURE_HOSTNAME, futureHostname));
+        return hostname == null ? null : getServer(new String(hostname, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    @Nullable
+    public Config.Server getServerByBackupCode(@NotNull String backupCode) {
+        byte[] hostname = tree.get(key(BACKUP_CODE, backupCode));
+        return hostname == null ? null : getServer(new String(hostname, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param type  the key type
+     * @param id    the id or hostname
+     * @param clazz the record class
+     * @param <T>   the record type
+     * @return the record if it exists
+     */
+    @Nullable
+    private <T> T record(byte type, @NotNull String id, @NotNull Class<T> clazz) {
+        byte[] value = tree.get(key(type, id));
+        return value == null ? null : clazz.cast(decode(type, value));
+    }
+
+    /**
+     * @param type  the key type
+     * @param clazz the record class
+     * @param <T>   the record type
+     * @return all records of the type in key order
+     */
+    @NotNull
+    private <T> List<T> records(byte type, @NotNull Class<T> clazz) {
+        List<T> result = new ArrayList<>();
+        tree.scan(new byte[]{type}, (key, value) -> result.add(clazz.cast(decode(type, value))));
+        return result;
+    }
+
+    /**
+     * @param prefix the key of an indexed field shared by several entries
+     * @return the ids of the entries with this field value, the last part of their key
+     */
+    @NotNull
+    private List<String> ids(byte @NotNull [] prefix) {
+        List<String> result = new ArrayList<>();
+        tree.scan(prefix, (key, value) -> result.add(new String(key, prefix.length + Short.BYTES,
+                key.length - prefix.length - Short.BYTES, StandardCharsets.UTF_8)));
+        return result;
+    }
+
+    /**
+     * @param type  the key type
+     * @param value the encoded record
+     * @return the record
+     */
+    @NotNull
+    private Object decode(byte type, byte @NotNull [] value) {
+        try {
+            return switch (type) {
+                case FILE -> mapper.readValue(value, Config.File.class);
+                case BLOCK -> mapper.readValue(value, Config.Block.class);
+                case EXTERNAL_BLOCK -> mapper.readValue(value, Config.ExternalBlock.class);
+                default -> mapper.readValue(value, Config.Server.class);
+            };
+        } catch (IOException e) {
+            throw new IllegalStateException("Config page contains an invalid entry", e);
+        }
+    }
+
+    /**
+     * @param mapper the mapper
+     * @param entry  the record
+     * @return the encoded record
+     */
+    private static byte @NotNull [] encode(@NotNull ObjectMapper mapper, @NotNull Object entry) {
+        try {
+            return mapper.writeValueAsBytes(entry);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't encode config entry", e);
+        }
+    }
+
+    /**
+     * @param type the kind of change
+     * @return the key type of the changed entry
+     */
+    private static byte type(@NotNull ConfigMutation.Type type) {
+        return switch (type) {
+            case PUT_FILE, DELETE_FILE -> FILE;
+            case PUT_BLOCK, DELETE_BLOCK -> BLOCK;
+            case PUT_EXTERNAL_BLOCK, DELETE_EXTERNAL_BLOCK -> EXTERNAL_BLOCK;
+            case PUT_SERVER, DELETE_SERVER -> SERVER;
+        };
+    }
+
+    /**
+     * @param mutation the change
+     * @return the record put by the change, null for a delete
+     */
+    @Nullable
+    private static Object record(@NotNull ConfigMutation mutation) {
+        return switch (mutation.type()) {
+            case PUT_FILE -> Objects.requireNonNull(mutation.file());
+            case PUT_BLOCK -> Objects.requireNonNull(mutation.block());
+            case PUT_EXTERNAL_BLOCK -> Objects.requireNonNull(mutation.externalBlock());
+            case PUT_SERVER -> Objects.requireNonNull(mutation.server());
+            case DELETE_FILE, DELETE_BLOCK, DELETE_EXTERNAL_BLOCK, DELETE_SERVER -> null;
+        };
+    }
+
+    /**
+     * @param entry a record
+     * @return the index entries of the record
+     */
+    @NotNull
+    private static List<Map.Entry<byte[], byte[]>> index(@NotNull Object entry) {
+        List<Map.Entry<byte[], byte[]>> result = new ArrayList<>();
+        if (entry instanceof Config.File file) {
+            if (file.contentId() != null) {
+                result.add(Map.entry(key(FILE_REFERENCE, file.contentId(), file.id()), NO_VALUE));
+            } else if (file.digest() != null) {
+                result.add(Map.entry(key(FILE_DIGEST, file.digest()), utf8(file.id())));
+            }
+        } else if (entry instanceof Config.Block block) {
+            for (Config.FileRange range : block.fileToByteRange()) {
+                byte[] prefix = key(FILE_BLOCK, range.fileId());
+                result.add(Map.entry(ByteBuffer.allocate(prefix.length + Long.BYTES)
+                        .put(prefix)
+                        .putLong(range.start())
+                        .array(), utf8(block.id())));
+            }
+            for (String hostname : block.serverToId().keySet()) {
+                result.add(Map.entry(key(SERVER_BLOCK, hostname, block.id()), NO_VALUE));
+            }
+        } else if (entry instanceof Config.ExternalBlock block) {
+            result.add(Map.entry(key(SERVER_EXTERNAL_BLOCK, block.serverHostname(), block.id()),
+                    NO_VALUE));
+        } else if (entry instanceof Config.Server server) {
+            result.add(Map.entry(key(BACKUP_CODE, server.backupCode()), utf8(server.hostname())));
+            if (server.futureHostname() != null) {
+                result.add(Map.entry(key(FUTURE_HOSTNAME, server.futureHostname()), utf8(server
+                        .hostname())));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param entries index entries
+     * @param key     a key
+     * @return true if one of the entries has the key
+     */
+    private static boolean containsKey(@NotNull List<Map.Entry<byte[], byte[]>> entries,
+            byte @NotNull [] key) {
+        return entries.stream().anyMatch(entry -> Arrays.equals(entry.getKey(), key));
+    }
+
+    /**
+     * @param type  the key type
+     * @param parts the parts of the key
+     * @return the key, every part prefixed with its length
+     */
+    private static byte @NotNull [] key(byte type, @NotNull String... parts) {
+        byte[][] encoded = new byte[parts.length][];
+        int length = 1;
+        for (int part = 0; part < parts.length; part++) {
+            encoded[part] = utf8(parts[part]);
+            length += Short.BYTES + encoded[part].length;
+        }
+        if (length > PageTree.MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Config key too long");
+        }
+        ByteBuffer key = ByteBuffer.allocate(length).put(type);
+        for (byte[] part : encoded) {
+            key.putShort((short) part.length).put(part);
+        }
+        return key.array();
+    }
+
+    /**
+     * @param text a text
+     * @return the text as UTF-8
+     */
+    private static byte @NotNull [] utf8(@NotNull String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
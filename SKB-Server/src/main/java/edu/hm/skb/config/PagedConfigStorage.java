@@ -0,0 +1,313 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores the config data in a B+-tree of pages (see {@link PageTree} and {@link PageFile}) that
+ * is read on demand, so that the config data doesn't have to fit into memory.
+ * <p/>
+ * A commit appends the changed nodes of the tree before the new snapshot is published. A sync
+ * appends a trailer page pointing to the root of the last written tree and forces the file to
+ * disk, several commits are synced together. On load the file is opened at its last intact
+ * trailer, commits that were written but never synced are dropped.
+ * <p/>
+ * Changed nodes are appended instead of overwritten, so the file grows with every commit.
+ * Compaction copies the current tree densely into a new file and replaces the old file with it.
+ * Changes made during the compaction are applied to the copy at the end.
+ */
+/* default */ final class PagedConfigStorage implements ConfigStorage {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(PagedConfigStorage.class);
+    /**
+     * Bytes of decoded nodes to keep in memory
+     */
+    private static final long CACHE_SIZE = 64L * 1024 * 1024;
+    /**
+     * Minimum amount of appended bytes before a compaction is done
+     */
+    private static final long MIN_COMPACTION_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The mapper to encode the records
+     */
+    @NotNull
+    private final ObjectMapper mapper;
+    /**
+     * The tree file
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * Lock for appending pages
+     */
+    @NotNull
+    private final Object writeLock = new Object();
+    /**
+     * Lock for syncing the file to disk
+     */
+    @NotNull
+    private final Object syncLock = new Object();
+    /**
+     * Sequence number of the last written commit
+     */
+    @NotNull
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * Sequence number of the last commit that is known to be on disk
+     */
+    @NotNull
+    private final AtomicLong synced = new AtomicLong();
+    /**
+     * Size of the file after the last compaction
+     */
+    @NotNull
+    private final AtomicLong compactedSize = new AtomicLong();
+    /**
+     * The current file, guarded by the write and sync lock
+     */
+    private PageFile file;
+    /**
+     * The file replaced by the last compaction, kept open for readers of older snapshots until
+     * the next compaction
+     */
+    private PageFile replaced;
+    /**
+     * The last written snapshot, guarded by the write lock
+     */
+    private PagedConfigSnapshot last;
+    /**
+     * Changes written while a compaction runs, empty otherwise, guarded by the write lock
+     */
+    @NotNull
+    private final List<ConfigMutation> pending = new ArrayList<>();
+    /**
+     * True while a compaction records the written changes, guarded by the write lock
+     */
+    private boolean compacting;
+
+    /**
+     * @param mapper the mapper to encode the records
+     * @param path   the tree file
+     */
+    /* default */ PagedConfigStorage (@NotNull ObjectMapper mapper, @NotNull Path path) {
+        this.mapper = mapper;
+        this.path = path;
+    }
+
+    /**
+     * @param snapshot a snapshot handed out by this storage
+     * @return the snapshot as paged snapshot
+     */
+    @NotNull
+    private static PagedConfigSnapshot paged(@NotNull ConfigSnapshot snapshot) {
+        if (snapshot instanceof PagedConfigSnapshot paged) {
+            return paged;
+        }
+        throw new IllegalArgumentException("Snapshot wasn't created by the paged config storage");
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Writes a new tree file containing the entries of the store
+     */
+    @Override
+    public void create(@NotNull ConfigStore store) throws IOException {
+        Path tmpPath = Path.of(path + ".tmp");
+        ConfigSnapshot snapshot = store.snapshot();
+        try (PageFile out = PageFile.create(tmpPath, CACHE_SIZE)) {
+            PageTree.Builder builder = new PageTree.Builder(out);
+            for (Map.Entry<byte[], byte[]> entry : PagedConfigSnapshot.entries(mapper, snapshot
+                    .toMutations())) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+            PageTree tree = builder.build();
+            out.force();
+            out.writeTrailer(tree.rootOffset(), snapshot.getExternalBlockCount());
+            out.force();
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        ConfigJournal.syncFolder(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Opens the tree file at its last intact trailer, only the root is read
+     */
+    @Override
+    @NotNull
+    public ConfigStore load() throws IOException {
+        if (!exists()) {
+            create(new ConfigStore(MemoryConfigSnapshot.EMPTY));
+        }
+        file = PageFile.open(path, CACHE_SIZE);
+        last = new PagedConfigSnapshot(mapper, PageTree.open(file, file.root()), file.count());
+        compactedSize.set(file.end());
+        return new ConfigStore(last);
+    }
+
+    /**
+     * Appends the nodes of the working snapshot that aren't written yet
+     */
+    @Override
+    public long write(@NotNull ConfigSnapshot working, @NotNull List<ConfigMutation> mutations)
+            throws IOException {
+        PagedConfigSnapshot snapshot = paged(working);
+        synchronized (writeLock) {
+            if (snapshot.tree().pages() != file) {
+                throw new IllegalStateException("Snapshot doesn't belong to the current file");
+            }
+            snapshot.tree().flush();
+            last = snapshot;
+            if (compacting) {
+                pending.addAll(mutations);
+            }
+            return written.incrementAndGet();
+        }
+    }
+
+    /**
+     * Appends a trailer for the last written snapshot and forces the file to disk
+     */
+    @Override
+    public void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced.get() >= sequence) {
+                return;
+            }
+            long target;
+            synchronized (writeLock) {
+                target = written.get();
+                file.writeTrailer(last.tree().rootOffset(), last.getExternalBlockCount());
+            }
+            file.force();
+            synced.set(target);
+        }
+    }
+
+    @Override
+    public boolean needsCompaction() {
+        synchronized (writeLock) {
+            long size = compactedSize.get();
+            return file.end() - size > Math.max(size, MIN_COMPACTION_BYTES);
+        }
+    }
+
+    /**
+     * Copies the current tree to a new file, applies the changes made in the meantime and
+     * replaces the tree file with it
+     */
+    @Override
+    @SuppressWarnings("PMD.CloseResource")
+    public void compact(@NotNull ConfigStore store, @NotNull Object commitLock)
+            throws IOException {
+        PagedConfigSnapshot snapshot;
+        synchronized (commitLock) {
+            snapshot = paged(store.snapshot());
+            synchronized (writeLock) {
+                compacting = true;
+            }
+        }
+        Path tmpPath = Path.of(path + ".compact");
+        PageFile out = PageFile.create(tmpPath, CACHE_SIZE);
+        try {
+            PageTree.Builder builder = new PageTree.Builder(out);
+            snapshot.tree().copyTo(builder);
+            PageTree copy = builder.build();
+            out.force();
+            synchronized (commitLock) {
+                synchronized (syncLock) {
+                    synchronized (writeLock) {
+                        PagedConfigSnapshot compacted = new PagedConfigSnapshot(mapper, copy,
+                                snapshot.getExternalBlockCount()).apply(pending, previous -> {
+                                });
+                        compacted.tree().flush();
+                        out.force();
+                        out.writeTrailer(compacted.tree().rootOffset(), compacted
+                                .getExternalBlockCount());
+                        out.force();
+                        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                        ConfigJournal.syncFolder(path.toAbsolutePath().getParent());
+                        swapFile(out);
+                        last = compacted;
+                        synced.set(written.get());
+                        compactedSize.set(out.end());
+                        stopRecording();
+                        store.publish(compacted);
+                    }
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            synchronized (writeLock) {
+                stopRecording();
+            }
+            out.close();
+            Files.deleteIfExists(tmpPath);
+            throw e;
+        }
+        LOG.infof("Compacted %s to %d bytes", path, compactedSize.get());
+    }
+
+    /**
+     * Stops recording the written changes for a compaction, the write lock must be held
+     */
+    private void stopRecording() {
+        compacting = false;
+        pending.clear();
+    }
+
+    /**
+     * Replaces the file after a compaction and closes the file replaced by the compaction before,
+     * the sync and write lock must be held
+     *
+     * @param replacement the compacted file
+     */
+    @SuppressWarnings("PMD.CloseResource")
+    private void swapFile(@NotNull PageFile replacement) {
+        PageFile outdated = replaced;
+        replaced = file;
+        file = replacement;
+        if (outdated != null) {
+            try {
+                outdated.close();
+            } catch (IOException e) {
+                LOG.warn("Couldn't close replaced config tree file", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (writeLock) {
+                if (synced.get() < written.get()) {
+                    file.writeTrailer(last.tree().rootOffset(), last.getExternalBlockCount());
+                    file.force();
+                }
+                file.close();
+                if (replaced != null) {
+                    replaced.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package edu.hm.skb.config;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map sharing its structure with the map it was derived from (a hash array mapped
+ * trie). Changing a map returns a new map and only copies the path to the changed entry, so that
+ * old versions stay valid and can be read without locks.
+ * <p/>
+ * Many changes can be made at once with an {@link Editor}, which changes the nodes it created in
+ * place instead of copying them again.
+ *
+ * @param <K> the key type
+ * @param <V> the value type, null values are not allowed
+ */
+/* default */ final class PersistentMap<K, V> {
+
+    /**
+     * Bits of the hash used per level of the trie
+     */
+    private static final int BITS = 5;
+    /**
+     * Mask for the bits of one level
+     */
+    private static final int MASK = (1 << BITS) - 1;
+    /**
+     * The empty map
+     */
+    @NotNull
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    /**
+     * The root node, null if the map is empty
+     */
+    @Nullable
+    private final Node root;
+    /**
+     * The amount of entries
+     */
+    private final int size;
+
+    /**
+     * @param root the root node
+     * @param size the amount of entries
+     */
+    private PersistentMap (@Nullable Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param <K> the key type
+     * @param <V> the value type
+     * @return the empty map
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    /* default */ static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @param key the key
+     * @return the value of the key, null if there is none
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    /* default */ V get(@NotNull Object key) {
+        return root == null ? null : (V) root.get(0, key.hashCode(), key);
+    }
+
+    /**
+     * @param key the key
+     * @return true if the map contains the key
+     */
+    /* default */ boolean containsKey(@NotNull Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the amount of entries
+     */
+    /* default */ int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the map has no entries
+     */
+    /* default */ boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param key   the key
+     * @param value the value
+     * @return a map with the key set to the value
+     */
+    @NotNull
+    /* default */ PersistentMap<K, V> put(@NotNull K key, @NotNull V value) {
+        Editor<K, V> editor = new Editor<>(this, null);
+        editor.put(key, value);
+        return editor.root == root ? this : new PersistentMap<>(editor.root, editor.size);
+    }
+
+    /**
+     * @param key the key
+     * @return a map without the key
+     */
+    @NotNull
+    /* default */ PersistentMap<K, V> remove(@NotNull Object key) {
+        Editor<K, V> editor = new Editor<>(this, null);
+        editor.remove(key);
+        return editor.root == root ? this : new PersistentMap<>(editor.root, editor.size);
+    }
+
+    /**
+     * @return an editor starting with the entries of this map
+     */
+    @NotNull
+    /* default */ Editor<K, V> edit() {
+        return new Editor<>(this, new Object());
+    }
+
+    /**
+     * Calls the action for every entry, in no particular order
+     *
+     * @param action the action
+     */
+    @SuppressWarnings("unchecked")
+    /* default */ void forEach(@NotNull BiConsumer<? super K, ? super V> action) {
+        if (root != null) {
+            root.forEach((BiConsumer<Object, Object>) action);
+        }
+    }
+
+    /**
+     * @return all values, in no particular order
+     */
+    @NotNull
+    /* default */ List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach((key, value) -> values.add(value));
+        return values;
+    }
+
+    /**
+     * @return all keys, in no particular order
+     */
+    @NotNull
+    /* default */ List<K> keys() {
+        List<K> keys = new ArrayList<>(size);
+        forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    /**
+     * Makes many changes to a map. The nodes created by the editor are changed in place, nodes of
+     * the original map are copied before they are changed, so the original map stays unchanged.
+     * <p/>
+     * An editor must only be used by one thread and not anymore after {@link #build()}.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    /* default */ static final class Editor<K, V> {
+
+        /**
+         * Marks the nodes owned by this editor, null if no node may be changed in place
+         */
+        @Nullable
+        private final Object owner;
+        /**
+         * If the changes were finished, the owned nodes then belong to the built map
+         */
+        private boolean built;
+        /**
+         * The current root node
+         */
+        @Nullable
+        private Node root;
+        /**
+         * The current amount of entries
+         */
+        private int size;
+
+        /**
+         * @param map   the map to start with
+         * @param owner marks the nodes owned by this editor
+         */
+        private Editor (@NotNull PersistentMap<K, V> map, @Nullable Object owner) {
+            this.root = map.root;
+            this.size = map.size;
+            this.owner = owner;
+        }
+
+        /**
+         * @param key the key
+         * @return the current value of the key, null if there is none
+         */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        /* default */ V get(@NotNull Object key) {
+            return root == null ? null : (V) root.get(0, key.hashCode(), key);
+        }
+
+        /**
+         * @param key   the key
+         * @param value the value
+         */
+        /* default */ void put(@NotNull K key, @NotNull V value) {
+            Objects.requireNonNull(value);
+            checkNotBuilt();
+            boolean[] added = new boolean[1];
+            Node start = root == null ? new BitmapNode(owner, 0, new Object[0]) : root;
+            root = start.put(owner, 0, key.hashCode(), key, value, added);
+            if (added[0]) {
+                size++;
+            }
+        }
+
+        /**
+         * @param key the key
+         */
+        /* default */ void remove(@NotNull Object key) {
+            checkNotBuilt();
+            if (root == null) {
+                return;
+            }
+            boolean[] removed = new boolean[1];
+            root = root.remove(owner, 0, key.hashCode(), key, removed);
+            if (removed[0]) {
+                size--;
+            }
+        }
+
+        /**
+         * Finishes the changes, the editor can't be used anymore afterwards
+         *
+         * @return the map with all changes
+         */
+        @NotNull
+        /* default */ PersistentMap<K, V> build() {
+            checkNotBuilt();
+            built = true;
+            return size == 0 ? empty() : new PersistentMap<>(root, size);
+        }
+
+        /**
+         * @throws IllegalStateException if the changes were already finished
+         */
+        private void checkNotBuilt() {
+            if (built) {
+                throw new IllegalStateException("Editor was already used");
+            }
+        }
+    }
+
+    /**
+     * A node of the trie
+     */
+    private abstract static class Node {
+
+        /**
+         * @param shift the bits of the hash used by the parent nodes
+         * @param hash  the hash of the key
+         * @param key   the key
+         * @return the value of the key, null if there is none
+         */
+        @Nullable
+        /* default */ abstract Object get(int shift, int hash, @NotNull Object key);
+
+        /**
+         * @param owner the editor allowed to change nodes in place
+         * @param shift the bits of the hash used by the parent nodes
+         * @param hash  the hash of the key
+         * @param key   the key
+         * @param value the value
+         * @param added set to true if the key wasn't in the map before
+         * @return the changed node, this node if nothing changed
+         */
+        @NotNull
+        @SuppressWarnings("PMD.UseVarargs")
+        /* default */ abstract Node put(@Nullable Object owner, int shift, int hash,
+                @NotNull Object key, @NotNull Object value, boolean @NotNull [] added);
+
+        /**
+         * @param owner   the editor allowed to change nodes in place
+         * @param shift   the bits of the hash used by the parent nodes
+         * @param hash    the hash of the key
+         * @param key     the key
+         * @param removed set to true if the key was in the map
+         * @return the changed node, null if it is empty afterwards, this node if nothing changed
+         */
+        @Nullable
+        @SuppressWarnings("PMD.UseVarargs")
+        /* default */ abstract Node remove(@Nullable Object owner, int shift, int hash,
+                @NotNull Object key, boolean @NotNull [] removed);
+
+        /**
+         * @param action called for every entry below this node
+         */
+        /* default */ abstract void forEach(@NotNull BiConsumer<Object, Object> action);
+    }
+
+    /**
+     * Node with up to 32 slots selected by 5 bits of the hash. A slot either holds a key and its
+     * value or a child node for all keys with these bits.
+     */
+    private static final class BitmapNode extends Node {
+
+        /**
+         * The editor owning this node, null if the node must not be changed in place
+         */
+        @Nullable
+        private final Object owner;
+        /**
+         * The used slots
+         */
+        private int bitmap;
+        /**
+         * Key and value (or null and child node) of every used slot, followed by spare room
+         */
+        @NotNull
+        private Object[] array;
+
+        /**
+         * @param owner  the editor owning this node
+         * @param bitmap the used slots
+         * @param array  key and value of every used slot
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private BitmapNode (@Nullable Object owner, int bitmap, @NotNull Object[] array) {
+            super();
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        /**
+         * @param hash  the hash of the key
+         * @param shift the bits of the hash used by the parent nodes
+         * @return the bit of the slot
+         */
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        /**
+         * @param bit the bit of the slot
+         * @return the position of the slot in the array
+         */
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        /**
+         * @return the used part of the array, the rest is spare room for nodes owned by an editor
+         */
+        private int length() {
+            return 2 * Integer.bitCount(bitmap);
+        }
+
+        /**
+         * @param editor the editor making the change
+         * @return this node if the editor owns it, a copy owned by the editor otherwise
+         */
+        @NotNull
+        private BitmapNode editable(@Nullable Object editor) {
+            if (editor != null && editor == owner) {
+                return this;
+            }
+            return new BitmapNode(editor, bitmap, Arrays.copyOf(array, length()));
+        }
+
+        @Override
+        @Nullable
+        /* default */ Object get(int shift, int hash, @NotNull Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object slotKey = array[index];
+            if (slotKey == null) {
+                return ((Node) array[index + 1]).get(shift + BITS, hash, key);
+            }
+            return key.equals(slotKey) ? array[index + 1] : null;
+        }
+
+        @Override
+        @NotNull
+        @SuppressWarnings("PMD.NullAssignment") // a slot without key holds a child node
+        /* default */ Node put(@Nullable Object owner, int shift, int hash, @NotNull Object key,
+                @NotNull Object value, boolean @NotNull [] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                BitmapNode node = editable(owner);
+                int length = node.length();
+                if (owner != null && length < node.array.length) {
+                    System.arraycopy(node.array, index, node.array, index + 2, length - index);
+                } else {
+                    // nodes owned by an editor get spare room as more entries will likely follow
+                    Object[] grown = new Object[owner == null ?
+                            length + 2 :
+                            Math.min(length * 2 + 2, 2 << BITS)];
+                    System.arraycopy(node.array, 0, grown, 0, index);
+                    System.arraycopy(node.array, index, grown, index + 2, length - index);
+                    node.array = grown;
+                }
+                node.array[index] = key;
+                node.array[index + 1] = value;
+                node.bitmap |= bit;
+                return node;
+            }
+            Object slotKey = array[index];
+            Object slotValue = array[index + 1];
+            // another key in the slot is moved into a new child node together with the key
+            boolean split = slotKey != null && !key.equals(slotKey);
+            Object newValue;
+            if (slotKey == null) {
+                newValue = ((Node) slotValue).put(owner, shift + BITS, hash, key, value, added);
+            } else if (split) {
+                added[0] = true;
+                newValue = createNode(owner, shift + BITS, slotKey, slotValue, hash, key, value);
+            } else {
+                newValue = value;
+            }
+            if (newValue == slotValue) {
+                return this;
+            }
+            BitmapNode node = editable(owner);
+            node.array[index] = split ? null : slotKey;
+            node.array[index + 1] = newValue;
+            return node;
+        }
+
+        @Override
+        @Nullable
+        /* default */ Node remove(@Nullable Object owner, int shift, int hash,
+                @NotNull Object key, boolean @NotNull [] removed) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object slotKey = array[index];
+            if (slotKey == null) {
+                Node child = (Node) array[index + 1];
+                Node newChild = child.remove(owner, shift + BITS, hash, key, removed);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    BitmapNode node = editable(owner);
+                    node.array[index + 1] = newChild;
+                    return node;
+                }
+            } else if (key.equals(slotKey)) {
+                removed[0] = true;
+            } else {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            BitmapNode node = editable(owner);
+            Object[] shrunk = new Object[node.length() - 2];
+            System.arraycopy(node.array, 0, shrunk, 0, index);
+            System.arraycopy(node.array, index + 2, shrunk, index, shrunk.length - index);
+            node.array = shrunk;
+            node.bitmap &= ~bit;
+            return node;
+        }
+
+        @Override
+        /* default */ void forEach(@NotNull BiConsumer<Object, Object> action) {
+            int length = length();
+            for (int i = 0; i < length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+
+        /**
+         * Creates a node holding two entries that share the same slot in the parent node
+         *
+         * @param owner  the editor owning the new nodes
+         * @param shift  the bits of the hash used by the parent nodes
+         * @param key1   the first key
+         * @param value1 the first value
+         * @param hash2  the hash of the second key
+         * @param key2   the second key
+         * @param value2 the second value
+         * @return the new node
+         */
+        @NotNull
+        private static Node createNode(@Nullable Object owner, int shift, @NotNull Object key1,
+                @NotNull Object value1, int hash2, @NotNull Object key2,
+                @NotNull Object value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+            }
+            boolean[] added = new boolean[1];
+            return new BitmapNode(owner, 0, new Object[0]).put(owner, shift, hash1, key1, value1,
+                    added).put(owner, shift, hash2, key2, value2, added);
+        }
+    }
+
+    /**
+     * Node for keys with the same hash, the entries are searched linearly. Never changed in place
+     * as it is rarely needed.
+     */
+    private static final class CollisionNode extends Node {
+
+        /**
+         * The hash of all keys
+         */
+        private final int hash;
+        /**
+         * Key and value of every entry
+         */
+        @NotNull
+        private final Object[] array;
+
+        /**
+         * @param hash  the hash of all keys
+         * @param array key and value of every entry
+         */
+        @SuppressWarnings("PMD.UseVarargs")
+        private CollisionNode (int hash, @NotNull Object[] array) {
+            super();
+            this.hash = hash;
+            this.array = array;
+        }
+
+        /**
+         * @param key the key
+         * @return the position of the key in the array, -1 if it isn't there
+         */
+        private int find(@NotNull Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        @Nullable
+        /* default */ Object get(int shift, int hash, @NotNull Object key) {
+            int index = find(key);
+            return index < 0 ? null : array[index + 1];
+        }
+
+        @Override
+        @NotNull
+        /* default */ Node put(@Nullable Object owner, int shift, int hash, @NotNull Object key,
+                @NotNull Object value, boolean @NotNull [] added) {
+            if (hash != this.hash) {
+                return new BitmapNode(owner, BitmapNode.bit(this.hash, shift), new Object[] {null,
+                        this}).put(owner, shift, hash, key, value, added);
+            }
+            int index = find(key);
+            Object[] changed;
+            if (index < 0) {
+                added[0] = true;
+                changed = new Object[array.length + 2];
+                System.arraycopy(array, 0, changed, 0, array.length);
+                changed[array.length] = key;
+                changed[array.length + 1] = value;
+            } else {
+                if (array[index + 1] == value) {
+                    return this;
+                }
+                changed = array.clone();
+                changed[index + 1] = value;
+            }
+            return new CollisionNode(hash, changed);
+        }
+
+        @Override
+        @Nullable
+        /* default */ Node remove(@Nullable Object owner, int shift, int hash,
+                @NotNull Object key, boolean @NotNull [] removed) {
+            int index = find(key);
+            if (index < 0) {
+                return this;
+            }
+            removed[0] = true;
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] shrunk = new Object[array.length - 2];
+            System.arraycopy(array, 0, shrunk, 0, index);
+            System.arraycopy(array, index + 2, shrunk, index, shrunk.length - index);
+            return new CollisionNode(hash, shrunk);
+        }
+
+        @Override
+        /* default */ void forEach(@NotNull BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+    }
+}
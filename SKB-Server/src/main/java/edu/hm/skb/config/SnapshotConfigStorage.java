@@ -0,0 +1,315 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stores the config data as one snapshot file, with a journal of the changes made since the
+ * snapshot was written.
+ * <p/>
+ * The snapshot is either the JSON config file or its binary encoding (see
+ * {@link BinaryConfigFormat}). It is only rewritten on compaction, every change is appended to
+ * the journal.
+ */
+/* default */ final class SnapshotConfigStorage implements ConfigStorage {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(SnapshotConfigStorage.class);
+    /**
+     * Amount of journal records after which a new snapshot is written
+     */
+    private static final long SNAPSHOT_RECORDS = 10_000;
+    /**
+     * Maximum time between two snapshots as long as the journal isn't empty
+     */
+    private static final long SNAPSHOT_INTERVAL_MILLIS = Duration.ofMinutes(10).toMillis();
+
+    /**
+     * The mapper used to read and write the config file
+     */
+    @NotNull
+    private final ObjectMapper mapper;
+    /**
+     * The snapshot file
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * The format of the snapshot file
+     */
+    @NotNull
+    private final Format format;
+    /**
+     * The journal file next to the config file
+     */
+    @NotNull
+    private final Path journalPath;
+    /**
+     * The journal file that is currently compacted into a new config file
+     */
+    @NotNull
+    private final Path oldJournalPath;
+    /**
+     * The journal new changes are appended to
+     */
+    @NotNull
+    private final AtomicReference<ConfigJournal> journal = new AtomicReference<>();
+    /**
+     * Time of the last snapshot
+     */
+    @NotNull
+    private final AtomicLong lastSnapshot = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param mapper the mapper used to read and write the config file
+     * @param path   the snapshot file
+     * @param format the format of the snapshot file
+     */
+    /* default */ SnapshotConfigStorage (@NotNull ObjectMapper mapper, @NotNull Path path,
+            @NotNull Format format) {
+        this.mapper = mapper;
+        this.path = path;
+        this.format = format;
+        this.journalPath = Path.of(path + ".journal");
+        this.oldJournalPath = Path.of(path + ".journal.old");
+    }
+
+    /**
+     * Reads the snapshot file
+     *
+     * @return the content of the file
+     * @throws IOException if the file couldn't be read
+     */
+    @NotNull
+    private MemoryConfigSnapshot read() throws IOException {
+        JsonSchema schema = format == Format.BINARY ?
+                BinaryConfigFormat.decode(ByteBuffer.wrap(Files.readAllBytes(path))) :
+                mapper.readValue(path.toFile(), JsonSchema.class);
+        return MemoryConfigSnapshot.from(schema.files(), schema.blocks(), schema.externalBlocks(),
+                schema.servers());
+    }
+
+    /**
+     * Writes the snapshot file. The content is written to a temporary file first which then
+     * replaces the snapshot file, so that a crash never leaves a partially written snapshot. The
+     * replacement is durable when this returns, so the journals contained in it can be dropped.
+     *
+     * @param schema the content of the snapshot file
+     * @throws IOException if the snapshot file couldn't be written
+     */
+    private void write(@NotNull JsonSchema schema) throws IOException {
+        Path tmpPath = Path.of(path + ".tmp");
+        if (format == Format.JSON) {
+            mapper.writeValue(tmpPath.toFile(), schema);
+        }
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            if (format == Format.BINARY) {
+                channel.truncate(0);
+                ByteBuffer data = BinaryConfigFormat.encode(schema);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        ConfigJournal.syncFolder(getFolder());
+    }
+
+    /**
+     * @return the folder of the snapshot file and the journals
+     */
+    @NotNull
+    private Path getFolder() {
+        return path.toAbsolutePath().getParent();
+    }
+
+    /**
+     * Drops the journals, their changes must be contained in the snapshot file
+     *
+     * @throws IOException if the journals couldn't be deleted
+     */
+    private void dropJournals() throws IOException {
+        Files.deleteIfExists(oldJournalPath);
+        Files.deleteIfExists(journalPath);
+        ConfigJournal.syncFolder(getFolder());
+    }
+
+    @Override
+    public boolean exists() {
+        return Files.exists(path);
+    }
+
+    /**
+     * Writes the store as snapshot file, an existing journal is dropped
+     */
+    @Override
+    public void create(@NotNull ConfigStore store) throws IOException {
+        write(JsonSchema.from(store.snapshot()));
+        dropJournals();
+    }
+
+    /**
+     * Reads the snapshot file once and replays the journal on top of it. If the journal contained
+     * changes, they are directly compacted into a new snapshot file.
+     */
+    @Override
+    @NotNull
+    public ConfigStore load() throws IOException {
+        if (!exists()) {
+            create(new ConfigStore(MemoryConfigSnapshot.EMPTY));
+        }
+        MemoryConfigSnapshot.Editor editor = read().edit();
+        long replayed = ConfigJournal.replay(mapper, oldJournalPath, editor::apply) + ConfigJournal
+                .replay(mapper, journalPath, editor::apply);
+        ConfigStore store = new ConfigStore(editor.build());
+        if (replayed > 0) {
+            LOG.infof("Replayed %d config changes from the journal", replayed);
+            write(JsonSchema.from(store.snapshot()));
+            dropJournals();
+        }
+        journal.set(new ConfigJournal(mapper, journalPath));
+        return store;
+    }
+
+    @Override
+    public long write(@NotNull ConfigSnapshot working, @NotNull List<ConfigMutation> mutations)
+            throws IOException {
+        return journal.get().write(mutations);
+    }
+
+    @Override
+    public void sync(long sequence) throws IOException {
+        journal.get().sync(sequence);
+    }
+
+    @Override
+    public boolean needsCompaction() {
+        long records = journal.get().getRecords();
+        return records >= SNAPSHOT_RECORDS || records > 0 && System
+                .currentTimeMillis() - lastSnapshot.get() >= SNAPSHOT_INTERVAL_MILLIS || Files
+                        .exists(oldJournalPath);
+    }
+
+    /**
+     * Writes the current state as new snapshot file and drops the journal records contained in it.
+     * <p/>
+     * Only capturing the state and rotating the journal blocks changes, the config file itself is
+     * written while new changes go to the new journal. Until the snapshot is replaced, the
+     * rotated journal is kept so that a crash in between loses nothing.
+     * <p/>
+     * The rotated journal is synced before the new one takes over. A commit that wrote to the
+     * rotated journal and syncs afterward only reaches the new journal, its sequence number has
+     * no meaning there.
+     */
+    @Override
+    @SuppressWarnings("PMD.CloseResource")
+    public void compact(@NotNull ConfigStore store, @NotNull Object commitLock)
+            throws IOException {
+        ConfigSnapshot snapshot;
+        ConfigJournal rotated = null;
+        synchronized (commitLock) {
+            snapshot = store.snapshot();
+            if (!Files.exists(oldJournalPath)) {
+                rotated = rotateJournal();
+            }
+        }
+        if (rotated != null) {
+            rotated.close();
+        }
+        write(JsonSchema.from(snapshot));
+        Files.deleteIfExists(oldJournalPath);
+        ConfigJournal.syncFolder(getFolder());
+        lastSnapshot.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Syncs the current journal, moves it out of the way and starts a new one, the commit lock
+     * must be held
+     *
+     * @return the previous journal
+     * @throws IOException if the journal couldn't be rotated
+     */
+    @NotNull
+    @SuppressWarnings("PMD.CloseResource")
+    private ConfigJournal rotateJournal() throws IOException {
+        ConfigJournal current = journal.get();
+        current.syncAll();
+        Files.move(journalPath, oldJournalPath, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            journal.set(new ConfigJournal(mapper, journalPath));
+            ConfigJournal.syncFolder(getFolder());
+        } catch (IOException e) {
+            ConfigJournal created = journal.getAndSet(current);
+            Files.move(oldJournalPath, journalPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            if (created != current) {
+                created.close();
+            }
+            throw e;
+        }
+        return current;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.get().close();
+    }
+
+    /**
+     * Format of the snapshot file
+     */
+    /* default */ enum Format {
+        /**
+         * The JSON config file
+         */
+        JSON,
+        /**
+         * The binary encoding of the config file
+         */
+        BINARY
+    }
+
+    /**
+     * Internal Class for the JSON Schema
+     *
+     * @param externalBlocks List containing the external Blocks
+     * @param servers        List containing the servers
+     * @param files          List containing the files
+     * @param blocks         List containing the blocks
+     */
+    /* default */ @RegisterForReflection
+    record JsonSchema(@NotNull List<Config.ExternalBlock> externalBlocks,
+                      @NotNull List<Config.Server> servers, @NotNull List<Config.File> files,
+                      @NotNull List<Config.Block> blocks) {
+
+        /**
+         * @param snapshot the state of the store
+         * @return the state in the format of the config file
+         */
+        @NotNull
+        /* default */ static JsonSchema from(@NotNull ConfigSnapshot snapshot) {
+            return new JsonSchema(snapshot.getExternalBlocks(), snapshot.getServers(), snapshot
+                    .getFiles(), snapshot.getBlocks());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package edu.hm.skb.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import edu.hm.skb.config.Config;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the content of recently assembled blocks, so that uploading a block and verifying its
+ * hash right after only reads the files once.
+ * <p/>
+ * The cache is bounded by the size of the contents and drops the least recently used ones. An
+ * entry is only used while the block still has the same ranges, entries of a file whose content
+ * changed are dropped with {@link #invalidate(String)}.
+ */
+/* default */ final class BlockCache {
+
+    /**
+     * The contents by block id, weighted by their size
+     */
+    @Nullable
+    private final Cache<String, Entry> entries;
+    /**
+     * If the contents are kept in direct buffers outside the heap
+     */
+    private final boolean offHeap;
+    /**
+     * Counts the invalidations, a content assembled while the count changed might be outdated
+     */
+    @NotNull
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param size    the amount of bytes the contents may take, 0 to disable the cache
+     * @param offHeap if the contents are kept in direct buffers outside the heap
+     */
+    /* default */ BlockCache (long size, boolean offHeap) {
+        this.offHeap = offHeap;
+        if (size == 0) {
+            entries = null;
+        } else {
+            entries = CacheBuilder.newBuilder()
+                    .maximumWeight(size)
+                    .weigher((String id, Entry entry) -> entry.content().capacity())
+                    .build();
+        }
+    }
+
+    /**
+     * @param block the block with its current ranges
+     * @return the cached content of the block, null if it isn't cached or the ranges changed
+     */
+    @Nullable
+    /* default */ InputStream get(@NotNull Config.Block block) {
+        if (entries == null) {
+            return null;
+        }
+        Entry entry = entries.getIfPresent(block.id());
+        if (entry == null || !entry.ranges().equals(block.fileToByteRange())) {
+            return null;
+        }
+        ByteBuffer content = entry.content().duplicate();
+        if (content.hasArray()) {
+            return new ByteArrayInputStream(content.array());
+        }
+        byte[] copy = new byte[content.remaining()];
+        content.get(copy);
+        return new ByteArrayInputStream(copy);
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put(Config.Block, byte[], long)}
+     */
+    /* default */ long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the content of a block, it isn't kept if a file changed while it was assembled
+     *
+     * @param block      the block the content was assembled for
+     * @param content    the content, not changed afterward
+     * @param generation the generation from before the content was assembled
+     */
+    /* default */ void put(@NotNull Config.Block block, @NotNull byte[] content,
+            long generation) {
+        if (entries == null) {
+            return;
+        }
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(content.length).put(content).flip();
+        } else {
+            buffer = ByteBuffer.wrap(content);
+        }
+        Entry entry = new Entry(block.fileToByteRange(), buffer);
+        entries.put(block.id(), entry);
+        // an invalidation running since the content was assembled might have missed the entry
+        if (this.generation.get() != generation) {
+            entries.asMap().remove(block.id(), entry);
+        }
+    }
+
+    /**
+     * Drops the contents of all blocks containing a file, to be called after its content changed
+     *
+     * @param fileId the id of the file
+     */
+    /* default */ void invalidate(@NotNull String fileId) {
+        if (entries == null) {
+            return;
+        }
+        generation.incrementAndGet();
+        entries.asMap()
+                .values()
+                .removeIf(entry -> entry.ranges()
+                        .stream()
+                        .anyMatch(range -> range.fileId().equals(fileId)));
+    }
+
+    /**
+     * The content of a block
+     *
+     * @param ranges  the ranges of the block the content was assembled for
+     * @param content the content
+     */
+    private record Entry(@NotNull List<Config.FileRange> ranges, @NotNull ByteBuffer content) {
+    }
+}
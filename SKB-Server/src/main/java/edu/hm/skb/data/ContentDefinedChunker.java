@@ -0,0 +1,110 @@
+package edu.hm.skb.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
+
+/**
+ * Splits a file into blocks at positions defined by its content instead of fixed offsets.
+ * <p/>
+ * A gear hash is rolled over the file and a block ends where the hash matches a mask (FastCDC).
+ * The hash only depends on the last 64 bytes, so after an inserted byte the blocks end at the
+ * same content again as soon as the first block end behind the change is found. The mask is
+ * stricter before the average block size and looser after it, so the blocks stay close to the
+ * average. A block without a matching position is cut where it is full.
+ */
+/* default */ final class ContentDefinedChunker {
+
+    /**
+     * Seed of the gear table, it must never change so that the same content gets the same blocks
+     */
+    private static final long GEAR_SEED = 0x534B_4244_4344_4331L;
+    /**
+     * Random value for every byte value
+     */
+    @NotNull
+    private static final long[] GEAR = new SplittableRandom(GEAR_SEED).longs(256).toArray();
+    /**
+     * Average size of the file data in a block, in percent of the space in the block
+     */
+    private static final int AVERAGE_PERCENT = 70;
+    /**
+     * The minimum size of the file data in a block is the space in the block divided by this
+     */
+    private static final int MIN_DIVISOR = 4;
+    /**
+     * Bits the mask is stricter before and looser after the average block size
+     */
+    private static final int NORMALIZATION_BITS = 1;
+    /**
+     * Size of the buffer the file is read with
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Only static methods
+     */
+    private ContentDefinedChunker () {
+    }
+
+    /**
+     * @param path          the file
+     * @param from          the position to start at, a block starts here
+     * @param size          the size of the file
+     * @param blockDataSize the amount of file bytes fitting into a block
+     * @return the end of every block, the last one is the size of the file
+     * @throws IOException if the file can't be read
+     */
+    @NotNull
+    /* default */ static long[] getBlockEnds(@NotNull Path path, long from, long size,
+            long blockDataSize) throws IOException {
+        long averageSize = Math.max(blockDataSize * AVERAGE_PERCENT / 100, 1);
+        long minSize = blockDataSize / MIN_DIVISOR;
+        int bits = 63 - Long.numberOfLeadingZeros(averageSize);
+        long strictMask = topBits(bits + NORMALIZATION_BITS);
+        long looseMask = topBits(Math.max(bits - NORMALIZATION_BITS, 0));
+
+        LongStream.Builder ends = LongStream.builder();
+        long blockStart = from;
+        long hash = 0;
+        long position = from;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            in.skipNBytes(from);
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+            while (read > 0) {
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    position++;
+                    long blockSize = position - blockStart;
+                    if (blockSize == blockDataSize || blockSize >= minSize && (hash & (blockSize
+                            < averageSize ? strictMask : looseMask)) == 0) {
+                        ends.add(position);
+                        blockStart = position;
+                    }
+                }
+                read = in.read(buffer, 0, (int) Math.min(buffer.length, size - position));
+            }
+        }
+        if (position != size) {
+            throw new IOException("File changed while it was split into blocks");
+        }
+        if (size > blockStart) {
+            ends.add(size);
+        }
+        return ends.build().toArray();
+    }
+
+    /**
+     * @param amount the amount of bits
+     * @return a mask of the given amount of the highest bits, these depend on the most bytes
+     */
+    private static long topBits(int amount) {
+        return amount <= 0 ? 0 : -1L << (Long.SIZE - Math.min(amount, Long.SIZE));
+    }
+}
@@ -33,16 +33,43 @@ public interface Data {
      */
     long getUsedSize();
 
+    /**
+     * @return The size of the files sharing the content of another file instead of saving it
+     * again
+     */
+    long getDeduplicatedSize();
+
+    /**
+     * Measures the storage usage by walking the saved files and replaces the tracked usage with
+     * it, correcting changes that were missed
+     */
+    void reconcileUsage();
+
+    /**
+     * Persists the tracked storage usage if it changed
+     */
+    void saveUsage();
+
+    /**
+     * Moves a part of the files and external blocks saved in the old flat layout into their sub
+     * folders, entries that are used are moved right away
+     *
+     * @return false once nothing is left to move
+     */
+    boolean migrateLayout();
+
     // ##### Files #####
 
     /**
      * Create a new file. The file will not be saved at the Path specified in
-     * {@link Config.File}{@code .path}.
+     * {@link Config.File}{@code .path}. If another file already has the same content, the content
+     * and blocks of that file are shared instead of saving them again.
      *
      * @param in           The Byte Stream of the file
      * @param file         The file Instance
      * @param lastModified The last modified date
-     * @return List of Blocks that were updated or created. Empty if the file couldn't be created
+     * @return List of Blocks that were updated or created. Empty if the file is empty or shares
+     * the content of another file
      * @throws FileAlreadyExistsException if the file already exists
      */
     @NotNull
@@ -50,12 +77,13 @@ public interface Data {
             @NotNull Instant lastModified) throws FileAlreadyExistsException;
 
     /**
-     * Update the data of a file.
+     * Update the data of a file. The blocks of the file are grown or cut to the new size.
      *
      * @param in           The Byte Stream of the file
      * @param file         The file Instance
      * @param lastModified The last modified date of the file
-     * @return List of Blocks that were updated or created. Empty if the file couldn't be updated
+     * @return List of Blocks that were updated, created or deleted, blocks whose part of the file
+     * didn't change are left out. Empty if the file couldn't be updated
      * @throws FileNotFoundException if the file doesn't exist on the local file system
      */
     @NotNull
@@ -94,6 +122,57 @@ public interface Data {
     @NotNull
     Instant getLastModified(@NotNull Config.File file) throws FileNotFoundException, IOException;
 
+    /**
+     * Creates a file without content in any block after the local data was lost, if it doesn't
+     * exist. These are empty files and the files sharing the content of another file.
+     *
+     * @param file The file Instance
+     * @throws IOException if the file couldn't be created
+     */
+    void restoreEmptyFile(@NotNull Config.File file) throws IOException;
+
+    /**
+     * Starts restoring a file whose local copy was lost. Until {@link #finishRestore(Config.File)}
+     * is called, its blocks are restored into a separate file, so that the incomplete content is
+     * never read as the file. The separate file is kept across restarts.
+     *
+     * @param file The file Instance
+     * @return false if the local copy exists, true if the file needs to be restored
+     * @throws IOException if the separate file couldn't be created
+     */
+    boolean startRestore(@NotNull Config.File file) throws IOException;
+
+    /**
+     * Checks if a restore of a file was started and not finished yet
+     *
+     * @param file The file Instance
+     * @return true if the content of the file is only partly restored
+     */
+    boolean isRestoreIncomplete(@NotNull Config.File file);
+
+    /**
+     * Returns the InputStream of the content restored so far of a file being restored, or of the
+     * local copy once the restore is finished. It is Important that this output stream is closed.
+     *
+     * @param file The file Instance
+     * @return The Input stream of the content. The stream must be closed in any case.
+     * @throws FileNotFoundException if neither the restore nor the local copy exist
+     * @throws IOException           if an I/O error occurs
+     */
+    @NotNull
+    InputStream getRestoringFile(@NotNull Config.File file) throws FileNotFoundException,
+            IOException;
+
+    /**
+     * Finishes the restore of a file once all of its blocks are restored: the content is checked
+     * against {@link Config.File#digest()}, if known, and replaces the missing local copy
+     *
+     * @param file The file Instance
+     * @throws IOException if the content doesn't match or couldn't be moved, the restore stays
+     *                     incomplete
+     */
+    void finishRestore(@NotNull Config.File file) throws IOException;
+
     // ##### Internal Blocks #####
 
     /**
@@ -117,6 +196,31 @@ public interface Data {
      */
     InputStream getBlock(@NotNull Config.Block block) throws FileNotFoundException, IOException;
 
+    /**
+     * Checks if the local files already contain the content of a block, by comparing its digest
+     * with {@link Config.Block#digest()}. For files being restored the content restored so far
+     * is checked.
+     *
+     * @param block The block Instance
+     * @return true if the content is there, false if it is missing, differs or has no digest
+     */
+    boolean isBlockRestored(@NotNull Config.Block block);
+
+    /**
+     * Writes the content of a block downloaded from a remote server back into the local files.
+     * The header is checked against the ranges of the block and every range is written at its
+     * position in the restore of its file, see {@link #startRestore(Config.File)}. Ranges of
+     * files whose local copy exists are skipped.
+     *
+     * @param block The block Instance
+     * @param in    The content of the block, as returned by {@link #getBlock(Config.Block)}
+     * @throws FileNotFoundException if the block doesn't exist
+     * @throws IOException           if the header doesn't match the block, the content is too
+     *                               short or the files couldn't be written
+     */
+    void restoreBlock(@NotNull Config.Block block, @NotNull InputStream in)
+            throws FileNotFoundException, IOException;
+
     /**
      * Calculate hash of a block with the given salt
      *
@@ -198,6 +302,19 @@ public interface Data {
     Instant getLastModified(@NotNull Config.ExternalBlock externalBlock)
             throws FileNotFoundException, IOException;
 
+    /**
+     * Saves the last modified date and size of the content of an external Block in the config.
+     * This is done when the content is written, this method is for blocks saved before. A block
+     * that was never written is saved as a block without content reserved now.
+     *
+     * @param externalBlock The external Block Instance
+     * @return The external Block with the recorded content
+     * @throws IOException if the attributes couldn't be read
+     */
+    @NotNull
+    Config.ExternalBlock recordContent(@NotNull Config.ExternalBlock externalBlock)
+            throws IOException;
+
     /**
      * Calculate hash of a block with the given salt
      *
@@ -2,23 +2,31 @@ package edu.hm.skb.data;
 
 import edu.hm.skb.config.Config;
 import edu.hm.skb.config.ConfigInjector;
+import edu.hm.skb.util.hash.HashMethod;
+import edu.hm.skb.util.hash.SHA256;
 import edu.hm.skb.util.model.Field;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.Hasher;
+import com.google.common.io.MoreFiles;
 import io.quarkus.arc.Arc;
-import org.apache.commons.io.input.BoundedInputStream;
-import org.apache.commons.io.input.NullInputStream;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.jboss.logging.Logger;
@@ -28,7 +36,7 @@ import org.apache.commons.lang3.ArrayUtils;
 /**
  * Implementation of the Data Instance
  */
-class DataInstance implements Data {
+final class DataInstance implements Data {
 
     /**
      * Config instance
@@ -44,6 +52,42 @@ class DataInstance implements Data {
      * Max retries in a try loop
      */
     private static final int MAX_RETRIES = 10;
+    /**
+     * Max threads hashing blocks at once, so that a large update doesn't take every core
+     */
+    private static final int DIGEST_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime()
+            .availableProcessors()));
+    /**
+     * Pool the block digests are computed in
+     */
+    @NotNull
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    private static final ForkJoinPool DIGEST_POOL = new ForkJoinPool(DIGEST_THREADS);
+    /**
+     * Ends a file range in the block header if another one follows
+     */
+    private static final int HEADER_SEPARATOR = 0x1E;
+    /**
+     * Ends the last file range in the block header
+     */
+    private static final int HEADER_END = 0x1D;
+    /**
+     * Maximum amount of entries of a folder moved into the sub folders at once
+     */
+    private static final int MIGRATION_BATCH = 10_000;
+    /**
+     * Size of the buffer a restored block is written with
+     */
+    private static final int RESTORE_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Size of the parts an uploaded file is saved and compared with its previous content in
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The hash method for the digests of the blocks
+     */
+    @NotNull
+    private static final HashMethod DIGEST = new SHA256();
     /**
      * The log instance
      */
@@ -54,27 +98,104 @@ class DataInstance implements Data {
      */
     @NotNull
     private static final String FILE_FOLDER = "Files";
+    /**
+     * Ending of the file the content of a lost file is restored into, until it is complete
+     */
+    @NotNull
+    private static final String RESTORE_SUFFIX = ".restore";
     /**
      * The Config instance
      */
     private final ConfigInjector config = Arc.container().select(ConfigInjector.class).get();
+    /**
+     * Memory mapped windows of the files, if enabled
+     */
+    @NotNull
+    private final MappedFileCache mappedFiles = new MappedFileCache(config.getConfig()
+            .getMappedReadBudget());
+    /**
+     * Recently assembled blocks
+     */
+    @NotNull
+    private final BlockCache blockCache = new BlockCache(config.getConfig().getBlockCacheSize(),
+            config.getConfig().isBlockCacheOffHeap());
+    /**
+     * The folder the files are saved in
+     */
+    @NotNull
+    private final ShardedFolder fileFolder = new ShardedFolder(Paths.get(config.getConfig()
+            .getMountPath(), FILE_FOLDER));
+    /**
+     * The folder the external blocks are saved in
+     */
+    @NotNull
+    private final ShardedFolder externalBlockFolder = new ShardedFolder(Paths.get(config
+            .getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER));
+    /**
+     * Files sharing the content of other files
+     */
+    @NotNull
+    private final SharedContent sharedContent = new SharedContent(SharedContent.Contents.from(config
+            .getConfig()), fileFolder, mappedFiles);
+    /**
+     * Id of the block the next file is added to, an empty string if a new block is started
+     */
+    @NotNull
+    private final AtomicReference<String> openBlock = new AtomicReference<>("");
+    /**
+     * Lock for adding files to and removing files from the blocks, so that the ranges of the open
+     * block don't change between reading and writing them
+     */
+    @NotNull
+    private final Object packingLock = new Object();
+    /**
+     * The tracked storage usage of the files
+     */
+    @NotNull
+    private final UsageLedger usage = new UsageLedger(config.getConfig().getUsagePath());
 
+    /**
+     * Loads the persisted storage usage, it is measured if none was persisted yet
+     */
+    /* default */ DataInstance () {
+        boolean loaded;
+        try {
+            loaded = usage.load();
+        } catch (IOException e) {
+            LOG.warn("failed to load the storage usage", e);
+            loaded = false;
+        }
+        if (!loaded) {
+            reconcileUsage();
+        }
+    }
 
     @Override
     public long getTotalSize() {
-        long totalSize = 0;
+        // convert size in bytes and take a third
+        return usage.getTotalSpace() / 3;
+    }
+
+    @Override
+    public long getUsedSize() {
+        return usage.getUsedSize();
+    }
+
+    @Override
+    public long getDeduplicatedSize() {
+        return usage.getDeduplicatedSize();
+    }
+
+    @Override
+    public void reconcileUsage() {
+        long totalSpace = 0;
         try {
             FileStore store = Files.getFileStore(Paths.get(config.getConfig().getMountPath()));
-            totalSize += store.getTotalSpace();
+            totalSpace = store.getTotalSpace();
         } catch (IOException e) {
             LOG.error("Can't get total size of ", e);
         }
-        // convert size in bytes and take a third
-        return totalSize / 3;
-    }
 
-    @Override
-    public long getUsedSize() {
         long usedSize = 0;
         try {
             Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER);
@@ -89,7 +210,101 @@ class DataInstance implements Data {
             LOG.error("failed to get usedSize", e);
         }
 
-        return usedSize;
+        long deduplicatedSize = config.getConfig()
+                .getFiles()
+                .stream()
+                .filter(file -> file.contentId() != null)
+                .mapToLong(file -> getSize(getContentPath(file)))
+                .sum();
+
+        usage.reset(usedSize, deduplicatedSize, totalSpace);
+        saveUsage();
+    }
+
+    @Override
+    public void saveUsage() {
+        try {
+            usage.save();
+        } catch (IOException e) {
+            LOG.warn("failed to save the storage usage", e);
+        }
+    }
+
+    @Override
+    public boolean migrateLayout() {
+        try {
+            int moved = fileFolder.migrate(MIGRATION_BATCH) + externalBlockFolder.migrate(
+                    MIGRATION_BATCH);
+            if (moved > 0) {
+                LOG.infof("Moved %d entries of the flat layout into the sub folders", moved);
+            }
+            return moved > 0;
+        } catch (IOException e) {
+            LOG.warn("failed to move the flat layout into the sub folders", e);
+            return true;
+        }
+    }
+
+    /**
+     * Measures the usage of the files an operation changes, before the operation
+     *
+     * @param files the files the operation changes
+     * @return the usage of the files and the files sharing their content, to be passed to
+     * {@link #recordUsage(Usage)} after the operation
+     */
+    @NotNull
+    private Usage measureUsage(@NotNull List<Config.File> files) {
+        List<String> fileIds = new ArrayList<>();
+        long used = 0;
+        long deduplicated = 0;
+        for (Config.File file : files) {
+            List<Config.File> affected = new ArrayList<>();
+            // a deleted file is already gone from the config
+            affected.add(Objects.requireNonNullElse(config.getConfig().getFile(file.id()), file));
+            affected.addAll(config.getConfig().getFileReferences(file.id()));
+            for (Config.File current : affected) {
+                fileIds.add(current.id());
+                used += getSize(getPath(current.id()));
+                if (current.contentId() != null) {
+                    deduplicated += getSize(getContentPath(current));
+                }
+            }
+        }
+        return new Usage(fileIds, used, deduplicated);
+    }
+
+    /**
+     * Measures the usage of the files again after an operation and adds the change to the
+     * tracked usage
+     *
+     * @param before the usage measured before the operation
+     */
+    private void recordUsage(@NotNull Usage before) {
+        long used = 0;
+        long deduplicated = 0;
+        for (String fileId : before.fileIds()) {
+            used += getSize(getPath(fileId));
+            Config.File current = config.getConfig().getFile(fileId);
+            if (current != null && current.contentId() != null) {
+                deduplicated += getSize(getContentPath(current));
+            }
+        }
+        usage.add(used - before.used(), deduplicated - before.deduplicated());
+    }
+
+    /**
+     * @param path a file
+     * @return the size of the file, 0 if it doesn't exist
+     */
+    private static long getSize(@NotNull Path path) {
+        try {
+            return Files.size(path);
+        } catch (NoSuchFileException ignored) {
+            return 0;
+        } catch (IOException e) {
+            LOG.warn("failed to get the size of a file", e);
+            return 0;
+        }
     }
 
     /**
@@ -102,7 +317,7 @@ class DataInstance implements Data {
         List<Byte> header = new ArrayList<>();
         ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
 
-        fileRangeList.forEach((fileRange) -> {
+        fileRangeList.stream().map(this::getHeaderRange).forEach((fileRange) -> {
             buffer.putLong(0, fileRange.start());
             for (byte b : buffer.array()) {
                 header.add(b);
@@ -111,61 +326,104 @@ class DataInstance implements Data {
             for (byte b : buffer.array()) {
                 header.add(b);
             }
-            String filePath = config.getConfig().getFilePath(fileRange.fileId());
-            if (filePath == null) {
-                throw new IllegalStateException("Should never happen");
-            }
-            String fileName = Paths.get(filePath).getFileName().toString();
-            for (byte b : fileName.getBytes(StandardCharsets.UTF_8)) {
+            for (byte b : getFileName(fileRange.fileId())) {
                 header.add(b);
             }
-            header.add((byte) 0x1E);
+            header.add((byte) HEADER_SEPARATOR);
         });
-        header.set(header.size() - 1, (byte) 0x1D);
+        header.set(header.size() - 1, (byte) HEADER_END);
 
         return header.toArray(new Byte[0]);
     }
 
+    /**
+     * With content defined chunking the header only contains the length of a range, so that a
+     * block whose part of the file only moved keeps its content and doesn't need to be uploaded
+     * again. The position in the file is taken from the config on restore.
+     *
+     * @param range a range of a block
+     * @return the range as written in the block header
+     */
+    @NotNull
+    private Config.FileRange getHeaderRange(@NotNull Config.FileRange range) {
+        if (!config.getConfig().isContentDefinedChunking()) {
+            return range;
+        }
+        return new Config.FileRange(range.fileId(), 0, range.stop() - range.start());
+    }
+
+    /**
+     * @param fileId the id of a file known to the config
+     * @return the name of the file as written in the block header
+     */
+    @NotNull
+    private byte[] getFileName(@NotNull String fileId) {
+        String filePath = config.getConfig().getFilePath(fileId);
+        if (filePath == null) {
+            throw new IllegalStateException("Should never happen");
+        }
+        return Paths.get(filePath).getFileName().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     @Override
     @NotNull
     public List<Config.Block> createFile(@NotNull InputStream in, @NotNull Config.File file,
             @NotNull Instant lastModified) throws FileAlreadyExistsException {
         List<Config.Block> updatedBlocks = new ArrayList<>();
 
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getPath(file.id());
         if (Files.exists(path)) {
             throw new FileAlreadyExistsException("File already exists");
         }
 
+        Usage before = measureUsage(List.of(file));
         try {
-            Files.createDirectories(path.getParent());
+            fileFolder.createSubFolders(file.id());
             Files.createFile(path);
-            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+            SavedContent content = copy(in, path, null);
+            String digest = content.digest();
+            long size = content.size();
 
             FileTime fileTime = FileTime.from(lastModified);
             Files.setLastModifiedTime(path, fileTime);
 
-            long size = Files.size(path);
-            // the header size is always the same for new blocks only containing one and the same file
-            long headerSize = getHeader(List.of(new Config.FileRange(file.id(), 0, 10))).length;
-            long blockDataSize = config.getConfig().getBlockSize() - headerSize;
-            for (long i = 0; i < size; i += blockDataSize) {
-                int retries = 0;
-                Config.Block newBlock;
-                do {
-                    newBlock = new Config.Block(new Field.Uuid64(UUID.randomUUID().toString()).id(),
-                            Map.of(), List.of(new Config.FileRange(file.id(), i, Math.min(
-                                    i + blockDataSize, size))));
-                    retries++;
-                } while (retries <= MAX_RETRIES && !config.getConfig().addNewBlock(newBlock));
-                if (retries > MAX_RETRIES) {
-                    throw new IllegalStateException("Error creating file: too many retries");
+            synchronized (packingLock) {
+                if (sharedContent.deduplicate(file, path, digest, size, List.of())) {
+                    return updatedBlocks;
+                }
+                Config.Block open = config.getConfig().getBlock(openBlock.get());
+                long filled = 0;
+                if (open != null && size > 0) {
+                    long free = getFree(open, file.id(), 0);
+                    // content defined blocks start at the start of the file, only whole files
+                    // are put into the open block
+                    filled = config.getConfig().isContentDefinedChunking() && size > free ?
+                            0 :
+                            Math.max(0, Math.min(free, size));
                 }
-                updatedBlocks.add(newBlock);
+                long position = filled;
+                long[] ends = getBlockEnds(path, file, position, size);
+                AtomicReference<Config.Block> last = new AtomicReference<>(open);
+                boolean saved = config.getConfig().transaction(tx -> {
+                    if (position > 0) {
+                        last.set(appendToBlock(tx, open, file.id(), 0, position, updatedBlocks));
+                    }
+                    if (ends.length > 0) {
+                        last.set(addBlocks(tx, file, position, ends, updatedBlocks));
+                    }
+                    tx.updateFileContent(file.id(), digest, null);
+                });
+                if (!saved) {
+                    throw new IllegalStateException(
+                            "Error creating file: blocks couldn't be saved");
+                }
+                openBlock.set(last.get() != null && isOpen(last.get()) ? last.get().id() : "");
             }
-            // TODO: use already existing blocks that aren't full
+            refreshDigests(updatedBlocks);
         } catch (IOException e) {
-            LOG.error("failed to create file", e);
+            throw new IllegalStateException("Error creating file", e);
+        } finally {
+            recordUsage(before);
         }
 
         return updatedBlocks;
@@ -178,31 +436,690 @@ class DataInstance implements Data {
 
         List<Config.Block> updatedBlocks = new ArrayList<>();
 
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getPath(file.id());
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File does not exist");
         }
 
+        Usage before = measureUsage(List.of(file));
+        Path newPath = null;
         try {
-            Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+            newPath = Files.createTempFile(path.getParent(), file.id(), ".tmp");
+            // the file is looked up before its content is read for the comparison
+            Config.File compared = Objects.requireNonNullElse(config.getConfig().getFile(file
+                    .id()), file);
+            SavedContent copied = copy(in, newPath, compared.contentId() == null ?
+                    path :
+                    null);
+            String digest = copied.digest();
+            long size = copied.size();
+            boolean contentDefined = config.getConfig().isContentDefinedChunking();
+            long[] ends = contentDefined ? getBlockEnds(newPath, file, 0, size) : new long[0];
+            Map<Integer, Config.Block> matches = contentDefined ?
+                    findUnchangedBlocks(file, config.getConfig().getBlocks(file.id()), ends,
+                            newPath) :
+                    Map.of();
+
+            synchronized (packingLock) {
+                FileTime fileTime = FileTime.from(lastModified);
+                Config.File current = Objects.requireNonNullElse(config.getConfig().getFile(file
+                        .id()), file);
+                // the compared content is outdated if the file changed while it was copied
+                SavedContent content = current.equals(compared) ? copied : copied.changedFully();
+                if (digest.equals(current.digest())) {
+                    Files.setLastModifiedTime(path, fileTime);
+                    return updatedBlocks;
+                }
+                if (current.contentId() == null) {
+                    // the files sharing the old content keep it
+                    updatedBlocks.addAll(handOver(current));
+                }
+                List<Config.Block> blocks = config.getConfig().getBlocks(file.id());
+                Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                mappedFiles.invalidate(path);
+                blockCache.invalidate(file.id());
+                Files.setLastModifiedTime(path, fileTime);
+                if (sharedContent.deduplicate(file, path, digest, size, blocks)) {
+                    updatedBlocks.addAll(blocks);
+                    closeOpenBlock();
+                } else {
+                    AtomicReference<Config.Block> tail = new AtomicReference<>();
+                    Set<String> unchanged = ConcurrentHashMap.newKeySet();
+                    boolean saved;
+                    if (contentDefined) {
+                        saved = config.getConfig().transaction(tx -> {
+                            unchanged.clear();
+                            tail.set(relayout(tx, file, blocks, ends, matches, unchanged,
+                                    updatedBlocks));
+                            tx.updateFileContent(file.id(), digest, null);
+                        });
+                    } else {
+                        saved = resize(file, blocks, path, size, digest, tail, updatedBlocks);
+                    }
+                    if (!saved) {
+                        throw new IllegalStateException(
+                                "Error updating file: blocks couldn't be saved");
+                    }
+                    // the blocks whose range didn't change only have new content if they
+                    // overlap the changed part of the file
+                    blocks.stream()
+                            .filter(block -> !unchanged.contains(block.id()) && isChanged(block,
+                                    file.id(), content))
+                            .forEach(updatedBlocks::add);
+                    Config.Block open = config.getConfig().getBlock(openBlock.get());
+                    if (tail.get() != null && isOpen(tail.get())) {
+                        openBlock.set(tail.get().id());
+                    } else if (open == null || !isOpen(open)) {
+                        openBlock.set("");
+                    }
+                }
+            }
+            refreshDigests(updatedBlocks);
+        } catch (IOException e) {
+            LOG.error("failed to update file", e);
+        } finally {
+            deleteTemporaryFile(newPath);
+            recordUsage(before);
+        }
 
-            FileTime fileTime = FileTime.from(lastModified);
-            Files.setLastModifiedTime(path, fileTime);
+        return updatedBlocks;
+    }
 
-            // FIXME: create new blocks if file is bigger
-            List<Config.Block> blocks = config.getConfig().getBlocks();
+    /**
+     * Grows or cuts the blocks of a file split at fixed offsets to its new size. The blocks in
+     * front of the new end stay as they are, a larger file first fills the free space of its last
+     * block.
+     *
+     * @param file          the file
+     * @param blocks        the blocks of the file before the change, ordered by position
+     * @param path          the new content of the file
+     * @param size          the new size of the file
+     * @param digest        the digest of the new content, saved together with the blocks
+     * @param tail          set to the last new block, if blocks were added
+     * @param updatedBlocks the list to add the changed and new blocks to
+     * @return false if the change couldn't be saved
+     * @throws IOException if the file can't be read
+     */
+    private boolean resize(@NotNull Config.File file, @NotNull List<Config.Block> blocks,
+            @NotNull Path path, long size, @NotNull String digest,
+            @NotNull AtomicReference<Config.Block> tail,
+            @NotNull List<Config.Block> updatedBlocks) throws IOException {
+        Config.Block last = null;
+        long position = 0;
+        for (Config.Block block : blocks) {
+            Config.FileRange range = getRange(block, file.id());
+            if (range.start() < size) {
+                last = block;
+                position = Math.min(range.stop(), size);
+            }
+        }
+        long end = position;
+        long extended = last == null ?
+                position :
+                position + Math.max(0, Math.min(getFree(last, file.id(), position), size
+                        - position));
+        long[] ends = getBlockEnds(path, file, extended, size);
+        Config.Block lastBlock = last;
+        return config.getConfig().transaction(tx -> {
             for (Config.Block block : blocks) {
-                if (block.fileToByteRange()
-                        .stream()
-                        .anyMatch(range -> range.fileId().equals(file.id()))) {
-                    updatedBlocks.add(block);
+                Config.FileRange range = getRange(block, file.id());
+                if (range.start() >= size) {
+                    SharedContent.removeRange(tx, block, file.id());
+                } else if (range.stop() > size) {
+                    tx.updateBlockRanges(block.id(), replaceRange(block, range, size));
+                }
+            }
+            if (extended > end) {
+                appendToBlock(tx, lastBlock, file.id(), end, extended, updatedBlocks);
+            }
+            if (ends.length > 0) {
+                tail.set(addBlocks(tx, file, extended, ends, updatedBlocks));
+            }
+            tx.updateFileContent(file.id(), digest, null);
+        });
+    }
+
+    /**
+     * Finds the blocks of a file split at content defined positions that keep their content in
+     * the new layout. Only the blocks with the same length as a new block are compared.
+     *
+     * @param file   the file
+     * @param blocks the blocks of the file before the change
+     * @param ends   the end of every block of the new layout
+     * @param path   the new content of the file
+     * @return the block with the same content by the index of the new block
+     * @throws IOException if the new content can't be read
+     */
+    @NotNull
+    private Map<Integer, Config.Block> findUnchangedBlocks(@NotNull Config.File file,
+            @NotNull List<Config.Block> blocks, long @NotNull [] ends, @NotNull Path path)
+            throws IOException {
+        Map<Long, List<Config.Block>> byLength = new ConcurrentHashMap<>();
+        for (Config.Block block : blocks) {
+            if (block.digest() != null && block.fileToByteRange().size() == 1) {
+                Config.FileRange range = block.fileToByteRange().get(0);
+                byLength.computeIfAbsent(range.stop() - range.start(), length -> new ArrayList<>())
+                        .add(block);
+            }
+        }
+        Map<Integer, Config.Block> matches = new ConcurrentHashMap<>();
+        long start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            List<Config.Block> candidates = byLength.getOrDefault(ends[i] - start, List.of());
+            if (!candidates.isEmpty()) {
+                String digest = getDigest(new Config.FileRange(file.id(), start, ends[i]), path);
+                Config.Block match = candidates.stream()
+                        .filter(block -> digest.equals(block.digest()))
+                        .findFirst()
+                        .orElse(null);
+                if (match != null) {
+                    matches.put(i, match);
+                    candidates.remove(match);
+                }
+            }
+            start = ends[i];
+        }
+        return matches;
+    }
+
+    /**
+     * Lays out a file split at content defined positions again. A block whose content is found
+     * again in the new layout only gets the new range. The other blocks of the file are reused in
+     * order for the remaining new ranges. Blocks shared with other files only lose the range of
+     * the file.
+     *
+     * @param tx            the transaction to save the changes in
+     * @param file          the file
+     * @param blocks        the blocks of the file before the change, ordered by position
+     * @param ends          the end of every block of the new layout
+     * @param matches       the blocks with the same content by the index of the new block, see
+     *                      {@link #findUnchangedBlocks(Config.File, List, long[], Path)}
+     * @param unchanged     the set to add the ids of the blocks keeping their content to
+     * @param updatedBlocks the list to add the new blocks to
+     * @return the last block of the file, null if the file is empty
+     */
+    @Nullable
+    private Config.Block relayout(@NotNull Config.Transaction tx, @NotNull Config.File file,
+            @NotNull List<Config.Block> blocks, long @NotNull [] ends,
+            @NotNull Map<Integer, Config.Block> matches, @NotNull Set<String> unchanged,
+            @NotNull List<Config.Block> updatedBlocks) {
+        Config.Block[] layout = new Config.Block[ends.length];
+        Set<String> blockIds = blocks.stream().map(Config.Block::id).collect(Collectors.toSet());
+        matches.forEach((index, match) -> {
+            // the block might have changed since it was compared
+            Config.Block current = config.getConfig().getBlock(match.id());
+            if (current != null && blockIds.contains(current.id()) && current.fileToByteRange()
+                    .equals(match.fileToByteRange()) && Objects.equals(current.digest(), match
+                            .digest())) {
+                layout[index] = current;
+                unchanged.add(current.id());
+            }
+        });
+        List<Config.Block> free = new ArrayList<>();
+        for (Config.Block block : blocks) {
+            if (block.fileToByteRange().size() > 1) {
+                SharedContent.removeRange(tx, block, file.id());
+            } else if (!unchanged.contains(block.id())) {
+                free.add(block);
+            }
+        }
+        Config.Block last = null;
+        long start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            List<Config.FileRange> ranges = List.of(new Config.FileRange(file.id(), start,
+                    ends[i]));
+            if (layout[i] == null && free.isEmpty()) {
+                last = addBlocks(tx, file, start, new long[] {ends[i]}, updatedBlocks);
+            } else {
+                Config.Block block = layout[i] == null ? free.remove(0) : layout[i];
+                if (!block.fileToByteRange().equals(ranges)) {
+                    tx.updateBlockRanges(block.id(), ranges);
+                    if (layout[i] != null) {
+                        // the new ranges reset the digest, but the content stays the same
+                        tx.updateBlockDigest(block.id(), Objects.requireNonNull(block.digest()));
+                    }
+                }
+                last = new Config.Block(block.id(), block.serverToId(), ranges, block.digest());
+            }
+            start = ends[i];
+        }
+        free.forEach(block -> SharedContent.removeRange(tx, block, file.id()));
+        return last;
+    }
+
+    /**
+     * @param path the content of the file
+     * @param file the file
+     * @param from the start of the part of the file to put into new blocks
+     * @param size the size of the file
+     * @return the end of every new block, empty if the part is empty
+     * @throws IOException if the file can't be read
+     */
+    @NotNull
+    private long[] getBlockEnds(@NotNull Path path, @NotNull Config.File file, long from,
+            long size) throws IOException {
+        if (from >= size) {
+            return new long[0];
+        }
+        // the header size is always the same for new blocks only containing one and the same file
+        long blockDataSize = config.getConfig().getBlockSize() - getDataSize(List.of(
+                new Config.FileRange(file.id(), 0, 0)));
+        if (config.getConfig().isContentDefinedChunking()) {
+            return ContentDefinedChunker.getBlockEnds(path, from, size, blockDataSize);
+        }
+        return LongStream.iterate(from + blockDataSize, end -> end < size + blockDataSize,
+                end -> end + blockDataSize).map(end -> Math.min(end, size)).toArray();
+    }
+
+    /**
+     * @param block  a block
+     * @param fileId the id of the file to add
+     * @param from   the start of the part of the file to add
+     * @return the amount of bytes of the file that fit into the block after the given start
+     */
+    private long getFree(@NotNull Config.Block block, @NotNull String fileId, long from) {
+        return config.getConfig().getBlockSize() - getDataSize(withRange(block, fileId, from,
+                from));
+    }
+
+    /**
+     * @param block  a block
+     * @param fileId the id of the file
+     * @param from   the start of the part of the file
+     * @param to     the end of the part of the file
+     * @return the ranges of the block with the part of the file, the range of the file is
+     * extended if the block already ends with the part before, a new range is added otherwise
+     */
+    @NotNull
+    private static List<Config.FileRange> withRange(@NotNull Config.Block block,
+            @NotNull String fileId, long from, long to) {
+        List<Config.FileRange> ranges = new ArrayList<>(block.fileToByteRange());
+        for (int i = 0; i < ranges.size(); i++) {
+            Config.FileRange range = ranges.get(i);
+            if (range.fileId().equals(fileId) && range.stop() == from) {
+                ranges.set(i, new Config.FileRange(fileId, range.start(), to));
+                return ranges;
+            }
+        }
+        ranges.add(new Config.FileRange(fileId, from, to));
+        return ranges;
+    }
+
+    /**
+     * @param block the block
+     * @param range a range of the block
+     * @param stop  the new end of the range
+     * @return the ranges of the block with the range cut at the new end
+     */
+    @NotNull
+    private static List<Config.FileRange> replaceRange(@NotNull Config.Block block,
+            @NotNull Config.FileRange range, long stop) {
+        List<Config.FileRange> ranges = new ArrayList<>(block.fileToByteRange());
+        ranges.set(ranges.indexOf(range), new Config.FileRange(range.fileId(), range.start(),
+                stop));
+        return ranges;
+    }
+
+    /**
+     * Puts a part of a file into the free space of a block, see
+     * {@link #withRange(Config.Block, String, long, long)}
+     *
+     * @param tx            the transaction to save the change in
+     * @param block         the block to fill
+     * @param fileId        the id of the file
+     * @param from          the start of the part in the file
+     * @param to            the end of the part in the file
+     * @param updatedBlocks the list to add the changed block to
+     * @return the block with the new ranges
+     */
+    @NotNull
+    private Config.Block appendToBlock(@NotNull Config.Transaction tx, @NotNull Config.Block block,
+            @NotNull String fileId, long from, long to,
+            @NotNull List<Config.Block> updatedBlocks) {
+        List<Config.FileRange> ranges = withRange(block, fileId, from, to);
+        if (!tx.updateBlockRanges(block.id(), ranges)) {
+            throw new IllegalStateException("Error saving file: block is gone");
+        }
+        Config.Block changed = new Config.Block(block.id(), block.serverToId(), List.copyOf(
+                ranges));
+        updatedBlocks.add(changed);
+        return changed;
+    }
+
+    /**
+     * Saves a part of a file in new blocks
+     *
+     * @param tx            the transaction to save the blocks in
+     * @param file          the file
+     * @param from          the start of the part in the file
+     * @param ends          the end of every new block, see
+     *                      {@link #getBlockEnds(Path, Config.File, long, long)}
+     * @param updatedBlocks the list to add the new blocks to
+     * @return the last new block
+     */
+    @NotNull
+    private Config.Block addBlocks(@NotNull Config.Transaction tx, @NotNull Config.File file,
+            long from, long @NotNull [] ends, @NotNull List<Config.Block> updatedBlocks) {
+        Config.Block newBlock = null;
+        long start = from;
+        for (long end : ends) {
+            int retries = 0;
+            do {
+                newBlock = new Config.Block(new Field.Uuid64(UUID.randomUUID().toString()).id(),
+                        Map.of(), List.of(new Config.FileRange(file.id(), start, end)));
+                retries++;
+            } while (retries <= MAX_RETRIES && !tx.addNewBlock(newBlock));
+            if (retries > MAX_RETRIES) {
+                throw new IllegalStateException("Error saving file: too many retries");
+            }
+            updatedBlocks.add(newBlock);
+            start = end;
+        }
+        return Objects.requireNonNull(newBlock);
+    }
+
+    /**
+     * @param block   a block of the file before the change
+     * @param fileId  the id of the file
+     * @param content the new content of the file
+     * @return true if the block was deleted, its ranges changed or its part of the file changed
+     */
+    private boolean isChanged(@NotNull Config.Block block, @NotNull String fileId,
+            @NotNull SavedContent content) {
+        Config.Block current = config.getConfig().getBlock(block.id());
+        if (current == null || !current.fileToByteRange().equals(block.fileToByteRange())) {
+            return true;
+        }
+        Config.FileRange range = getRange(block, fileId);
+        return range.start() < content.changedTo() && content.changedFrom() < range.stop();
+    }
+
+    /**
+     * Computes the digest of the blocks that might have changed, in parallel on the
+     * {@link #DIGEST_POOL}. Only the blocks whose digest differs from the one they had before the
+     * change are kept in the list, the new digests are saved.
+     * <p/>
+     * Must be called after releasing the {@link #packingLock}, the blocks are read again.
+     *
+     * @param blocks the blocks that might have changed as they were before the change,
+     *               including deleted ones. Afterward only the blocks that were deleted or whose
+     *               content changed.
+     */
+    @SuppressWarnings("PMD.DoNotUseThreads")
+    private void refreshDigests(@NotNull List<Config.Block> blocks) {
+        Map<String, Config.Block> candidates = new ConcurrentHashMap<>();
+        blocks.forEach(block -> candidates.putIfAbsent(block.id(), block));
+        // a parallel stream started in the pool only uses the threads of the pool
+        List<Config.Block> changedBlocks = DIGEST_POOL.submit(() -> candidates.values()
+                .parallelStream()
+                .filter(this::refreshDigest)
+                .toList()).join();
+        blocks.clear();
+        blocks.addAll(changedBlocks);
+    }
+
+    /**
+     * Computes and saves the digest of a block. It is computed again if the block or its files
+     * changed while it was read.
+     *
+     * @param previous the block as it was before the change
+     * @return true if the block was deleted or its content changed
+     */
+    private boolean refreshDigest(@NotNull Config.Block previous) {
+        for (int retries = 0; retries <= MAX_RETRIES; retries++) {
+            Config.Block current = config.getConfig().getBlock(previous.id());
+            if (current == null) {
+                // deleted blocks are also removed on the remote servers
+                return true;
+            }
+            List<Config.File> files = getFiles(current);
+            String digest = getDigest(current);
+            if (digest == null) {
+                return true;
+            }
+            if (digest.equals(current.digest()) || saveDigest(current, files, digest)) {
+                return !digest.equals(previous.digest());
+            }
+        }
+        LOG.warnf("failed to save the digest of block %s, it keeps changing", previous.id());
+        return true;
+    }
+
+    /**
+     * Saves the digest of a block, unless the block or its files changed since it was read
+     *
+     * @param block  the block that was read
+     * @param files  the files of the block when it was read
+     * @param digest the digest of the block
+     * @return false if the block or its files changed
+     */
+    private boolean saveDigest(@NotNull Config.Block block, @NotNull List<Config.File> files,
+            @NotNull String digest) {
+        AtomicBoolean unchanged = new AtomicBoolean();
+        boolean saved = config.getConfig().transaction(tx -> {
+            Config.Block current = config.getConfig().getBlock(block.id());
+            if (current != null && current.fileToByteRange().equals(block.fileToByteRange())
+                    && files.equals(getFiles(current))) {
+                unchanged.set(tx.updateBlockDigest(block.id(), digest));
+            }
+        });
+        return saved && unchanged.get();
+    }
+
+    /**
+     * @param block a block
+     * @return the files of the ranges of the block, null for files that don't exist
+     */
+    @NotNull
+    private List<Config.File> getFiles(@NotNull Config.Block block) {
+        return block.fileToByteRange()
+                .stream()
+                .map(range -> config.getConfig().getFile(range.fileId()))
+                .toList();
+    }
+
+    /**
+     * @param block the block
+     * @return the hex SHA256 of the content of the block, null if it couldn't be read
+     */
+    @Nullable
+    private String getDigest(@NotNull Config.Block block) {
+        try (InputStream blockIs = getBlock(block)) {
+            return DIGEST.getHashFunction().apply(blockIs);
+        } catch (IOException | RuntimeException e) { // NOPMD
+            LOG.warn("failed to compute the digest of a block", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param range a range of a new block only containing this range
+     * @param path  the content of the file, read instead of the saved one
+     * @return the hex SHA256 of the content the block would have
+     * @throws IOException if the content can't be read
+     */
+    @NotNull
+    private String getDigest(@NotNull Config.FileRange range, @NotNull Path path)
+            throws IOException {
+        byte[] content = new byte[Math.toIntExact(config.getConfig().getBlockSize())];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        buffer.put(ArrayUtils.toPrimitive(getHeader(List.of(range))));
+        buffer.limit(buffer.position() + Math.toIntExact(range.stop() - range.start()));
+        readUnmapped(path, range.start(), buffer);
+        return DIGEST.getHashFunction().apply(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Saves content and compares it with the previous content of the file while it is written,
+     * so that only the blocks with changed parts need to be read again
+     *
+     * @param in       the content to save
+     * @param path     the file to save it in
+     * @param previous the previous content of the file, null if everything changed
+     * @return the digest of the content and its changed part
+     * @throws IOException if the content couldn't be saved
+     */
+    @NotNull
+    private static SavedContent copy(@NotNull InputStream in, @NotNull Path path,
+            @Nullable Path previous) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        byte[] previousBuffer = new byte[COPY_BUFFER_SIZE];
+        long size = 0;
+        long changedFrom = -1;
+        long changedTo = 0;
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                InputStream previousIn = openPrevious(previous)) {
+            int read = in.readNBytes(buffer, 0, buffer.length);
+            while (read > 0) {
+                out.write(buffer, 0, read);
+                hasher.putBytes(buffer, 0, read);
+                int previousRead = previousIn.readNBytes(previousBuffer, 0, read);
+                if (Arrays.mismatch(buffer, 0, read, previousBuffer, 0, previousRead) >= 0) {
+                    if (changedFrom < 0) {
+                        changedFrom = size;
+                    }
+                    changedTo = size + read;
                 }
+                size += read;
+                read = in.readNBytes(buffer, 0, buffer.length);
             }
+            if (changedFrom < 0 && previousIn.read() >= 0) {
+                // only the end was cut, which changes the ranges of the last blocks
+                changedFrom = size;
+                changedTo = size;
+            }
+        }
+        return new SavedContent(hasher.hash().toString(), size, Math.max(0, changedFrom),
+                changedTo);
+    }
+
+    /**
+     * @param previous the previous content of a file, null if there is none
+     * @return a stream of the content, empty if there is none
+     * @throws IOException if the content couldn't be opened
+     */
+    @NotNull
+    private static InputStream openPrevious(@Nullable Path previous) throws IOException {
+        if (previous == null) {
+            return InputStream.nullInputStream();
+        }
+        try {
+            return new BufferedInputStream(Files.newInputStream(previous), COPY_BUFFER_SIZE);
+        } catch (NoSuchFileException ignored) {
+            return InputStream.nullInputStream();
+        }
+    }
+
+    /**
+     * Hands the content of a file over to the first file sharing it, see
+     * {@link SharedContent#handOver(Config.File)}.
+     * <p/>
+     * Must be called while holding the {@link #packingLock}.
+     *
+     * @param file the file holding its own copy of the content
+     * @return the blocks that moved to the other file, their header changed
+     * @throws IOException if the content couldn't be moved
+     */
+    @NotNull
+    private List<Config.Block> handOver(@NotNull Config.File file) throws IOException {
+        List<Config.Block> blocks = sharedContent.handOver(file);
+        if (!blocks.isEmpty()) {
+            blockCache.invalidate(file.id());
+        }
+        return blocks;
+    }
+
+    /**
+     * @param file a file
+     * @return the path of the saved content of the file, the one of the file holding the content
+     * if the file shares it
+     */
+    @NotNull
+    private Path getContentPath(@NotNull Config.File file) {
+        return sharedContent.getContentPath(file);
+    }
+
+    /**
+     * @param id the id of a file
+     * @return the path the file is saved at, an empty marker if the file shares its content
+     */
+    @NotNull
+    private Path getPath(@NotNull String id) {
+        return sharedContent.getPath(id);
+    }
+
+    /**
+     * @param id the id of a file
+     * @return the path the content of the file is restored into, before it is complete
+     */
+    @NotNull
+    private Path getRestorePath(@NotNull String id) {
+        return getPath(id).resolveSibling(id + RESTORE_SUFFIX);
+    }
+
+    /**
+     * Starts a new open block if the open block was deleted
+     */
+    private void closeOpenBlock() {
+        if (config.getConfig().getBlock(openBlock.get()) == null) {
+            openBlock.set("");
+        }
+    }
+
+    /**
+     * @param path the temporary file to delete, nothing is done if null or already moved
+     */
+    private static void deleteTemporaryFile(@Nullable Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
         } catch (IOException e) {
-            LOG.error("failed to update file", e);
+            LOG.warn("failed to delete temporary file", e);
         }
+    }
 
-        return updatedBlocks;
+    /**
+     * @param block  a block of the file
+     * @param fileId the id of the file
+     * @return the range of the file in the block
+     */
+    @NotNull
+    private static Config.FileRange getRange(@NotNull Config.Block block, @NotNull String fileId) {
+        return block.fileToByteRange()
+                .stream()
+                .filter(range -> range.fileId().equals(fileId))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Block doesn't contain the file"));
+    }
+
+    /**
+     * A block stays open for more files until less than {@link Config#getBlockSealPercent()} of it
+     * is free, then it is sealed
+     *
+     * @param block the block
+     * @return true if more files can be added to the block
+     */
+    private boolean isOpen(@NotNull Config.Block block) {
+        long blockSize = config.getConfig().getBlockSize();
+        long free = blockSize - getDataSize(block.fileToByteRange());
+        return free > 0 && free >= blockSize * config.getConfig().getBlockSealPercent() / 100;
+    }
+
+    /**
+     * @param ranges the file ranges of a block, the files must be known to the config
+     * @return the amount of bytes used by the header and the file ranges
+     */
+    private long getDataSize(@NotNull List<Config.FileRange> ranges) {
+        long size = getHeader(ranges).length;
+        for (Config.FileRange range : ranges) {
+            size += range.stop() - range.start();
+        }
+        return size;
     }
 
     @Override
@@ -211,28 +1128,35 @@ class DataInstance implements Data {
 
         List<Config.Block> updatedBlocks = new ArrayList<>();
 
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getPath(file.id());
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File does not exist");
         }
 
+        Usage before = measureUsage(List.of(file));
         try {
-            Files.delete(path);
-
-            List<Config.Block> blocks = config.getConfig().getBlocks();
-            for (Config.Block block : blocks) {
-                if (block.fileToByteRange()
-                        .stream()
-                        .anyMatch(range -> range.fileId().equals(file.id()))) {
-                    updatedBlocks.add(block);
-                    block.fileToByteRange().removeIf(range -> range.fileId().equals(file.id()));
-                    if (block.fileToByteRange().isEmpty()) {
-                        config.getConfig().deleteBlock(block.id());
-                    }
+            synchronized (packingLock) {
+                if (file.contentId() == null) {
+                    // the files sharing the content keep it
+                    updatedBlocks.addAll(handOver(file));
                 }
+                Files.deleteIfExists(path);
+                mappedFiles.invalidate(path);
+                blockCache.invalidate(file.id());
+                List<Config.Block> blocks = config.getConfig().getBlocks(file.id());
+                updatedBlocks.addAll(blocks);
+                if (!config.getConfig().transaction(tx -> blocks.forEach(
+                        block -> SharedContent.removeRange(tx, block, file.id())))) {
+                    throw new IllegalStateException(
+                            "Error deleting file: blocks couldn't be saved");
+                }
+                closeOpenBlock();
             }
+            refreshDigests(updatedBlocks);
         } catch (IOException e) {
             LOG.error("failed to delete file", e);
+        } finally {
+            recordUsage(before);
         }
 
         return updatedBlocks;
@@ -241,7 +1165,8 @@ class DataInstance implements Data {
     @Override
     @NotNull
     public InputStream getFile(@NotNull Config.File file) throws IOException {
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getContentPath(Objects.requireNonNullElse(config.getConfig().getFile(file
+                .id()), file));
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File does not exist");
         }
@@ -256,7 +1181,7 @@ class DataInstance implements Data {
     @Override
     @NotNull
     public Instant getLastModified(@NotNull Config.File file) throws IOException {
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getPath(file.id());
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File does not exist");
         }
@@ -269,75 +1194,278 @@ class DataInstance implements Data {
         }
     }
 
+    @Override
+    public void restoreEmptyFile(@NotNull Config.File file) throws IOException {
+        Path path = getPath(file.id());
+        fileFolder.createSubFolders(file.id());
+        Usage before = measureUsage(List.of(file));
+        try {
+            Files.createFile(path);
+        } catch (FileAlreadyExistsException ignored) {
+            // already restored
+        } finally {
+            recordUsage(before);
+        }
+    }
+
+    @Override
+    public boolean startRestore(@NotNull Config.File file) throws IOException {
+        if (Files.exists(getPath(file.id()))) {
+            return false;
+        }
+        fileFolder.createSubFolders(file.id());
+        try {
+            Files.createFile(getRestorePath(file.id()));
+        } catch (FileAlreadyExistsException ignored) {
+            // restore already started
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isRestoreIncomplete(@NotNull Config.File file) {
+        return Files.exists(getRestorePath(file.id())) && !Files.exists(getPath(file.id()));
+    }
+
+    @Override
+    @NotNull
+    public InputStream getRestoringFile(@NotNull Config.File file) throws IOException {
+        Config.File current = Objects.requireNonNullElse(config.getConfig().getFile(file.id()),
+                file);
+        Path path = getContentPath(current);
+        if (!Files.exists(path)) {
+            path = getRestorePath(Objects.requireNonNullElse(current.contentId(), current.id()));
+        }
+        if (!Files.exists(path)) {
+            throw new FileNotFoundException("File does not exist");
+        }
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public void finishRestore(@NotNull Config.File file) throws IOException {
+        Path restorePath = getRestorePath(file.id());
+        Path path = getPath(file.id());
+        if (!Files.exists(restorePath) && Files.exists(path)) {
+            // finished by another download in the meantime
+            return;
+        }
+        Config.File current = Objects.requireNonNullElse(config.getConfig().getFile(file.id()),
+                file);
+        if (current.digest() != null && !current.digest().equals(MoreFiles.asByteSource(
+                restorePath).hash(Hashing.sha256()).toString())) {
+            throw new IOException("Restored content doesn't match the digest of the file");
+        }
+        try (FileChannel channel = FileChannel.open(restorePath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Usage before = measureUsage(List.of(file));
+        try {
+            synchronized (packingLock) {
+                if (Files.exists(path)) {
+                    // saved again in the meantime, the restored content is outdated
+                    Files.delete(restorePath);
+                    return;
+                }
+                Files.move(restorePath, path, StandardCopyOption.ATOMIC_MOVE);
+                mappedFiles.invalidate(path);
+                blockCache.invalidate(file.id());
+            }
+        } finally {
+            recordUsage(before);
+        }
+    }
+
     @Override
     @NotNull
     public List<Config.Block> getBlocks(@NotNull Config.File file) throws FileNotFoundException {
-        Path path = Paths.get(config.getConfig().getMountPath(), FILE_FOLDER, file.id());
+        Path path = getPath(file.id());
         if (!Files.exists(path)) {
             throw new FileNotFoundException("File does not exist");
         }
 
-        List<Config.Block> blocks = config.getConfig().getBlocks();
-        List<Config.Block> fileBlocks = new ArrayList<>();
+        return config.getConfig().getBlocks(file.id());
+    }
 
-        for (Config.Block block : blocks) {
-            if (block.fileToByteRange()
-                    .stream()
-                    .anyMatch(range -> range.fileId().equals(file.id()))) {
-                fileBlocks.add(block);
+    @Override
+    public InputStream getBlock(@NotNull Config.Block block) throws IOException {
+        Config.Block foundBlock = config.getConfig().getBlock(block.id());
+        if (foundBlock == null) {
+            throw new FileNotFoundException("Block not found in the list of blocks");
+        }
+
+        // TODO: encrypt block content
+
+        InputStream cached = blockCache.get(foundBlock);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = blockCache.getGeneration();
+        byte[] content = assembleBlock(foundBlock, false);
+        blockCache.put(foundBlock, content, generation);
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * Assembles the content of a block: the header, the parts of the files and zeros up to the
+     * block size. The parts are read with positional reads or from mapped windows, so reading a
+     * part at the end of a large file costs the same as one at its start.
+     *
+     * @param block    the block
+     * @param restoring if the content restored so far is read for files whose local copy is
+     *                  missing
+     * @return the content of the block
+     * @throws FileNotFoundException if a file of the block doesn't exist
+     * @throws IOException           if a file is shorter than its range or can't be read
+     */
+    @NotNull
+    private byte[] assembleBlock(@NotNull Config.Block block, boolean restoring)
+            throws IOException {
+        // a new array is already filled with zeros
+        byte[] content = new byte[Math.toIntExact(config.getConfig().getBlockSize())];
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        byte[] header = ArrayUtils.toPrimitive(getHeader(block.fileToByteRange()));
+        buffer.put(header, 0, Math.min(header.length, buffer.remaining()));
+        for (Config.FileRange range : block.fileToByteRange()) {
+            Path path = getContentPath(Objects.requireNonNullElse(config.getConfig().getFile(range
+                    .fileId()), new Config.File(range.fileId(), "")));
+            if (restoring && !Files.exists(path)) {
+                path = getRestorePath(range.fileId());
             }
+            if (!Files.exists(path)) {
+                throw new FileNotFoundException("File does not exist");
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + range.stop()
+                    - range.start()));
+            readRange(path, range.start(), buffer);
+            buffer.limit(buffer.capacity());
         }
+        return content;
+    }
 
-        return fileBlocks;
+    @Override
+    public boolean isBlockRestored(@NotNull Config.Block block) {
+        Config.Block foundBlock = config.getConfig().getBlock(block.id());
+        if (foundBlock == null || foundBlock.digest() == null) {
+            return false;
+        }
+        // not from the cache, the files on the disk are checked
+        try (InputStream blockIs = new ByteArrayInputStream(assembleBlock(foundBlock, true))) {
+            return foundBlock.digest().equals(DIGEST.getHashFunction().apply(blockIs));
+        } catch (IOException | RuntimeException ignored) { // NOPMD
+            // the files are missing or too short
+            return false;
+        }
     }
 
     @Override
-    @SuppressWarnings("PMD.CloseResource")
-    public InputStream getBlock(@NotNull Config.Block block) throws IOException {
+    public void restoreBlock(@NotNull Config.Block block, @NotNull InputStream in)
+            throws IOException {
         Config.Block foundBlock = config.getConfig().getBlock(block.id());
         if (foundBlock == null) {
             throw new FileNotFoundException("Block not found in the list of blocks");
         }
+        List<Config.FileRange> ranges = foundBlock.fileToByteRange();
+        DataInputStream blockIs = new DataInputStream(new BufferedInputStream(in,
+                RESTORE_BUFFER_SIZE));
+        for (int i = 0; i < ranges.size(); i++) {
+            Config.FileRange range = getHeaderRange(ranges.get(i));
+            long start = blockIs.readLong();
+            long stop = blockIs.readLong();
+            ByteArrayOutputStream fileName = new ByteArrayOutputStream();
+            int b = blockIs.read();
+            while (b != HEADER_SEPARATOR && b != HEADER_END) {
+                if (b < 0) {
+                    throw new EOFException("Block header is incomplete");
+                }
+                fileName.write(b);
+                b = blockIs.read();
+            }
+            boolean last = i == ranges.size() - 1;
+            boolean ended = b == HEADER_END;
+            if (start != range.start() || stop != range.stop() || !Arrays.equals(fileName
+                    .toByteArray(), getFileName(range.fileId())) || ended != last) {
+                throw new IOException("Block header doesn't match the ranges of the block");
+            }
+        }
+        writeRanges(ranges, blockIs);
+    }
 
-        InputStream fileContentIs = null;
-        for (Config.FileRange fileRange : foundBlock.fileToByteRange()) {
-            InputStream fileContent = getFile(new Config.File(fileRange.fileId(), ""));
-            if (fileContent.skip(fileRange.start()) != fileRange.start()) {
-                fileContent.close();
-                if (fileContentIs != null) {
-                    fileContentIs.close();
+    /**
+     * Writes the parts of the files of a block into the restores of the files, the parts of files
+     * whose local copy exists are skipped
+     *
+     * @param ranges  the ranges of the block
+     * @param blockIs the content of the block after the header
+     * @throws IOException if the content is shorter than the ranges or couldn't be written
+     */
+    private void writeRanges(@NotNull List<Config.FileRange> ranges, @NotNull InputStream blockIs)
+            throws IOException {
+        byte[] buffer = new byte[RESTORE_BUFFER_SIZE];
+        for (Config.FileRange range : ranges) {
+            if (Files.exists(getPath(range.fileId()))) {
+                blockIs.skipNBytes(range.stop() - range.start());
+                continue;
+            }
+            Path path = getRestorePath(range.fileId());
+            fileFolder.createSubFolders(range.fileId());
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                long position = range.start();
+                while (position < range.stop()) {
+                    int read = blockIs.read(buffer, 0, (int) Math.min(buffer.length, range.stop()
+                            - position));
+                    if (read < 0) {
+                        throw new EOFException("Block is shorter than its ranges");
+                    }
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        position += channel.write(chunk, position);
+                    }
                 }
-                throw new IOException("Couldn't skip starting bytes");
-            }
-            fileContent = BoundedInputStream.builder()
-                    .setInputStream(fileContent)
-                    .setMaxCount(fileRange.stop() - fileRange.start())
-                    .get();
-            if (fileContentIs == null) {
-                fileContentIs = fileContent;
-            } else {
-                fileContentIs = new SequenceInputStream(fileContentIs, fileContent);
             }
+            mappedFiles.invalidate(path);
+            blockCache.invalidate(range.fileId());
         }
+    }
 
-        // TODO: encrypt block content
+    /**
+     * Fills the buffer with a part of a file, through the memory mapped windows if enabled
+     *
+     * @param path     the file
+     * @param position the start of the part in the file
+     * @param target   the buffer to fill up to its limit
+     * @throws IOException if the file is shorter than the part or can't be read
+     */
+    private void readRange(@NotNull Path path, long position, @NotNull ByteBuffer target)
+            throws IOException {
+        if (mappedFiles.isEnabled()) {
+            mappedFiles.read(path, position, target);
+        } else {
+            readUnmapped(path, position, target);
+        }
+    }
 
-        return BoundedInputStream.builder()
-                .setInputStream(new SequenceInputStream(new SequenceInputStream(
-                        new ByteArrayInputStream(ArrayUtils.toPrimitive(getHeader(foundBlock
-                                .fileToByteRange()))), fileContentIs), new NullInputStream(config
-                                        .getConfig()
-                                        .getBlockSize()) {
-                                    @Override
-                                    protected void processBytes(byte[] bytes, int offset,
-                                            int length) {
-                                        for (int i = offset; i < length; i++) {
-                                            bytes[i] = 0;
-                                        }
-                                    }
-                                }))
-                .setMaxCount(config.getConfig().getBlockSize())
-                .get();
+    /**
+     * Fills the buffer with a part of a file with positional reads
+     *
+     * @param path     the file
+     * @param position the start of the part in the file
+     * @param target   the buffer to fill up to its limit
+     * @throws IOException if the file is shorter than the part or can't be read
+     */
+    private static void readUnmapped(@NotNull Path path, long position,
+            @NotNull ByteBuffer target) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long current = position;
+            while (target.hasRemaining()) {
+                int read = channel.read(target, current);
+                if (read < 0) {
+                    throw new IOException("File is shorter than its range in the block");
+                }
+                current += read;
+            }
+        }
     }
 
     @Override
@@ -353,15 +1481,14 @@ class DataInstance implements Data {
     public int getFreeExternalBlocks() {
         long sizeForBlocks = getTotalSize() * 2;
         int amountOfBlocks = (int) (sizeForBlocks / config.getConfig().getBlockSize());
-        amountOfBlocks -= config.getConfig().getExternalBlocks().size();
+        amountOfBlocks -= config.getConfig().getExternalBlockCount();
         return amountOfBlocks;
     }
 
     @Override
     public boolean createExternalBlock(@NotNull InputStream in,
             @NotNull Config.ExternalBlock externalBlock) throws FileAlreadyExistsException {
-        Path path = Paths.get(config.getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER,
-                externalBlock.id());
+        Path path = externalBlockFolder.resolve(externalBlock.id());
 
         // Check if the file already exists
         if (Files.exists(path)) {
@@ -369,8 +1496,9 @@ class DataInstance implements Data {
         }
 
         try {
-            Files.createDirectories(path.getParent());
+            externalBlockFolder.createSubFolders(externalBlock.id());
             Files.copy(in, path);
+            saveContent(externalBlock, path);
             return true;
         } catch (FileAlreadyExistsException e) { // NOPMD
             throw e; // NOPMD
@@ -383,8 +1511,7 @@ class DataInstance implements Data {
     @Override
     public boolean updateExternalBlock(@NotNull InputStream in,
             @NotNull Config.ExternalBlock externalBlock) throws FileNotFoundException {
-        Path path = Paths.get(config.getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER,
-                externalBlock.id());
+        Path path = externalBlockFolder.resolve(externalBlock.id());
 
         // Check if the file exists
         if (!Files.exists(path)) {
@@ -393,6 +1520,7 @@ class DataInstance implements Data {
 
         try {
             Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+            saveContent(externalBlock, path);
             return true;
         } catch (IOException e) {
             LOG.warn("Failed to update external block", e);
@@ -400,11 +1528,50 @@ class DataInstance implements Data {
         }
     }
 
+    @Override
+    @NotNull
+    public Config.ExternalBlock recordContent(@NotNull Config.ExternalBlock externalBlock)
+            throws IOException {
+        Path path = externalBlockFolder.resolve(externalBlock.id());
+        Config.ExternalBlock recorded;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            recorded = new Config.ExternalBlock(externalBlock.id(), externalBlock
+                    .serverHostname(), attributes.lastModifiedTime().toInstant().getEpochSecond(),
+                    attributes.size());
+        } catch (NoSuchFileException ignored) {
+            recorded = Config.ExternalBlock.reserve(externalBlock.id(), externalBlock
+                    .serverHostname());
+        }
+        if (!config.getConfig().updateExternalBlockContent(recorded.id(), recorded.lastModified(),
+                recorded.size())) {
+            LOG.warn("External block was deleted while its content was recorded");
+        }
+        return recorded;
+    }
+
+    /**
+     * Saves the last modified date and size of the written content of an external block in the
+     * config, so that listing the blocks doesn't need to read the files
+     *
+     * @param externalBlock the external block
+     * @param path          the written content
+     * @throws IOException if the attributes of the content couldn't be read
+     */
+    private void saveContent(@NotNull Config.ExternalBlock externalBlock, @NotNull Path path)
+            throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toInstant().getEpochSecond();
+        if (!config.getConfig().updateExternalBlockContent(externalBlock.id(), lastModified,
+                attributes.size())) {
+            LOG.warn("External block was deleted while it was written");
+        }
+    }
+
     @Override
     public boolean deleteExternalBlock(@NotNull Config.ExternalBlock externalBlock)
             throws FileNotFoundException {
-        Path path = Paths.get(config.getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER,
-                externalBlock.id());
+        Path path = externalBlockFolder.resolve(externalBlock.id());
 
         // check if the file exists
         if (!Files.exists(path)) {
@@ -425,8 +1592,7 @@ class DataInstance implements Data {
     @Override
     public @NotNull InputStream getExternalBlock(Config.@NotNull ExternalBlock externalBlock)
             throws IOException {
-        Path path = Paths.get(config.getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER,
-                externalBlock.id());
+        Path path = externalBlockFolder.resolve(externalBlock.id());
 
         // check if the file exists
         if (!Files.exists(path)) {
@@ -439,8 +1605,7 @@ class DataInstance implements Data {
     @Override
     public @NotNull Instant getLastModified(Config.@NotNull ExternalBlock externalBlock)
             throws IOException {
-        Path path = Paths.get(config.getConfig().getMountPath(), EXTERNAL_BLOCK_FOLDER,
-                externalBlock.id());
+        Path path = externalBlockFolder.resolve(externalBlock.id());
 
         // check if the file exists
         if (!Files.exists(path)) {
@@ -461,4 +1626,34 @@ class DataInstance implements Data {
         return hashFunction.apply(new SequenceInputStream(getExternalBlock(externalBlock),
                 new ByteArrayInputStream(salt)));
     }
+
+    /**
+     * The usage of files measured before an operation
+     *
+     * @param fileIds      the ids of the measured files
+     * @param used         the size of the saved files
+     * @param deduplicated the size of the files sharing a content
+     */
+    private record Usage(@NotNull List<String> fileIds, long used, long deduplicated) {
+    }
+
+    /**
+     * A saved content of a file
+     *
+     * @param digest      the hex SHA256 of the content, see {@link Config.File#digest()}
+     * @param size        the size of the content
+     * @param changedFrom the start of the part that differs from the previous content
+     * @param changedTo   the end of the part that differs from the previous content
+     */
+    private record SavedContent(@NotNull String digest, long size, long changedFrom,
+            long changedTo) {
+
+        /**
+         * @return the same content, treated as changed completely
+         */
+        @NotNull
+        private SavedContent changedFully() {
+            return new SavedContent(digest, size, 0, Long.MAX_VALUE);
+        }
+    }
 }
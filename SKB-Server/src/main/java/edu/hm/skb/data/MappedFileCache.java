@@ -0,0 +1,147 @@
+package edu.hm.skb.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Reads parts of files through memory mapped windows, so that reading the same files again is
+ * served from the page cache without a system call per read.
+ * <p/>
+ * The windows are kept in a cache of the least recently used ones, bounded by the address space
+ * they take. A dropped window is unmapped by the garbage collector, so the budget bounds the
+ * windows in use and not the ones waiting to be collected.
+ * <p/>
+ * A window belongs to one version of a file, identified by its file key and size. Files must
+ * never be cut in place while they are mapped, they are replaced by moving a new file over them.
+ */
+/* default */ final class MappedFileCache {
+
+    /**
+     * Size of a mapped window, windows start at multiples of it
+     */
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The mapped windows, weighted by their size
+     */
+    @Nullable
+    private final Cache<Window, MappedByteBuffer> windows;
+
+    /**
+     * @param budget the address space in bytes the mapped windows may take, 0 to disable mapping
+     */
+    /* default */ MappedFileCache (long budget) {
+        if (budget == 0) {
+            windows = null;
+        } else {
+            windows = CacheBuilder.newBuilder()
+                    .maximumWeight(budget)
+                    .weigher((Window window, MappedByteBuffer buffer) -> buffer.capacity())
+                    .build();
+        }
+    }
+
+    /**
+     * @return true if files are read through mapped windows
+     */
+    /* default */ boolean isEnabled() {
+        return windows != null;
+    }
+
+    /**
+     * Fills the buffer with the content of the file at the given position
+     *
+     * @param path     the file
+     * @param position the position in the file to read from
+     * @param target   the buffer to fill up to its limit
+     * @throws IOException if the file is shorter than the part or can't be mapped
+     */
+    /* default */ void read(@NotNull Path path, long position, @NotNull ByteBuffer target)
+            throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (position + target.remaining() > attributes.size()) {
+            throw new IOException("File is shorter than its range in the block");
+        }
+        long current = position;
+        while (target.hasRemaining()) {
+            long index = current / WINDOW_SIZE;
+            MappedByteBuffer window = getWindow(new Window(path, attributes.fileKey(), attributes
+                    .size(), index));
+            int offset = (int) (current - index * WINDOW_SIZE);
+            int length = Math.min(target.remaining(), window.capacity() - offset);
+            // the slice has its own position, so the window can be shared between threads
+            target.put(window.slice(offset, length));
+            current += length;
+        }
+    }
+
+    /**
+     * Drops the windows of a file, to be called when the file is replaced or deleted
+     *
+     * @param path the file
+     */
+    /* default */ void invalidate(@NotNull Path path) {
+        if (windows != null) {
+            windows.asMap().keySet().removeIf(window -> window.path().equals(path));
+        }
+    }
+
+    /**
+     * @param window the window
+     * @return the mapped window, mapped now if it isn't in the cache
+     * @throws IOException if the window couldn't be mapped
+     */
+    @NotNull
+    private MappedByteBuffer getWindow(@NotNull Window window) throws IOException {
+        try {
+            return Objects.requireNonNull(windows).get(window, () -> map(window));
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to map file", e);
+        }
+    }
+
+    /**
+     * @param window the window
+     * @return the window mapped read only
+     * @throws IOException if the file changed or couldn't be mapped
+     */
+    @NotNull
+    private static MappedByteBuffer map(@NotNull Window window) throws IOException {
+        long start = window.index() * WINDOW_SIZE;
+        long length = Math.min(WINDOW_SIZE, window.size() - start);
+        try (FileChannel channel = FileChannel.open(window.path(), StandardOpenOption.READ)) {
+            // reading a mapping beyond the end of the file crashes, so the opened file must be
+            // the version the window is for
+            if (channel.size() < start + length || !Objects.equals(window.fileKey(), Files
+                    .readAttributes(window.path(), BasicFileAttributes.class)
+                    .fileKey())) {
+                throw new IOException("File changed while it was mapped");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+    }
+
+    /**
+     * A window of a version of a file
+     *
+     * @param path    the file
+     * @param fileKey the key of the file on the file system, null if not supported
+     * @param size    the size of the file
+     * @param index   the position of the window in the file divided by the window size
+     */
+    private record Window(@NotNull Path path, @Nullable Object fileKey, long size, long index) {
+    }
+}
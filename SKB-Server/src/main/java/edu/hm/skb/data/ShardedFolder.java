@@ -0,0 +1,174 @@
+package edu.hm.skb.data;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A folder whose entries are spread over two levels of sub folders, named after the first two
+ * bytes of the hash of the id in hex. A million entries take about 15 per folder instead of all
+ * in one, which keeps lookups, creates and walks fast.
+ * <p/>
+ * Entries of the old flat layout directly in the folder are moved into their sub folder when
+ * they are resolved and by {@link #migrate(int)}, while the server keeps running. Once no flat
+ * entries are left, resolving an id doesn't touch the file system at all.
+ */
+/* default */ final class ShardedFolder {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(ShardedFolder.class);
+    /**
+     * Spreads the ids evenly, also ids that aren't random
+     */
+    @NotNull
+    private static final HashFunction SHARD_HASH = Hashing.murmur3_32_fixed();
+    /**
+     * Amount of sub folders on the second level, two bytes of the hash
+     */
+    private static final int SUB_FOLDERS = 1 << 16;
+
+    /**
+     * The folder
+     */
+    @NotNull
+    private final Path root;
+    /**
+     * If no entries of the flat layout are left
+     */
+    @NotNull
+    private final AtomicBoolean migrated = new AtomicBoolean();
+    /**
+     * One bit for every sub folder on the second level that was created, so that creating an
+     * entry doesn't check its sub folders again
+     */
+    @NotNull
+    private final AtomicLongArray createdSubFolders = new AtomicLongArray(SUB_FOLDERS
+            / Long.SIZE);
+
+    /**
+     * @param root the folder
+     */
+    /* default */ ShardedFolder (@NotNull Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param id the id of an entry
+     * @return the path of the entry in its sub folder, the sub folders might not exist yet
+     */
+    @NotNull
+    /* default */ Path resolve(@NotNull String id) {
+        Path path = getSubFolder(getShard(id)).resolve(id);
+        if (!migrated.get() && !Files.exists(path)) {
+            moveFlatEntry(id, path);
+        }
+        return path;
+    }
+
+    /**
+     * Creates the sub folders of an entry, if they weren't created before
+     *
+     * @param id the id of the entry
+     * @throws IOException if the sub folders couldn't be created
+     */
+    /* default */ void createSubFolders(@NotNull String id) throws IOException {
+        int shard = getShard(id);
+        long bit = 1L << (shard % Long.SIZE);
+        if ((createdSubFolders.get(shard / Long.SIZE) & bit) != 0) {
+            return;
+        }
+        Files.createDirectories(getSubFolder(shard));
+        createdSubFolders.accumulateAndGet(shard / Long.SIZE, bit, (bits, added) -> bits | added);
+    }
+
+    /**
+     * @param id the id of an entry
+     * @return the number of the sub folder of the entry on the second level
+     */
+    private static int getShard(@NotNull String id) {
+        byte[] hash = SHARD_HASH.hashString(id, StandardCharsets.UTF_8).asBytes();
+        return (hash[0] & 0xFF) << Byte.SIZE | hash[1] & 0xFF;
+    }
+
+    /**
+     * @param shard the number of a sub folder on the second level
+     * @return the path of the sub folder
+     */
+    @NotNull
+    private Path getSubFolder(int shard) {
+        HexFormat hex = HexFormat.of();
+        return root.resolve(hex.toHexDigits((byte) (shard >>> Byte.SIZE)))
+                .resolve(hex.toHexDigits((byte) shard));
+    }
+
+    /**
+     * Moves entries of the flat layout into their sub folders
+     *
+     * @param limit the maximum amount of entries to move
+     * @return the amount of entries moved, 0 once none are left
+     * @throws IOException if the folder couldn't be read or an entry couldn't be moved
+     */
+    /* default */ int migrate(int limit) throws IOException {
+        if (migrated.get()) {
+            return 0;
+        }
+        Files.createDirectories(root);
+        int moved = 0;
+        boolean left = false;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root, Files::isRegularFile)) {
+            for (Path entry : entries) {
+                if (moved == limit) {
+                    left = true;
+                    break;
+                }
+                resolve(entry.getFileName().toString());
+                if (Files.exists(entry)) {
+                    LOG.warnf("%s is also in its sub folder, the flat copy is ignored", entry);
+                } else {
+                    moved++;
+                }
+            }
+        }
+        if (!left) {
+            migrated.set(true);
+        }
+        return moved;
+    }
+
+    /**
+     * Moves the entry of the flat layout with the id into its sub folder, if there is one
+     *
+     * @param id   the id of the entry
+     * @param path the path of the entry in its sub folder
+     */
+    private void moveFlatEntry(@NotNull String id, @NotNull Path path) {
+        Path flatPath = root.resolve(id);
+        if (!Files.isRegularFile(flatPath)) {
+            return;
+        }
+        try {
+            createSubFolders(id);
+            Files.move(flatPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException ignored) {
+            // moved by another thread in the meantime
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't move " + flatPath + " into its sub folder",
+                    e);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package edu.hm.skb.data;
+
+import edu.hm.skb.config.Config;
+import org.jboss.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Lets files with the same content share one saved copy of it. The file holding the copy is
+ * named in the content id of the other files, which are saved as empty markers keeping their last
+ * modified date and have no blocks.
+ * <p/>
+ * The saved content is only given up once the config names the new holder, so that a failed
+ * change never loses the content.
+ */
+/* default */ final class SharedContent {
+
+    /**
+     * The log instance
+     */
+    @NotNull
+    private static final Logger LOG = Logger.getLogger(SharedContent.class);
+
+    /**
+     * The config the content ids are saved in
+     */
+    @NotNull
+    private final Contents config;
+    /**
+     * The folder the files are saved in
+     */
+    @NotNull
+    private final ShardedFolder fileFolder;
+    /**
+     * Memory mapped windows of the files, invalidated when a file is replaced
+     */
+    @NotNull
+    private final MappedFileCache mappedFiles;
+
+    /**
+     * @param config      the config the content ids are saved in
+     * @param fileFolder  the folder the files are saved in
+     * @param mappedFiles memory mapped windows of the files
+     */
+    /* default */ SharedContent (@NotNull Contents config, @NotNull ShardedFolder fileFolder,
+            @NotNull MappedFileCache mappedFiles) {
+        this.config = config;
+        this.fileFolder = fileFolder;
+        this.mappedFiles = mappedFiles;
+    }
+
+    /**
+     * Removes the range of a file from a block, the block is deleted if it has no ranges left
+     *
+     * @param tx     the transaction to save the change in
+     * @param block  the block
+     * @param fileId the id of the file
+     */
+    /* default */ static void removeRange(@NotNull Config.Transaction tx,
+            @NotNull Config.Block block, @NotNull String fileId) {
+        List<Config.FileRange> ranges = block.fileToByteRange()
+                .stream()
+                .filter(range -> !range.fileId().equals(fileId))
+                .toList();
+        if (ranges.isEmpty()) {
+            tx.deleteBlock(block.id());
+        } else {
+            tx.updateBlockRanges(block.id(), ranges);
+        }
+    }
+
+    /**
+     * Lets a file share the content of another file with the same content instead of saving it
+     * again. The file is replaced by an empty marker keeping its last modified date and gets no
+     * blocks. The marker is only written after the change is saved, if writing it fails the file
+     * keeps an unused copy of the content.
+     *
+     * @param file   the file
+     * @param path   the saved content of the file
+     * @param digest the digest of the content
+     * @param size   the size of the content
+     * @param blocks the blocks of the file, its ranges are removed together with saving the
+     *               shared content
+     * @return false if no other file holds the same content, the file keeps its content then
+     * @throws IOException if the file couldn't be replaced
+     */
+    /* default */ boolean deduplicate(@NotNull Config.File file, @NotNull Path path,
+            @NotNull String digest, long size, @NotNull List<Config.Block> blocks)
+            throws IOException {
+        Config.File original = config.getFileByDigest(digest);
+        if (size == 0 || original == null || original.id().equals(file.id())) {
+            return false;
+        }
+        Path originalPath = getContentPath(original);
+        if (!Files.exists(originalPath) || Files.size(originalPath) != size) {
+            return false;
+        }
+        boolean saved = config.transaction(tx -> {
+            if (!tx.updateFileContent(file.id(), digest, original.id())) {
+                throw new IllegalStateException("Error saving file: file is gone");
+            }
+            blocks.forEach(block -> removeRange(tx, block, file.id()));
+        });
+        if (!saved) {
+            throw new IllegalStateException("Error saving file: blocks couldn't be saved");
+        }
+        // the file is replaced instead of cut, it might be mapped
+        Path marker = Files.createTempFile(path.getParent(), file.id(), ".tmp");
+        try {
+            Files.setLastModifiedTime(marker, Files.getLastModifiedTime(path));
+            Files.move(marker, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deleteMarker(marker);
+        }
+        mappedFiles.invalidate(path);
+        return true;
+    }
+
+    /**
+     * Hands the content of a file over to the first file sharing it, before the file is deleted
+     * or gets a new content. That file takes over the saved content and the blocks, the other
+     * files share its content from then on. The content is moved back if the change couldn't be
+     * saved.
+     *
+     * @param file the file holding its own copy of the content
+     * @return the blocks that moved to the other file, their header changed
+     * @throws IOException if the content couldn't be moved
+     */
+    @NotNull
+    /* default */ List<Config.Block> handOver(@NotNull Config.File file) throws IOException {
+        List<Config.File> references = config.getFileReferences(file.id());
+        if (references.isEmpty()) {
+            return List.of();
+        }
+        Config.File heir = references.get(0);
+        Path path = getPath(file.id());
+        Path heirPath = getPath(heir.id());
+        FileTime lastModified = Files.getLastModifiedTime(heirPath);
+        Files.move(path, heirPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        mappedFiles.invalidate(path);
+        mappedFiles.invalidate(heirPath);
+
+        List<Config.Block> blocks = config.getBlocks(file.id());
+        boolean saved = false;
+        try {
+            saved = config.transaction(tx -> {
+                tx.updateFileContent(heir.id(), heir.digest(), null);
+                references.stream()
+                        .skip(1)
+                        .forEach(reference -> tx.updateFileContent(reference.id(), reference
+                                .digest(), heir.id()));
+                blocks.forEach(block -> tx.updateBlockRanges(block.id(), block.fileToByteRange()
+                        .stream()
+                        .map(range -> range.fileId().equals(file.id()) ?
+                                new Config.FileRange(heir.id(), range.start(), range.stop()) :
+                                range)
+                        .toList()));
+            });
+        } finally {
+            if (!saved) {
+                // the config still names the file as holder of the content
+                Files.move(heirPath, path, StandardCopyOption.ATOMIC_MOVE);
+                Files.createFile(heirPath);
+                Files.setLastModifiedTime(heirPath, lastModified);
+                mappedFiles.invalidate(path);
+            }
+        }
+        if (!saved) {
+            throw new IllegalStateException("Error handing over file: blocks couldn't be saved");
+        }
+        Files.setLastModifiedTime(heirPath, lastModified);
+        return blocks;
+    }
+
+    /**
+     * @param file a file
+     * @return the path of the saved content of the file, the one of the file holding the content
+     * if the file shares it
+     */
+    @NotNull
+    /* default */ Path getContentPath(@NotNull Config.File file) {
+        return getPath(Objects.requireNonNullElse(file.contentId(), file.id()));
+    }
+
+    /**
+     * @param id the id of a file
+     * @return the path the file is saved at, an empty marker if the file shares its content
+     */
+    @NotNull
+    /* default */ Path getPath(@NotNull String id) {
+        return fileFolder.resolve(id);
+    }
+
+    /**
+     * @param marker the marker to delete, nothing is done if it was already moved
+     */
+    private static void deleteMarker(@NotNull Path marker) {
+        try {
+            Files.deleteIfExists(marker);
+        } catch (IOException e) {
+            LOG.warn("failed to delete temporary file", e);
+        }
+    }
+
+    /**
+     * The part of the {@link Config} the content ids are read from and saved in
+     */
+    /* default */ interface Contents {
+
+        /**
+         * @param config the config
+         * @return the content ids of the config
+         */
+        @NotNull
+        static Contents from(@NotNull Config config) {
+            return new Contents() {
+
+                @Override
+                @Nullable
+                public Config.File getFileByDigest(@NotNull String digest) {
+                    return config.getFileByDigest(digest);
+                }
+
+                @Override
+                @NotNull
+                public List<Config.File> getFileReferences(@NotNull String id) {
+                    return config.getFileReferences(id);
+                }
+
+                @Override
+                @NotNull
+                public List<Config.Block> getBlocks(@NotNull String fileId) {
+                    return config.getBlocks(fileId);
+                }
+
+                @Override
+                public boolean transaction(@NotNull Consumer<Config.Transaction> changes) {
+                    return config.transaction(changes);
+                }
+            };
+        }
+
+        /**
+         * See {@link Config#getFileByDigest(String)}
+         *
+         * @param digest the digest of the content
+         * @return the file holding the content, null if no file has it
+         */
+        @Nullable
+        Config.File getFileByDigest(@NotNull String digest);
+
+        /**
+         * See {@link Config#getFileReferences(String)}
+         *
+         * @param id the id of the file holding the content
+         * @return the files sharing the content
+         */
+        @NotNull
+        List<Config.File> getFileReferences(@NotNull String id);
+
+        /**
+         * See {@link Config#getBlocks(String)}
+         *
+         * @param fileId the id of the file
+         * @return the blocks of the file
+         */
+        @NotNull
+        List<Config.Block> getBlocks(@NotNull String fileId);
+
+        /**
+         * See {@link Config#transaction(Consumer)}
+         *
+         * @param changes the changes to make on the transaction
+         * @return false if the changes couldn't be saved
+         */
+        boolean transaction(@NotNull Consumer<Config.Transaction> changes);
+    }
+}
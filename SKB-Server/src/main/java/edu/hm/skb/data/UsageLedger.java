@@ -0,0 +1,159 @@
+package edu.hm.skb.data;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the storage usage of the files up to date, so that it can be read without walking the
+ * saved files.
+ * <p/>
+ * The operations on the files add their changes, a reconciliation replaces the sums with measured
+ * values from time to time and corrects changes that were missed. The sums are persisted in a
+ * small file, so they are known right after a restart.
+ */
+/* default */ final class UsageLedger {
+
+    /**
+     * Version of the persisted format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The file the sums are persisted in
+     */
+    @NotNull
+    private final Path path;
+    /**
+     * The size of the saved files
+     */
+    @NotNull
+    private final AtomicLong usedSize = new AtomicLong();
+    /**
+     * The size of the files sharing the content of another file
+     */
+    @NotNull
+    private final AtomicLong deduplicatedSize = new AtomicLong();
+    /**
+     * The total size of the file system, 0 if not measured yet
+     */
+    @NotNull
+    private final AtomicLong totalSpace = new AtomicLong();
+    /**
+     * If the sums changed since they were persisted
+     */
+    @NotNull
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    /**
+     * @param path the file the sums are persisted in
+     */
+    /* default */ UsageLedger (@NotNull Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Loads the persisted sums
+     *
+     * @return false if no sums were persisted yet, they need to be reconciled
+     * @throws IOException if the persisted sums couldn't be read
+     */
+    /* default */ boolean load() throws IOException {
+        try (InputStream in = Files.newInputStream(path);
+                DataInputStream dataIn = new DataInputStream(in)) {
+            if (dataIn.readInt() != VERSION) {
+                return false;
+            }
+            usedSize.set(dataIn.readLong());
+            deduplicatedSize.set(dataIn.readLong());
+            totalSpace.set(dataIn.readLong());
+            return true;
+        } catch (NoSuchFileException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * Persists the sums if they changed since the last time
+     *
+     * @throws IOException if the sums couldn't be written
+     */
+    /* default */ void save() throws IOException {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        Path tmpPath = Path.of(path + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmpPath);
+                DataOutputStream dataOut = new DataOutputStream(out)) {
+            dataOut.writeInt(VERSION);
+            dataOut.writeLong(usedSize.get());
+            dataOut.writeLong(deduplicatedSize.get());
+            dataOut.writeLong(totalSpace.get());
+        } catch (IOException e) {
+            dirty.set(true);
+            throw e;
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the size of the saved files
+     */
+    /* default */ long getUsedSize() {
+        return usedSize.get();
+    }
+
+    /**
+     * @return the size of the files sharing the content of another file
+     */
+    /* default */ long getDeduplicatedSize() {
+        return deduplicatedSize.get();
+    }
+
+    /**
+     * @return the total size of the file system, 0 if not measured yet
+     */
+    /* default */ long getTotalSpace() {
+        return totalSpace.get();
+    }
+
+    /**
+     * Adds the changes of an operation on the files
+     *
+     * @param usedDelta         the change of the size of the saved files
+     * @param deduplicatedDelta the change of the size of the files sharing a content
+     */
+    /* default */ void add(long usedDelta, long deduplicatedDelta) {
+        if (usedDelta == 0 && deduplicatedDelta == 0) {
+            return;
+        }
+        usedSize.addAndGet(usedDelta);
+        deduplicatedSize.addAndGet(deduplicatedDelta);
+        dirty.set(true);
+    }
+
+    /**
+     * Replaces the sums with measured values
+     *
+     * @param usedSize         the measured size of the saved files
+     * @param deduplicatedSize the measured size of the files sharing a content
+     * @param totalSpace       the measured total size of the file system
+     */
+    /* default */ void reset(long usedSize, long deduplicatedSize, long totalSpace) {
+        this.usedSize.set(usedSize);
+        this.deduplicatedSize.set(deduplicatedSize);
+        this.totalSpace.set(totalSpace);
+        dirty.set(true);
+    }
+}
@@ -0,0 +1,81 @@
+package edu.hm.skb.util;
+
+import edu.hm.skb.config.Config;
+import edu.hm.skb.config.ConfigInjector;
+import io.quarkus.runtime.Startup;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the blocks by the amount of servers they are saved on, kept up to date with the config
+ * change events instead of counting all blocks on every request
+ */
+@Startup
+@ApplicationScoped
+public class BlockStatisticsBean {
+
+    /**
+     * Blocks saved on this many servers or more are counted together
+     */
+    public static final int MAX_REPLICAS = 2;
+
+    /**
+     * Amount of blocks by the amount of servers, up to {@link #MAX_REPLICAS}
+     */
+    @NotNull
+    private final AtomicLongArray blockCounts = new AtomicLongArray(MAX_REPLICAS + 1);
+
+    /**
+     * Config Instance
+     */
+    @Inject
+    /* default */ ConfigInjector config;
+
+    /**
+     * Starts counting the blocks
+     */
+    @PostConstruct
+    /* default */ void subscribe() {
+        config.getConfig().subscribe(this::onConfigEvent);
+    }
+
+    /**
+     * Keeps the counts up to date
+     *
+     * @param event the config change
+     */
+    private void onConfigEvent(@NotNull Config.Event event) {
+        if (event instanceof Config.BlockAdded added) {
+            blockCounts.incrementAndGet(index(added.block().serverToId().size()));
+        } else if (event instanceof Config.BlockRemoved removed) {
+            blockCounts.decrementAndGet(index(removed.block().serverToId().size()));
+        } else if (event instanceof Config.ReplicaAdded replicaAdded) {
+            blockCounts.decrementAndGet(index(replicaAdded.replicas() - 1));
+            blockCounts.incrementAndGet(index(replicaAdded.replicas()));
+        } else if (event instanceof Config.ReplicaRemoved replicaRemoved) {
+            blockCounts.decrementAndGet(index(replicaRemoved.replicas() + 1));
+            blockCounts.incrementAndGet(index(replicaRemoved.replicas()));
+        }
+    }
+
+    /**
+     * @param replicas the amount of servers
+     * @return the index of the count
+     */
+    private static int index(int replicas) {
+        return Math.min(replicas, MAX_REPLICAS);
+    }
+
+    /**
+     * @param replicas the amount of servers, {@link #MAX_REPLICAS} counts all blocks saved on at
+     *                 least that many servers
+     * @return the amount of blocks saved on the given amount of servers
+     */
+    public long getBlockCount(int replicas) {
+        return blockCounts.get(index(replicas));
+    }
+}
@@ -9,9 +9,9 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.security.SecureRandom;
 import java.util.List;
+import java.util.StringJoiner;
 
 /**
  * List from <a href="https://gist.github.com/dracos/dd0668f281e685bad51479e5acaadb93">
@@ -27,10 +27,21 @@ public class WordListBean {
     @NotNull
     private static final Logger LOG = Logger.getLogger(WordListBean.class);
 
+    /**
+     * Amount of backup codes tried before giving up, with 5 of the over 10,000 words a collision
+     * is practically impossible
+     */
+    private static final int MAX_TRIES = 100;
+
     /**
      * Cached list of words
      */
     private final List<String> wordList;
+    /**
+     * Source of the backup codes, they grant access to the blocks of a server
+     */
+    @NotNull
+    private final SecureRandom random = new SecureRandom();
 
     /**
      * Generate backup Code
@@ -41,25 +52,53 @@ public class WordListBean {
      */
     @Nullable
     public String generateBackupCode(Config config, int amountWords) {
-        StringBuilder backupCode = new StringBuilder();
-        List<String> wordListCopy = new ArrayList<>(getWordList());
-        long maxTries = (long) Math.pow(2, wordListCopy.size());
-        long counter = 0;
-        do {
-            Collections.shuffle(wordListCopy);
-            backupCode.setLength(0);
-            backupCode.append(wordListCopy.stream()
-                    .limit(amountWords)
-                    .reduce((s, s2) -> s + " " + s2)
-                    .orElse(""));
-            counter++;
-        } while (counter < maxTries && backupCode.isEmpty() && config.getServers()
-                .stream()
-                .anyMatch(server -> server.backupCode().contentEquals(backupCode)));
-        if (counter == maxTries) {
-            return null;
+        if (amountWords > wordList.size()) {
+            throw new IllegalArgumentException("Not enough words for " + amountWords + " words");
+        }
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            String backupCode = randomWords(amountWords);
+            if (config.getServerByBackupCode(backupCode) == null) {
+                return backupCode;
+            }
+        }
+        LOG.errorf("Couldn't generate an unused backup code in %d tries", MAX_TRIES);
+        return null;
+    }
+
+    /**
+     * Picks distinct random words without shuffling the whole list
+     *
+     * @param amountWords the amount of words
+     * @return the words separated by a space
+     */
+    @NotNull
+    private String randomWords(int amountWords) {
+        int[] picked = new int[amountWords];
+        StringJoiner words = new StringJoiner(" ");
+        for (int i = 0; i < amountWords; i++) {
+            int index;
+            do {
+                index = random.nextInt(wordList.size());
+            } while (contains(picked, i, index));
+            picked[i] = index;
+            words.add(wordList.get(index));
+        }
+        return words.toString();
+    }
+
+    /**
+     * @param indexes the indexes
+     * @param amount  the amount of used indexes
+     * @param index   the index to search
+     * @return true if the index is in the used indexes
+     */
+    private static boolean contains(int[] indexes, int amount, int index) {
+        for (int i = 0; i < amount; i++) {
+            if (indexes[i] == index) {
+                return true;
+            }
         }
-        return backupCode.toString();
+        return false;
     }
 
     /**
@@ -16,6 +16,14 @@ public class ClientInfoResponse {
      * Amount of own data stored on this server in bytes
      */
     public long used_data;
+    /**
+     * Amount of data in bytes not stored again because files share the same content
+     */
+    public long deduplicated_data;
+    /**
+     * Size of all files divided by the size actually stored, 1 if nothing is shared
+     */
+    public double deduplication_ratio;
     /**
      * Blocks that aren't secured on any other servers
      */
@@ -42,6 +50,8 @@ public class ClientInfoResponse {
      *
      * @param total_usage_size    Disk size divided by 3 in bytes
      * @param used_data           Amount of own data stored on this server in bytes
+     * @param deduplicated_data   Amount of data in bytes not stored again because files share
+     *                            the same content
      * @param data_unsecured      Blocks that aren't secured on any other servers
      * @param data_secured        Blocks that are only secured on one server
      * @param data_safely_secured Blocks that are secured on at least 2 other servers
@@ -49,11 +59,15 @@ public class ClientInfoResponse {
      * @param files               List of saved Files
      */
     @SuppressWarnings({"PMD.FormalParameterNamingConventions"})
-    public ClientInfoResponse (long total_usage_size, long used_data, long data_unsecured,
-            long data_secured, long data_safely_secured, List<ClientServerInfo> servers,
-            List<Field.FileInfo> files) {
+    public ClientInfoResponse (long total_usage_size, long used_data, long deduplicated_data,
+            long data_unsecured, long data_secured, long data_safely_secured,
+            List<ClientServerInfo> servers, List<Field.FileInfo> files) {
         this.total_usage_size = total_usage_size;
         this.used_data = used_data;
+        this.deduplicated_data = deduplicated_data;
+        this.deduplication_ratio = used_data == 0 ?
+                1 :
+                (double) (used_data + deduplicated_data) / used_data;
         this.data_unsecured = data_unsecured;
         this.data_secured = data_secured;
         this.data_safely_secured = data_safely_secured;
@@ -71,6 +85,7 @@ public class ClientInfoResponse {
         }
         boolean result = total_usage_size == that.total_usage_size;
         result &= used_data == that.used_data;
+        result &= deduplicated_data == that.deduplicated_data;
         result &= data_unsecured == that.data_unsecured;
         result &= data_secured == that.data_secured;
         result &= data_safely_secured == that.data_safely_secured;
@@ -81,7 +96,7 @@ public class ClientInfoResponse {
 
     @Override
     public int hashCode() {
-        return Objects.hash(total_usage_size, used_data, data_unsecured, data_secured,
-                data_safely_secured);
+        return Objects.hash(total_usage_size, used_data, deduplicated_data, data_unsecured,
+                data_secured, data_safely_secured);
     }
 }
@@ -80,5 +80,14 @@ public interface Field {
     record NewBlock(String hash_method, String nonce) {}
 
 
+    /**
+     * @param running         if a restore is requested or running
+     * @param blocks          amount of blocks of the current or last restore
+     * @param restored_blocks amount of blocks restored or already in the local files
+     * @param failed_blocks   amount of blocks that couldn't be restored from any server
+     */
+    record RestoreStatus(boolean running, int blocks, int restored_blocks, int failed_blocks) {}
+
+
     record ServerList(List<BaseServerInfo> servers) {}
 }
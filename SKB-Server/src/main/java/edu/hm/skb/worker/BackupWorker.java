@@ -9,6 +9,7 @@ import edu.hm.skb.util.hash.HashMethod;
 import edu.hm.skb.util.model.FedInfoResponse;
 import edu.hm.skb.util.model.Field;
 import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import jakarta.ws.rs.core.Response;
@@ -19,8 +20,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
@@ -37,11 +40,20 @@ public class BackupWorker {
      * Log instance
      */
     private static final Logger LOG = Logger.getLogger(BackupWorker.class);
+    /**
+     * Amount of servers every block should be saved on
+     */
+    private static final int MIN_REPLICAS = 2;
 
     /**
      * Data Interface Instance
      */
     private final Data data = Data.getData();
+    /**
+     * Ids of the blocks saved on less than {@link #MIN_REPLICAS} servers, kept up to date with the
+     * config change events
+     */
+    private final Set<String> underReplicated = ConcurrentHashMap.newKeySet();
 
     /**
      * Config Instance
@@ -78,11 +90,65 @@ public class BackupWorker {
     }
 
     /**
-     * Runs every 10m and will check every block if something needs to be done
+     * Starts tracking the blocks that need more servers
+     */
+    @PostConstruct
+    /* default */ void subscribe() {
+        config.getConfig().subscribe(this::onConfigEvent);
+    }
+
+    /**
+     * Keeps the under replicated blocks up to date
+     *
+     * @param event the config change
+     */
+    private void onConfigEvent(Config.Event event) {
+        if (event instanceof Config.BlockAdded added && added.block()
+                .serverToId()
+                .size() < MIN_REPLICAS) {
+            underReplicated.add(added.block().id());
+        } else if (event instanceof Config.ReplicaRemoved removed && removed
+                .replicas() < MIN_REPLICAS) {
+            underReplicated.add(removed.block().id());
+        } else if (event instanceof Config.ReplicaAdded replicaAdded && replicaAdded
+                .replicas() >= MIN_REPLICAS) {
+            underReplicated.remove(replicaAdded.block().id());
+        } else if (event instanceof Config.BlockRemoved removed) {
+            underReplicated.remove(removed.block().id());
+        }
+    }
+
+    /**
+     * Runs every 24h as safety net and adds every block that needs more servers to the tracked
+     * blocks
+     */
+    @Scheduled(every = "24h", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void reconcileBlocks() {
+        config.getConfig()
+                .getBlocks()
+                .stream()
+                .filter(block -> block.serverToId().size() < MIN_REPLICAS)
+                .forEach(block -> underReplicated.add(block.id()));
+    }
+
+    /**
+     * Runs every 10m and will check every block that needs more servers
      */
     @Scheduled(every = "10m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
     public void backupBlocks() {
-        List<Config.Block> blocks = config.getConfig().getBlocks();
+        List<Config.Block> blocks = new ArrayList<>();
+        for (String id : underReplicated) {
+            // removed first, so that a concurrent change adding it again isn't lost
+            underReplicated.remove(id);
+            Config.Block block = config.getConfig().getBlock(id);
+            if (block != null && block.serverToId().size() < MIN_REPLICAS) {
+                underReplicated.add(id);
+                blocks.add(block);
+            }
+        }
+        if (blocks.isEmpty()) {
+            return;
+        }
         List<Config.Server> servers = config.getConfig()
                 .getServers()
                 .stream()
@@ -92,7 +158,7 @@ public class BackupWorker {
                             .getServerInfo(config.getConfig().getHostname()).is_verified;
                 })
                 .toList();
-        blocks.stream().filter(block -> block.serverToId().size() < 2).forEach(block -> {
+        blocks.forEach(block -> {
             List<Config.Server> newServer = servers.stream()
                     .filter(server -> !block.serverToId().containsKey(server.hostname()))
                     .toList();
@@ -132,22 +198,17 @@ public class BackupWorker {
                     // there aren't that many blocks free
                     continue;
                 }
-                List<Config.ExternalBlock> newBlocks = new ArrayList<>();
-                for (int i = 0; i < amountOwnBlocks; i++) {
-                    int counter = 0;
-                    Config.ExternalBlock newBlock;
-                    do {
-                        newBlock = new Config.ExternalBlock(UUID.randomUUID().toString(), server
-                                .hostname());
-                        counter++;
-                    } while (counter < 1000 && !config.getConfig().addNewExternalBlock(newBlock));
-                    if (counter == 1000) {
-                        LOG.error("Couldn't create new external Block");
-                        newBlocks.forEach(externalBlock -> config.getConfig()
-                                .deleteExternalBlock(externalBlock.id()));
-                        return;
-                    }
-                    newBlocks.add(newBlock);
+                List<String> newBlocks = new ArrayList<>();
+                boolean created;
+                try {
+                    created = config.getConfig().transaction(tx -> reserveExternalBlocks(tx,
+                            server.hostname(), amountOwnBlocks, newBlocks));
+                } catch (IllegalStateException e) {
+                    created = false;
+                }
+                if (!created) {
+                    LOG.error("Couldn't create new external Block");
+                    return;
                 }
                 try (Response response = FedService.getFedRestClient(server.hostname())
                         .reserveBlocks(config.getConfig().getHostname(), new Field.Amount(
@@ -155,8 +216,7 @@ public class BackupWorker {
                     if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
                         LOG.warnf("Remote server {0} wouldn't create new blocks", server
                                 .hostname());
-                        newBlocks.forEach(externalBlock -> config.getConfig()
-                                .deleteExternalBlock(externalBlock.id()));
+                        config.getConfig().deleteExternalBlocks(newBlocks);
                         continue;
                     }
                 }
@@ -171,8 +231,7 @@ public class BackupWorker {
                     break;
                 }
                 LOG.errorf("Server {0} didn't reserve the blocks as wanted", server.hostname());
-                newBlocks.forEach(externalBlock -> config.getConfig()
-                        .deleteExternalBlock(externalBlock.id()));
+                config.getConfig().deleteExternalBlocks(newBlocks);
             }
             // There is no server available with enough place where we could put the block
         });
@@ -247,6 +306,31 @@ public class BackupWorker {
         });
     }
 
+    /**
+     * Reserves new external blocks for a server
+     *
+     * @param tx        the transaction to add the blocks in
+     * @param hostname  the remote server
+     * @param amount    the amount of blocks to reserve
+     * @param newBlocks gets the ids of the reserved blocks
+     * @throws IllegalStateException if no free id was found
+     */
+    private static void reserveExternalBlocks(Config.Transaction tx, String hostname, int amount,
+            List<String> newBlocks) {
+        for (int i = 0; i < amount; i++) {
+            int counter = 0;
+            Config.ExternalBlock newBlock;
+            do {
+                newBlock = Config.ExternalBlock.reserve(UUID.randomUUID().toString(), hostname);
+                counter++;
+            } while (counter < 1000 && !tx.addNewExternalBlock(newBlock));
+            if (counter == 1000) {
+                throw new IllegalStateException("Too many retries");
+            }
+            newBlocks.add(newBlock.id());
+        }
+    }
+
     /**
      * Uploads a new block to a server
      *
@@ -271,7 +355,6 @@ public class BackupWorker {
                 try {
                     if (HashMethod.checkIntegrity(server.hostname(), config.getConfig()
                             .getHostname(), freeBlock.id(), data, block)) {
-                        block.serverToId().put(server.hostname(), freeBlock.id());
                         if (!config.getConfig()
                                 .addBlockServer(block.id(), server.hostname(), freeBlock.id())) {
                             throw new IllegalStateException();
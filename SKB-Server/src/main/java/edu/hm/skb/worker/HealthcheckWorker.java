@@ -5,6 +5,7 @@ import edu.hm.skb.config.ConfigInjector;
 import edu.hm.skb.data.Data;
 import edu.hm.skb.util.hash.HashMethod;
 import io.quarkus.scheduler.Scheduled;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import org.jboss.logging.Logger;
@@ -12,6 +13,7 @@ import org.jboss.logging.Logger;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Worker doing the healthcheck
@@ -29,9 +31,13 @@ public class HealthcheckWorker {
      */
     private final Data data = Data.getData();
     /**
-     * Queue of blocks that need to be checked
+     * Ids of all blocks, kept up to date with the config change events
      */
-    private final List<Config.Block> blocksToCheck = new ArrayList<>();
+    private final Set<String> knownBlocks = ConcurrentHashMap.newKeySet();
+    /**
+     * Queue of block ids that need to be checked
+     */
+    private final List<String> blocksToCheck = new ArrayList<>();
 
     /**
      * Config Instance
@@ -44,6 +50,27 @@ public class HealthcheckWorker {
      */
     private int counter = -1;
 
+    /**
+     * Starts tracking the blocks
+     */
+    @PostConstruct
+    /* default */ void subscribe() {
+        config.getConfig().subscribe(this::onConfigEvent);
+    }
+
+    /**
+     * Keeps the known blocks up to date
+     *
+     * @param event the config change
+     */
+    private void onConfigEvent(Config.Event event) {
+        if (event instanceof Config.BlockAdded added) {
+            knownBlocks.add(added.block().id());
+        } else if (event instanceof Config.BlockRemoved removed) {
+            knownBlocks.remove(removed.block().id());
+        }
+    }
+
     /**
      * Healthcheck worker
      */
@@ -54,38 +81,52 @@ public class HealthcheckWorker {
         if (counter != 0) {
             return;
         }
-        int amountToCheck = (int) (config.getConfig().getBlocks().size() * config.getConfig()
+        int amountToCheck = (int) (knownBlocks.size() * config.getConfig()
                 .getHealthCheckPercent() / 100.0);
         while (amountToCheck > 0) {
             if (blocksToCheck.isEmpty()) {
-                blocksToCheck.addAll(config.getConfig().getBlocks());
+                blocksToCheck.addAll(knownBlocks);
                 Collections.shuffle(blocksToCheck);
+                if (blocksToCheck.isEmpty()) {
+                    return;
+                }
             }
             int tmpAmount = Math.min(amountToCheck, blocksToCheck.size());
-            blocksToCheck.removeAll(blocksToCheck.stream()
-                    .limit(tmpAmount)
-                    .filter(block -> block.serverToId().entrySet().stream().map(entry -> {
-                        try {
-                            if (HashMethod.checkIntegrity(entry.getKey(), config.getConfig()
-                                    .getHostname(), entry.getValue(), data, block)) {
-                                return true;
-                            } else {
-                                LOG.warnf(
-                                        "Hash wasn't as expected for block {0} (external ID: {1}) on server {2}",
-                                        block.id(), entry.getValue(), entry.getKey());
-                                // FIXME: handle if hash wasn't correct
-                                return false;
-                            }
-                        } catch (FileNotFoundException e) {
-                            LOG.error("Couldn't find local Block", e);
-                            return false;
-                        } catch (IOException e) {
-                            LOG.error("Couldn't read file", e);
-                            return false;
-                        }
-                    }).reduce(true, Boolean::logicalAnd))
-                    .toList());
+            blocksToCheck.removeAll(blocksToCheck.stream().limit(tmpAmount).filter(id -> {
+                Config.Block block = config.getConfig().getBlock(id);
+                // deleted blocks don't need to be checked anymore
+                return block == null || checkBlock(block);
+            }).toList());
             amountToCheck -= tmpAmount;
         }
     }
+
+    /**
+     * Checks the integrity of a block on all servers it is saved on
+     *
+     * @param block the block
+     * @return true if the block is intact on all servers
+     */
+    private boolean checkBlock(Config.Block block) {
+        return block.serverToId().entrySet().stream().map(entry -> {
+            try {
+                if (HashMethod.checkIntegrity(entry.getKey(), config.getConfig()
+                        .getHostname(), entry.getValue(), data, block)) {
+                    return true;
+                } else {
+                    LOG.warnf(
+                            "Hash wasn't as expected for block {0} (external ID: {1}) on server {2}",
+                            block.id(), entry.getValue(), entry.getKey());
+                    // FIXME: handle if hash wasn't correct
+                    return false;
+                }
+            } catch (FileNotFoundException e) {
+                LOG.error("Couldn't find local Block", e);
+                return false;
+            } catch (IOException e) {
+                LOG.error("Couldn't read file", e);
+                return false;
+            }
+        }).reduce(true, Boolean::logicalAnd);
+    }
 }
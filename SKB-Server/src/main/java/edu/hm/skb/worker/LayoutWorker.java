@@ -0,0 +1,25 @@
+package edu.hm.skb.worker;
+
+import edu.hm.skb.data.Data;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Worker moving the files and external blocks of the old flat layout into their sub folders
+ */
+@ApplicationScoped
+public class LayoutWorker {
+
+    /**
+     * Data Interface Instance
+     */
+    private final Data data = Data.getData();
+
+    /**
+     * Runs every 1s and moves a part of the flat layout, does nothing once all entries moved
+     */
+    @Scheduled(every = "1s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void migrateLayout() {
+        data.migrateLayout();
+    }
+}
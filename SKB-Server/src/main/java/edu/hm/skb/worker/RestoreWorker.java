@@ -0,0 +1,416 @@
+package edu.hm.skb.worker;
+
+import edu.hm.skb.api.backup.BackupService;
+import edu.hm.skb.api.fed.FedService;
+import edu.hm.skb.config.Config;
+import edu.hm.skb.config.ConfigInjector;
+import edu.hm.skb.data.Data;
+import edu.hm.skb.util.model.Field;
+import io.quarkus.scheduler.Scheduled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker restoring the local files from the blocks on the remote servers after the local data was
+ * lost
+ * <p/>
+ * The blocks are downloaded from their servers in parallel and written into a separate file for
+ * every lost file, which replaces the lost file once all of its blocks are restored. Until then
+ * the file isn't served from the local copy. Blocks whose content is already in the local files
+ * are skipped, so an interrupted restore just continues: it is resumed after a restart and retried
+ * while blocks fail.
+ */
+@ApplicationScoped
+public class RestoreWorker {
+
+    /**
+     * Log instance
+     */
+    private static final Logger LOG = Logger.getLogger(RestoreWorker.class);
+    /**
+     * Amount of blocks downloaded at the same time, a download holds at most one block in memory
+     */
+    private static final int CONCURRENT_DOWNLOADS = 16;
+    /**
+     * Time after which the same block is also requested from the next server, if the servers
+     * before didn't answer yet
+     */
+    private static final Duration HEDGE_DELAY = Duration.ofMillis(500);
+    /**
+     * Amount of blocks downloaded ahead of the block that is read
+     */
+    private static final int PREFETCH_BLOCKS = 4;
+    /**
+     * Time after which a restore with blocks that couldn't be restored is tried again
+     */
+    private static final Duration RETRY_DELAY = Duration.ofMinutes(5);
+
+    /**
+     * Data Interface Instance
+     */
+    private final Data data = Data.getData();
+    /**
+     * If a restore was requested and not started yet
+     */
+    private final AtomicBoolean requested = new AtomicBoolean();
+    /**
+     * If a restore is running
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+    /**
+     * If the restores left incomplete before the start were looked for
+     */
+    private final AtomicBoolean resumeChecked = new AtomicBoolean();
+    /**
+     * Time in ms the restore is tried again at, 0 if no retry is due
+     */
+    private final AtomicLong retryAt = new AtomicLong();
+    /**
+     * Amount of blocks of the current or last restore
+     */
+    private final AtomicInteger blocks = new AtomicInteger();
+    /**
+     * Amount of blocks restored or already in the local files
+     */
+    private final AtomicInteger restoredBlocks = new AtomicInteger();
+    /**
+     * Amount of blocks that couldn't be restored from any server
+     */
+    private final AtomicInteger failedBlocks = new AtomicInteger();
+
+    /**
+     * Config Instance
+     */
+    @Inject
+    /* default */ ConfigInjector config;
+
+    /**
+     * Requests a restore, it is started within the next seconds
+     *
+     * @return false if a restore is already requested or running
+     */
+    public boolean requestRestore() {
+        return !running.get() && requested.compareAndSet(false, true);
+    }
+
+    /**
+     * @return the progress of the current or last restore, it is running until all files are
+     * restored
+     */
+    public Field.RestoreStatus getStatus() {
+        return new Field.RestoreStatus(requested.get() || running.get() || retryAt.get() > 0,
+                blocks.get(), restoredBlocks.get(), failedBlocks.get());
+    }
+
+    /**
+     * Runs every 10s and starts a restore if requested, if a restore with failed blocks is due to
+     * be retried or, once after the start, if restores were left incomplete. The restore runs on
+     * the worker pool and doesn't block the scheduler.
+     */
+    @Scheduled(every = "10s", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void restore() {
+        boolean resume = !resumeChecked.getAndSet(true);
+        long retry = retryAt.get();
+        boolean due = retry > 0 && System.currentTimeMillis() >= retry;
+        if (!requested.get() && !due && !resume || !running.compareAndSet(false, true)) {
+            return;
+        }
+        // only the files already being restored are resumed without a request
+        boolean all = requested.getAndSet(false) || due;
+        retryAt.set(0);
+        Uni.createFrom()
+                .item(() -> startRestore(all))
+                .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())
+                .onItem()
+                .transformToUni(files -> files.isEmpty() && !all ?
+                        Uni.createFrom().voidItem() :
+                        restoreFiles(files))
+                .subscribe()
+                .with(ignored -> running.set(false), e -> {
+                    LOG.error("Restore failed", e);
+                    retryAt.set(System.currentTimeMillis() + RETRY_DELAY.toMillis());
+                    running.set(false);
+                });
+    }
+
+    /**
+     * @param all if all files whose local copy is missing are restored, else only the ones whose
+     *            restore was started before
+     * @return the files with content in blocks to restore
+     */
+    private List<Config.File> startRestore(boolean all) {
+        List<Config.File> files = new ArrayList<>();
+        for (Config.File file : config.getConfig().getFiles()) {
+            if (file.contentId() != null || config.getConfig().getBlocks(file.id()).isEmpty()) {
+                continue;
+            }
+            try {
+                if (all ? data.startRestore(file) : data.isRestoreIncomplete(file)) {
+                    files.add(file);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't start the restore of file " + file.id(),
+                        e);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Restores the blocks of the files and finishes the restore of every file whose blocks were
+     * all restored. A retry is scheduled for the others.
+     *
+     * @param files the files to restore
+     * @return completes once all blocks were tried
+     */
+    private Uni<Void> restoreFiles(List<Config.File> files) {
+        List<Config.Block> fileBlocks = files.stream()
+                .flatMap(file -> config.getConfig().getBlocks(file.id()).stream())
+                .distinct()
+                .toList();
+        blocks.set(fileBlocks.size());
+        restoredBlocks.set(0);
+        failedBlocks.set(0);
+        Set<String> failedFiles = ConcurrentHashMap.newKeySet();
+        return Multi.createFrom()
+                .iterable(fileBlocks)
+                .onItem()
+                .transformToUni(block -> Uni.createFrom().item(() -> {
+                    boolean restored = restoreBlock(block);
+                    (restored ? restoredBlocks : failedBlocks).incrementAndGet();
+                    if (!restored) {
+                        block.fileToByteRange()
+                                .forEach(range -> failedFiles.add(range.fileId()));
+                    }
+                    return restored;
+                }).runSubscriptionOn(Infrastructure.getDefaultWorkerPool()))
+                .merge(CONCURRENT_DOWNLOADS)
+                .collect()
+                .last()
+                .onItem()
+                .invoke(ignored -> finishRestore(files, failedFiles))
+                .replaceWithVoid();
+    }
+
+    /**
+     * Finishes the restore of the files whose blocks were all restored
+     *
+     * @param files       the restored files
+     * @param failedFiles the ids of the files with blocks that couldn't be restored
+     */
+    private void finishRestore(List<Config.File> files, Set<String> failedFiles) {
+        int finished = 0;
+        for (Config.File file : files) {
+            if (failedFiles.contains(file.id())) {
+                continue;
+            }
+            try {
+                data.finishRestore(file);
+                finished++;
+            } catch (IOException e) {
+                LOG.errorf(e, "Restore of file %s couldn't be finished", file.id());
+                failedFiles.add(file.id());
+            }
+        }
+        restoreEmptyFiles();
+        if (failedFiles.isEmpty()) {
+            LOG.infof("Restore finished, %d of %d blocks restored", restoredBlocks.get(), blocks
+                    .get());
+        } else {
+            LOG.warnf("Restore incomplete, %d of %d files restored, the others are retried in %s",
+                    finished, files.size(), RETRY_DELAY);
+            retryAt.set(System.currentTimeMillis() + RETRY_DELAY.toMillis());
+        }
+    }
+
+    /**
+     * Creates the files without content in any block that are missing: the empty files and the
+     * files sharing the content of another file
+     */
+    private void restoreEmptyFiles() {
+        for (Config.File file : config.getConfig().getFiles()) {
+            if (config.getConfig().getBlocks(file.id()).isEmpty()) {
+                try {
+                    data.restoreEmptyFile(file);
+                } catch (IOException e) {
+                    LOG.errorf(e, "Couldn't restore the empty file %s", file.id());
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure the content of a block is in the local files, for reading a file whose local
+     * copy is missing. The block is requested from one server after the other with a short
+     * delay, the first answer is used (hedged requests).
+     *
+     * @param block the block
+     * @throws IOException if the block couldn't be restored from any server
+     */
+    public void fetchBlock(Config.Block block) throws IOException {
+        if (data.isBlockRestored(block)) {
+            return;
+        }
+        List<Map.Entry<String, String>> replicas = getReplicas(block);
+        if (replicas.isEmpty()) {
+            throw new IOException("Block isn't saved on any server");
+        }
+        List<Uni<byte[]>> requests = new ArrayList<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            Map.Entry<String, String> replica = replicas.get(i);
+            requests.add(Uni.createFrom()
+                    .voidItem()
+                    .onItem()
+                    .delayIt()
+                    .by(HEDGE_DELAY.multipliedBy(i))
+                    .onItem()
+                    .transformToUni(ignored -> Uni.createFrom()
+                            .item(() -> downloadBlock(replica.getKey(), replica.getValue()))
+                            .runSubscriptionOn(Infrastructure.getDefaultWorkerPool())));
+        }
+        byte[] content;
+        try {
+            content = Uni.join().first(requests).withItem().await().indefinitely();
+        } catch (RuntimeException e) { // NOPMD
+            throw new IOException("Block couldn't be downloaded from any server", e);
+        }
+        try (InputStream blockIs = new ByteArrayInputStream(content)) {
+            data.restoreBlock(block, blockIs);
+        } catch (IOException e) {
+            // the fastest server might have an outdated copy
+            if (!restoreBlock(block)) {
+                throw new IOException("Block couldn't be restored from any server", e);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the content of the blocks is in the local files like
+     * {@link #fetchBlock(Config.Block)} and passes them on in order. The next blocks are already
+     * fetched on the worker pool while a block is passed on.
+     *
+     * @param blocks   the blocks
+     * @param consumer gets every block once its content is in the local files
+     * @throws IOException if a block couldn't be restored from any server or the consumer failed
+     */
+    public void fetchBlocks(List<Config.Block> blocks, FetchedBlockConsumer consumer)
+            throws IOException {
+        Deque<CompletableFuture<Void>> fetches = new ArrayDeque<>();
+        int next = 0;
+        for (Config.Block block : blocks) {
+            while (next < blocks.size() && fetches.size() < PREFETCH_BLOCKS) {
+                Config.Block fetched = blocks.get(next++);
+                fetches.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        fetchBlock(fetched);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, Infrastructure.getDefaultWorkerPool()));
+            }
+            try {
+                fetches.remove().join();
+            } catch (CompletionException e) {
+                throw new IOException("Block couldn't be restored from any server", e);
+            }
+            consumer.accept(block);
+        }
+    }
+
+    /**
+     * Restores a block from the first of its servers that returns a matching content
+     *
+     * @param block the block
+     * @return true if the block was restored
+     */
+    private boolean restoreBlock(Config.Block block) {
+        if (data.isBlockRestored(block)) {
+            return true;
+        }
+        for (Map.Entry<String, String> replica : getReplicas(block)) {
+            String hostname = replica.getKey();
+            String remoteId = replica.getValue();
+            try (Response response = requestBlock(hostname, remoteId);
+                    InputStream blockIs = response.readEntity(InputStream.class)) {
+                data.restoreBlock(block, blockIs);
+                return true;
+            } catch (IOException | RuntimeException e) { // NOPMD
+                LOG.warnf(e, "Block %s couldn't be restored from server %s", block.id(),
+                        hostname);
+            }
+        }
+        LOG.errorf("Block %s couldn't be restored from any server", block.id());
+        return false;
+    }
+
+    /**
+     * @param block the block
+     * @return the servers of the block with the id of the block on them, in random order to
+     * spread the downloads over the servers
+     */
+    private static List<Map.Entry<String, String>> getReplicas(Config.Block block) {
+        List<Map.Entry<String, String>> replicas = new ArrayList<>(block.serverToId().entrySet());
+        Collections.shuffle(replicas);
+        return replicas;
+    }
+
+    /**
+     * @param hostname the server
+     * @param remoteId the id of the block on the server
+     * @return the content of the block
+     */
+    private byte[] downloadBlock(String hostname, String remoteId) {
+        try (Response response = requestBlock(hostname, remoteId)) {
+            return response.readEntity(byte[].class);
+        }
+    }
+
+    /**
+     * @param hostname the server
+     * @param remoteId the id of the block on the server
+     * @return the successful response with the content of the block, must be closed
+     */
+    private Response requestBlock(String hostname, String remoteId) {
+        Field.Jwt jwt = FedService.getFedRestClient(hostname)
+                .getBlockJwt(config.getConfig().getHostname(), remoteId);
+        Response response = BackupService.getBakRestClient(hostname)
+                .blockDownload(jwt.jwt(), remoteId);
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            int status = response.getStatus();
+            response.close();
+            throw new IllegalStateException("Server answered with " + status);
+        }
+        return response;
+    }
+
+    /**
+     * Gets the blocks passed on by {@link #fetchBlocks(List, FetchedBlockConsumer)}
+     */
+    @FunctionalInterface
+    public interface FetchedBlockConsumer {
+
+        /**
+         * @param block a block whose content is in the local files
+         * @throws IOException if the content couldn't be used
+         */
+        void accept(Config.Block block) throws IOException;
+    }
+}
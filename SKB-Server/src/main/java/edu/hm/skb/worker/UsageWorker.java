@@ -0,0 +1,35 @@
+package edu.hm.skb.worker;
+
+import edu.hm.skb.data.Data;
+import io.quarkus.scheduler.Scheduled;
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Worker persisting the tracked storage usage and reconciling it with the saved files
+ */
+@ApplicationScoped
+public class UsageWorker {
+
+    /**
+     * Data Interface Instance
+     */
+    private final Data data = Data.getData();
+
+    /**
+     * Runs every 1m and persists the storage usage if it changed
+     */
+    @Scheduled(every = "1m", concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void saveUsage() {
+        data.saveUsage();
+    }
+
+    /**
+     * Runs every 6h as safety net and measures the storage usage again, the first time after
+     * the start to correct changes that weren't persisted before a crash
+     */
+    @Scheduled(every = "6h", delayed = "5m",
+            concurrentExecution = Scheduled.ConcurrentExecution.SKIP)
+    public void reconcileUsage() {
+        data.reconcileUsage();
+    }
+}
@@ -0,0 +1,183 @@
+package edu.hm.skb.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests encoding the config data in the binary format and reading files of older versions
+ */
+class BinaryConfigFormatTest {
+
+    /**
+     * Marks a binary config file
+     */
+    private static final int MAGIC = 0x534B_4243;
+    /**
+     * An id in the canonical UUID form, stored as 16 bytes
+     */
+    private static final String UUID_ID = UUID.randomUUID().toString();
+
+    /**
+     * @return config data using every field of the format
+     */
+    private static SnapshotConfigStorage.JsonSchema sample() {
+        List<Config.File> files = List.of(new Config.File(UUID_ID, "/a/ä.txt", "abc", null),
+                new Config.File("f2", "/b", "abc", UUID_ID), new Config.File("f3", "/c"));
+        List<Config.Block> blocks = List.of(new Config.Block("b1", Map.of("remote", "r1",
+                "other", UUID_ID), List.of(new Config.FileRange(UUID_ID, 0, 10),
+                        new Config.FileRange("f3", 5, 7)), "digest"), new Config.Block(UUID_ID,
+                                Map.of(), List.of()));
+        List<Config.ExternalBlock> externalBlocks = List.of(new Config.ExternalBlock("e1",
+                "remote", 1_700_000_000, 4096), new Config.ExternalBlock(UUID_ID, "other"));
+        List<Config.Server> servers = List.of(new Config.Server("remote", List.of("old"), true,
+                true, new Config.Maintenance(new Date(1000), new Date(2000)), "future", "code"),
+                new Config.Server("other", List.of(), false, false, null, null, ""));
+        return new SnapshotConfigStorage.JsonSchema(externalBlocks, servers, files, blocks);
+    }
+
+    @Test
+    /* default */ void decodesWhatWasEncoded() throws IOException {
+        SnapshotConfigStorage.JsonSchema schema = sample();
+
+        assertEquals(schema, BinaryConfigFormat.decode(BinaryConfigFormat.encode(schema)));
+    }
+
+    @Test
+    /* default */ void decodesEmptyData() throws IOException {
+        SnapshotConfigStorage.JsonSchema schema = new SnapshotConfigStorage.JsonSchema(List.of(),
+                List.of(), List.of(), List.of());
+
+        assertEquals(schema, BinaryConfigFormat.decode(BinaryConfigFormat.encode(schema)));
+    }
+
+    @Test
+    /* default */ void decodesVersion1WithoutDigests() throws IOException {
+        ByteBuffer data = legacy(1);
+
+        SnapshotConfigStorage.JsonSchema schema = BinaryConfigFormat.decode(data);
+
+        assertEquals(new Config.File(UUID_ID, "/a"), schema.files().get(0));
+        assertEquals(new Config.Block("b1", Map.of("remote", "r1"), List.of(
+                new Config.FileRange(UUID_ID, 0, 10))), schema.blocks().get(0));
+        assertNull(schema.blocks().get(0).digest());
+        assertEquals(new Config.ExternalBlock("e1", "remote"), schema.externalBlocks().get(0));
+        assertEquals(new Config.Server("remote", List.of(), true, false, null, null, "code"),
+                schema.servers().get(0));
+        assertEquals(0, data.remaining());
+    }
+
+    @Test
+    /* default */ void decodesVersion2WithBlockDigests() throws IOException {
+        SnapshotConfigStorage.JsonSchema schema = BinaryConfigFormat.decode(legacy(2));
+
+        assertEquals("digest", schema.blocks().get(0).digest());
+        assertNull(schema.files().get(0).digest());
+    }
+
+    @Test
+    /* default */ void decodesVersion3WithFileContent() throws IOException {
+        SnapshotConfigStorage.JsonSchema schema = BinaryConfigFormat.decode(legacy(3));
+
+        assertEquals(new Config.File(UUID_ID, "/a", "abc", null), schema.files().get(0));
+        assertEquals(0, schema.externalBlocks().get(0).lastModified());
+    }
+
+    @Test
+    /* default */ void rejectsUnknownVersion() {
+        ByteBuffer data = BinaryConfigFormat.encode(sample());
+        data.putShort(Integer.BYTES, (short) 99);
+
+        assertThrows(IOException.class, () -> BinaryConfigFormat.decode(data));
+    }
+
+    @Test
+    /* default */ void rejectsOtherFiles() {
+        ByteBuffer data = ByteBuffer.wrap("{\"files\":[]}".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(IOException.class, () -> BinaryConfigFormat.decode(data));
+    }
+
+    @Test
+    /* default */ void rejectsTruncatedData() {
+        ByteBuffer data = BinaryConfigFormat.encode(sample());
+        data.limit(data.limit() - 3);
+
+        assertThrows(IOException.class, () -> BinaryConfigFormat.decode(data));
+    }
+
+    /**
+     * Writes the data of an older version of the format: one file, one block, one external block
+     * and one server
+     *
+     * @param version the version, from 1 to 3
+     * @return the encoded data
+     */
+    private static ByteBuffer legacy(int version) {
+        ByteBuffer data = ByteBuffer.allocate(1024);
+        data.putInt(MAGIC).putShort((short) version);
+        data.putInt(1);
+        putString(data, "remote");
+        // files
+        data.putInt(1);
+        putUuid(data, UUID_ID);
+        putString(data, "/a");
+        if (version >= 3) {
+            putString(data, "abc");
+            putString(data, "");
+        }
+        // blocks
+        data.putInt(1);
+        data.put((byte) 0);
+        putString(data, "b1");
+        data.putInt(1).putInt(0);
+        data.put((byte) 0);
+        putString(data, "r1");
+        data.putInt(1);
+        putUuid(data, UUID_ID);
+        data.putLong(0).putLong(10);
+        if (version >= 2) {
+            putString(data, "digest");
+        }
+        // external blocks
+        data.putInt(1);
+        data.put((byte) 0);
+        putString(data, "e1");
+        data.putInt(0);
+        // servers
+        data.putInt(1);
+        data.putInt(0).putInt(0);
+        data.put((byte) 1);
+        putString(data, "code");
+        return data.flip();
+    }
+
+    /**
+     * @param data the buffer
+     * @param id   an id in the canonical UUID form
+     */
+    private static void putUuid(ByteBuffer data, String id) {
+        UUID uuid = UUID.fromString(id);
+        data.put((byte) 1).putLong(uuid.getMostSignificantBits()).putLong(uuid
+                .getLeastSignificantBits());
+    }
+
+    /**
+     * @param data   the buffer
+     * @param string the string to write length-prefixed
+     */
+    private static void putString(ByteBuffer data, String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        data.putInt(bytes.length).put(bytes);
+    }
+}
@@ -0,0 +1,135 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests writing and replaying the journal of config changes
+ */
+class ConfigJournalTest {
+
+    /**
+     * The mapper encoding the changes
+     */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Folder the journal is written to
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * @param id the id of the file
+     * @return a change adding a file
+     */
+    private static List<ConfigMutation> addFile(String id) {
+        return List.of(ConfigMutation.put(new Config.File(id, "/" + id)));
+    }
+
+    /**
+     * @param path the journal
+     * @return the ids of the files added by the replayed changes, in order
+     * @throws IOException if the journal couldn't be read
+     */
+    private List<String> replay(Path path) throws IOException {
+        List<String> ids = new ArrayList<>();
+        ConfigJournal.replay(mapper, path, mutations -> mutations.forEach(mutation -> ids.add(
+                mutation.key())));
+        return ids;
+    }
+
+    /**
+     * @param path    the journal
+     * @param commits the ids of the files, one commit each
+     * @throws IOException if the journal couldn't be written
+     */
+    private void write(Path path, String... commits) throws IOException {
+        try (ConfigJournal journal = new ConfigJournal(mapper, path)) {
+            for (String id : commits) {
+                journal.sync(journal.write(addFile(id)));
+            }
+        }
+    }
+
+    @Test
+    /* default */ void replaysAllCommitsInOrder() throws IOException {
+        Path path = folder.resolve("journal");
+        write(path, "a", "b", "c");
+
+        assertEquals(List.of("a", "b", "c"), replay(path));
+    }
+
+    @Test
+    /* default */ void replayOfMissingJournalIsEmpty() throws IOException {
+        assertEquals(List.of(), replay(folder.resolve("missing")));
+    }
+
+    @Test
+    /* default */ void dropsTruncatedLastFrame() throws IOException {
+        Path path = folder.resolve("journal");
+        write(path, "a", "b");
+        long complete = Files.size(path);
+        write(path, "c");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 3);
+        }
+
+        assertEquals(List.of("a", "b"), replay(path));
+        assertEquals(complete, Files.size(path));
+    }
+
+    @Test
+    /* default */ void dropsTruncatedFrameHeader() throws IOException {
+        Path path = folder.resolve("journal");
+        write(path, "a");
+        long complete = Files.size(path);
+        Files.write(path, new byte[] {0, 0, 1}, StandardOpenOption.APPEND);
+
+        assertEquals(List.of("a"), replay(path));
+        assertEquals(complete, Files.size(path));
+    }
+
+    @Test
+    /* default */ void dropsFrameWithWrongChecksum() throws IOException {
+        Path path = folder.resolve("journal");
+        write(path, "a", "b");
+        long last = Files.size(path) - 1;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, last);
+            lastByte.put(0, (byte) (lastByte.get(0) ^ 1));
+            lastByte.rewind();
+            channel.write(lastByte, last);
+        }
+
+        assertEquals(List.of("a"), replay(path));
+    }
+
+    @Test
+    /* default */ void appendsAfterDroppedFrame() throws IOException {
+        Path path = folder.resolve("journal");
+        write(path, "a", "b");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 1);
+        }
+
+        replay(path);
+        write(path, "c");
+
+        assertEquals(List.of("a", "c"), replay(path));
+    }
+}
@@ -0,0 +1,137 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests replaying and compacting the journal file
+ */
+class JournalConfigStorageTest {
+
+    /**
+     * Stands in for the commit lock of the config
+     */
+    private final Object commitLock = new Object();
+
+    /**
+     * Folder the journal file is written to
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * @return a storage in the test folder
+     */
+    private JournalConfigStorage open() {
+        return new JournalConfigStorage(new ObjectMapper(), folder.resolve("config.journal"));
+    }
+
+    /**
+     * Commits changes the way the config does: applied to the store and written to the storage
+     *
+     * @param storage   the storage
+     * @param store     the store
+     * @param mutations the changes
+     * @throws IOException if the changes couldn't be written
+     */
+    private void commit(ConfigStorage storage, ConfigStore store, List<ConfigMutation> mutations)
+            throws IOException {
+        long sequence;
+        synchronized (commitLock) {
+            ConfigSnapshot working = store.snapshot().apply(mutations);
+            sequence = storage.write(working, mutations);
+            store.publish(working);
+        }
+        storage.sync(sequence);
+    }
+
+    /**
+     * @param id the id of the file
+     * @return a change adding a file with a long path, so that the frames fill several pages
+     */
+    private static List<ConfigMutation> addFile(String id) {
+        return List.of(ConfigMutation.put(new Config.File(id, "/" + id + "/" + "x".repeat(300))));
+    }
+
+    @Test
+    /* default */ void replaysAllFramesAcrossPages() throws IOException {
+        JournalConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        for (int i = 0; i < 100; i++) {
+            commit(storage, store, addFile("f" + i));
+        }
+        storage.close();
+
+        ConfigStore loaded = open().load();
+
+        assertEquals(100, loaded.getFiles().size());
+        assertEquals(store.getFile("f99"), loaded.getFile("f99"));
+    }
+
+    @Test
+    /* default */ void dropsTornLastFrame() throws IOException {
+        JournalConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        commit(storage, store, addFile("a"));
+        commit(storage, store, addFile("b"));
+        storage.close();
+        Path path = folder.resolve("config.journal");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 10);
+        }
+
+        JournalConfigStorage reopened = open();
+        ConfigStore loaded = reopened.load();
+        commit(reopened, loaded, addFile("c"));
+        reopened.close();
+
+        ConfigStore reloaded = open().load();
+        assertNotNull(reloaded.getFile("a"));
+        assertNull(reloaded.getFile("b"));
+        assertNotNull(reloaded.getFile("c"));
+    }
+
+    @Test
+    /* default */ void compactionDropsOutdatedEntries() throws IOException {
+        JournalConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        for (int i = 0; i < 20_000; i++) {
+            commit(storage, store, addFile("f" + i % 10));
+        }
+        long size = Files.size(folder.resolve("config.journal"));
+        assertTrue(storage.needsCompaction());
+
+        storage.compact(store, commitLock);
+        commit(storage, store, List.of(ConfigMutation.delete(ConfigMutation.Type.DELETE_FILE,
+                "f0")));
+        storage.close();
+
+        assertTrue(Files.size(folder.resolve("config.journal")) < size);
+        assertFalse(Files.exists(folder.resolve("config.journal.compact")));
+        ConfigStore loaded = open().load();
+        assertEquals(9, loaded.getFiles().size());
+        assertNull(loaded.getFile("f0"));
+    }
+
+    @Test
+    /* default */ void rejectsOtherFiles() throws IOException {
+        Files.write(folder.resolve("config.journal"), new byte[4096]);
+
+        assertThrows(IOException.class, () -> open().load());
+    }
+}
@@ -0,0 +1,275 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests reading, recovering and compacting the paged tree file
+ */
+class PagedConfigStorageTest {
+
+    /**
+     * Stands in for the commit lock of the config
+     */
+    private final Object commitLock = new Object();
+
+    /**
+     * Folder the tree file is written to
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * @return a storage in the test folder
+     */
+    private PagedConfigStorage open() {
+        return new PagedConfigStorage(new ObjectMapper(), folder.resolve("config.btree"));
+    }
+
+    /**
+     * Commits changes the way the config does: written to the storage and published to the store
+     *
+     * @param storage   the storage
+     * @param store     the store
+     * @param mutations the changes
+     * @throws IOException if the changes couldn't be written
+     */
+    private void commit(ConfigStorage storage, ConfigStore store, List<ConfigMutation> mutations)
+            throws IOException {
+        long sequence;
+        synchronized (commitLock) {
+            ConfigSnapshot working = store.snapshot().apply(mutations);
+            sequence = storage.write(working, mutations);
+            store.publish(working);
+        }
+        storage.sync(sequence);
+    }
+
+    /**
+     * @param id the id of the file
+     * @return a change adding a file with a long path, so that the entries fill several pages
+     */
+    private static List<ConfigMutation> addFile(String id) {
+        return List.of(ConfigMutation.put(new Config.File(id, "/" + id + "/" + "x".repeat(300))));
+    }
+
+    /**
+     * @param id       the id of the block
+     * @param fileId   the file the block belongs to
+     * @param start    the start of the range in the file
+     * @param replicas the hostnames of the replicas
+     * @return a block holding one range of the file
+     */
+    private static Config.Block block(String id, String fileId, long start, String... replicas) {
+        Map<String, String> serverToId = new TreeMap<>();
+        for (String hostname : replicas) {
+            serverToId.put(hostname, id + "@" + hostname);
+        }
+        return new Config.Block(id, serverToId, List.of(new Config.FileRange(fileId, start, start
+                + 10)), HexFormat.of().formatHex(id.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param hostname the hostname
+     * @return a server with a backup code derived from the hostname
+     */
+    private static Config.Server server(String hostname) {
+        return new Config.Server(hostname, List.of(), true, true, null, null, "code-" + hostname);
+    }
+
+    @Test
+    /* default */ void readsAllEntriesAfterReopen() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        for (int i = 0; i < 500; i++) {
+            commit(storage, store, addFile("f" + i));
+        }
+        storage.close();
+
+        ConfigStore loaded = open().load();
+
+        assertEquals(500, loaded.getFiles().size());
+        assertEquals(addFile("f499").get(0).file(), loaded.getFile("f499"));
+        assertNull(loaded.getFile("f500"));
+    }
+
+    @Test
+    /* default */ void keepsIndexesUpToDate() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        commit(storage, store, List.of(ConfigMutation.put(server("a")), ConfigMutation.put(server(
+                "b")), ConfigMutation.put(new Config.File("file", "/file", "abc", null)),
+                ConfigMutation.put(new Config.File("copy", "/copy", "abc", "file")),
+                ConfigMutation.put(block("second", "file", 10, "a", "b")), ConfigMutation.put(
+                        block("first", "file", 0, "a")), ConfigMutation.put(
+                                new Config.ExternalBlock("ext", "b"))));
+        commit(storage, store, List.of(ConfigMutation.put(block("second", "file", 10, "b")),
+                ConfigMutation.delete(ConfigMutation.Type.DELETE_FILE, "copy")));
+        storage.close();
+
+        ConfigStore loaded = open().load();
+
+        assertEquals(List.of("first", "second"), loaded.getBlocksOfFile("file")
+                .stream()
+                .map(Config.Block::id)
+                .toList());
+        assertEquals(List.of("first"), loaded.getBlocksOfServer("a")
+                .stream()
+                .map(Config.Block::id)
+                .toList());
+        assertEquals(2, loaded.getBlocksOfServer("b").size() + loaded.getExternalBlocksOfServer(
+                "b").size());
+        assertEquals("file", loaded.getFileByDigest("abc").id());
+        assertTrue(loaded.getFileReferences("file").isEmpty());
+        assertEquals("b", loaded.getServerByBackupCode("code-b").hostname());
+        assertEquals(1, loaded.getExternalBlockCount());
+    }
+
+    @Test
+    /* default */ void matchesMemorySnapshot() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        ConfigSnapshot memory = MemoryConfigSnapshot.EMPTY;
+        Random random = new Random(42);
+        for (int batch = 0; batch < 200; batch++) {
+            List<ConfigMutation> mutations = new ArrayList<>();
+            for (int change = 0; change < 20; change++) {
+                String id = "b" + random.nextInt(300);
+                mutations.add(random.nextInt(4) == 0 ?
+                        ConfigMutation.delete(ConfigMutation.Type.DELETE_BLOCK, id) :
+                        ConfigMutation.put(block(id, "f" + random.nextInt(10), random.nextInt(
+                                1000), "s" + random.nextInt(5))));
+            }
+            commit(storage, store, mutations);
+            memory = memory.apply(mutations);
+        }
+        storage.close();
+
+        ConfigStore loaded = open().load();
+
+        assertEquals(memory.getBlocks().size(), loaded.getBlocks().size());
+        for (Config.Block block : memory.getBlocks()) {
+            assertEquals(block, loaded.getBlock(block.id()));
+        }
+        for (int server = 0; server < 5; server++) {
+            assertEquals(memory.getBlocksOfServer("s" + server).size(), loaded.getBlocksOfServer(
+                    "s" + server).size());
+        }
+        for (int file = 0; file < 10; file++) {
+            assertEquals(memory.getBlocksOfFile("f" + file), loaded.getBlocksOfFile("f" + file));
+        }
+    }
+
+    @Test
+    /* default */ void dropsUnsyncedTail() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        commit(storage, store, addFile("a"));
+        commit(storage, store, addFile("b"));
+        storage.close();
+        Path path = folder.resolve("config.btree");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(path) - 10);
+        }
+
+        PagedConfigStorage reopened = open();
+        ConfigStore loaded = reopened.load();
+        commit(reopened, loaded, addFile("c"));
+        reopened.close();
+
+        ConfigStore reloaded = open().load();
+        assertNotNull(reloaded.getFile("a"));
+        assertNull(reloaded.getFile("b"));
+        assertNotNull(reloaded.getFile("c"));
+    }
+
+    @Test
+    /* default */ void fallsBackToPreviousTrailerOnDamagedPages() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        commit(storage, store, addFile("a"));
+        commit(storage, store, addFile("b"));
+        storage.close();
+        Path path = folder.resolve("config.btree");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), Files.size(path)
+                    - 2 * PageFile.PAGE_SIZE + 100);
+        }
+
+        ConfigStore loaded = open().load();
+
+        assertNotNull(loaded.getFile("a"));
+        assertNull(loaded.getFile("b"));
+    }
+
+    @Test
+    /* default */ void compactionDropsOutdatedEntries() throws IOException {
+        PagedConfigStorage storage = open();
+        ConfigStore store = storage.load();
+        for (int i = 0; i < 2_500; i++) {
+            commit(storage, store, List.of(ConfigMutation.put(new Config.File("f" + i % 10, "/"
+                    + i + "/" + "x".repeat(300)))));
+        }
+        long size = Files.size(folder.resolve("config.btree"));
+        assertTrue(storage.needsCompaction());
+
+        storage.compact(store, commitLock);
+        commit(storage, store, List.of(ConfigMutation.delete(ConfigMutation.Type.DELETE_FILE,
+                "f0")));
+        storage.close();
+
+        assertTrue(Files.size(folder.resolve("config.btree")) < size);
+        assertFalse(Files.exists(folder.resolve("config.btree.compact")));
+        ConfigStore loaded = open().load();
+        assertEquals(9, loaded.getFiles().size());
+        assertNull(loaded.getFile("f0"));
+    }
+
+    @Test
+    /* default */ void importsLargeStore() throws IOException {
+        List<ConfigMutation> mutations = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            mutations.add(ConfigMutation.put(new Config.File("f" + i, "/f" + i)));
+            mutations.add(ConfigMutation.put(new Config.ExternalBlock("e" + i, "s" + i % 3)));
+        }
+        PagedConfigStorage storage = open();
+        storage.create(new ConfigStore(MemoryConfigSnapshot.EMPTY.apply(mutations)));
+
+        ConfigStore loaded = storage.load();
+
+        assertEquals(5_000, loaded.getFiles().size());
+        assertEquals(5_000, loaded.getExternalBlockCount());
+        assertEquals("/f1234", loaded.getFile("f1234").path());
+        assertEquals(1_667, loaded.getExternalBlocksOfServer("s0").size());
+        storage.close();
+    }
+
+    @Test
+    /* default */ void rejectsOtherFiles() throws IOException {
+        Files.write(folder.resolve("config.btree"), new byte[4096]);
+
+        assertThrows(IOException.class, () -> open().load());
+    }
+}
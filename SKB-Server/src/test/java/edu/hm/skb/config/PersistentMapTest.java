@@ -0,0 +1,153 @@
+package edu.hm.skb.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the hash array mapped trie behind the config snapshots
+ */
+class PersistentMapTest {
+
+    @Test
+    /* default */ void keepsEntriesOfKeysWithTheSameHash() {
+        PersistentMap<Key, String> map = PersistentMap.<Key, String>empty()
+                .put(new Key("a", 7), "1")
+                .put(new Key("b", 7), "2")
+                .put(new Key("c", 7), "3")
+                .put(new Key("b", 7), "4");
+
+        assertEquals(3, map.size());
+        assertEquals("1", map.get(new Key("a", 7)));
+        assertEquals("4", map.get(new Key("b", 7)));
+        assertEquals("3", map.get(new Key("c", 7)));
+        assertNull(map.get(new Key("d", 7)));
+    }
+
+    @Test
+    /* default */ void removesKeysWithTheSameHash() {
+        PersistentMap<Key, String> full = PersistentMap.<Key, String>empty()
+                .put(new Key("a", 7), "1")
+                .put(new Key("b", 7), "2")
+                .put(new Key("c", 1 << 20 | 7), "3");
+
+        PersistentMap<Key, String> removed = full.remove(new Key("b", 7));
+
+        assertEquals(2, removed.size());
+        assertNull(removed.get(new Key("b", 7)));
+        assertEquals("1", removed.get(new Key("a", 7)));
+        assertEquals("3", removed.get(new Key("c", 1 << 20 | 7)));
+        PersistentMap<Key, String> empty = removed.remove(new Key("a", 7)).remove(new Key("c",
+                1 << 20 | 7));
+        assertTrue(empty.isEmpty());
+        assertEquals(List.of(), empty.keys());
+    }
+
+    @Test
+    /* default */ void removingMissingKeyKeepsTheMap() {
+        PersistentMap<Key, String> map = PersistentMap.<Key, String>empty()
+                .put(new Key("a", 7), "1")
+                .put(new Key("b", 7), "2");
+
+        assertSame(map, map.remove(new Key("c", 7)));
+        assertSame(map, map.remove(new Key("c", 8)));
+    }
+
+    @Test
+    /* default */ void keepsOlderVersionsUnchanged() {
+        PersistentMap<String, String> first = PersistentMap.<String, String>empty().put("a", "1");
+        PersistentMap<String, String> second = first.put("b", "2").put("a", "3");
+        PersistentMap<String, String> third = second.remove("a");
+
+        assertEquals(Map.of("a", "1"), toMap(first));
+        assertEquals(Map.of("a", "3", "b", "2"), toMap(second));
+        assertEquals(Map.of("b", "2"), toMap(third));
+    }
+
+    @Test
+    /* default */ void editorLeavesTheOriginalUnchanged() {
+        PersistentMap<String, String> original = PersistentMap.<String, String>empty()
+                .put("a", "1")
+                .put("b", "2");
+        PersistentMap.Editor<String, String> editor = original.edit();
+        for (int i = 0; i < 1000; i++) {
+            editor.put("k" + i, "v" + i);
+        }
+        editor.remove("a");
+        editor.put("b", "3");
+
+        PersistentMap<String, String> edited = editor.build();
+
+        assertEquals(Map.of("a", "1", "b", "2"), toMap(original));
+        assertEquals(1001, edited.size());
+        assertEquals("3", edited.get("b"));
+        assertFalse(edited.containsKey("a"));
+        assertThrows(IllegalStateException.class, editor::build);
+        assertThrows(IllegalStateException.class, () -> editor.put("b", "4"));
+        assertEquals("3", edited.get("b"));
+    }
+
+    @Test
+    /* default */ void behavesLikeHashMapWithManyCollisions() {
+        SplittableRandom random = new SplittableRandom(42);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentMap<Key, Integer> map = PersistentMap.empty();
+        for (int i = 0; i < 20_000; i++) {
+            // few distinct hashes that share their lower bits, so that collision nodes and deep
+            // paths are created and removed again
+            int id = random.nextInt(2000);
+            Key key = new Key("k" + id, id % 16 << 25 | 3);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        assertEquals(expected, toMap(map));
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(map.values()));
+    }
+
+    /**
+     * @param map a map
+     * @param <K> the key type
+     * @param <V> the value type
+     * @return the entries of the map
+     */
+    private static <K, V> Map<K, V> toMap(PersistentMap<K, V> map) {
+        Map<K, V> entries = new HashMap<>();
+        map.forEach(entries::put);
+        for (K key : map.keys()) {
+            assertEquals(entries.get(key), map.get(key));
+        }
+        return entries;
+    }
+
+    /**
+     * A key with a chosen hash
+     *
+     * @param name identifies the key
+     * @param hash the hash of the key
+     */
+    private record Key(String name, int hash) {
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.hm.skb.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests loading, journaling and compacting the snapshot file
+ */
+class SnapshotConfigStorageTest {
+
+    /**
+     * Stands in for the commit lock of the config
+     */
+    private final Object commitLock = new Object();
+
+    /**
+     * Folder the snapshot file is written to
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * @param format the format of the snapshot file
+     * @return a storage in the test folder
+     */
+    private SnapshotConfigStorage open(SnapshotConfigStorage.Format format) {
+        return new SnapshotConfigStorage(new ObjectMapper(), folder.resolve("config.json"),
+                format);
+    }
+
+    /**
+     * Commits changes the way the config does: applied to the store and written to the storage
+     *
+     * @param storage   the storage
+     * @param store     the store
+     * @param mutations the changes
+     * @throws IOException if the changes couldn't be written
+     */
+    private void commit(ConfigStorage storage, ConfigStore store, List<ConfigMutation> mutations)
+            throws IOException {
+        long sequence;
+        synchronized (commitLock) {
+            ConfigSnapshot working = store.snapshot().apply(mutations);
+            sequence = storage.write(working, mutations);
+            store.publish(working);
+        }
+        storage.sync(sequence);
+    }
+
+    @ParameterizedTest
+    @EnumSource(SnapshotConfigStorage.Format.class)
+    /* default */ void replaysJournalOnLoad(SnapshotConfigStorage.Format format)
+            throws IOException {
+        SnapshotConfigStorage storage = open(format);
+        ConfigStore store = storage.load();
+        commit(storage, store, List.of(ConfigMutation.put(new Config.File("a", "/a"))));
+        commit(storage, store, List.of(ConfigMutation.put(new Config.Block("b", Map.of(),
+                List.of(new Config.FileRange("a", 0, 10))))));
+        // not closed, like after a crash
+
+        ConfigStore loaded = open(format).load();
+
+        assertNotNull(loaded.getFile("a"));
+        assertEquals(List.of(new Config.FileRange("a", 0, 10)), loaded.getBlock("b")
+                .fileToByteRange());
+        assertEquals(0, Files.size(folder.resolve("config.json.journal")));
+    }
+
+    @ParameterizedTest
+    @EnumSource(SnapshotConfigStorage.Format.class)
+    /* default */ void keepsChangesAcrossCompaction(SnapshotConfigStorage.Format format)
+            throws IOException {
+        SnapshotConfigStorage storage = open(format);
+        ConfigStore store = storage.load();
+        commit(storage, store, List.of(ConfigMutation.put(new Config.File("a", "/a"))));
+        storage.compact(store, commitLock);
+        commit(storage, store, List.of(ConfigMutation.put(new Config.File("b", "/b")),
+                ConfigMutation.delete(ConfigMutation.Type.DELETE_FILE, "a")));
+
+        assertFalse(Files.exists(folder.resolve("config.json.journal.old")));
+        ConfigStore loaded = open(format).load();
+        assertNull(loaded.getFile("a"));
+        assertNotNull(loaded.getFile("b"));
+        storage.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(SnapshotConfigStorage.Format.class)
+    /* default */ void syncAfterRotationKeepsEarlierCommit(SnapshotConfigStorage.Format format)
+            throws IOException {
+        SnapshotConfigStorage storage = open(format);
+        ConfigStore store = storage.load();
+        long sequence;
+        synchronized (commitLock) {
+            List<ConfigMutation> mutations = List.of(ConfigMutation.put(new Config.File("a",
+                    "/a")));
+            ConfigSnapshot working = store.snapshot().apply(mutations);
+            sequence = storage.write(working, mutations);
+            store.publish(working);
+        }
+        // the journal is rotated between the write and the sync of the commit
+        storage.compact(store, commitLock);
+        storage.sync(sequence);
+
+        assertTrue(Files.exists(folder.resolve("config.json")));
+        assertNotNull(open(format).load().getFile("a"));
+        storage.close();
+    }
+}
@@ -0,0 +1,141 @@
+package edu.hm.skb.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the content defined block ends only move around a change of the file
+ */
+class ContentDefinedChunkerTest {
+
+    /**
+     * Amount of file bytes fitting into a block
+     */
+    private static final long BLOCK_DATA_SIZE = 16 * 1024;
+    /**
+     * Size of the test file
+     */
+    private static final int SIZE = 300 * (int) BLOCK_DATA_SIZE;
+
+    /**
+     * Folder the test file is written to
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * @param content the content of the file
+     * @return the block ends of the content
+     * @throws IOException if the file couldn't be written
+     */
+    private long[] getBlockEnds(byte[] content) throws IOException {
+        Path path = folder.resolve("file");
+        Files.write(path, content);
+        return ContentDefinedChunker.getBlockEnds(path, 0, content.length, BLOCK_DATA_SIZE);
+    }
+
+    /**
+     * @param seed the seed of the content
+     * @return random content of {@link #SIZE} bytes
+     */
+    private static byte[] randomContent(long seed) {
+        byte[] content = new byte[SIZE];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * @param before the block ends before the change
+     * @param after  the block ends after the change
+     * @param at     the position of the change
+     * @param shift  the amount of bytes inserted, negative if removed
+     * @return the amount of block ends outside the change that didn't stay at the same content
+     */
+    private static long countMovedEnds(long[] before, long[] after, long at, long shift) {
+        Set<Long> ends = Arrays.stream(after).boxed().collect(Collectors.toSet());
+        return Arrays.stream(before)
+                .filter(end -> end <= at || end > at - Math.min(shift, 0))
+                .filter(end -> !ends.contains(end <= at ? end : end + shift))
+                .count();
+    }
+
+    @Test
+    /* default */ void coversTheFileWithBlocksThatFit() throws IOException {
+        long[] ends = getBlockEnds(randomContent(1));
+
+        long start = 0;
+        for (long end : ends) {
+            assertTrue(end > start && end - start <= BLOCK_DATA_SIZE);
+            start = end;
+        }
+        assertEquals(SIZE, start);
+        // the blocks are about 3/4 full on average
+        assertTrue(SIZE > ends.length * BLOCK_DATA_SIZE * 2 / 3);
+    }
+
+    @Test
+    /* default */ void keepsTheEndsAfterAnInsert() throws IOException {
+        byte[] content = randomContent(2);
+        byte[] insert = new byte[1000];
+        new Random(3).nextBytes(insert);
+        byte[] inserted = new byte[SIZE + insert.length];
+        int at = SIZE / 3;
+        System.arraycopy(content, 0, inserted, 0, at);
+        System.arraycopy(insert, 0, inserted, at, insert.length);
+        System.arraycopy(content, at, inserted, at + insert.length, SIZE - at);
+
+        long[] before = getBlockEnds(content);
+        long[] after = getBlockEnds(inserted);
+
+        assertTrue(countMovedEnds(before, after, at, insert.length) <= 2);
+    }
+
+    @Test
+    /* default */ void keepsTheEndsAfterARemoval() throws IOException {
+        byte[] content = randomContent(4);
+        int at = SIZE / 2;
+        byte[] removed = new byte[SIZE - 5000];
+        System.arraycopy(content, 0, removed, 0, at);
+        System.arraycopy(content, at + 5000, removed, at, SIZE - at - 5000);
+
+        long[] before = getBlockEnds(content);
+        long[] after = getBlockEnds(removed);
+
+        assertTrue(countMovedEnds(before, after, at, -5000) <= 2);
+    }
+
+    @Test
+    /* default */ void findsTheSameEndsFromAnEnd() throws IOException {
+        byte[] content = randomContent(5);
+        long[] ends = getBlockEnds(content);
+
+        long[] fromEnd = ContentDefinedChunker.getBlockEnds(folder.resolve("file"), ends[9], SIZE,
+                BLOCK_DATA_SIZE);
+
+        assertArrayEquals(Arrays.copyOfRange(ends, 10, ends.length), fromEnd);
+    }
+
+    @Test
+    /* default */ void cutsFullBlocksOfUniformContent() throws IOException {
+        long[] ends = getBlockEnds(new byte[SIZE]);
+
+        long start = 0;
+        for (long end : ends) {
+            assertTrue(end - start <= BLOCK_DATA_SIZE);
+            start = end;
+        }
+        assertEquals(SIZE, start);
+    }
+}
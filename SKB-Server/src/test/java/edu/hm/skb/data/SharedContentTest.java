@@ -0,0 +1,190 @@
+package edu.hm.skb.data;
+
+import edu.hm.skb.config.Config;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that sharing the content of files never loses the content if the config change fails
+ */
+class SharedContentTest {
+
+    /**
+     * Content of the files
+     */
+    private static final byte[] CONTENT = "shared content".getBytes(StandardCharsets.UTF_8);
+    /**
+     * Last modified date of the files
+     */
+    private static final FileTime LAST_MODIFIED = FileTime.fromMillis(1_000_000_000L);
+    /**
+     * The file holding the content
+     */
+    private static final Config.File ORIGINAL = new Config.File("original", "/original",
+            "digest", null);
+    /**
+     * The file with the same content
+     */
+    private static final Config.File COPY = new Config.File("copy", "/copy", "digest", null);
+
+    /**
+     * Folder the files are saved in
+     */
+    @TempDir
+    /* default */ Path folder;
+
+    /**
+     * The changes made in saved transactions, as method name and arguments
+     */
+    private final List<List<Object>> changes = new ArrayList<>();
+    /**
+     * If the transactions are saved
+     */
+    private boolean saving = true;
+    /**
+     * The files sharing the content of the original
+     */
+    private List<Config.File> references = List.of();
+    /**
+     * Files sharing the content, backed by the test folder and config
+     */
+    private SharedContent sharedContent;
+
+    /**
+     * Creates the shared content on content ids answering from the fields of the test
+     */
+    @BeforeEach
+    /* default */ void setUp() {
+        sharedContent = new SharedContent(new SharedContent.Contents() {
+
+            @Override
+            public Config.File getFileByDigest(String digest) {
+                return ORIGINAL;
+            }
+
+            @Override
+            public List<Config.File> getFileReferences(String id) {
+                return references;
+            }
+
+            @Override
+            public List<Config.Block> getBlocks(String fileId) {
+                return List.of();
+            }
+
+            @Override
+            public boolean transaction(Consumer<Config.Transaction> changes) {
+                List<List<Object>> made = new ArrayList<>();
+                changes.accept(recording(made));
+                if (saving) {
+                    SharedContentTest.this.changes.addAll(made);
+                }
+                return saving;
+            }
+        }, new ShardedFolder(folder), new MappedFileCache(0));
+    }
+
+    /**
+     * @param made the list the changes are added to, as method name and arguments
+     * @return a transaction recording the changes made on it
+     */
+    private static Config.Transaction recording(List<List<Object>> made) {
+        return (Config.Transaction) Proxy.newProxyInstance(Config.Transaction.class
+                .getClassLoader(), new Class<?>[]{Config.Transaction.class}, (proxy, method,
+                        args) -> {
+                    List<Object> change = new ArrayList<>();
+                    change.add(method.getName());
+                    change.addAll(Arrays.asList(args));
+                    made.add(change);
+                    return true;
+                });
+    }
+
+    /**
+     * @param file    the file
+     * @param content the content to save
+     * @return the path the file is saved at
+     * @throws IOException if the file couldn't be written
+     */
+    private Path save(Config.File file, byte[] content) throws IOException {
+        new ShardedFolder(folder).createSubFolders(file.id());
+        Path path = sharedContent.getPath(file.id());
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, LAST_MODIFIED);
+        return path;
+    }
+
+    @Test
+    /* default */ void deduplicateReplacesContentByMarker() throws IOException {
+        save(ORIGINAL, CONTENT);
+        Path path = save(COPY, CONTENT);
+
+        assertTrue(sharedContent.deduplicate(COPY, path, "digest", CONTENT.length, List.of()));
+
+        assertEquals(0, Files.size(path));
+        assertEquals(LAST_MODIFIED, Files.getLastModifiedTime(path));
+        assertEquals(List.of(List.of("updateFileContent", "copy", "digest", "original")),
+                changes);
+    }
+
+    @Test
+    /* default */ void deduplicateKeepsContentIfNotSaved() throws IOException {
+        save(ORIGINAL, CONTENT);
+        Path path = save(COPY, CONTENT);
+        saving = false;
+
+        assertThrows(IllegalStateException.class, () -> sharedContent.deduplicate(COPY, path,
+                "digest", CONTENT.length, List.of()));
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(path));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    /* default */ void handOverMovesContentToReference() throws IOException {
+        Config.File reference = new Config.File("copy", "/copy", "digest", "original");
+        Path path = save(ORIGINAL, CONTENT);
+        Path referencePath = save(reference, new byte[0]);
+        references = List.of(reference);
+
+        sharedContent.handOver(ORIGINAL);
+
+        assertTrue(Files.notExists(path));
+        assertArrayEquals(CONTENT, Files.readAllBytes(referencePath));
+        assertEquals(LAST_MODIFIED, Files.getLastModifiedTime(referencePath));
+        assertEquals(List.of(Arrays.asList("updateFileContent", "copy", "digest", null)),
+                changes);
+    }
+
+    @Test
+    /* default */ void handOverMovesContentBackIfNotSaved() throws IOException {
+        Config.File reference = new Config.File("copy", "/copy", "digest", "original");
+        Path path = save(ORIGINAL, CONTENT);
+        Path referencePath = save(reference, new byte[0]);
+        references = List.of(reference);
+        saving = false;
+
+        assertThrows(IllegalStateException.class, () -> sharedContent.handOver(ORIGINAL));
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(path));
+        assertEquals(0, Files.size(referencePath));
+        assertEquals(LAST_MODIFIED, Files.getLastModifiedTime(referencePath));
+    }
+}